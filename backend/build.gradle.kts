@@ -22,8 +22,14 @@ dependencies {
     implementation("com.google.auth:google-auth-library-oauth2-http:1.35.0")
     implementation("com.microsoft.onnxruntime:onnxruntime:1.15.1")
     implementation("org.bytedeco:opencv-platform:4.10.0-1.5.11")
+    implementation("org.bytedeco:tesseract-platform:5.5.0-1.5.11") // Optional local OCR for scanned lab reports
+    implementation("org.apache.pdfbox:pdfbox:2.0.31") // Local text-layer extraction for lab reports
     implementation("io.github.cdimascio:dotenv-java:2.3.2") // For loading .env files
     // 2. Google Vertex AI client
     implementation("com.google.cloud:google-cloud-vertexai:1.23.0")
     testImplementation("org.springframework.boot:spring-boot-starter-test")
 }
+
+tasks.withType<Test> {
+    useJUnitPlatform()
+}
@@ -3,9 +3,11 @@ package com.pulmocare;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
 @EnableMongoRepositories
+@EnableScheduling
 public class PulmoCareApplication {
     public static void main(String[] args) {
         SpringApplication.run(PulmoCareApplication.class, args);
@@ -0,0 +1,79 @@
+package com.pulmocare.config;
+
+import com.pulmocare.model.Appointment;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Keeps Appointment.startAt/endAt and slotKey in step with date, hour, endTimeStr and doctor
+ * on every save, whichever service method did the save.
+ */
+@Component
+public class AppointmentScheduleListener extends AbstractMongoEventListener<Appointment> {
+
+    // Appointments without a usable end time are booked as one 30-minute slot
+    public static final int DEFAULT_DURATION_MINUTES = 30;
+
+    @Override
+    public void onBeforeConvert(BeforeConvertEvent<Appointment> event) {
+        Appointment appointment = event.getSource();
+        appointment.setStartAt(startOf(appointment.getDate(), appointment.getHour()));
+        appointment.setEndAt(endOf(appointment.getDate(), appointment.getHour(), appointment.getEndTimeStr()));
+        String doctorId = appointment.getDoctor() != null ? appointment.getDoctor().getId() : null;
+        appointment.setSlotKey(slotKey(doctorId, appointment.getDate(), appointment.getHour()));
+    }
+
+    /**
+     * Key of the doctor's slot an appointment occupies, or null if it cannot be determined.
+     */
+    public static String slotKey(String doctorId, LocalDate date, LocalTime hour) {
+        if (doctorId == null || date == null || hour == null) {
+            return null;
+        }
+        return doctorId + "|" + date + "|" + String.format("%02d:%02d", hour.getHour(), hour.getMinute());
+    }
+
+    /**
+     * The instant an appointment starts. Dates and hours are in the server's zone, as they
+     * always have been for LocalDate.now() comparisons.
+     */
+    public static Instant startOf(LocalDate date, LocalTime hour) {
+        if (date == null || hour == null) {
+            return null;
+        }
+        return date.atTime(hour).atZone(ZoneId.systemDefault()).toInstant();
+    }
+
+    /**
+     * The instant an appointment ends: endTimeStr ("HH:mm") when it parses and is after the
+     * start, otherwise the default slot length.
+     */
+    public static Instant endOf(LocalDate date, LocalTime hour, String endTimeStr) {
+        if (date == null || hour == null) {
+            return null;
+        }
+        LocalTime end = hour.plusMinutes(DEFAULT_DURATION_MINUTES);
+        if (endTimeStr != null && !endTimeStr.isBlank()) {
+            try {
+                LocalTime parsed = LocalTime.parse(endTimeStr.trim().length() == 4 ? "0" + endTimeStr.trim() : endTimeStr.trim());
+                if (parsed.isAfter(hour)) {
+                    end = parsed;
+                }
+            } catch (DateTimeParseException e) {
+                // Keep the default slot length
+            }
+        }
+        if (end.isBefore(hour)) {
+            // A slot that runs past midnight
+            return date.plusDays(1).atTime(end).atZone(ZoneId.systemDefault()).toInstant();
+        }
+        return date.atTime(end).atZone(ZoneId.systemDefault()).toInstant();
+    }
+}
@@ -0,0 +1,75 @@
+package com.pulmocare.config;
+
+import com.pulmocare.model.Doctor;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.stereotype.Component;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Keeps Doctor.searchPrefixes and Doctor.searchNames in step with the names and location on every save, whichever
+ * service method did the save.
+ */
+@Component
+public class DoctorSearchListener extends AbstractMongoEventListener<Doctor> {
+
+    // Longer words are indexed by their first letters only; matches are checked in full afterwards
+    public static final int MAX_PREFIX_LENGTH = 10;
+
+    @Override
+    public void onBeforeConvert(BeforeConvertEvent<Doctor> event) {
+        Doctor doctor = event.getSource();
+        doctor.setSearchPrefixes(prefixesOf(doctor.getFirstName(), doctor.getLastName(), doctor.getLocation()));
+        doctor.setSearchNames(namesOf(doctor.getFirstName(), doctor.getLastName()));
+    }
+
+    /**
+     * The distinct words of the first and last name.
+     */
+    public static List<String> namesOf(String firstName, String lastName) {
+        Set<String> names = new LinkedHashSet<>(words(firstName));
+        names.addAll(words(lastName));
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Every prefix, up to MAX_PREFIX_LENGTH letters, of every word of the given texts.
+     */
+    public static List<String> prefixesOf(String... texts) {
+        Set<String> prefixes = new LinkedHashSet<>();
+        for (String text : texts) {
+            for (String word : words(text)) {
+                for (int length = 1; length <= Math.min(word.length(), MAX_PREFIX_LENGTH); length++) {
+                    prefixes.add(word.substring(0, length));
+                }
+            }
+        }
+        return new ArrayList<>(prefixes);
+    }
+
+    /**
+     * The words of a text, lower-cased and with accents removed, so that accented names are
+     * found when typed without them.
+     */
+    public static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}", "")
+                .toLowerCase(Locale.ROOT);
+        for (String word : folded.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
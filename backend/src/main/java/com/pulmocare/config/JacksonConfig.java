@@ -0,0 +1,35 @@
+package com.pulmocare.config;
+
+import com.fasterxml.jackson.annotation.JsonFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import com.pulmocare.dto.AppointmentView;
+import com.pulmocare.model.Appointment;
+import com.pulmocare.model.Doctor;
+import com.pulmocare.model.Patient;
+import com.pulmocare.service.SparseFields;
+import org.springframework.boot.autoconfigure.jackson.Jackson2ObjectMapperBuilderCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class JacksonConfig {
+
+    /**
+     * Lets responses select fields of patients, doctors and appointments (see {@link SparseFields}).
+     * The filter is attached with a mix-in so that only the web ObjectMapper knows about it, and
+     * responses that set no filter are written in full.
+     */
+    @Bean
+    public Jackson2ObjectMapperBuilderCustomizer sparseFieldsCustomizer() {
+        return builder -> builder
+                .mixIn(Patient.class, SparseFieldsMixIn.class)
+                .mixIn(Doctor.class, SparseFieldsMixIn.class)
+                .mixIn(Appointment.class, SparseFieldsMixIn.class)
+                .mixIn(AppointmentView.class, SparseFieldsMixIn.class)
+                .filters(new SimpleFilterProvider().setFailOnUnknownId(false));
+    }
+
+    @JsonFilter(SparseFields.FILTER_ID)
+    private static abstract class SparseFieldsMixIn {
+    }
+}
@@ -2,6 +2,7 @@ package com.pulmocare.controller;
 
 import com.pulmocare.model.Admin;
 import com.pulmocare.service.AdminService;
+import com.pulmocare.service.JobLeases;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -15,6 +16,9 @@ public class AdminController {
 
     @Autowired
     private AdminService adminService;
+
+    @Autowired
+    private JobLeases jobLeases;
     
     @PostMapping("/signup")
     public ResponseEntity<?> createAdmin(@RequestBody Admin admin) {
@@ -62,4 +66,10 @@ public class AdminController {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
     }
+
+    // Job leases: this node's leadership and counters, and who holds each lease
+    @GetMapping("/jobs/leases")
+    public ResponseEntity<Map<String, Object>> getJobLeases() {
+        return ResponseEntity.ok(jobLeases.snapshot());
+    }
 }
@@ -0,0 +1,68 @@
+package com.pulmocare.controller;
+
+import com.pulmocare.service.UtilizationRollupService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Admin analytics read from the utilization rollups, so their cost grows with the number of
+ * doctors and days asked for rather than with the number of appointments. from and to are
+ * yyyy-MM-dd and inclusive.
+ */
+@RestController
+@RequestMapping("/api/admin/analytics")
+@CrossOrigin(origins = "*")
+public class AnalyticsController {
+
+    @Autowired
+    private UtilizationRollupService utilizationRollupService;
+
+    // Booked against offered minutes per doctor and week (or day with granularity=day)
+    @GetMapping("/utilization")
+    public ResponseEntity<?> getUtilization(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            @RequestParam(required = false) String doctorId,
+            @RequestParam(defaultValue = "week") String granularity) {
+        try {
+            if (!granularity.equals("week") && !granularity.equals("day")) {
+                return ResponseEntity.badRequest().body("granularity must be week or day");
+            }
+            List<Map<String, Object>> rows = utilizationRollupService.getUtilization(from, to, doctorId, granularity.equals("week"));
+            return ResponseEntity.ok(rows);
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Completions, no-shows and cancellations per week across all doctors
+    @GetMapping("/no-shows")
+    public ResponseEntity<?> getNoShowTrend(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        try {
+            return ResponseEntity.ok(utilizationRollupService.getNoShowTrend(from, to));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Recount the rollups of a date range from the appointments, e.g. to fill them the first time
+    @PostMapping("/reconcile")
+    public ResponseEntity<?> reconcile(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        try {
+            int days = utilizationRollupService.reconcile(from, to);
+            return ResponseEntity.ok(Map.of("from", from, "to", to, "days", days));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+}
@@ -1,7 +1,12 @@
 package com.pulmocare.controller;
 
+import com.pulmocare.dto.AppointmentView;
+import com.pulmocare.dto.CursorPage;
 import com.pulmocare.model.Appointment;
 import com.pulmocare.service.AppointmentService;
+import com.pulmocare.service.AppointmentStatusSweeper;
+import com.pulmocare.service.CursorPaging;
+import com.pulmocare.service.SparseFields;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
@@ -11,14 +16,24 @@ import org.springframework.web.bind.annotation.*;
 import java.time.LocalDate;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/api/appointments")
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = {CursorPaging.NEXT_CURSOR_HEADER, "Link"})
 public class AppointmentController {
 
     @Autowired
     private AppointmentService appointmentService;
+
+    @Autowired
+    private AppointmentStatusSweeper appointmentStatusSweeper;
+
+    @Autowired
+    private CursorPaging cursorPaging;
+
+    @Autowired
+    private SparseFields sparseFields;
     /**
      * Create a new appointment
      */
@@ -43,13 +58,19 @@ public class AppointmentController {
     }
 
     /**
-     * Get all appointments
+     * Get all appointments, one page at a time; X-Next-Cursor is set when more follow
      */
     @GetMapping
-    public ResponseEntity<List<Appointment>> getAllAppointments() {
+    public ResponseEntity<?> getAllAppointments(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(required = false) String fields) {
         try {
-            List<Appointment> appointments = appointmentService.getAllAppointments();
-            return new ResponseEntity<>(appointments, HttpStatus.OK);
+            Set<String> selected = sparseFields.parse(fields, AppointmentView.class);
+            CursorPage<AppointmentView> page = appointmentService.getAppointmentsPage(cursor, cursorPaging.pageSize(limit), selected);
+            return CursorPaging.respond(page, selected, AppointmentView.class);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
         }
@@ -59,10 +80,14 @@ public class AppointmentController {
      * Get appointment by ID
      */
     @GetMapping("/{id}")
-    public ResponseEntity<Appointment> getAppointmentById(@PathVariable String id) {
+    public ResponseEntity<?> getAppointmentById(@PathVariable String id,
+            @RequestParam(required = false) String fields) {
         try {
-            Appointment appointment = appointmentService.getAppointmentById(id);
-            return new ResponseEntity<>(appointment, HttpStatus.OK);
+            Set<String> selected = sparseFields.parse(fields, Appointment.class);
+            Appointment appointment = appointmentService.getAppointmentById(id, selected);
+            return new ResponseEntity<>(SparseFields.filter(appointment, selected, Appointment.class), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (RuntimeException e) {
             return new ResponseEntity<>(HttpStatus.NOT_FOUND); // Return only the status for not found cases
         } catch (Exception e) {
@@ -74,10 +99,14 @@ public class AppointmentController {
      * Get appointments by patient ID
      */
     @GetMapping("/patient/{patientId}")
-    public ResponseEntity<List<Appointment>> getAppointmentsByPatientId(@PathVariable String patientId) {
+    public ResponseEntity<?> getAppointmentsByPatientId(@PathVariable String patientId,
+            @RequestParam(required = false) String fields) {
         try {
-            List<Appointment> appointments = appointmentService.getAppointmentsByPatientId(patientId);
-            return new ResponseEntity<>(appointments, HttpStatus.OK);
+            Set<String> selected = sparseFields.parse(fields, AppointmentView.class);
+            List<AppointmentView> appointments = appointmentService.getAppointmentsByPatientId(patientId, selected);
+            return new ResponseEntity<>(SparseFields.filter(appointments, selected, AppointmentView.class), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
         }
@@ -87,12 +116,16 @@ public class AppointmentController {
      * Get appointments by doctor ID
      */
     @GetMapping("/doctor/{doctorId}")
-    public ResponseEntity<List<Appointment>> getAppointmentsByDoctorId(@PathVariable String doctorId) {
+    public ResponseEntity<?> getAppointmentsByDoctorId(@PathVariable String doctorId,
+            @RequestParam(required = false) String fields) {
         try {
-            List<Appointment> appointments = appointmentService.getAppointmentsByDoctorId(doctorId);
-            return new ResponseEntity<>(appointments, HttpStatus.OK);
+            Set<String> selected = sparseFields.parse(fields, AppointmentView.class);
+            List<AppointmentView> appointments = appointmentService.getAppointmentsByDoctorId(doctorId, selected);
+            return new ResponseEntity<>(SparseFields.filter(appointments, selected, AppointmentView.class), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (Exception e) {
-            return new ResponseEntity<>(null,HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
         }
     }
 
@@ -100,10 +133,14 @@ public class AppointmentController {
      * Get upcoming appointments by patient ID
      */
     @GetMapping("/patient/{patientId}/upcoming")
-    public ResponseEntity<List<Appointment>> getUpcomingAppointmentsByPatientId(@PathVariable String patientId) {
+    public ResponseEntity<?> getUpcomingAppointmentsByPatientId(@PathVariable String patientId,
+            @RequestParam(required = false) String fields) {
         try {
-            List<Appointment> appointments = appointmentService.getUpcomingAppointmentsByPatientId(patientId);
-            return new ResponseEntity<>(appointments, HttpStatus.OK);
+            Set<String> selected = sparseFields.parse(fields, AppointmentView.class);
+            List<AppointmentView> appointments = appointmentService.getUpcomingAppointmentsByPatientId(patientId, selected);
+            return new ResponseEntity<>(SparseFields.filter(appointments, selected, AppointmentView.class), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
         }
@@ -113,10 +150,14 @@ public class AppointmentController {
      * Get past appointments by patient ID
      */
     @GetMapping("/patient/{patientId}/past")
-    public ResponseEntity<List<Appointment>> getPastAppointmentsByPatientId(@PathVariable String patientId) {
+    public ResponseEntity<?> getPastAppointmentsByPatientId(@PathVariable String patientId,
+            @RequestParam(required = false) String fields) {
         try {
-            List<Appointment> appointments = appointmentService.getPastAppointmentsByPatientId(patientId);
-            return new ResponseEntity<>(appointments, HttpStatus.OK);
+            Set<String> selected = sparseFields.parse(fields, AppointmentView.class);
+            List<AppointmentView> appointments = appointmentService.getPastAppointmentsByPatientId(patientId, selected);
+            return new ResponseEntity<>(SparseFields.filter(appointments, selected, AppointmentView.class), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
         }
@@ -126,10 +167,14 @@ public class AppointmentController {
      * Get upcoming appointments by doctor ID
      */
     @GetMapping("/doctor/{doctorId}/upcoming")
-    public ResponseEntity<List<Appointment>> getUpcomingAppointmentsByDoctorId(@PathVariable String doctorId) {
+    public ResponseEntity<?> getUpcomingAppointmentsByDoctorId(@PathVariable String doctorId,
+            @RequestParam(required = false) String fields) {
         try {
-            List<Appointment> appointments = appointmentService.getUpcomingAppointmentsByDoctorId(doctorId);
-            return new ResponseEntity<>(appointments, HttpStatus.OK);
+            Set<String> selected = sparseFields.parse(fields, AppointmentView.class);
+            List<AppointmentView> appointments = appointmentService.getUpcomingAppointmentsByDoctorId(doctorId, selected);
+            return new ResponseEntity<>(SparseFields.filter(appointments, selected, AppointmentView.class), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
         }
@@ -139,10 +184,14 @@ public class AppointmentController {
      * Get past appointments by doctor ID
      */
     @GetMapping("/doctor/{doctorId}/past")
-    public ResponseEntity<List<Appointment>> getPastAppointmentsByDoctorId(@PathVariable String doctorId) {
+    public ResponseEntity<?> getPastAppointmentsByDoctorId(@PathVariable String doctorId,
+            @RequestParam(required = false) String fields) {
         try {
-            List<Appointment> appointments = appointmentService.getPastAppointmentsByDoctorId(doctorId);
-            return new ResponseEntity<>(appointments, HttpStatus.OK);
+            Set<String> selected = sparseFields.parse(fields, AppointmentView.class);
+            List<AppointmentView> appointments = appointmentService.getPastAppointmentsByDoctorId(doctorId, selected);
+            return new ResponseEntity<>(SparseFields.filter(appointments, selected, AppointmentView.class), HttpStatus.OK);
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
         }
@@ -152,10 +201,10 @@ public class AppointmentController {
      * Get appointments by date
      */
     @GetMapping("/date/{date}")
-    public ResponseEntity<List<Appointment>> getAppointmentsByDate(
+    public ResponseEntity<List<AppointmentView>> getAppointmentsByDate(
             @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate date) {
         try {
-            List<Appointment> appointments = appointmentService.getAppointmentsByDate(date);
+            List<AppointmentView> appointments = appointmentService.getAppointmentsByDate(date);
             return new ResponseEntity<>(appointments, HttpStatus.OK);
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
@@ -166,11 +215,11 @@ public class AppointmentController {
      * Get appointments by doctor and date
      */
     @GetMapping("/doctor/{doctorId}/date/{date}")
-    public ResponseEntity<List<Appointment>> getAppointmentsByDoctorAndDate(
+    public ResponseEntity<List<AppointmentView>> getAppointmentsByDoctorAndDate(
             @PathVariable String doctorId,
             @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate date) {
         try {
-            List<Appointment> appointments = appointmentService.getAppointmentsByDoctorAndDate(doctorId, date);
+            List<AppointmentView> appointments = appointmentService.getAppointmentsByDoctorAndDate(doctorId, date);
             return new ResponseEntity<>(appointments, HttpStatus.OK);
         } catch (Exception e) {
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
@@ -207,6 +256,21 @@ public class AppointmentController {
         }
     }
 
+    /**
+     * Mark appointment as a no-show (the patient did not come)
+     */
+    @PatchMapping("/{id}/no-show")
+    public ResponseEntity<Appointment> markAppointmentAsNoShow(@PathVariable String id) {
+        try {
+            Appointment updatedAppointment = appointmentService.markAppointmentAsNoShow(id);
+            return new ResponseEntity<>(updatedAppointment, HttpStatus.OK);
+        } catch (RuntimeException e) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND); // Return only the status for not found cases
+        } catch (Exception e) {
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR); // Return only the status for error cases
+        }
+    }
+
     /**
      * Delete appointment
      */
@@ -222,19 +286,27 @@ public class AppointmentController {
 
     /**
      * Update appointment statuses based on current date/time
-     * Useful for manually updating appointment statuses
+     * Useful for manually updating appointment statuses between scheduled sweeps
      */
     @PostMapping("/update-statuses")
     public ResponseEntity<String> updateAppointmentStatuses() {
         try {
-            appointmentService.updateAppointmentStatuses();
-            return new ResponseEntity<>("Appointment statuses updated successfully", HttpStatus.OK);
+            long updated = appointmentStatusSweeper.sweep();
+            return new ResponseEntity<>("Appointment statuses updated successfully (" + updated + " marked as past)", HttpStatus.OK);
         } catch (Exception e) {
             return new ResponseEntity<>("Error updating appointment statuses: " + e.getMessage(),
                     HttpStatus.INTERNAL_SERVER_ERROR);
         }
     }
 
+    /**
+     * Runs, durations and rows updated by the appointment status sweeper
+     */
+    @GetMapping("/sweeper/stats")
+    public ResponseEntity<Map<String, Object>> getSweeperStats() {
+        return ResponseEntity.ok(appointmentStatusSweeper.snapshot());
+    }
+
     /**
      * Create a new appointment ensuring the date and time are in the doctor's available time slots
      */
@@ -247,11 +319,8 @@ public class AppointmentController {
             // Log the validation step
             System.out.println("Validating time slot for Doctor ID: " + appointment.getDoctor().getId() + ", Date: " + appointment.getDate() + ", Time: " + appointment.getHour());
 
-            boolean isAvailable = appointmentService.isTimeSlotAvailable(
-                    appointment.getDoctor().getId(),
-                    appointment.getDate(),
-                    appointment.getHour().toString() // Convert LocalTime to String
-            );            // Log the result of the validation
+            boolean isAvailable = appointmentService.isTimeSlotAvailable(appointment);
+            // Log the result of the validation
             System.out.println("Time slot availability: " + isAvailable);
 
             if (!isAvailable) {
@@ -308,9 +377,9 @@ public class AppointmentController {
      * Get today's appointments for a doctor
      */
     @GetMapping("/doctor/{doctorId}/today")
-    public ResponseEntity<List<Appointment>> getTodaysAppointmentsForDoctor(@PathVariable String doctorId) {
+    public ResponseEntity<List<AppointmentView>> getTodaysAppointmentsForDoctor(@PathVariable String doctorId) {
         try {
-            List<Appointment> todaysAppointments = appointmentService.getTodaysAppointmentsForDoctor(doctorId);
+            List<AppointmentView> todaysAppointments = appointmentService.getTodaysAppointmentsForDoctor(doctorId);
             return new ResponseEntity<>(todaysAppointments, HttpStatus.OK);
         } catch (Exception e) {
             System.err.println("Error getting today's appointments: " + e.getMessage());
@@ -0,0 +1,110 @@
+package com.pulmocare.controller;
+
+import com.pulmocare.model.BulkExportJob;
+import com.pulmocare.service.BulkExportService;
+import com.pulmocare.service.ExportService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Asynchronous bulk export of all patient records, following the FHIR bulk data flow:
+ * POST starts a job and answers 202 with its status URL in Content-Location; the status URL
+ * answers 202 with an X-Progress header while the job runs and 200 with a manifest of file URLs
+ * when it is done; the files support Range requests so that large downloads can be resumed.
+ */
+@RestController
+@RequestMapping("/api/admin/bulk-export")
+@CrossOrigin(origins = "*", exposedHeaders = {HttpHeaders.CONTENT_LOCATION, "X-Progress", HttpHeaders.ACCEPT_RANGES, HttpHeaders.CONTENT_RANGE})
+public class BulkExportController {
+
+    @Autowired
+    private BulkExportService bulkExportService;
+
+    // Start an export of every patient
+    @PostMapping
+    public ResponseEntity<?> startExport() {
+        BulkExportJob job = bulkExportService.start();
+        String statusUrl = ServletUriComponentsBuilder.fromCurrentRequest()
+                .path("/{id}").buildAndExpand(job.getId()).toUriString();
+        return ResponseEntity.status(HttpStatus.ACCEPTED)
+                .header(HttpHeaders.CONTENT_LOCATION, statusUrl)
+                .body(job);
+    }
+
+    // Status of an export: 202 while running, the manifest once completed, 500 if it failed
+    @GetMapping("/{id}")
+    public ResponseEntity<?> getStatus(@PathVariable String id) {
+        try {
+            BulkExportJob job = bulkExportService.getJob(id);
+            switch (job.getStatus()) {
+                case IN_PROGRESS:
+                    long percent = job.getPatientsTotal() > 0 ? job.getPatientsExported() * 100 / job.getPatientsTotal() : 0;
+                    return ResponseEntity.status(HttpStatus.ACCEPTED)
+                            .header("X-Progress", percent + "% (" + job.getPatientsExported() + "/" + job.getPatientsTotal() + " patients)")
+                            .body(job);
+                case COMPLETED:
+                    return ResponseEntity.ok(manifest(job));
+                default:
+                    return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(job);
+            }
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Download one resource type's file; Range requests are answered with 206 Partial Content
+    @GetMapping("/{id}/files/{type}.ndjson")
+    public ResponseEntity<?> getFile(@PathVariable String id, @PathVariable String type) {
+        try {
+            return ResponseEntity.ok()
+                    .contentType(MediaType.parseMediaType(ExportService.NDJSON))
+                    .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                    .body(new FileSystemResource(bulkExportService.getFile(id, type)));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Delete a finished export and its files
+    @DeleteMapping("/{id}")
+    public ResponseEntity<?> deleteExport(@PathVariable String id) {
+        try {
+            bulkExportService.delete(id);
+            return ResponseEntity.noContent().build();
+        } catch (RuntimeException | IOException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    private Map<String, Object> manifest(BulkExportJob job) {
+        List<Map<String, Object>> output = new ArrayList<>();
+        for (BulkExportJob.Output file : job.getOutputs()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("type", file.getType());
+            entry.put("url", ServletUriComponentsBuilder.fromCurrentRequest()
+                    .path("/files/{type}.ndjson").buildAndExpand(file.getType()).toUriString());
+            entry.put("count", file.getCount());
+            entry.put("bytes", file.getBytes());
+            output.add(entry);
+        }
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("transactionTime", job.getTransactionTime());
+        manifest.put("request", ServletUriComponentsBuilder.fromCurrentContextPath().path("/api/admin/bulk-export").toUriString());
+        manifest.put("requiresAccessToken", false);
+        manifest.put("output", output);
+        manifest.put("error", List.of());
+        return manifest;
+    }
+}
@@ -1,35 +1,99 @@
 package com.pulmocare.controller;
 
+import com.pulmocare.dto.CursorPage;
+import com.pulmocare.model.BookingLedger;
 import com.pulmocare.model.Doctor;
-import com.pulmocare.model.Appointment;
 import com.pulmocare.service.DoctorService;
-import com.pulmocare.service.AppointmentService;
+import com.pulmocare.service.AvailabilityEngine;
+import com.pulmocare.service.BookingLedgerService;
+import com.pulmocare.service.CursorPaging;
+import com.pulmocare.service.DoctorDashboardService;
+import com.pulmocare.service.DoctorSearchService;
+import com.pulmocare.service.EntityCache;
+import com.pulmocare.service.LabResultService;
+import com.pulmocare.service.SparseFields;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.time.LocalDate;
 import java.time.LocalTime;
+import java.time.ZoneOffset;
 
 @RestController
 @RequestMapping("/api/doctors")
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = {CursorPaging.NEXT_CURSOR_HEADER, "Link"})
 public class DoctorController {
 
     @Autowired
     private DoctorService doctorService;
     
     @Autowired
-    private AppointmentService appointmentService;
+    private LabResultService labResultService;
 
-    // Get doctor by ID
+    @Autowired
+    private AvailabilityEngine availabilityEngine;
+
+    @Autowired
+    private BookingLedgerService bookingLedgerService;
+
+    @Autowired
+    private CursorPaging cursorPaging;
+
+    @Autowired
+    private SparseFields sparseFields;
+
+    @Autowired
+    private EntityCache entityCache;
+
+    @Autowired
+    private DoctorDashboardService doctorDashboardService;
+
+    @Autowired
+    private DoctorSearchService doctorSearchService;
+
+    /**
+     * Cohort query over the doctor's patients, e.g.
+     * /api/doctors/{id}/cohort?analyte=EOS_ABS&above=300&months=6&condition=COPD
+     * Values are compared in the catalog unit of the analyte.
+     */
+    @GetMapping("/{id}/cohort")
+    public ResponseEntity<?> queryCohort(
+            @PathVariable String id,
+            @RequestParam String analyte,
+            @RequestParam(required = false) Double above,
+            @RequestParam(required = false) Double below,
+            @RequestParam(required = false) Integer months,
+            @RequestParam(required = false) String from,
+            @RequestParam(required = false) String to,
+            @RequestParam(required = false) String condition) {
+        try {
+            doctorService.getDoctorById(id);
+            LocalDate fromDate = from != null ? LocalDate.parse(from)
+                    : months != null ? LocalDate.now().minusMonths(months) : null;
+            LocalDate toDate = to != null ? LocalDate.parse(to) : null;
+            return ResponseEntity.ok(labResultService.queryCohort(id, condition, analyte, above, below,
+                    fromDate != null ? fromDate.atStartOfDay(ZoneOffset.UTC).toInstant() : null,
+                    toDate != null ? toDate.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().minusMillis(1) : null));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Get doctor by ID; ?fields=firstName,lastName,photo returns only those fields
     @GetMapping("/{id}")
-    public ResponseEntity<?> getDoctor(@PathVariable String id) {
+    public ResponseEntity<?> getDoctor(@PathVariable String id,
+                                       @RequestParam(required = false) String fields) {
         try {
-            Doctor doctor = doctorService.getDoctorById(id);
-            return ResponseEntity.ok(doctor);
+            Set<String> selected = sparseFields.parse(fields, Doctor.class, "password");
+            Doctor doctor = doctorService.getDoctorById(id, selected);
+            return ResponseEntity.ok(SparseFields.filter(doctor, selected, Doctor.class));
         } catch (RuntimeException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -54,10 +118,51 @@ public class DoctorController {
         }
     }
 
-    // Get all doctors
+    // Get doctors one page at a time; X-Next-Cursor is set when more follow
     @GetMapping
-    public ResponseEntity<List<Doctor>> getAllDoctors() {
-        return ResponseEntity.ok(doctorService.getAllDoctors());
+    public ResponseEntity<?> getAllDoctors(@RequestParam(required = false) String cursor,
+                                           @RequestParam(required = false) Integer limit,
+                                           @RequestParam(required = false) String fields) {
+        try {
+            Set<String> selected = sparseFields.parse(fields, Doctor.class, "password");
+            CursorPage<Doctor> page = doctorService.getDoctorsPage(cursor, cursorPaging.pageSize(limit), selected);
+            return CursorPaging.respond(page, selected, Doctor.class);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Search the directory by name, location and description, best match first;
+    // paged like the list, with the next page's cursor in X-Next-Cursor
+    @GetMapping("/search")
+    public ResponseEntity<?> searchDoctors(@RequestParam String q,
+                                           @RequestParam(required = false) String cursor,
+                                           @RequestParam(required = false) Integer limit,
+                                           @RequestParam(required = false) String fields) {
+        try {
+            Set<String> selected = sparseFields.parse(fields, Doctor.class, "password");
+            CursorPage<Doctor> page = doctorSearchService.search(q, cursor, cursorPaging.pageSize(limit), selected);
+            return CursorPaging.respond(page, selected, Doctor.class);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Typeahead: doctors with words beginning with what was typed, e.g. ?q=jo sm
+    @GetMapping("/search/suggest")
+    public ResponseEntity<?> suggestDoctors(@RequestParam String q,
+                                            @RequestParam(defaultValue = "10") int limit) {
+        try {
+            return ResponseEntity.ok(doctorSearchService.suggest(q, limit));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // Latency of search and suggest
+    @GetMapping("/search/stats")
+    public ResponseEntity<Map<String, Object>> getSearchStats() {
+        return ResponseEntity.ok(doctorSearchService.snapshot());
     }
 
     // Get total number of doctors
@@ -66,10 +171,37 @@ public class DoctorController {
         return ResponseEntity.ok(doctorService.getDoctorCount());
     }
 
+    // Hit ratio and load times of the doctor and patient cache
+    @GetMapping("/cache/stats")
+    public ResponseEntity<Map<String, Object>> getCacheStats() {
+        return ResponseEntity.ok(entityCache.snapshot());
+    }
+
+    // Latency of the dashboard endpoint
+    @GetMapping("/dashboard/stats")
+    public ResponseEntity<Map<String, Object>> getDashboardStats() {
+        return ResponseEntity.ok(doctorDashboardService.snapshot());
+    }
+
+    // Home screen in one call: doctor, today's, ongoing, next and upcoming appointments,
+    // pending reports and today's remaining free slots
+    @GetMapping("/{id}/dashboard")
+    public ResponseEntity<?> getDashboard(@PathVariable String id) {
+        try {
+            return ResponseEntity.ok(doctorDashboardService.getDashboard(id));
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
     // Update doctor
     @PutMapping("/{id}")
-    public ResponseEntity<Doctor> updateDoctor(@PathVariable String id, @RequestBody Doctor doctorDetails) {
-        return ResponseEntity.ok(doctorService.updateDoctor(id, doctorDetails));
+    public ResponseEntity<?> updateDoctor(@PathVariable String id, @RequestBody Doctor doctorDetails) {
+        try {
+            return ResponseEntity.ok(doctorService.updateDoctor(id, doctorDetails));
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
+        }
     }
     
     // Get doctor availability
@@ -96,7 +228,7 @@ public class DoctorController {
             @PathVariable String id,
             @RequestBody Map<String, Object> availabilityDetails) {
         try {
-            Doctor doctor = doctorService.getDoctorById(id);
+            Doctor doctor = doctorService.getDoctorForUpdate(id);
             
             // Update available days if provided
             if (availabilityDetails.containsKey("availableDays")) {
@@ -147,6 +279,8 @@ public class DoctorController {
             // Save the updated doctor
             Doctor updatedDoctor = doctorService.updateDoctor(id, doctor);
             return ResponseEntity.ok(updatedDoctor);
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (RuntimeException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -171,7 +305,7 @@ public class DoctorController {
             
             // Validate that the time slot is exactly 30 minutes
             try {
-                Doctor doctor = doctorService.getDoctorById(id);
+                Doctor doctor = doctorService.getDoctorForUpdate(id);
                 
                 // Create new TimeSlot (this will validate the 30-minute duration)
                 Doctor.TimeSlot newTimeSlot = new Doctor.TimeSlot(startTime, endTime);
@@ -204,6 +338,8 @@ public class DoctorController {
             } catch (IllegalArgumentException e) {
                 return ResponseEntity.badRequest().body("Invalid time slot: " + e.getMessage());
             }
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (RuntimeException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -267,7 +403,7 @@ public class DoctorController {
                 return ResponseEntity.badRequest().body("Time must be in format HH:MM");
             }
             
-            Doctor doctor = doctorService.getDoctorById(id);
+            Doctor doctor = doctorService.getDoctorForUpdate(id);
             
             // Set the available days
             doctor.setAvailableDays(workDays);
@@ -312,6 +448,8 @@ public class DoctorController {
             // Save the updated doctor
             Doctor updatedDoctor = doctorService.updateDoctor(id, doctor);
             return ResponseEntity.ok(updatedDoctor);
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -329,49 +467,13 @@ public class DoctorController {
             // Get the doctor
             Doctor doctor = doctorService.getDoctorById(id);
             
-            // Check if date is in unavailable dates
-            if (doctor.getUnavailableDates() != null && 
-                doctor.getUnavailableDates().contains(date)) {
-                return ResponseEntity.ok(Map.of("availableSlots", new java.util.ArrayList<>()));
-            }
-            
-            // Get day of week
-            String dayOfWeek = localDate.getDayOfWeek().toString().toLowerCase().substring(0, 3);
-            
-            // Check if the doctor works on this day
-            if (!doctor.getAvailableDays().contains(dayOfWeek)) {
-                return ResponseEntity.ok(Map.of("availableSlots", new java.util.ArrayList<>()));
-            }
-            
-            // Get working hours for this day
-            List<Doctor.TimeSlot> workDaySlots = doctor.getAvailableTimeSlots().get(dayOfWeek);
-            if (workDaySlots == null || workDaySlots.isEmpty()) {
-                return ResponseEntity.ok(Map.of("availableSlots", new java.util.ArrayList<>()));
-            }
-              // Use the doctor's actual defined time slots rather than generating all possible slots
-            // This fixes the bug where time slots were being incorrectly merged
-            // (e.g., if doctor has 10:30-11:00 and 12:30-1:00, it was incorrectly creating all slots between 10:30 and 1:00)
-            List<Doctor.TimeSlot> allSlots = new java.util.ArrayList<>(workDaySlots);
-            
-            // Get existing appointments for this date
-            List<Appointment> existingAppointments = appointmentService.getAppointmentsByDoctorAndDate(id, localDate);
-            
-            // Create a set of booked start times
-            java.util.Set<String> bookedTimes = new java.util.HashSet<>();
-            for (Appointment appointment : existingAppointments) {
-                LocalTime time = appointment.getHour();
-                bookedTimes.add(String.format("%02d:%02d", time.getHour(), time.getMinute()));
-            }
-            
-            // Filter out booked slots
+            // Template slots that no appointment overlaps; empty on days off and unavailable dates
             List<Map<String, String>> availableSlots = new java.util.ArrayList<>();
-            for (Doctor.TimeSlot slot : allSlots) {
-                if (!bookedTimes.contains(slot.getStartTime())) {
-                    availableSlots.add(Map.of(
-                        "startTime", slot.getStartTime(),
-                        "endTime", slot.getEndTime()
-                    ));
-                }
+            for (Doctor.TimeSlot slot : availabilityEngine.freeSlots(doctor, localDate)) {
+                availableSlots.add(Map.of(
+                    "startTime", slot.getStartTime(),
+                    "endTime", slot.getEndTime()
+                ));
             }
             
             return ResponseEntity.ok(Map.of(
@@ -384,6 +486,57 @@ public class DoctorController {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
     }
+
+    /**
+     * Get available time slots for every date in a range, for calendar views.
+     * Answers 304 when the doctor and the range's bookings are unchanged since the given ETag.
+     */
+    @GetMapping("/{id}/availability/range")
+    public ResponseEntity<?> getAvailableTimeSlotsInRange(
+            @PathVariable String id,
+            @RequestParam String from,
+            @RequestParam String to,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        try {
+            LocalDate fromDate = LocalDate.parse(from);
+            LocalDate toDate = LocalDate.parse(to);
+            AvailabilityEngine.checkRange(fromDate, toDate);
+
+            // One read for the doctor and one for the range's bookings
+            Doctor doctor = doctorService.getDoctorById(id);
+            Map<LocalDate, BookingLedger> ledgers = bookingLedgerService.findRange(id, fromDate, toDate);
+
+            String eTag = AvailabilityEngine.rangeTag(doctor, fromDate, toDate, ledgers);
+            if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+            }
+
+            List<Map<String, Object>> days = new java.util.ArrayList<>();
+            availabilityEngine.freeSlots(doctor, fromDate, toDate, ledgers).forEach((date, slots) -> {
+                List<Map<String, String>> availableSlots = new java.util.ArrayList<>();
+                for (Doctor.TimeSlot slot : slots) {
+                    availableSlots.add(Map.of(
+                        "startTime", slot.getStartTime(),
+                        "endTime", slot.getEndTime()
+                    ));
+                }
+                days.add(Map.of(
+                    "date", date.toString(),
+                    "dayOfWeek", date.getDayOfWeek().toString(),
+                    "availableSlots", availableSlots
+                ));
+            });
+
+            return ResponseEntity.ok().eTag(eTag).body(Map.of(
+                "doctorId", id,
+                "from", from,
+                "to", to,
+                "days", days
+            ));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
     
     /**
      * Remove a time slot from a doctor's schedule
@@ -394,7 +547,7 @@ public class DoctorController {
             @RequestParam String day,
             @RequestParam String startTime) {
         try {
-            Doctor doctor = doctorService.getDoctorById(id);
+            Doctor doctor = doctorService.getDoctorForUpdate(id);
             
             // Get the available time slots for this day
             Map<String, List<Doctor.TimeSlot>> availableTimeSlots = doctor.getAvailableTimeSlots();
@@ -428,6 +581,8 @@ public class DoctorController {
             // Save the updated doctor
             Doctor updatedDoctor = doctorService.updateDoctor(id, doctor);
             return ResponseEntity.ok(updatedDoctor);
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -440,7 +595,7 @@ public class DoctorController {
             @RequestParam String day,
             @RequestParam String startTime) {
         try {
-            Doctor doctor = doctorService.getDoctorById(id);
+            Doctor doctor = doctorService.getDoctorForUpdate(id);
 
             // Get the available time slots for this day
             Map<String, List<Doctor.TimeSlot>> availableTimeSlots = doctor.getAvailableTimeSlots();
@@ -474,6 +629,8 @@ public class DoctorController {
             // Save the updated doctor
             Doctor updatedDoctor = doctorService.updateDoctor(id, doctor);
             return ResponseEntity.ok(updatedDoctor);
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (Exception e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -485,7 +642,7 @@ public class DoctorController {
             @PathVariable String id,
             @RequestBody Map<String, List<Map<String, String>>> newAvailability) {
         try {
-            Doctor doctor = doctorService.getDoctorById(id);
+            Doctor doctor = doctorService.getDoctorForUpdate(id);
 
             // Get or initialize the available time slots
             Map<String, List<Doctor.TimeSlot>> availableTimeSlots = doctor.getAvailableTimeSlots();
@@ -535,6 +692,8 @@ public class DoctorController {
             doctor.setAvailableTimeSlots(availableTimeSlots);
             Doctor updatedDoctor = doctorService.updateDoctor(id, doctor);
             return ResponseEntity.ok(updatedDoctor);
+        } catch (OptimisticLockingFailureException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(e.getMessage());
         } catch (RuntimeException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -0,0 +1,75 @@
+package com.pulmocare.controller;
+
+import com.pulmocare.service.ExportService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.LocalDate;
+
+/**
+ * Streaming NDJSON exports of whole collections, for admins. Each line of the response is one
+ * document; from and to (yyyy-MM-dd, inclusive) restrict appointments by date and patients and
+ * doctors by creation date.
+ */
+@RestController
+@RequestMapping("/api/admin/export")
+@CrossOrigin(origins = "*")
+public class ExportController {
+
+    @Autowired
+    private ExportService exportService;
+
+    @GetMapping("/appointments")
+    public void exportAppointments(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            HttpServletResponse response) throws IOException {
+        if (start(response, "appointments", from, to)) {
+            long written = exportService.exportAppointments(from, to, response.getOutputStream());
+            System.out.println("Exported " + written + " appointments");
+        }
+    }
+
+    @GetMapping("/patients")
+    public void exportPatients(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            HttpServletResponse response) throws IOException {
+        if (start(response, "patients", from, to)) {
+            long written = exportService.exportPatients(from, to, response.getOutputStream());
+            System.out.println("Exported " + written + " patients");
+        }
+    }
+
+    @GetMapping("/doctors")
+    public void exportDoctors(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+            HttpServletResponse response) throws IOException {
+        if (start(response, "doctors", from, to)) {
+            long written = exportService.exportDoctors(from, to, response.getOutputStream());
+            System.out.println("Exported " + written + " doctors");
+        }
+    }
+
+    /**
+     * Checks the range and sets the response up as an NDJSON download, or answers 400.
+     */
+    private boolean start(HttpServletResponse response, String name, LocalDate from, LocalDate to) throws IOException {
+        try {
+            ExportService.checkRange(from, to);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+            return false;
+        }
+        response.setContentType(ExportService.NDJSON);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + name + ".ndjson\"");
+        return true;
+    }
+}
@@ -6,8 +6,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -25,7 +29,8 @@ public class ParserController {
     private ParserService parserService;
 
     @PostMapping(value = "/analyze", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    public ResponseEntity<String> analyzePdf(@RequestParam("file") MultipartFile file) throws IOException, InterruptedException {
+    public ResponseEntity<String> analyzePdf(@RequestParam("file") MultipartFile file,
+                                             @RequestParam(value = "patientId", required = false) String patientId) throws IOException, InterruptedException {
         if (file.isEmpty()) {
             throw new IllegalArgumentException("File cannot be empty");
         }
@@ -34,10 +39,53 @@ public class ParserController {
             throw new IllegalArgumentException("Only PDF files are supported");
         }
         
-        String result = parserService.callGeminiWithPdf(file);
+        // With a patient ID the results are also stored in the patient's lab history
+        String result = parserService.callGeminiWithPdf(file, patientId);
         return ResponseEntity.ok(result);
     }
+
+    /**
+     * Re-flag one or more previously parsed reports against the current reference catalog
+     */
+    @PostMapping(value = "/reflag", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> reflagReports(@RequestBody String reports) throws IOException {
+        if (reports == null || reports.isBlank()) {
+            throw new IllegalArgumentException("Request body cannot be empty");
+        }
+        return ResponseEntity.ok(parserService.reflagReports(reports));
+    }
     
+    /**
+     * How many reports each parsing tier handled, with mean latency per tier
+     */
+    @GetMapping("/stats")
+    public ResponseEntity<Map<String, Object>> getParserStats() {
+        return ResponseEntity.ok(parserService.getTierStats());
+    }
+
+    /**
+     * Drop every cached parse, e.g. after fixing a parser bug without changing the prompt
+     */
+    @DeleteMapping("/cache")
+    public ResponseEntity<Map<String, Object>> clearCache() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("removed", parserService.invalidateCache(null));
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Drop the cached parses of one PDF, identified by the SHA-256 of its bytes
+     */
+    @DeleteMapping("/cache/{contentHash}")
+    public ResponseEntity<Map<String, Object>> invalidateCachedReport(@PathVariable String contentHash) {
+        if (!contentHash.matches("^[0-9a-f]{64}$")) {
+            throw new IllegalArgumentException("Content hash must be a lowercase hex SHA-256");
+        }
+        Map<String, Object> response = new HashMap<>();
+        response.put("removed", parserService.invalidateCache(contentHash));
+        return ResponseEntity.ok(response);
+    }
+
     @ExceptionHandler(Exception.class)
     public ResponseEntity<Map<String, String>> handleException(Exception ex) {
         Map<String, String> errorResponse = new HashMap<>();
@@ -1,44 +1,83 @@
 package com.pulmocare.controller;
 
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.pulmocare.dto.CursorPage;
+import com.pulmocare.model.LabResult;
 import com.pulmocare.model.Patient;
+import com.pulmocare.service.CursorPaging;
+import com.pulmocare.service.LabResultService;
+import com.pulmocare.service.ParserService;
 import com.pulmocare.service.PatientService;
+import com.pulmocare.service.SparseFields;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @RestController
 @RequestMapping("/api/patient")
-@CrossOrigin(origins = "*")
+@CrossOrigin(origins = "*", exposedHeaders = {CursorPaging.NEXT_CURSOR_HEADER, "Link"})
 public class PatientController {
 
     @Autowired
     private PatientService patientService;
+
+    @Autowired
+    private LabResultService labResultService;
+
+    @Autowired
+    private ParserService parserService;
+
+    @Autowired
+    private CursorPaging cursorPaging;
+
+    @Autowired
+    private SparseFields sparseFields;
     
     /**
-     * Get all patients
+     * Get patients, one page at a time
      * 
-     * @return List of all patients
+     * @param cursor The X-Next-Cursor of the previous page, omitted for the first page
+     * @param limit The page size, defaults to api.page.default-size
+     * @param full Whether to include photos, imaging, blood tests and reports
+     * @param fields The comma-separated fields to return instead, e.g. firstName,lastName,photo
+     * @return The page of patients; X-Next-Cursor is set when more follow
      */
     @GetMapping
-    public ResponseEntity<List<Patient>> getAllPatients() {
-        List<Patient> patients = patientService.getAllPatients();
-        return ResponseEntity.ok(patients);
+    public ResponseEntity<?> getAllPatients(@RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer limit,
+            @RequestParam(defaultValue = "false") boolean full,
+            @RequestParam(required = false) String fields) {
+        try {
+            Set<String> selected = sparseFields.parse(fields, Patient.class, "password");
+            CursorPage<Patient> page = patientService.getPatientsPage(cursor, cursorPaging.pageSize(limit), full, selected);
+            return CursorPaging.respond(page, selected, Patient.class);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
     }
     
     /**
      * Get a patient by ID
      * 
      * @param id The ID of the patient to get
+     * @param fields The comma-separated fields to return, all of them if omitted
      * @return The patient
      */
     @GetMapping("/{id}")
-    public ResponseEntity<?> getPatientById(@PathVariable String id) {
+    public ResponseEntity<?> getPatientById(@PathVariable String id,
+            @RequestParam(required = false) String fields) {
         try {
-            Patient patient = patientService.getPatient(id);
-            return ResponseEntity.ok(patient);
+            Set<String> selected = sparseFields.parse(fields, Patient.class, "password");
+            Patient patient = patientService.getPatient(id, selected);
+            return ResponseEntity.ok(SparseFields.filter(patient, selected, Patient.class));
         } catch (RuntimeException e) {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
@@ -126,4 +165,47 @@ public class PatientController {
             return ResponseEntity.badRequest().body(e.getMessage());
         }
     }
+
+    /**
+     * Get a patient's results for one analyte over time
+     * 
+     * @param id The ID of the patient
+     * @param analyte A catalog code such as "HGB", or a test name such as "Hemoglobin"
+     * @param from First day to include (ISO date), defaults to the earliest result
+     * @param to Last day to include (ISO date), defaults to today
+     * @return The results, oldest first
+     */
+    @GetMapping("/{id}/labs/{analyte}")
+    public ResponseEntity<List<LabResult>> getLabTrend(@PathVariable String id, @PathVariable String analyte,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to) {
+        List<LabResult> results = labResultService.getTrend(id, analyte,
+                from != null ? from.atStartOfDay(ZoneOffset.UTC).toInstant() : null,
+                to != null ? to.plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().minusMillis(1) : null);
+        return ResponseEntity.ok(results);
+    }
+    
+    /**
+     * Store an already parsed lab report in a patient's lab history, e.g. to backfill
+     * reports kept in the patient's bloodTests
+     * 
+     * @param id The ID of the patient
+     * @param report The parser output for one report
+     * @return How many results were stored
+     */
+    @PostMapping("/{id}/labs")
+    public ResponseEntity<?> addLabReport(@PathVariable String id, @RequestBody String report) {
+        try {
+            patientService.getPatient(id);
+            ObjectNode parsed = parserService.extractReport(report);
+            if (parsed == null) {
+                return ResponseEntity.badRequest().body("Body is not a parsed lab report");
+            }
+            Map<String, Object> response = new HashMap<>();
+            response.put("stored", labResultService.ingestReport(id, parsed, null));
+            return ResponseEntity.ok(response);
+        } catch (RuntimeException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,127 @@
+package com.pulmocare.dto;
+
+import com.pulmocare.model.Appointment;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+
+/**
+ * An appointment as returned by the list endpoints: every appointment field, with the patient
+ * and doctor reduced to their id and name instead of the whole referenced documents.
+ */
+public class AppointmentView {
+
+    private final Appointment appointment;
+    private final PersonSummary patient;
+    private final PersonSummary doctor;
+
+    public AppointmentView(Appointment appointment, PersonSummary patient, PersonSummary doctor) {
+        this.appointment = appointment;
+        this.patient = patient;
+        this.doctor = doctor;
+    }
+
+    public String getId() {
+        return appointment.getId();
+    }
+
+    public LocalDate getDate() {
+        return appointment.getDate();
+    }
+
+    public LocalTime getHour() {
+        return appointment.getHour();
+    }
+
+    public String getEndTimeStr() {
+        return appointment.getEndTimeStr();
+    }
+
+    public PersonSummary getPatient() {
+        return patient;
+    }
+
+    public PersonSummary getDoctor() {
+        return doctor;
+    }
+
+    public boolean isReportPending() {
+        return appointment.isReportPending();
+    }
+
+    public String getDiagnosis() {
+        return appointment.getDiagnosis();
+    }
+
+    public String getPersonalNotes() {
+        return appointment.getPersonalNotes();
+    }
+
+    public String getPlan() {
+        return appointment.getPlan();
+    }
+
+    public String getPrescription() {
+        return appointment.getPrescription();
+    }
+
+    public String getLocation() {
+        return appointment.getLocation();
+    }
+
+    public String getReason() {
+        return appointment.getReason();
+    }
+
+    public boolean isUpcoming() {
+        return appointment.isUpcoming();
+    }
+
+    public boolean isNoShow() {
+        return appointment.isNoShow();
+    }
+
+    public boolean isVaccine() {
+        return appointment.isVaccine();
+    }
+
+    public Instant getStartAt() {
+        return appointment.getStartAt();
+    }
+
+    public Instant getEndAt() {
+        return appointment.getEndAt();
+    }
+
+    public String getSlotKey() {
+        return appointment.getSlotKey();
+    }
+
+    /**
+     * The id and name of a referenced patient or doctor.
+     */
+    public static class PersonSummary {
+        private final String id;
+        private final String firstName;
+        private final String lastName;
+
+        public PersonSummary(String id, String firstName, String lastName) {
+            this.id = id;
+            this.firstName = firstName;
+            this.lastName = lastName;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFirstName() {
+            return firstName;
+        }
+
+        public String getLastName() {
+            return lastName;
+        }
+    }
+}
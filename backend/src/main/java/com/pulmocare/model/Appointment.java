@@ -1,12 +1,23 @@
 package com.pulmocare.model;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.DBRef;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalTime;
 
 @Document(collection = "appointments")
+@CompoundIndexes({
+    // Time-range queries per doctor and per patient (upcoming, past, today, ongoing)
+    @CompoundIndex(name = "doctor_start", def = "{'doctor.$id': 1, 'startAt': 1}"),
+    @CompoundIndex(name = "patient_start", def = "{'patient.$id': 1, 'startAt': 1}"),
+    // Pending report count on the doctor dashboard; only the few pending appointments are indexed
+    @CompoundIndex(name = "doctor_report_pending", def = "{'doctor.$id': 1}", partialFilter = "{'reportPending': true}")
+})
 public class Appointment {
     @Id
     private String id;
@@ -34,7 +45,17 @@ public class Appointment {
     private String location;
     private String reason;
     private boolean upcoming; // true if upcoming, false if past
+    private boolean noShow; // true if the patient did not come
     private boolean isVaccine; // true if this is a vaccine appointment
+
+    // Normalized schedule, derived from date, hour and endTimeStr whenever the appointment is saved
+    private Instant startAt;
+    private Instant endAt;
+
+    // "doctorId|date|HH:mm"; the unique index lets exactly one concurrent booking of a slot win.
+    // Sparse because appointments booked before this field existed do not have it.
+    @Indexed(unique = true, sparse = true)
+    private String slotKey;
     // Constructors
     public Appointment() {
     }    public Appointment(LocalDate date, LocalTime hour, Patient patient, Doctor doctor,
@@ -176,6 +197,14 @@ public class Appointment {
         this.upcoming = upcoming;
     }
 
+    public boolean isNoShow() {
+        return noShow;
+    }
+
+    public void setNoShow(boolean noShow) {
+        this.noShow = noShow;
+    }
+
     public boolean isVaccine() {
         return isVaccine;
     }
@@ -184,4 +213,28 @@ public class Appointment {
         isVaccine = vaccine;
     }
 
-}
\ No newline at end of file
+    public Instant getStartAt() {
+        return startAt;
+    }
+
+    public void setStartAt(Instant startAt) {
+        this.startAt = startAt;
+    }
+
+    public String getSlotKey() {
+        return slotKey;
+    }
+
+    public void setSlotKey(String slotKey) {
+        this.slotKey = slotKey;
+    }
+
+    public Instant getEndAt() {
+        return endAt;
+    }
+
+    public void setEndAt(Instant endAt) {
+        this.endAt = endAt;
+    }
+
+}
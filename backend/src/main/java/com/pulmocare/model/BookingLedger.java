@@ -0,0 +1,114 @@
+package com.pulmocare.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The appointments booked with one doctor on one date, as minute ranges.
+ * Kept beside the doctor's weekly template so that booking never rewrites the doctor document;
+ * free slots are the template minus these ranges.
+ */
+@Document(collection = "booking_ledger")
+@CompoundIndex(name = "doctor_date", def = "{'doctorId': 1, 'date': 1}")
+public class BookingLedger {
+    @Id
+    private String id; // doctorId + "|" + date
+
+    private String doctorId;
+    private LocalDate date;
+    private List<Booking> bookings = new ArrayList<>();
+    private long revision; // Incremented on every booking change, for availability ETags
+
+    public BookingLedger() {}
+
+    public static String idOf(String doctorId, LocalDate date) {
+        return doctorId + "|" + date;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getDoctorId() {
+        return doctorId;
+    }
+
+    public void setDoctorId(String doctorId) {
+        this.doctorId = doctorId;
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public void setDate(LocalDate date) {
+        this.date = date;
+    }
+
+    public List<Booking> getBookings() {
+        return bookings;
+    }
+
+    public void setBookings(List<Booking> bookings) {
+        this.bookings = bookings;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * One appointment's minutes of the day, [startMinute, endMinute).
+     */
+    public static class Booking {
+        private String appointmentId;
+        private int startMinute;
+        private int endMinute;
+
+        public Booking() {}
+
+        public Booking(String appointmentId, int startMinute, int endMinute) {
+            this.appointmentId = appointmentId;
+            this.startMinute = startMinute;
+            this.endMinute = endMinute;
+        }
+
+        public String getAppointmentId() {
+            return appointmentId;
+        }
+
+        public void setAppointmentId(String appointmentId) {
+            this.appointmentId = appointmentId;
+        }
+
+        public int getStartMinute() {
+            return startMinute;
+        }
+
+        public void setStartMinute(int startMinute) {
+            this.startMinute = startMinute;
+        }
+
+        public int getEndMinute() {
+            return endMinute;
+        }
+
+        public void setEndMinute(int endMinute) {
+            this.endMinute = endMinute;
+        }
+    }
+}
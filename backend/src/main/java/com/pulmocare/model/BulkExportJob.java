@@ -0,0 +1,146 @@
+package com.pulmocare.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bulk export of every patient's record, modeled on FHIR $export: one NDJSON file per
+ * resource type, written under the job's directory and listed in outputs when the job completes.
+ */
+@Document(collection = "bulk_export_jobs")
+public class BulkExportJob {
+
+    public enum Status { IN_PROGRESS, COMPLETED, FAILED }
+
+    @Id
+    private String id;
+
+    private Status status;
+    private Instant transactionTime; // Records changed after this may or may not be in the export
+    private Instant completedAt;
+    private long patientsTotal;
+    private long patientsExported;
+    private List<Output> outputs = new ArrayList<>();
+    private String error;
+    private String node; // Node that runs the job and holds its files
+
+    public BulkExportJob() {}
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public Instant getTransactionTime() {
+        return transactionTime;
+    }
+
+    public void setTransactionTime(Instant transactionTime) {
+        this.transactionTime = transactionTime;
+    }
+
+    public Instant getCompletedAt() {
+        return completedAt;
+    }
+
+    public void setCompletedAt(Instant completedAt) {
+        this.completedAt = completedAt;
+    }
+
+    public long getPatientsTotal() {
+        return patientsTotal;
+    }
+
+    public void setPatientsTotal(long patientsTotal) {
+        this.patientsTotal = patientsTotal;
+    }
+
+    public long getPatientsExported() {
+        return patientsExported;
+    }
+
+    public void setPatientsExported(long patientsExported) {
+        this.patientsExported = patientsExported;
+    }
+
+    public List<Output> getOutputs() {
+        return outputs;
+    }
+
+    public void setOutputs(List<Output> outputs) {
+        this.outputs = outputs;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public void setNode(String node) {
+        this.node = node;
+    }
+
+    /**
+     * One finished file: its resource type (also its name, type + ".ndjson") and what it holds.
+     */
+    public static class Output {
+        private String type;
+        private long count;
+        private long bytes;
+
+        public Output() {}
+
+        public Output(String type, long count, long bytes) {
+            this.type = type;
+            this.count = count;
+            this.bytes = bytes;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public void setType(String type) {
+            this.type = type;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public void setCount(long count) {
+            this.count = count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public void setBytes(long bytes) {
+            this.bytes = bytes;
+        }
+    }
+}
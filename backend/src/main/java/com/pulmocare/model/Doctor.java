@@ -1,22 +1,33 @@
 package com.pulmocare.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.index.TextIndexed;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
 import java.util.ArrayList;
 
 @Document(collection = "doctors")
+// Typeahead: one prefix, then names in order, so the first suggestions need no sort
+@CompoundIndex(name = "search_prefixes", def = "{'searchPrefixes': 1, 'lastName': 1, 'firstName': 1}")
 public class Doctor {
     @Id
     private String id;
+    // Directory search: one text index over these fields, names weighing most
+    @TextIndexed(weight = 5)
     private String firstName;
+    @TextIndexed(weight = 5)
     private String lastName;
     private String gender;
     private Integer age;
+    @TextIndexed
     private String description;
+    @TextIndexed(weight = 3)
     private String location;
     private String countryCode;
     private String phone;
@@ -25,11 +36,23 @@ public class Doctor {
     private String email;
     private String password;
     private String medicalLicense;
+
+    // Optimistic locking: concurrent writers of the same doctor fail instead of overwriting each other
+    @Version
+    private Long version;
     
     // Availability fields
     private List<String> availableDays; // ["mon", "tue", "wed", "thu", "fri"]
     private Map<String, List<TimeSlot>> availableTimeSlots; // Map of day to list of time slots
     private List<String> unavailableDates; // Dates when the doctor is unavailable
+
+    // Leading letters of every word of the names and location, set on save by DoctorSearchListener
+    @JsonIgnore
+    private List<String> searchPrefixes;
+
+    // Whole words of the names, set with searchPrefixes, to rank typeahead matches in the query
+    @JsonIgnore
+    private List<String> searchNames;
       // TimeSlot class to represent a time range
     public static class TimeSlot {
         private String startTime; // "09:00"
@@ -229,6 +252,14 @@ public class Doctor {
         this.password = password;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
     public String getMedicalLicense() {
         return medicalLicense;
     }
@@ -260,4 +291,20 @@ public class Doctor {
     public void setUnavailableDates(List<String> unavailableDates) {
         this.unavailableDates = unavailableDates;
     }
-}
\ No newline at end of file
+
+    public List<String> getSearchPrefixes() {
+        return searchPrefixes;
+    }
+
+    public void setSearchPrefixes(List<String> searchPrefixes) {
+        this.searchPrefixes = searchPrefixes;
+    }
+
+    public List<String> getSearchNames() {
+        return searchNames;
+    }
+
+    public void setSearchNames(List<String> searchNames) {
+        this.searchNames = searchNames;
+    }
+}
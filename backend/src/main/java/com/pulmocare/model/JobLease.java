@@ -0,0 +1,74 @@
+package com.pulmocare.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * A named lease that lets one server instance at a time run a job.
+ * The token goes up by one every time the lease changes hands, so work started under an older
+ * token can tell that it has been superseded.
+ */
+@Document(collection = "job_leases")
+public class JobLease {
+    @Id
+    private String id; // Lease name
+
+    private String owner; // Null once released
+    private long token;
+    private Instant acquiredAt;
+    private Instant expiresAt;
+    private Instant releasedAt;
+
+    public JobLease() {}
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public long getToken() {
+        return token;
+    }
+
+    public void setToken(long token) {
+        this.token = token;
+    }
+
+    public Instant getAcquiredAt() {
+        return acquiredAt;
+    }
+
+    public void setAcquiredAt(Instant acquiredAt) {
+        this.acquiredAt = acquiredAt;
+    }
+
+    public Instant getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(Instant expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public Instant getReleasedAt() {
+        return releasedAt;
+    }
+
+    public void setReleasedAt(Instant releasedAt) {
+        this.releasedAt = releasedAt;
+    }
+}
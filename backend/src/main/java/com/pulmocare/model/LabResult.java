@@ -0,0 +1,138 @@
+package com.pulmocare.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * One analyte value from one lab report, stored on its own so that a patient's history
+ * for a single analyte can be read straight from an index.
+ */
+@Document(collection = "lab_results")
+@CompoundIndexes({
+    // Per-patient trend queries: one analyte over a time window
+    @CompoundIndex(name = "patient_analyte_time", def = "{'patientId': 1, 'analyte': 1, 'takenAt': 1}"),
+    // Latest results of any analyte for a patient
+    @CompoundIndex(name = "patient_time", def = "{'patientId': 1, 'takenAt': -1}"),
+    // Earlier results of the same PDF, which date an undated report on re-upload
+    @CompoundIndex(name = "patient_source", def = "{'patientId': 1, 'sourceHash': 1}")
+})
+public class LabResult {
+    @Id
+    private String id; // Derived from patient, report, row, test and unit, so re-ingesting a report is idempotent
+
+    private String patientId;
+    private String analyte;      // Catalog code (e.g. "HGB"), or the normalized test name if not in the catalog
+    private String testName;     // As printed on the report
+    private Instant takenAt;
+
+    private Double value;        // Numeric result as reported, null for qualitative results
+    private String unit;         // Unit as reported
+    private Double canonicalValue; // Value in the catalog unit, when the unit could be converted
+    private String canonicalUnit;
+    private String normalRange;
+    private String flag;
+    private String sourceHash;   // SHA-256 of the parsed PDF, when known
+
+    public LabResult() {}
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getPatientId() {
+        return patientId;
+    }
+
+    public void setPatientId(String patientId) {
+        this.patientId = patientId;
+    }
+
+    public String getAnalyte() {
+        return analyte;
+    }
+
+    public void setAnalyte(String analyte) {
+        this.analyte = analyte;
+    }
+
+    public String getTestName() {
+        return testName;
+    }
+
+    public void setTestName(String testName) {
+        this.testName = testName;
+    }
+
+    public Instant getTakenAt() {
+        return takenAt;
+    }
+
+    public void setTakenAt(Instant takenAt) {
+        this.takenAt = takenAt;
+    }
+
+    public Double getValue() {
+        return value;
+    }
+
+    public void setValue(Double value) {
+        this.value = value;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public void setUnit(String unit) {
+        this.unit = unit;
+    }
+
+    public Double getCanonicalValue() {
+        return canonicalValue;
+    }
+
+    public void setCanonicalValue(Double canonicalValue) {
+        this.canonicalValue = canonicalValue;
+    }
+
+    public String getCanonicalUnit() {
+        return canonicalUnit;
+    }
+
+    public void setCanonicalUnit(String canonicalUnit) {
+        this.canonicalUnit = canonicalUnit;
+    }
+
+    public String getNormalRange() {
+        return normalRange;
+    }
+
+    public void setNormalRange(String normalRange) {
+        this.normalRange = normalRange;
+    }
+
+    public String getFlag() {
+        return flag;
+    }
+
+    public void setFlag(String flag) {
+        this.flag = flag;
+    }
+
+    public String getSourceHash() {
+        return sourceHash;
+    }
+
+    public void setSourceHash(String sourceHash) {
+        this.sourceHash = sourceHash;
+    }
+}
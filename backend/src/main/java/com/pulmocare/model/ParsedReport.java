@@ -0,0 +1,87 @@
+package com.pulmocare.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * A lab report parse result, stored against the SHA-256 of the uploaded PDF so that
+ * re-uploads of the same file skip the parser entirely.
+ */
+@Document(collection = "parsed_reports")
+public class ParsedReport {
+    @Id
+    private String id; // contentHash + ":" + versionKey
+
+    @Indexed
+    private String contentHash;
+
+    @Indexed
+    private String versionKey; // Prompt and flagging rules the result was produced with
+
+    private String tier;
+    private String result;
+    private Date createdAt;
+
+    public ParsedReport() {}
+
+    public ParsedReport(String contentHash, String versionKey, String tier, String result) {
+        this.id = contentHash + ":" + versionKey;
+        this.contentHash = contentHash;
+        this.versionKey = versionKey;
+        this.tier = tier;
+        this.result = result;
+        this.createdAt = new Date();
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getVersionKey() {
+        return versionKey;
+    }
+
+    public void setVersionKey(String versionKey) {
+        this.versionKey = versionKey;
+    }
+
+    public String getTier() {
+        return tier;
+    }
+
+    public void setTier(String tier) {
+        this.tier = tier;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    public void setResult(String result) {
+        this.result = result;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,141 @@
+package com.pulmocare.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * Pre-aggregated appointment counters for one doctor on one date, kept up to date as
+ * appointments are booked, moved, completed, marked as no-shows and cancelled. Analytics read
+ * these instead of the appointments; weeks are summed from their days.
+ */
+@Document(collection = "utilization_rollups")
+@CompoundIndexes({
+    @CompoundIndex(name = "doctor_date", def = "{'doctorId': 1, 'date': 1}"),
+    @CompoundIndex(name = "date", def = "{'date': 1}")
+})
+public class UtilizationRollup {
+    @Id
+    private String id; // doctorId + "|" + date
+
+    private String doctorId;
+    private LocalDate date;
+    private LocalDate week; // Monday of the date's week
+
+    private long booked; // Appointments on the date now, whatever their state
+    private long bookedMinutes;
+    private long offeredMinutes; // Minutes of the doctor's template, as of the last reconcile
+    private long completed; // Past and attended
+    private long noShows;
+    private long cancelled; // Deleted while still upcoming; only ever counted as it happens
+
+    private long revision; // Incremented by every counter write, so a reconcile can tell it raced one
+    private Instant reconciledAt;
+
+    public UtilizationRollup() {}
+
+    public static String idOf(String doctorId, LocalDate date) {
+        return doctorId + "|" + date;
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getDoctorId() {
+        return doctorId;
+    }
+
+    public void setDoctorId(String doctorId) {
+        this.doctorId = doctorId;
+    }
+
+    public LocalDate getDate() {
+        return date;
+    }
+
+    public void setDate(LocalDate date) {
+        this.date = date;
+    }
+
+    public LocalDate getWeek() {
+        return week;
+    }
+
+    public void setWeek(LocalDate week) {
+        this.week = week;
+    }
+
+    public long getBooked() {
+        return booked;
+    }
+
+    public void setBooked(long booked) {
+        this.booked = booked;
+    }
+
+    public long getBookedMinutes() {
+        return bookedMinutes;
+    }
+
+    public void setBookedMinutes(long bookedMinutes) {
+        this.bookedMinutes = bookedMinutes;
+    }
+
+    public long getOfferedMinutes() {
+        return offeredMinutes;
+    }
+
+    public void setOfferedMinutes(long offeredMinutes) {
+        this.offeredMinutes = offeredMinutes;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public void setCompleted(long completed) {
+        this.completed = completed;
+    }
+
+    public long getNoShows() {
+        return noShows;
+    }
+
+    public void setNoShows(long noShows) {
+        this.noShows = noShows;
+    }
+
+    public long getCancelled() {
+        return cancelled;
+    }
+
+    public void setCancelled(long cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    public long getRevision() {
+        return revision;
+    }
+
+    public void setRevision(long revision) {
+        this.revision = revision;
+    }
+
+    public Instant getReconciledAt() {
+        return reconciledAt;
+    }
+
+    public void setReconciledAt(Instant reconciledAt) {
+        this.reconciledAt = reconciledAt;
+    }
+}
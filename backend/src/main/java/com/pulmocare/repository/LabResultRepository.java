@@ -0,0 +1,19 @@
+package com.pulmocare.repository;
+
+import com.pulmocare.model.LabResult;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.List;
+
+@Repository
+public interface LabResultRepository extends MongoRepository<LabResult, String> {
+
+    // Trend of one analyte for a patient, inclusive on both ends; served by the patient_analyte_time index
+    @Query(value = "{ 'patientId': ?0, 'analyte': ?1, 'takenAt': { $gte: ?2, $lte: ?3 } }", sort = "{ 'takenAt': 1 }")
+    List<LabResult> findTrend(String patientId, String analyte, Instant from, Instant to);
+
+    long deleteByPatientId(String patientId);
+}
@@ -0,0 +1,15 @@
+package com.pulmocare.repository;
+
+import com.pulmocare.model.ParsedReport;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ParsedReportRepository extends MongoRepository<ParsedReport, String> {
+
+    // Drop every cached parse of one PDF, whatever version produced it
+    long deleteByContentHash(String contentHash);
+
+    // Drop parses made with an older prompt or flagging catalog
+    long deleteByVersionKeyNot(String versionKey);
+}
@@ -0,0 +1,149 @@
+package com.pulmocare.service;
+
+import com.pulmocare.config.AppointmentScheduleListener;
+import com.pulmocare.model.Appointment;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Online backfill of Appointment.startAt/endAt for documents written before those fields
+ * existed. Runs in the background after startup in small batches with a pause in between,
+ * so the application serves requests while it runs. New and updated appointments get the
+ * fields from AppointmentScheduleListener, so once a pass finds nothing left it is done for good.
+ * With several server instances one of them holds the migration lease and does the work; the
+ * others wait for it and take over if it stops renewing.
+ */
+@Service
+public class AppointmentScheduleMigration {
+
+    private static final String LEASE = "appointment-schedule-migration";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private JobLeases jobLeases;
+
+    @Value("${appointments.migration.batch-size:500}")
+    private int batchSize;
+
+    @Value("${appointments.migration.pause-ms:100}")
+    private long pauseMillis;
+
+    @Value("${appointments.migration.lease-ttl-ms:30000}")
+    private long leaseTtlMillis;
+
+    private volatile long migrated;
+    private volatile boolean finished;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        Thread thread = new Thread(this::run, "appointment-schedule-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public long getMigrated() {
+        return migrated;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    private void run() {
+        try {
+            JobLeases.Lease lease;
+            while ((lease = jobLeases.tryAcquire(LEASE, leaseTtlMillis)) == null) {
+                // Another node is migrating; once it is done this node finds nothing left
+                Thread.sleep(leaseTtlMillis);
+            }
+            try {
+                int updated;
+                do {
+                    // Renewing is also the fence: a node that lost the lease stops writing
+                    lease = jobLeases.renew(lease, leaseTtlMillis);
+                    if (lease == null) {
+                        System.err.println("Appointment schedule migration lost its lease after " + migrated + " documents");
+                        return;
+                    }
+                    updated = migrateBatch();
+                    migrated += updated;
+                    if (updated > 0) {
+                        Thread.sleep(pauseMillis);
+                    }
+                } while (updated > 0);
+            } finally {
+                if (lease != null) {
+                    jobLeases.release(lease);
+                }
+            }
+            finished = true;
+            if (migrated > 0) {
+                System.out.println("Backfilled startAt/endAt on " + migrated + " appointments");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            System.err.println("Appointment schedule migration stopped after " + migrated + " documents: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads one batch of raw documents (so DBRefs are not resolved) and sets their schedule
+     * fields in a single bulk write.
+     *
+     * @return number of documents updated
+     */
+    private int migrateBatch() {
+        Query pending = Query.query(Criteria.where("startAt").exists(false)
+                        .and("date").ne(null)
+                        .and("hour").ne(null))
+                .with(Sort.by("_id"))
+                .limit(batchSize);
+        pending.fields().include("date").include("hour").include("endTimeStr");
+
+        List<Document> batch = mongoTemplate.find(pending, Document.class, "appointments");
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Appointment.class);
+        for (Document appointment : batch) {
+            LocalDate date = toLocalDate(appointment.get("date"));
+            LocalTime hour = toLocalTime(appointment.get("hour"));
+            String endTimeStr = appointment.getString("endTimeStr");
+            bulk.updateOne(Query.query(Criteria.where("_id").is(appointment.get("_id"))),
+                    new Update()
+                            .set("startAt", AppointmentScheduleListener.startOf(date, hour))
+                            .set("endAt", AppointmentScheduleListener.endOf(date, hour, endTimeStr)));
+        }
+        bulk.execute();
+        return batch.size();
+    }
+
+    // LocalDate and LocalTime are stored as dates in the server's zone
+    private static LocalDate toLocalDate(Object value) {
+        return ((Date) value).toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    private static LocalTime toLocalTime(Object value) {
+        return ((Date) value).toInstant().atZone(ZoneId.systemDefault()).toLocalTime();
+    }
+}
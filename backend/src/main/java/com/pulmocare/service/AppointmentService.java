@@ -1,34 +1,61 @@
 package com.pulmocare.service;
 
+import com.pulmocare.dto.AppointmentView;
+import com.pulmocare.dto.CursorPage;
 import com.pulmocare.model.Appointment;
-import com.pulmocare.model.Patient;
 import com.pulmocare.model.Doctor;
 import com.pulmocare.repository.AppointmentRepository;
-import com.pulmocare.repository.PatientRepository;
-import com.pulmocare.repository.DoctorRepository;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.time.ZoneId;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 @Service
 public class AppointmentService {
+
+    // Upper bound on how long an appointment can run, used to bound the ongoing lookup
+    private static final Duration MAX_APPOINTMENT_LENGTH = Duration.ofHours(12);
+
+    private static final int SWEEP_BATCH_SIZE = 1000;
     
     @Autowired
     private AppointmentRepository appointmentRepository;
-    
+
     @Autowired
-    private PatientRepository patientRepository;
-    
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private AvailabilityEngine availabilityEngine;
+
+    @Autowired
+    private BookingLedgerService bookingLedgerService;
+
+    @Autowired
+    private AppointmentViewService appointmentViewService;
+
+    @Autowired
+    private SparseFields sparseFields;
+
+    @Autowired
+    private EntityCache entityCache;
+
     @Autowired
-    private DoctorRepository doctorRepository;
+    private UtilizationRollupService utilizationRollupService;
     
     /**
      * Create a new appointment
@@ -43,20 +70,23 @@ public class AppointmentService {
         // Validate that the appointment time is available for the doctor
         validateAppointmentTime(appointment);
         
-        // Save the appointment
-        Appointment savedAppointment = appointmentRepository.save(appointment);
+        // Save the appointment; the unique slot key decides between concurrent bookings
+        Appointment savedAppointment = saveClaimingSlot(appointment);
         
-        // Remove the booked time slot from the doctor's availability
-        removeBookedTimeSlot(appointment);
+        // Record the booking in the doctor's ledger for that date; the weekly template is left as is
+        bookInLedger(savedAppointment);
+        utilizationRollupService.record(null, UtilizationRollupService.Contribution.of(savedAppointment));
         
         return savedAppointment;
     }
     
     /**
-     * Get all appointments
+     * Get one page of all appointments, in creation order
      */
-    public List<Appointment> getAllAppointments() {
-        return appointmentRepository.findAll();
+    public CursorPage<AppointmentView> getAppointmentsPage(String cursor, int pageSize, Set<String> fields) {
+        Query query = CursorPaging.pageQuery(new Query(), cursor, pageSize);
+        sparseFields.project(query, fields, Appointment.class);
+        return CursorPaging.toPage(appointmentViewService.find(query), pageSize, AppointmentView::getId);
     }
     
     /**
@@ -67,86 +97,152 @@ public class AppointmentService {
             .orElseThrow(() -> new RuntimeException("Appointment not found with id: " + id));
     }
     
+    /**
+     * Get appointment by ID, reading only the given fields (all of them when null).
+     * The patient and doctor are only resolved when selected.
+     */
+    public Appointment getAppointmentById(String id, Set<String> fields) {
+        if (fields == null) {
+            return getAppointmentById(id);
+        }
+        Query query = Query.query(Criteria.where("id").is(id));
+        sparseFields.project(query, fields, Appointment.class);
+        Appointment appointment = mongoTemplate.findOne(query, Appointment.class);
+        if (appointment == null) {
+            throw new RuntimeException("Appointment not found with id: " + id);
+        }
+        return appointment;
+    }
+    
     /**
      * Get appointments by patient ID
      */
-    public List<Appointment> getAppointmentsByPatientId(String patientId) {
-        return appointmentRepository.findByPatientId(patientId);
+    public List<AppointmentView> getAppointmentsByPatientId(String patientId, Set<String> fields) {
+        Query query = Query.query(AppointmentViewService.referencing("patient", patientId));
+        sparseFields.project(query, fields, Appointment.class);
+        return appointmentViewService.find(query);
     }
     
     /**
      * Get appointments by doctor ID
      */
-    public List<Appointment> getAppointmentsByDoctorId(String doctorId) {
-        return appointmentRepository.findByDoctorId(doctorId);
+    public List<AppointmentView> getAppointmentsByDoctorId(String doctorId, Set<String> fields) {
+        Query query = Query.query(AppointmentViewService.referencing("doctor", doctorId));
+        sparseFields.project(query, fields, Appointment.class);
+        return appointmentViewService.find(query);
     }
     
     /**
-     * Get upcoming appointments by patient ID
+     * Get upcoming appointments by patient ID, soonest first
      */
-    public List<Appointment> getUpcomingAppointmentsByPatientId(String patientId) {
-        updateAppointmentStatuses();
-        return appointmentRepository.findByPatientIdAndUpcomingTrue(patientId);
+    public List<AppointmentView> getUpcomingAppointmentsByPatientId(String patientId, Set<String> fields) {
+        return findUpcoming("patient", patientId, fields);
     }
     
     /**
-     * Get past appointments by patient ID
+     * Get past appointments by patient ID, most recent first
      */
-    public List<Appointment> getPastAppointmentsByPatientId(String patientId) {
-        updateAppointmentStatuses();
-        return appointmentRepository.findByPatientIdAndUpcomingFalse(patientId);
+    public List<AppointmentView> getPastAppointmentsByPatientId(String patientId, Set<String> fields) {
+        return findPast("patient", patientId, fields);
     }
     
     /**
-     * Get upcoming appointments by doctor ID
+     * Get upcoming appointments by doctor ID, soonest first
      */
-    public List<Appointment> getUpcomingAppointmentsByDoctorId(String doctorId) {
-        return appointmentRepository.findByDoctorIdAndUpcomingTrue(doctorId);
+    public List<AppointmentView> getUpcomingAppointmentsByDoctorId(String doctorId, Set<String> fields) {
+        return findUpcoming("doctor", doctorId, fields);
     }
     
     /**
-     * Get past appointments by doctor ID
+     * Get past appointments by doctor ID, most recent first
+     */
+    public List<AppointmentView> getPastAppointmentsByDoctorId(String doctorId, Set<String> fields) {
+        return findPast("doctor", doctorId, fields);
+    }
+
+    /**
+     * Upcoming means the start is still ahead and nobody has marked the appointment as past.
+     * Served by the doctor_start / patient_start indexes.
+     */
+    private List<AppointmentView> findUpcoming(String owner, String ownerId, Set<String> fields) {
+        Query query = Query.query(AppointmentViewService.referencing(owner, ownerId)
+                        .and("startAt").gt(Instant.now())
+                        .and("upcoming").is(true))
+                .with(Sort.by(Sort.Direction.ASC, "startAt"));
+        sparseFields.project(query, fields, Appointment.class);
+        return appointmentViewService.find(query);
+    }
+
+    /**
+     * Past means the start has passed, or the appointment was marked as past early.
      */
-    public List<Appointment> getPastAppointmentsByDoctorId(String doctorId) {
-        return appointmentRepository.findByDoctorIdAndUpcomingFalse(doctorId);
+    private List<AppointmentView> findPast(String owner, String ownerId, Set<String> fields) {
+        Query query = Query.query(AppointmentViewService.referencing(owner, ownerId)
+                        .orOperator(Criteria.where("startAt").lte(Instant.now()), Criteria.where("upcoming").is(false)))
+                .with(Sort.by(Sort.Direction.DESC, "startAt"));
+        sparseFields.project(query, fields, Appointment.class);
+        return appointmentViewService.find(query);
     }
-       /**
+    /**
      * Update appointment statuses based on current date and time
-     * This method automatically marks appointments as past if their date/time has passed
+     * This method marks appointments as past if their date/time has passed, one server-side
+     * update per batch instead of loading and saving each appointment. The update stamps what it
+     * changed with the sweep's run id, and completions are counted for the utilization rollups
+     * from the stamped appointments only, so one marked past by someone else in between is not
+     * counted twice.
+     * Called by AppointmentStatusSweeper on a schedule; reads never call it.
+     *
+     * @return number of appointments marked as past
      */
-    public void updateAppointmentStatuses() {
-        // Get current date and time
+    public long updateAppointmentStatuses() {
         LocalDate currentDate = LocalDate.now();
-        LocalTime currentTime = LocalTime.now();
         
-        // Get all upcoming appointments
-        List<Appointment> upcomingAppointments = appointmentRepository.findByUpcomingTrue();
-        
-        // Check each appointment to see if it's in the past
-        for (Appointment appointment : upcomingAppointments) {
-            if (appointment.getDate().isBefore(currentDate) || 
-                (appointment.getDate().isEqual(currentDate) && 
-                 appointment.getHour().isBefore(currentTime))) {
-                // Mark as past
-                appointment.setUpcoming(false);
-                appointmentRepository.save(appointment);
-                System.out.println("Marked appointment " + appointment.getId() + " as past");
+        // Appointments not yet backfilled by AppointmentScheduleMigration are swept by date only
+        Query expired = Query.query(new Criteria().andOperator(
+                Criteria.where("upcoming").is(true),
+                new Criteria().orOperator(
+                        Criteria.where("startAt").lt(Instant.now()),
+                        Criteria.where("startAt").exists(false).and("date").lt(currentDate))))
+                .limit(SWEEP_BATCH_SIZE);
+        expired.fields().include("_id");
+        
+        String collection = mongoTemplate.getCollectionName(Appointment.class);
+        String runId = UUID.randomUUID().toString();
+        long updated = 0;
+        List<Document> batch;
+        do {
+            batch = mongoTemplate.find(expired, Document.class, collection);
+            if (batch.isEmpty()) {
+                break;
             }
-        }
+            List<Object> ids = batch.stream().map(appointment -> appointment.get("_id")).collect(Collectors.toList());
+            long swept = mongoTemplate.updateMulti(Query.query(Criteria.where("_id").in(ids).and("upcoming").is(true)),
+                    Update.update("upcoming", false).set("sweptBy", runId), Appointment.class).getModifiedCount();
+            updated += swept;
+            if (swept > 0) {
+                Query stamped = Query.query(Criteria.where("_id").in(ids).and("sweptBy").is(runId));
+                stamped.fields().include("doctor").include("date").include("startAt").include("endAt").include("noShow");
+                List<Document> completed = mongoTemplate.find(stamped, Document.class, collection);
+                // Every stamped appointment was upcoming until this update
+                completed.forEach(appointment -> appointment.put("upcoming", true));
+                utilizationRollupService.recordCompletions(completed);
+            }
+        } while (batch.size() == SWEEP_BATCH_SIZE);
+        return updated;
     }
     
     /**
      * Get appointments by date
      */
-    public List<Appointment> getAppointmentsByDate(LocalDate date) {
-        return appointmentRepository.findByDate(date);
+    public List<AppointmentView> getAppointmentsByDate(LocalDate date) {
+        return appointmentViewService.find(Query.query(Criteria.where("date").is(date)));
     }
     
     /**
      * Get appointments by doctor and date
      */
-    public List<Appointment> getAppointmentsByDoctorAndDate(String doctorId, LocalDate date) {
-        return appointmentRepository.findByDoctorIdAndDate(doctorId, date);
+    public List<AppointmentView> getAppointmentsByDoctorAndDate(String doctorId, LocalDate date) {
+        return appointmentViewService.find(Query.query(AppointmentViewService.referencing("doctor", doctorId).and("date").is(date)));
     }
     
     /**
@@ -162,6 +258,7 @@ public class AppointmentService {
         if (timeChanged && appointmentDetails.getDoctor() != null) {
             // Create a temporary appointment for validation
             Appointment tempAppointment = new Appointment();
+            tempAppointment.setId(appointment.getId());
             tempAppointment.setDoctor(appointmentDetails.getDoctor());
             tempAppointment.setDate(appointmentDetails.getDate() != null ? appointmentDetails.getDate() : appointment.getDate());
             tempAppointment.setHour(appointmentDetails.getHour() != null ? appointmentDetails.getHour() : appointment.getHour());
@@ -169,6 +266,13 @@ public class AppointmentService {
             // Validate the new time slot
             validateAppointmentTime(tempAppointment);
         }
+
+        // What the appointment occupied before, to free in the ledger if it moves
+        UtilizationRollupService.Contribution counted = UtilizationRollupService.Contribution.of(appointment);
+        Appointment previous = new Appointment();
+        previous.setId(appointment.getId());
+        previous.setDoctor(appointment.getDoctor());
+        previous.setDate(appointment.getDate());
         
         // Update fields from the details object
         if (appointmentDetails.getDate() != null) {
@@ -208,7 +312,42 @@ public class AppointmentService {
         appointment.setVaccine(appointmentDetails.isVaccine());
         
         // Save and return the updated appointment
-        return appointmentRepository.save(appointment);
+        Appointment savedAppointment = saveClaimingSlot(appointment);
+        if (timeChanged) {
+            try {
+                bookingLedgerService.release(previous);
+            } catch (RuntimeException e) {
+                System.err.println("Could not release previous booking of appointment " + id + ": " + e.getMessage());
+            }
+            bookInLedger(savedAppointment);
+        }
+        utilizationRollupService.record(counted, UtilizationRollupService.Contribution.of(savedAppointment));
+        return savedAppointment;
+    }
+
+    /**
+     * Save an appointment whose slot may be contested. The unique index on slotKey makes the
+     * database pick exactly one winner, so the read-time checks above only have to be right in
+     * the common case.
+     */
+    private Appointment saveClaimingSlot(Appointment appointment) {
+        try {
+            return appointmentRepository.save(appointment);
+        } catch (DuplicateKeyException e) {
+            throw new RuntimeException("The doctor already has an appointment at this time");
+        }
+    }
+    
+    /**
+     * The unique slot key is what prevents double booking; a ledger write that fails only
+     * leaves the slot looking free until the ledger is rebuilt at the next startup.
+     */
+    private void bookInLedger(Appointment appointment) {
+        try {
+            bookingLedgerService.book(appointment);
+        } catch (RuntimeException e) {
+            System.err.println("Could not record appointment " + appointment.getId() + " in the booking ledger: " + e.getMessage());
+        }
     }
     
     /**
@@ -216,120 +355,51 @@ public class AppointmentService {
      */
     public Appointment markAppointmentAsPast(String id) {
         Appointment appointment = getAppointmentById(id);
+        UtilizationRollupService.Contribution counted = UtilizationRollupService.Contribution.of(appointment);
+        appointment.setUpcoming(false);
+        Appointment savedAppointment = appointmentRepository.save(appointment);
+        utilizationRollupService.record(counted, UtilizationRollupService.Contribution.of(savedAppointment));
+        return savedAppointment;
+    }
+
+    /**
+     * Mark an appointment as a no-show: the patient did not come. Also marks it as past.
+     */
+    public Appointment markAppointmentAsNoShow(String id) {
+        Appointment appointment = getAppointmentById(id);
+        UtilizationRollupService.Contribution counted = UtilizationRollupService.Contribution.of(appointment);
+        appointment.setNoShow(true);
         appointment.setUpcoming(false);
-        return appointmentRepository.save(appointment);
+        Appointment savedAppointment = appointmentRepository.save(appointment);
+        utilizationRollupService.record(counted, UtilizationRollupService.Contribution.of(savedAppointment));
+        return savedAppointment;
     }
       /**
-     * Cancel (delete) an appointment and restore the time slot to the doctor's availability
+     * Cancel (delete) an appointment and free its time in the doctor's booking ledger
      */
 public void deleteAppointment(String id) {
     // Get the appointment before deleting it
     Appointment appointmentToDelete = appointmentRepository.findById(id)
             .orElseThrow(() -> new RuntimeException("Appointment not found with id: " + id));
     
-    // Restore the time slot to the doctor's availability before deleting
-    restoreTimeSlotToDoctor(appointmentToDelete);
-    
-    // Delete the appointment
+    // Delete the appointment, then free the slot
     appointmentRepository.deleteById(id);
+    bookingLedgerService.release(appointmentToDelete);
+    utilizationRollupService.recordCancellation(UtilizationRollupService.Contribution.of(appointmentToDelete));
 }
 
-private void restoreTimeSlotToDoctor(Appointment appointment) {
-    try {
-        // Get the doctor ID from the appointment
-        String doctorId = appointment.getDoctor().getId();
-        Doctor doctor = doctorRepository.findById(doctorId)
-                .orElseThrow(() -> new RuntimeException("Doctor not found with id: " + doctorId));
-        
-        // Get the day of the week from the appointment date
-        LocalDate appointmentDate = appointment.getDate(); // Already a LocalDate
-        String dayName = appointmentDate.getDayOfWeek().toString().substring(0, 3).toLowerCase();
-          // Get the start and end times
-        LocalTime appointmentHour = appointment.getHour();
-          // Check if appointmentHour is a LocalTime or a String
-        String startTimeStr = appointmentHour.format(DateTimeFormatter.ofPattern("HH:mm"));
-        
-        // Calculate end time (assuming 30-minute appointments)
-        LocalTime startTime = appointmentHour;
-        LocalTime endTime = startTime.plusMinutes(30);
-        String endTimeStr = endTime.format(DateTimeFormatter.ofPattern("HH:mm"));
-          // Get the doctor's availability for that day
-        Map<String, List<Doctor.TimeSlot>> availability = doctor.getAvailableTimeSlots();
-        if (availability == null) {
-            availability = new HashMap<>();
-            doctor.setAvailableTimeSlots(availability);
-        }
-        
-        // Get or create time slots for the day
-        List<Doctor.TimeSlot> timeSlots = availability.get(dayName);
-        if (timeSlots == null) {
-            timeSlots = new ArrayList<>();
-            availability.put(dayName, timeSlots);
-        }
-        
-        // Check if this time slot already exists
-        boolean timeSlotExists = false;
-        for (Doctor.TimeSlot slot : timeSlots) {
-            if (slot.getStartTime().equals(startTimeStr)) {
-                timeSlotExists = true;
-                break;
-            }
-        }
-        
-        // Add the time slot back if it doesn't exist
-        if (!timeSlotExists) {
-            Doctor.TimeSlot newSlot = new Doctor.TimeSlot(startTimeStr, endTimeStr);
-            timeSlots.add(newSlot);
-            
-            // Sort the time slots by start time for consistency
-            timeSlots.sort((slot1, slot2) -> {
-                LocalTime time1 = LocalTime.parse(slot1.getStartTime(), DateTimeFormatter.ofPattern("HH:mm"));
-                LocalTime time2 = LocalTime.parse(slot2.getStartTime(), DateTimeFormatter.ofPattern("HH:mm"));
-                return time1.compareTo(time2);
-            });
-            
-            // Save the updated doctor availability
-            doctorRepository.save(doctor);
-            System.out.println("Restored time slot " + startTimeStr + " to doctor's availability on " + dayName);
-        }
-    } catch (Exception e) {
-        System.err.println("Error restoring time slot: " + e.getMessage());
-        e.printStackTrace();
-    }
-}
-/**
- * Converts a time string to standard "HH:mm" 24-hour format.
- */
-private String convertToStandardTimeFormat(String timeStr) {
-    try {
-        // Try parsing as "HH:mm"
-        LocalTime time = LocalTime.parse(timeStr, DateTimeFormatter.ofPattern("HH:mm"));
-        return time.format(DateTimeFormatter.ofPattern("HH:mm"));
-    } catch (Exception e) {
-        // Try parsing as "hh:mm a" (e.g., "08:00 AM")
-        try {
-            LocalTime time = LocalTime.parse(timeStr, DateTimeFormatter.ofPattern("hh:mm a"));
-            return time.format(DateTimeFormatter.ofPattern("HH:mm"));
-        } catch (Exception ex) {
-            throw new RuntimeException("Invalid time format: " + timeStr);
-        }
-    }
-}
     /**
      * Validate if the patient and doctor in the appointment exist
      */
     private void validatePatientAndDoctor(Appointment appointment) {
 
         if (appointment.getPatient() != null && appointment.getPatient().getId() != null) {
-            Patient patient = patientRepository.findById(appointment.getPatient().getId())
-                .orElseThrow(() -> new RuntimeException("Patient not found with id: " + appointment.getPatient().getId()));
-            appointment.setPatient(patient);
+            // Only the reference is stored, so the patient's records are not loaded
+            appointment.setPatient(entityCache.getPatientSummary(appointment.getPatient().getId()));
         }
         
         if (appointment.getDoctor() != null && appointment.getDoctor().getId() != null) {
-            Doctor doctor = doctorRepository.findById(appointment.getDoctor().getId())
-                .orElseThrow(() -> new RuntimeException("Doctor not found with id: " + appointment.getDoctor().getId()));
-            appointment.setDoctor(doctor);
+            appointment.setDoctor(entityCache.getDoctor(appointment.getDoctor().getId()));
         }
     }
     
@@ -383,118 +453,47 @@ private String convertToStandardTimeFormat(String timeStr) {
             System.out.println("No end time provided, calculated end time: " + endTimeStr);
         }
         
-        // Format times as HH:MM for validation
-        String startTimeStr = String.format("%02d:%02d", startTime.getHour(), startTime.getMinute());
-        System.out.println("Using formatted start time: " + startTimeStr + " and end time: " + endTimeStr);
-        
-        // Check if the date is in the unavailable dates list
-        if (doctor.getUnavailableDates() != null && 
-            doctor.getUnavailableDates().contains(date.toString())) {
-            throw new RuntimeException("Doctor is unavailable on this date");
-        }
-        
-        // Get the day of the week (lowercase)
-        String dayOfWeek = date.getDayOfWeek().toString().toLowerCase().substring(0, 3);
-        
-        // Check if the doctor works on this day
-        if (!doctor.getAvailableDays().contains(dayOfWeek)) {
-            throw new RuntimeException("Doctor doesn't work on " + date.getDayOfWeek().toString());
-        }
-          // Get the available time slots for this day
-        List<Doctor.TimeSlot> availableSlots = doctor.getAvailableTimeSlots().get(dayOfWeek);
-        if (availableSlots == null || availableSlots.isEmpty()) {
-            throw new RuntimeException("Doctor has no available time slots on this day");
-        }
-        
-        System.out.println("Available time slots for doctor " + doctor.getId() + " on " + dayOfWeek + ":");
-        for (Doctor.TimeSlot slot : availableSlots) {
-            System.out.println("  - " + slot.getStartTime() + " to " + slot.getEndTime());
-        }        // Check if the requested time slot is in the doctor's available time slots
-        boolean timeSlotAvailable = false;
-        
-        System.out.println("Looking for an available time slot...");
-        
-        // Parse start and end times for comparison
-        LocalTime requestedStartTime = LocalTime.parse(startTimeStr, DateTimeFormatter.ofPattern("HH:mm"));
-        LocalTime requestedEndTime = LocalTime.parse(endTimeStr, DateTimeFormatter.ofPattern("HH:mm"));
-        
-        // Check if the requested time slot falls within any of the doctor's available time slots
-        for (Doctor.TimeSlot slot : availableSlots) {
-            LocalTime doctorStartTime = LocalTime.parse(slot.getStartTime(), DateTimeFormatter.ofPattern("HH:mm"));
-            LocalTime doctorEndTime = LocalTime.parse(slot.getEndTime(), DateTimeFormatter.ofPattern("HH:mm"));
-            
-            System.out.println("Checking if " + startTimeStr + "-" + endTimeStr + 
-                              " falls within doctor's slot " + slot.getStartTime() + "-" + slot.getEndTime());
-            
-            // Check if the appointment start time is equal to or after the doctor's start time
-            // AND the appointment end time is equal to or before the doctor's end time
-            if ((requestedStartTime.equals(doctorStartTime) || requestedStartTime.isAfter(doctorStartTime)) && 
-                (requestedEndTime.equals(doctorEndTime) || requestedEndTime.isBefore(doctorEndTime))) {
-                
-                System.out.println("Found matching time slot: " + startTimeStr + "-" + endTimeStr + 
-                                  " fits within " + slot.getStartTime() + "-" + slot.getEndTime());
-                timeSlotAvailable = true;
-                break;
-            }
-            
-            // Also allow exact start time match with end time that fits within the doctor's slot
-            if (requestedStartTime.equals(doctorStartTime) && 
-                (requestedEndTime.equals(doctorEndTime) || requestedEndTime.isBefore(doctorEndTime))) {
-                
-                System.out.println("Found slot with matching start time and end time within doctor's slot");
-                timeSlotAvailable = true;
-                break;
-            }
-        }
-          if (!timeSlotAvailable) {
-            System.out.println("No matching time slot found!");
-            throw new RuntimeException("The requested time slot is not in the doctor's available time slots");
-        }
-        System.out.println("Time slot is available");
-        
-        // Check if there are any existing appointments at this time
-        List<Appointment> existingAppointments = appointmentRepository.findByDoctorIdAndDate(doctor.getId(), date);
-        for (Appointment existingAppointment : existingAppointments) {
-            if (existingAppointment.getHour().equals(startTime)) {
+        // Template, exception dates and bookings are checked against the compiled schedule; an
+        // appointment being moved does not conflict with its own current booking
+        int startMinute = AvailabilityEngine.minuteOfDay(startTime);
+        int endMinute = AvailabilityEngine.minuteOfDay(endTime);
+        AvailabilityEngine.Result result = endMinute > startMinute
+                ? availabilityEngine.check(doctor, date, startMinute, endMinute, appointment.getId())
+                : AvailabilityEngine.Result.OUTSIDE_SLOTS;
+
+        switch (result) {
+            case DATE_UNAVAILABLE:
+                throw new RuntimeException("Doctor is unavailable on this date");
+            case DAY_OFF:
+                throw new RuntimeException("Doctor doesn't work on " + date.getDayOfWeek().toString());
+            case NO_SLOTS:
+                throw new RuntimeException("Doctor has no available time slots on this day");
+            case OUTSIDE_SLOTS:
+                throw new RuntimeException("The requested time slot is not in the doctor's available time slots");
+            case BOOKED:
                 throw new RuntimeException("The doctor already has an appointment at this time");
-            }
+            default:
+                break;
         }
     }
     
     /**
-     * Check if a time slot is available for a doctor on a specific date
+     * Check if the appointment's time is free in the doctor's schedule: inside one template slot,
+     * not on an unavailable date and not overlapping another appointment. The end defaults to 30
+     * minutes after the start, as when the appointment is created.
      */
-    public boolean isTimeSlotAvailable(String doctorId, LocalDate date, String time) {
-        Doctor doctor = doctorRepository.findById(doctorId)
-            .orElseThrow(() -> new RuntimeException("Doctor not found with id: " + doctorId));
-
-        String dayOfWeek = date.getDayOfWeek().toString().toLowerCase().substring(0, 3);
-        List<Doctor.TimeSlot> availableSlots = doctor.getAvailableTimeSlots().get(dayOfWeek);
-
-        if (availableSlots == null || availableSlots.isEmpty()) {
-            return false;
+    public boolean isTimeSlotAvailable(Appointment appointment) {
+        Doctor doctor = entityCache.getDoctor(appointment.getDoctor().getId());
+        int startMinute = AvailabilityEngine.minuteOfDay(appointment.getHour());
+        int endMinute = AvailabilityEngine.parseMinute(appointment.getEndTimeStr());
+        if (endMinute < 0) {
+            endMinute = startMinute + 30;
         }
-
-        return availableSlots.stream().anyMatch(slot ->
-            slot.getStartTime().equals(time)
-        );
-    }
-    
-    /**
-     * Remove the booked time slot from the doctor's availability
-     */
-    private void removeBookedTimeSlot(Appointment appointment) {
-        Doctor doctor = appointment.getDoctor();
-        LocalDate date = appointment.getDate();
-        String dayOfWeek = date.getDayOfWeek().toString().toLowerCase().substring(0, 3);
-
-        List<Doctor.TimeSlot> availableSlots = doctor.getAvailableTimeSlots().get(dayOfWeek);
-        if (availableSlots != null) {
-            availableSlots.removeIf(slot -> slot.getStartTime().equals(appointment.getHour().toString()));
-
-            // Update the doctor's availability in the repository
-            doctorRepository.save(doctor);
+        if (endMinute <= startMinute) {
+            return false;
         }
+        return availabilityEngine.check(doctor, appointment.getDate(), startMinute, endMinute)
+                == AvailabilityEngine.Result.AVAILABLE;
     }
     
     /**
@@ -502,43 +501,27 @@ private String convertToStandardTimeFormat(String timeStr) {
      * An ongoing appointment is one that's happening today and its time slot includes the current time
      */
     public Appointment getCurrentOngoingAppointmentForDoctor(String doctorId) {
-        // Get current date and time
-        LocalDate currentDate = LocalDate.now();
-        LocalTime currentTime = LocalTime.now();
-        
-        // Find all appointments for today for this doctor
-        List<Appointment> todaysAppointments = appointmentRepository.findByDoctorIdAndDate(doctorId, currentDate);
-        
-        // Find the appointment that is currently ongoing
-        // An appointment is ongoing if the current time is between the start time and end time (assuming appointments are 30 minutes)
-        for (Appointment appointment : todaysAppointments) {
-            LocalTime appointmentStartTime = appointment.getHour();
-            // Calculate end time (30 minutes after start)
-            LocalTime appointmentEndTime = appointmentStartTime.plusMinutes(30);
-            
-            // Check if current time is within the appointment time slot
-            if (currentTime.isAfter(appointmentStartTime) && currentTime.isBefore(appointmentEndTime)) {
-                return appointment;
-            }
-        }
-        
-        // No ongoing appointment was found
-        return null;
+        Instant now = Instant.now();
+        
+        // The lower bound on startAt keeps this a short index range scan instead of all past appointments
+        Query query = Query.query(AppointmentViewService.referencing("doctor", doctorId)
+                        .and("startAt").gt(now.minus(MAX_APPOINTMENT_LENGTH)).lt(now)
+                        .and("endAt").gt(now))
+                .with(Sort.by(Sort.Direction.DESC, "startAt"));
+        return mongoTemplate.findOne(query, Appointment.class);
     }
 
     /**
      * Get appointments for today for a doctor, ordered by time
      */
-    public List<Appointment> getTodaysAppointmentsForDoctor(String doctorId) {
-        // Get current date
+    public List<AppointmentView> getTodaysAppointmentsForDoctor(String doctorId) {
         LocalDate currentDate = LocalDate.now();
+        Instant startOfDay = currentDate.atStartOfDay(ZoneId.systemDefault()).toInstant();
+        Instant startOfTomorrow = currentDate.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant();
         
-        // Find all appointments for today for this doctor
-        List<Appointment> todaysAppointments = appointmentRepository.findByDoctorIdAndDate(doctorId, currentDate);
-        
-        // Sort by time
-        todaysAppointments.sort((a1, a2) -> a1.getHour().compareTo(a2.getHour()));
-        
-        return todaysAppointments;
+        Query query = Query.query(AppointmentViewService.referencing("doctor", doctorId)
+                        .and("startAt").gte(startOfDay).lt(startOfTomorrow))
+                .with(Sort.by(Sort.Direction.ASC, "startAt"));
+        return appointmentViewService.find(query);
     }
 }
@@ -0,0 +1,102 @@
+package com.pulmocare.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background job that marks appointments whose time has passed as past, so that read
+ * endpoints never have to write. Only the job leader runs the scheduled sweep, so with several
+ * server instances it still runs once per interval. Keeps counters for the stats endpoint.
+ */
+@Service
+public class AppointmentStatusSweeper {
+
+    @Autowired
+    private AppointmentService appointmentService;
+
+    @Autowired
+    private JobLeases jobLeases;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong totalUpdated = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private volatile long lastUpdated;
+    private volatile long lastDurationNanos;
+    private volatile long lastRunAt;
+
+    @Scheduled(fixedDelayString = "${appointments.sweep.interval-ms:60000}",
+               initialDelayString = "${appointments.sweep.initial-delay-ms:10000}")
+    public void scheduledSweep() {
+        JobLeases.Lease leadership = jobLeases.leadership();
+        if (leadership == null) {
+            // Another node is the leader and sweeps for everyone
+            skipped.incrementAndGet();
+            return;
+        }
+        try {
+            sweep(leadership);
+        } catch (RuntimeException e) {
+            // Already counted; the next run will retry
+            System.err.println("Appointment status sweep failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run one sweep now.
+     *
+     * @return number of appointments marked as past
+     */
+    public long sweep() {
+        return sweep(null);
+    }
+
+    /**
+     * Run one sweep on behalf of the given lease, writing only while it is still held.
+     */
+    private synchronized long sweep(JobLeases.Lease lease) {
+        long started = System.nanoTime();
+        try {
+            if (lease != null) {
+                jobLeases.checkFence(lease);
+            }
+            long updated = appointmentService.updateAppointmentStatuses();
+            lastUpdated = updated;
+            totalUpdated.addAndGet(updated);
+            if (updated > 0) {
+                System.out.println("Marked " + updated + " appointments as past");
+            }
+            return updated;
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        } finally {
+            long elapsed = System.nanoTime() - started;
+            runs.incrementAndGet();
+            totalNanos.addAndGet(elapsed);
+            lastDurationNanos = elapsed;
+            lastRunAt = System.currentTimeMillis();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long runCount = runs.get();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("runs", runCount);
+        snapshot.put("failures", failures.get());
+        snapshot.put("skippedNotLeader", skipped.get());
+        snapshot.put("lastRunAt", lastRunAt > 0 ? new Date(lastRunAt) : null);
+        snapshot.put("lastDurationMs", lastDurationNanos / 1_000_000.0);
+        snapshot.put("avgDurationMs", runCount > 0 ? totalNanos.get() / runCount / 1_000_000.0 : 0.0);
+        snapshot.put("lastRowsUpdated", lastUpdated);
+        snapshot.put("totalRowsUpdated", totalUpdated.get());
+        return snapshot;
+    }
+}
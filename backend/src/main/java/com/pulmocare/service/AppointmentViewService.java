@@ -0,0 +1,151 @@
+package com.pulmocare.service;
+
+import com.mongodb.DBRef;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.pulmocare.dto.AppointmentView;
+import com.pulmocare.model.Appointment;
+import com.pulmocare.model.Doctor;
+import com.pulmocare.model.Patient;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Loads appointment lists without resolving the patient and doctor @DBRefs one by one.
+ *
+ * Appointments are read as raw documents, the referenced ids are collected, and each referenced
+ * collection is read once with an $in on those ids, projected to the names. A list of N
+ * appointments costs three queries instead of 1 + 2N, and each item carries an id-and-name
+ * summary instead of the whole patient and doctor documents.
+ */
+@Service
+public class AppointmentViewService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /**
+     * Runs an appointment query (criteria on Appointment properties, such as
+     * {@link #referencing} or "startAt", plus sort, limit and projection) and returns its results
+     * with summarized references. References left out by the projection are not looked up.
+     */
+    public List<AppointmentView> find(Query query) {
+        List<Document> documents = new ArrayList<>();
+        openCursor(query).into(documents);
+        return toViews(documents);
+    }
+
+    /**
+     * Runs an appointment query like {@link #find} but hands the results over a batch at a time,
+     * so that only one batch of appointments and their summaries is held at once.
+     */
+    public void forEachBatch(Query query, int batchSize, Consumer<List<AppointmentView>> consumer) {
+        List<Document> batch = new ArrayList<>(batchSize);
+        try (MongoCursor<Document> cursor = openCursor(query).batchSize(batchSize).iterator()) {
+            while (cursor.hasNext()) {
+                batch.add(cursor.next());
+                if (batch.size() == batchSize) {
+                    consumer.accept(toViews(batch));
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            consumer.accept(toViews(batch));
+        }
+    }
+
+    private FindIterable<Document> openCursor(Query query) {
+        MongoConverter converter = mongoTemplate.getConverter();
+        MongoPersistentEntity<?> entity = converter.getMappingContext().getRequiredPersistentEntity(Appointment.class);
+        QueryMapper queryMapper = new QueryMapper(converter);
+
+        // Same property-to-field mapping as MongoTemplate.find, but the raw documents come back
+        FindIterable<Document> documents = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Appointment.class))
+                .find(queryMapper.getMappedObject(query.getQueryObject(), entity))
+                .sort(queryMapper.getMappedSort(query.getSortObject(), entity));
+        if (!query.getFieldsObject().isEmpty()) {
+            documents = documents.projection(queryMapper.getMappedFields(query.getFieldsObject(), entity));
+        }
+        if (query.getSkip() > 0) {
+            documents = documents.skip((int) query.getSkip());
+        }
+        if (query.getLimit() > 0) {
+            documents = documents.limit(query.getLimit());
+        }
+        return documents;
+    }
+
+    private List<AppointmentView> toViews(List<Document> documents) {
+        MongoConverter converter = mongoTemplate.getConverter();
+        List<Appointment> appointments = new ArrayList<>(documents.size());
+        List<Object> patientRefs = new ArrayList<>(documents.size());
+        List<Object> doctorRefs = new ArrayList<>(documents.size());
+        for (Document document : documents) {
+            patientRefs.add(referencedId(document.remove("patient")));
+            doctorRefs.add(referencedId(document.remove("doctor")));
+            appointments.add(converter.read(Appointment.class, document));
+        }
+
+        Map<String, AppointmentView.PersonSummary> patients = summaries(Patient.class, patientRefs);
+        Map<String, AppointmentView.PersonSummary> doctors = summaries(Doctor.class, doctorRefs);
+
+        List<AppointmentView> views = new ArrayList<>(appointments.size());
+        for (int i = 0; i < appointments.size(); i++) {
+            views.add(new AppointmentView(appointments.get(i),
+                    patients.get(String.valueOf(patientRefs.get(i))),
+                    doctors.get(String.valueOf(doctorRefs.get(i)))));
+        }
+        return views;
+    }
+
+    /**
+     * Matches appointments whose "patient" or "doctor" reference points at the given id.
+     * Compares the DBRef's $id alone, which the patient_start and doctor_start indexes cover;
+     * "doctor.id" is mapped to an equality on the whole {$ref, $id} document, which they do not.
+     */
+    public static Criteria referencing(String property, String id) {
+        return Criteria.where(property + ".$id").is(ObjectId.isValid(id) ? new ObjectId(id) : id);
+    }
+
+    /**
+     * Id and name of every referenced document, keyed by id, from one $in query.
+     */
+    private Map<String, AppointmentView.PersonSummary> summaries(Class<?> type, List<Object> refs) {
+        Set<Object> ids = new LinkedHashSet<>(refs);
+        ids.remove(null);
+        Map<String, AppointmentView.PersonSummary> summaries = new HashMap<>();
+        if (ids.isEmpty()) {
+            return summaries;
+        }
+        for (Document person : mongoTemplate.getCollection(mongoTemplate.getCollectionName(type))
+                .find(Filters.in("_id", ids))
+                .projection(Projections.include("firstName", "lastName"))) {
+            String id = String.valueOf(person.get("_id"));
+            summaries.put(id, new AppointmentView.PersonSummary(id, person.getString("firstName"), person.getString("lastName")));
+        }
+        return summaries;
+    }
+
+    private static Object referencedId(Object reference) {
+        return reference instanceof DBRef ? ((DBRef) reference).getId() : null;
+    }
+}
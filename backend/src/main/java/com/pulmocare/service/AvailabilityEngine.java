@@ -0,0 +1,384 @@
+package com.pulmocare.service;
+
+import com.pulmocare.model.BookingLedger;
+import com.pulmocare.model.Doctor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers "is this doctor free at this time" and "which slots are free on this day" with
+ * minute-granular bitsets.
+ *
+ * A doctor's weekly template, working days and unavailable dates are compiled once per
+ * Doctor.version into a working-day mask, sorted slot boundaries and sorted exception days, so
+ * no "HH:mm" string is parsed on the query path. The day's bookings come from its single
+ * booking_ledger document and are OR-ed into a 1440-bit mask; a slot is free when its bits are
+ * clear in it.
+ */
+@Service
+public class AvailabilityEngine {
+
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    private static final int WORDS_PER_DAY = (MINUTES_PER_DAY + 63) / 64;
+    private static final String[] DAY_KEYS = {"mon", "tue", "wed", "thu", "fri", "sat", "sun"};
+    public static final int MAX_RANGE_DAYS = 62;
+
+    /**
+     * Outcome of checking a requested time, most specific reason first.
+     */
+    public enum Result {
+        AVAILABLE,
+        DATE_UNAVAILABLE,
+        DAY_OFF,
+        NO_SLOTS,
+        OUTSIDE_SLOTS,
+        BOOKED
+    }
+
+    @Autowired
+    private BookingLedgerService bookingLedgerService;
+
+    private final Map<String, CompiledSchedule> compiled = new ConcurrentHashMap<>();
+
+    /**
+     * Check whether [startMinute, endMinute) on the given date lies within the doctor's slots
+     * and overlaps no existing appointment.
+     */
+    public Result check(Doctor doctor, LocalDate date, int startMinute, int endMinute) {
+        return check(doctor, date, startMinute, endMinute, null);
+    }
+
+    /**
+     * As check, ignoring the booking of the given appointment, so that moving an appointment
+     * may overlap the time it is moving away from.
+     *
+     * @param excludeAppointmentId appointment whose booking is not counted, may be null
+     */
+    public Result check(Doctor doctor, LocalDate date, int startMinute, int endMinute, String excludeAppointmentId) {
+        CompiledSchedule schedule = compile(doctor);
+        int day = date.getDayOfWeek().getValue() - 1;
+        if (schedule.isUnavailable(date)) {
+            return Result.DATE_UNAVAILABLE;
+        }
+        if ((schedule.workingDays & (1 << day)) == 0) {
+            return Result.DAY_OFF;
+        }
+        if (schedule.slotStarts[day].length == 0) {
+            return Result.NO_SLOTS;
+        }
+        if (!schedule.coversSingleSlot(day, startMinute, endMinute)) {
+            return Result.OUTSIDE_SLOTS;
+        }
+        if (!isClear(bookedMask(doctor.getId(), date, excludeAppointmentId), startMinute, endMinute)) {
+            return Result.BOOKED;
+        }
+        return Result.AVAILABLE;
+    }
+
+    /**
+     * The doctor's template slots on the given date that no appointment overlaps, in time order.
+     */
+    public List<Doctor.TimeSlot> freeSlots(Doctor doctor, LocalDate date) {
+        CompiledSchedule schedule = compile(doctor);
+        if (!schedule.hasSlots(date)) {
+            return new ArrayList<>();
+        }
+        return freeSlots(schedule, date, bookedMask(doctor.getId(), date, null));
+    }
+
+    /**
+     * Free slots for every date in [from, to], computed from the doctor and the given ledgers
+     * without further queries. Dates without slots map to an empty list.
+     *
+     * @param ledgers the doctor's ledgers in the range, as from BookingLedgerService.findRange
+     */
+    public Map<LocalDate, List<Doctor.TimeSlot>> freeSlots(Doctor doctor, LocalDate from, LocalDate to,
+                                                          Map<LocalDate, BookingLedger> ledgers) {
+        checkRange(from, to);
+        CompiledSchedule schedule = compile(doctor);
+        Map<LocalDate, List<Doctor.TimeSlot>> days = new LinkedHashMap<>();
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            days.put(date, schedule.hasSlots(date)
+                    ? freeSlots(schedule, date, maskOf(ledgers.get(date)))
+                    : new ArrayList<>());
+        }
+        return days;
+    }
+
+    /**
+     * Minutes the doctor's template offers on the given date, overlapping slots counted once;
+     * zero on days off and unavailable dates.
+     */
+    public int offeredMinutes(Doctor doctor, LocalDate date) {
+        CompiledSchedule schedule = compile(doctor);
+        if (!schedule.hasSlots(date)) {
+            return 0;
+        }
+        int day = date.getDayOfWeek().getValue() - 1;
+        long[] mask = new long[WORDS_PER_DAY];
+        for (int i = 0; i < schedule.slotStarts[day].length; i++) {
+            setRange(mask, schedule.slotStarts[day][i], Math.min(MINUTES_PER_DAY, schedule.slotEnds[day][i]));
+        }
+        int minutes = 0;
+        for (long word : mask) {
+            minutes += Long.bitCount(word);
+        }
+        return minutes;
+    }
+
+    /**
+     * Entity tag for the free slots of a date range: changes whenever the doctor is saved or
+     * any booking in the range changes.
+     */
+    public static String rangeTag(Doctor doctor, LocalDate from, LocalDate to, Map<LocalDate, BookingLedger> ledgers) {
+        StringBuilder state = new StringBuilder()
+                .append(doctor.getId()).append('|').append(doctor.getVersion())
+                .append('|').append(from).append('|').append(to);
+        new TreeMap<>(ledgers).forEach((date, ledger) -> state.append('|').append(date).append('=').append(ledger.getRevision()));
+        return "\"" + ParsedReportCache.sha256(state.toString()).substring(0, 16) + "\"";
+    }
+
+    /**
+     * Rejects reversed ranges and ranges longer than MAX_RANGE_DAYS.
+     */
+    public static void checkRange(LocalDate from, LocalDate to) {
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("'to' must not be before 'from'");
+        }
+        if (ChronoUnit.DAYS.between(from, to) >= MAX_RANGE_DAYS) {
+            throw new IllegalArgumentException("Range can span at most " + MAX_RANGE_DAYS + " days");
+        }
+    }
+
+    private static List<Doctor.TimeSlot> freeSlots(CompiledSchedule schedule, LocalDate date, long[] booked) {
+        int day = date.getDayOfWeek().getValue() - 1;
+        List<Doctor.TimeSlot> free = new ArrayList<>();
+        int[] starts = schedule.slotStarts[day];
+        int[] ends = schedule.slotEnds[day];
+        for (int i = 0; i < starts.length; i++) {
+            if (isClear(booked, starts[i], ends[i])) {
+                free.add(new Doctor.TimeSlot(schedule.slotLabels[day][i * 2], schedule.slotLabels[day][i * 2 + 1]));
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Minutes of the day covered by the doctor's appointments on the given date, other than
+     * the excluded one.
+     */
+    long[] bookedMask(String doctorId, LocalDate date, String excludeAppointmentId) {
+        return maskOf(bookingLedgerService.find(doctorId, date), excludeAppointmentId);
+    }
+
+    private static long[] maskOf(BookingLedger ledger) {
+        return maskOf(ledger, null);
+    }
+
+    static long[] maskOf(BookingLedger ledger, String excludeAppointmentId) {
+        long[] mask = new long[WORDS_PER_DAY];
+        if (ledger != null && ledger.getBookings() != null) {
+            for (BookingLedger.Booking booking : ledger.getBookings()) {
+                if (excludeAppointmentId != null && excludeAppointmentId.equals(booking.getAppointmentId())) {
+                    continue;
+                }
+                setRange(mask, booking.getStartMinute(), Math.min(MINUTES_PER_DAY, booking.getEndMinute()));
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Drops compiled schedules of doctors changed on any node. Stale ones would be rebuilt on
+     * their next use anyway, since the version moves; this only frees them sooner.
+     */
+    @EventListener
+    public void onInvalidation(InvalidationBus.Invalidation invalidation) {
+        if (!"doctors".equals(invalidation.getCollection())) {
+            return;
+        }
+        if (invalidation.getId() != null) {
+            compiled.remove(invalidation.getId());
+        } else {
+            compiled.clear();
+        }
+    }
+
+    /**
+     * Compiled form of the doctor's schedule, rebuilt only when the doctor's version changes.
+     */
+    private CompiledSchedule compile(Doctor doctor) {
+        if (doctor.getId() == null || doctor.getVersion() == null) {
+            return new CompiledSchedule(doctor);
+        }
+        CompiledSchedule cached = compiled.get(doctor.getId());
+        if (cached != null && cached.version == doctor.getVersion()) {
+            return cached;
+        }
+        CompiledSchedule fresh = new CompiledSchedule(doctor);
+        compiled.put(doctor.getId(), fresh);
+        return fresh;
+    }
+
+    /**
+     * Parse "HH:mm" (or "H:mm") into minutes since midnight, or -1 if it is not a time.
+     * Only used when compiling a schedule and for request parameters.
+     */
+    public static int parseMinute(String time) {
+        if (time == null) {
+            return -1;
+        }
+        try {
+            String trimmed = time.trim();
+            return minuteOfDay(LocalTime.parse(trimmed.length() == 4 ? "0" + trimmed : trimmed));
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    public static int minuteOfDay(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    static void setRange(long[] mask, int from, int to) {
+        for (int word = from >>> 6; word <= (to - 1) >>> 6 && from < to; word++) {
+            mask[word] |= rangeBits(word, from, to);
+        }
+    }
+
+    static boolean isClear(long[] mask, int from, int to) {
+        for (int word = from >>> 6; word <= (to - 1) >>> 6 && from < to; word++) {
+            if ((mask[word] & rangeBits(word, from, to)) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bits of the given 64-minute word that fall in [from, to).
+     */
+    private static long rangeBits(int word, int from, int to) {
+        int wordStart = word << 6;
+        int lo = Math.max(from, wordStart) - wordStart;
+        int hi = Math.min(to, wordStart + 64) - wordStart;
+        long upper = hi == 64 ? -1L : (1L << hi) - 1;
+        long lower = (1L << lo) - 1;
+        return upper & ~lower;
+    }
+
+    private static class CompiledSchedule {
+        private final long version;
+        private final int workingDays;              // Bit d set when DAY_KEYS[d] is a working day
+        private final int[][] slotStarts = new int[7][];
+        private final int[][] slotEnds = new int[7][];
+        private final String[][] slotLabels = new String[7][];
+        private final long[] unavailableDays;       // Sorted epoch days
+
+        CompiledSchedule(Doctor doctor) {
+            this.version = doctor.getVersion() != null ? doctor.getVersion() : -1;
+
+            int days = 0;
+            if (doctor.getAvailableDays() != null) {
+                for (int d = 0; d < DAY_KEYS.length; d++) {
+                    if (doctor.getAvailableDays().contains(DAY_KEYS[d])) {
+                        days |= 1 << d;
+                    }
+                }
+            }
+            this.workingDays = days;
+
+            Map<String, List<Doctor.TimeSlot>> template = doctor.getAvailableTimeSlots();
+            for (int d = 0; d < DAY_KEYS.length; d++) {
+                List<Doctor.TimeSlot> slots = template != null ? template.get(DAY_KEYS[d]) : null;
+                compileDay(d, slots != null ? slots : List.of());
+            }
+
+            List<String> unavailable = doctor.getUnavailableDates();
+            long[] epochDays = new long[unavailable != null ? unavailable.size() : 0];
+            int count = 0;
+            if (unavailable != null) {
+                for (String date : unavailable) {
+                    try {
+                        epochDays[count++] = LocalDate.parse(date.trim()).toEpochDay();
+                    } catch (DateTimeParseException | NullPointerException e) {
+                        count--;
+                    }
+                }
+            }
+            this.unavailableDays = Arrays.copyOf(epochDays, count);
+            Arrays.sort(this.unavailableDays);
+        }
+
+        private void compileDay(int day, List<Doctor.TimeSlot> slots) {
+            List<int[]> parsed = new ArrayList<>(slots.size());
+            for (Doctor.TimeSlot slot : slots) {
+                int start = parseMinute(slot.getStartTime());
+                int end = parseMinute(slot.getEndTime());
+                if (start >= 0 && end > start) {
+                    parsed.add(new int[]{start, end});
+                }
+            }
+            parsed.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+            slotStarts[day] = new int[parsed.size()];
+            slotEnds[day] = new int[parsed.size()];
+            slotLabels[day] = new String[parsed.size() * 2];
+            for (int i = 0; i < parsed.size(); i++) {
+                slotStarts[day][i] = parsed.get(i)[0];
+                slotEnds[day][i] = parsed.get(i)[1];
+                slotLabels[day][i * 2] = label(parsed.get(i)[0]);
+                slotLabels[day][i * 2 + 1] = label(parsed.get(i)[1]);
+            }
+        }
+
+        boolean hasSlots(LocalDate date) {
+            int day = date.getDayOfWeek().getValue() - 1;
+            return !isUnavailable(date) && (workingDays & (1 << day)) != 0 && slotStarts[day].length > 0;
+        }
+
+        boolean isUnavailable(LocalDate date) {
+            return Arrays.binarySearch(unavailableDays, date.toEpochDay()) >= 0;
+        }
+
+        /**
+         * Whether one template slot contains the whole requested range, as booking requires.
+         */
+        boolean coversSingleSlot(int day, int start, int end) {
+            int[] starts = slotStarts[day];
+            // Only slots starting at or before the requested start can contain it
+            int i = Arrays.binarySearch(starts, start);
+            if (i < 0) {
+                i = -i - 2;
+            } else {
+                // Several slots may start there, and the search may land on any of them
+                while (i + 1 < starts.length && starts[i + 1] == start) {
+                    i++;
+                }
+            }
+            for (; i >= 0; i--) {
+                if (slotEnds[day][i] >= end) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String label(int minute) {
+            return String.format("%02d:%02d", minute / 60, minute % 60);
+        }
+    }
+}
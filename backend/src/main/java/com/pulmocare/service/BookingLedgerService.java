@@ -0,0 +1,180 @@
+package com.pulmocare.service;
+
+import com.mongodb.DBRef;
+import com.pulmocare.config.AppointmentScheduleListener;
+import com.pulmocare.model.Appointment;
+import com.pulmocare.model.BookingLedger;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records which minutes of each doctor-day are booked, in booking_ledger.
+ *
+ * Booking and cancelling are single small upserts on the one ledger document for that doctor
+ * and date, so they neither rewrite nor contend on the doctor document, and the weekly template
+ * is never changed by a booking.
+ */
+@Service
+public class BookingLedgerService {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    /**
+     * Records the appointment's time in its doctor-day ledger. Booking the same appointment at
+     * the same time twice has no effect.
+     */
+    public void book(Appointment appointment) {
+        String doctorId = appointment.getDoctor() != null ? appointment.getDoctor().getId() : null;
+        BookingLedger.Booking booking = toBooking(appointment.getId(), appointment.getDate(), appointment.getHour(),
+                appointment.getEndTimeStr());
+        if (doctorId == null || booking == null) {
+            return;
+        }
+        mongoTemplate.upsert(ledgerQuery(doctorId, appointment.getDate()),
+                new Update()
+                        .setOnInsert("doctorId", doctorId)
+                        .setOnInsert("date", appointment.getDate())
+                        .addToSet("bookings", booking)
+                        .inc("revision", 1),
+                BookingLedger.class);
+    }
+
+    /**
+     * Frees whatever the appointment occupies in its doctor-day ledger.
+     */
+    public void release(Appointment appointment) {
+        String doctorId = appointment.getDoctor() != null ? appointment.getDoctor().getId() : null;
+        if (doctorId == null || appointment.getDate() == null || appointment.getId() == null) {
+            return;
+        }
+        mongoTemplate.updateFirst(ledgerQuery(doctorId, appointment.getDate()),
+                new Update()
+                        .pull("bookings", Query.query(Criteria.where("appointmentId").is(appointment.getId())))
+                        .inc("revision", 1),
+                BookingLedger.class);
+    }
+
+    /**
+     * The doctor's ledger for one date, or null if nothing was ever booked on it.
+     */
+    public BookingLedger find(String doctorId, LocalDate date) {
+        return mongoTemplate.findById(BookingLedger.idOf(doctorId, date), BookingLedger.class);
+    }
+
+    /**
+     * The doctor's ledgers for every date in [from, to] that has one, in a single query on the
+     * doctor_date index.
+     */
+    public Map<LocalDate, BookingLedger> findRange(String doctorId, LocalDate from, LocalDate to) {
+        Query query = Query.query(Criteria.where("doctorId").is(doctorId).and("date").gte(from).lte(to));
+        Map<LocalDate, BookingLedger> ledgers = new HashMap<>();
+        for (BookingLedger ledger : mongoTemplate.find(query, BookingLedger.class)) {
+            ledgers.put(ledger.getDate(), ledger);
+        }
+        return ledgers;
+    }
+
+    /**
+     * Records every appointment from today on in the ledger. Appointments booked before the
+     * ledger existed only show up in it this way; for those already there this changes nothing.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuild() {
+        long started = System.nanoTime();
+        LocalDate today = LocalDate.now();
+        Query query = Query.query(Criteria.where("date").gte(today).and("hour").ne(null).and("doctor").ne(null));
+        // Raw documents, so the patient and doctor references are not resolved
+        query.fields().include("date").include("hour").include("endTimeStr").include("doctor");
+
+        Map<String, BookingLedger> ledgers = new HashMap<>();
+        try (CloseableIterator<Document> appointments = mongoTemplate.stream(query, Document.class, "appointments")) {
+            while (appointments.hasNext()) {
+                Document appointment = appointments.next();
+                if (!(appointment.get("doctor") instanceof DBRef)) {
+                    continue;
+                }
+                String doctorId = String.valueOf(((DBRef) appointment.get("doctor")).getId());
+                LocalDate date = toLocalDate(appointment.get("date"));
+                BookingLedger.Booking booking = toBooking(String.valueOf(appointment.get("_id")), date,
+                        toLocalTime(appointment.get("hour")), appointment.getString("endTimeStr"));
+                if (booking == null) {
+                    continue;
+                }
+                ledgers.computeIfAbsent(BookingLedger.idOf(doctorId, date), id -> {
+                    BookingLedger ledger = new BookingLedger();
+                    ledger.setId(id);
+                    ledger.setDoctorId(doctorId);
+                    ledger.setDate(date);
+                    return ledger;
+                }).getBookings().add(booking);
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Could not rebuild booking ledger: " + e.getMessage());
+            return;
+        }
+        if (ledgers.isEmpty()) {
+            return;
+        }
+
+        // Added to rather than replaced, so bookings made while this ran are kept
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, BookingLedger.class);
+        for (BookingLedger ledger : ledgers.values()) {
+            Update update = new Update()
+                    .setOnInsert("doctorId", ledger.getDoctorId())
+                    .setOnInsert("date", ledger.getDate())
+                    .inc("revision", 1);
+            update.addToSet("bookings").each(ledger.getBookings().toArray());
+            bulk.upsert(Query.query(Criteria.where("_id").is(ledger.getId())), update);
+        }
+        bulk.execute();
+        System.out.println("Booking ledger rebuilt for " + ledgers.size() + " doctor-days in "
+                + (System.nanoTime() - started) / 1_000_000 + " ms");
+    }
+
+    private static Query ledgerQuery(String doctorId, LocalDate date) {
+        return Query.query(Criteria.where("_id").is(BookingLedger.idOf(doctorId, date)));
+    }
+
+    /**
+     * The minutes an appointment occupies on its date, using the same end-time rules as
+     * Appointment.endAt.
+     */
+    private static BookingLedger.Booking toBooking(String appointmentId, LocalDate date, LocalTime hour, String endTimeStr) {
+        if (appointmentId == null || date == null || hour == null) {
+            return null;
+        }
+        Instant startAt = AppointmentScheduleListener.startOf(date, hour);
+        Instant endAt = AppointmentScheduleListener.endOf(date, hour, endTimeStr);
+        int start = AvailabilityEngine.minuteOfDay(hour);
+        long lengthMinutes = (endAt.toEpochMilli() - startAt.toEpochMilli()) / 60_000;
+        int end = (int) Math.min(AvailabilityEngine.MINUTES_PER_DAY, start + Math.max(1, lengthMinutes));
+        return new BookingLedger.Booking(appointmentId, start, end);
+    }
+
+    // LocalDate and LocalTime are stored as dates in the server's zone
+    private static LocalDate toLocalDate(Object value) {
+        return ((Date) value).toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    private static LocalTime toLocalTime(Object value) {
+        return ((Date) value).toInstant().atZone(ZoneId.systemDefault()).toLocalTime();
+    }
+}
@@ -0,0 +1,467 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.pulmocare.dto.AppointmentView;
+import com.pulmocare.model.BulkExportJob;
+import com.pulmocare.model.LabResult;
+import com.pulmocare.model.Patient;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Bulk export of every patient's record, modeled on FHIR $export.
+ *
+ * A job runs in the background. It walks the patients in _id order and hands them to worker
+ * threads in shards. Each shard reads its patients' appointments and lab results with one $in
+ * query per collection and renders them into in-memory buffers. Each buffer is then appended
+ * to its resource type's file with a single FileChannel write, so one file per type is built
+ * concurrently without interleaving lines. Progress is kept on the job document.
+ *
+ * With several server instances, a job runs on the node that started it, under a JobLeases
+ * lease renewed while it is queued or running, and its files stay on that node's disk unless
+ * export.bulk.directory is shared. A job whose lease lapses (its node stopped) is marked failed
+ * by whichever node notices first.
+ *
+ * Resource types: Patient (demographics and history, without password, photo or images),
+ * Appointment, Observation (lab results) and ImagingStudy (the metadata of each X-ray and other
+ * imaging entry, without embedded image data). Every line carries a resourceType.
+ */
+@Service
+public class BulkExportService {
+
+    public static final List<String> RESOURCE_TYPES = List.of("Patient", "Appointment", "Observation", "ImagingStudy");
+
+    // Left out of the Patient resource; the imaging lists become ImagingStudy resources
+    private static final String[] PATIENT_EXCLUDED_FIELDS = {"password", "photo", "xRays", "otherImaging"};
+
+    @Value("${export.bulk.directory:exports}")
+    private String directory;
+
+    @Value("${export.bulk.workers:4}")
+    private int workers;
+
+    @Value("${export.bulk.shard-size:200}")
+    private int shardSize;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private AppointmentViewService appointmentViewService;
+
+    @Autowired
+    private JobLeases jobLeases;
+
+    @Value("${export.bulk.lease-ttl-ms:60000}")
+    private long leaseTtlMillis;
+
+    // Leases of the jobs queued or running on this node; a lost lease is replaced by null
+    private final Map<String, AtomicReference<JobLeases.Lease>> leases = new ConcurrentHashMap<>();
+
+    // Jobs run one at a time; their shards share the worker pool
+    private ExecutorService jobExecutor;
+    private ExecutorService shardExecutor;
+
+    @PostConstruct
+    public void init() {
+        jobExecutor = Executors.newSingleThreadExecutor();
+        shardExecutor = Executors.newFixedThreadPool(Math.max(1, workers));
+
+        // Jobs this node was running when it stopped will not finish; other nodes' jobs are left
+        // to them unless their lease has lapsed
+        try {
+            long interrupted = mongoTemplate.updateMulti(
+                    Query.query(Criteria.where("status").is(BulkExportJob.Status.IN_PROGRESS).and("node").is(jobLeases.getNodeId())),
+                    new Update().set("status", BulkExportJob.Status.FAILED).set("error", "Interrupted by a server restart"),
+                    BulkExportJob.class).getModifiedCount();
+            Query running = Query.query(Criteria.where("status").is(BulkExportJob.Status.IN_PROGRESS));
+            running.fields().include("_id");
+            for (BulkExportJob job : mongoTemplate.find(running, BulkExportJob.class)) {
+                if (failIfAbandoned(job.getId())) {
+                    interrupted++;
+                }
+            }
+            if (interrupted > 0) {
+                System.out.println("Marked " + interrupted + " interrupted bulk export jobs as failed");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Could not clean up bulk export jobs: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps the leases of this node's queued and running jobs.
+     */
+    @Scheduled(fixedDelayString = "${export.bulk.lease-renew-interval-ms:15000}")
+    public void renewLeases() {
+        for (AtomicReference<JobLeases.Lease> holder : leases.values()) {
+            JobLeases.Lease lease = holder.get();
+            if (lease != null) {
+                holder.compareAndSet(lease, jobLeases.renew(lease, leaseTtlMillis));
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        shardExecutor.shutdownNow();
+    }
+
+    /**
+     * Starts an export of every patient and returns the new job.
+     */
+    public BulkExportJob start() {
+        BulkExportJob job = new BulkExportJob();
+        job.setId(new ObjectId().toHexString());
+        // The lease exists before the job does, so no node can see the job without it
+        JobLeases.Lease lease = jobLeases.tryAcquire(leaseName(job.getId()), leaseTtlMillis);
+        if (lease == null) {
+            throw new IllegalStateException("Could not take the lease of export job " + job.getId());
+        }
+        leases.put(job.getId(), new AtomicReference<>(lease));
+
+        job.setStatus(BulkExportJob.Status.IN_PROGRESS);
+        job.setNode(jobLeases.getNodeId());
+        job.setTransactionTime(Instant.now());
+        try {
+            job.setPatientsTotal(mongoTemplate.count(new Query(), Patient.class));
+            job = mongoTemplate.insert(job);
+        } catch (RuntimeException e) {
+            leases.remove(job.getId());
+            jobLeases.discard(lease);
+            throw e;
+        }
+
+        String jobId = job.getId();
+        jobExecutor.submit(() -> run(jobId));
+        return job;
+    }
+
+    /**
+     * The job; one still marked as running whose node has stopped is marked failed first.
+     */
+    public BulkExportJob getJob(String id) {
+        BulkExportJob job = mongoTemplate.findById(id, BulkExportJob.class);
+        if (job == null) {
+            throw new RuntimeException("Export job not found with id: " + id);
+        }
+        if (job.getStatus() == BulkExportJob.Status.IN_PROGRESS && failIfAbandoned(id)) {
+            job = mongoTemplate.findById(id, BulkExportJob.class);
+        }
+        return job;
+    }
+
+    /**
+     * Marks a running job failed if no node holds its lease any more.
+     *
+     * @return true if the job was marked failed
+     */
+    private boolean failIfAbandoned(String id) {
+        if (jobLeases.isHeld(leaseName(id))) {
+            return false;
+        }
+        return mongoTemplate.updateFirst(
+                Query.query(Criteria.where("id").is(id).and("status").is(BulkExportJob.Status.IN_PROGRESS)),
+                new Update().set("status", BulkExportJob.Status.FAILED)
+                        .set("completedAt", Instant.now())
+                        .set("error", "Its node stopped before it finished"),
+                BulkExportJob.class).getModifiedCount() > 0;
+    }
+
+    private static String leaseName(String jobId) {
+        return "bulk-export-" + jobId;
+    }
+
+    /**
+     * Throws unless this node can read the job's files: they are written on the node that ran
+     * the job.
+     */
+    private void checkLocal(BulkExportJob job, Path path) {
+        if (!Files.exists(path) && job.getNode() != null && !job.getNode().equals(jobLeases.getNodeId())) {
+            throw new IllegalArgumentException("The files of export job " + job.getId() + " are on node " + job.getNode()
+                    + "; ask that node, or share export.bulk.directory between nodes");
+        }
+    }
+
+    /**
+     * The file of a resource type in a completed job.
+     */
+    public Path getFile(String id, String type) {
+        BulkExportJob job = getJob(id);
+        if (job.getStatus() != BulkExportJob.Status.COMPLETED) {
+            throw new IllegalArgumentException("Export job " + id + " has not completed");
+        }
+        if (job.getOutputs().stream().noneMatch(output -> output.getType().equals(type))) {
+            throw new IllegalArgumentException("Export job " + id + " has no " + type + " file");
+        }
+        Path file = jobDirectory(id).resolve(type + ".ndjson");
+        checkLocal(job, file);
+        return file;
+    }
+
+    /**
+     * Deletes a finished job and its files.
+     */
+    public void delete(String id) throws IOException {
+        BulkExportJob job = getJob(id);
+        if (job.getStatus() == BulkExportJob.Status.IN_PROGRESS) {
+            throw new IllegalArgumentException("Export job " + id + " is still running");
+        }
+        Path jobDirectory = jobDirectory(id);
+        checkLocal(job, jobDirectory);
+        if (Files.exists(jobDirectory)) {
+            try (Stream<Path> paths = Files.walk(jobDirectory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+        mongoTemplate.remove(job);
+    }
+
+    private void run(String jobId) {
+        Map<String, ResourceFile> files = new LinkedHashMap<>();
+        List<Future<?>> shards = new ArrayList<>();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        try {
+            Path jobDirectory = jobDirectory(jobId);
+            Files.createDirectories(jobDirectory);
+            for (String type : RESOURCE_TYPES) {
+                files.put(type, new ResourceFile(jobDirectory.resolve(type + ".ndjson")));
+            }
+
+            // Bounds the shards read but not yet written, and with them the memory in use
+            Semaphore pending = new Semaphore(Math.max(1, workers) * 2);
+            AtomicReference<JobLeases.Lease> lease = leases.get(jobId);
+            Object lastId = null;
+            while (failure.get() == null) {
+                if (lease == null || lease.get() == null) {
+                    throw new IllegalStateException("Lost the lease of the job to another node");
+                }
+                Query page = new Query();
+                if (lastId != null) {
+                    page.addCriteria(Criteria.where("_id").gt(lastId));
+                }
+                page.with(Sort.by(Sort.Direction.ASC, "_id")).limit(shardSize);
+                page.fields().include("_id");
+                List<Object> patientIds = mongoTemplate.find(page, Document.class, mongoTemplate.getCollectionName(Patient.class))
+                        .stream().map(document -> document.get("_id")).collect(Collectors.toList());
+                if (patientIds.isEmpty()) {
+                    break;
+                }
+                lastId = patientIds.get(patientIds.size() - 1);
+
+                pending.acquire();
+                shards.add(shardExecutor.submit(() -> {
+                    try {
+                        exportShard(jobId, patientIds, files);
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        pending.release();
+                    }
+                }));
+                if (patientIds.size() < shardSize) {
+                    break;
+                }
+            }
+            for (Future<?> shard : shards) {
+                shard.get();
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+
+            List<BulkExportJob.Output> outputs = new ArrayList<>();
+            for (Map.Entry<String, ResourceFile> file : files.entrySet()) {
+                outputs.add(new BulkExportJob.Output(file.getKey(), file.getValue().count, file.getValue().close()));
+            }
+            mongoTemplate.updateFirst(Query.query(Criteria.where("id").is(jobId)),
+                    new Update().set("status", BulkExportJob.Status.COMPLETED)
+                            .set("completedAt", Instant.now())
+                            .set("outputs", outputs),
+                    BulkExportJob.class);
+            System.out.println("Bulk export " + jobId + " completed");
+        } catch (Exception e) {
+            shards.forEach(shard -> shard.cancel(true));
+            for (ResourceFile file : files.values()) {
+                try {
+                    file.close();
+                } catch (IOException closeError) {
+                    // Already failing; the files are unusable either way
+                }
+            }
+            String error = e instanceof InterruptedException ? "Interrupted" : String.valueOf(e.getMessage());
+            mongoTemplate.updateFirst(Query.query(Criteria.where("id").is(jobId)),
+                    new Update().set("status", BulkExportJob.Status.FAILED)
+                            .set("completedAt", Instant.now())
+                            .set("error", error),
+                    BulkExportJob.class);
+            System.err.println("Bulk export " + jobId + " failed: " + error);
+        } finally {
+            // Dropped only after the final status is written, so no node takes the job for abandoned
+            AtomicReference<JobLeases.Lease> lease = leases.remove(jobId);
+            if (lease != null && lease.get() != null) {
+                jobLeases.discard(lease.get());
+            }
+        }
+    }
+
+    /**
+     * Renders the resources of a shard of patients and appends them to the files.
+     */
+    private void exportShard(String jobId, List<Object> patientIds, Map<String, ResourceFile> files) throws IOException {
+        Map<String, Buffer> buffers = new LinkedHashMap<>();
+        for (String type : RESOURCE_TYPES) {
+            buffers.put(type, new Buffer());
+        }
+        List<String> patientIdStrings = patientIds.stream().map(String::valueOf).collect(Collectors.toList());
+
+        Query patientQuery = Query.query(Criteria.where("_id").in(patientIds)).with(Sort.by(Sort.Direction.ASC, "_id"));
+        patientQuery.fields().exclude("password", "photo");
+        for (Patient patient : mongoTemplate.find(patientQuery, Patient.class)) {
+            ObjectNode resource = resource("Patient", patient);
+            resource.remove(List.of(PATIENT_EXCLUDED_FIELDS));
+            buffers.get("Patient").add(resource);
+            addImaging(buffers.get("ImagingStudy"), patient.getId(), "xRay", patient.getxRays());
+            addImaging(buffers.get("ImagingStudy"), patient.getId(), "otherImaging", patient.getOtherImaging());
+        }
+
+        Query appointmentQuery = Query.query(Criteria.where("patient.$id").in(patientIds)).with(Sort.by(Sort.Direction.ASC, "_id"));
+        for (AppointmentView appointment : appointmentViewService.find(appointmentQuery)) {
+            buffers.get("Appointment").add(resource("Appointment", appointment));
+        }
+
+        Query labQuery = Query.query(Criteria.where("patientId").in(patientIdStrings)).with(Sort.by(Sort.Direction.ASC, "_id"));
+        for (LabResult labResult : mongoTemplate.find(labQuery, LabResult.class)) {
+            buffers.get("Observation").add(resource("Observation", labResult));
+        }
+
+        for (Map.Entry<String, Buffer> buffer : buffers.entrySet()) {
+            files.get(buffer.getKey()).append(buffer.getValue());
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("id").is(jobId)),
+                new Update().inc("patientsExported", patientIds.size()), BulkExportJob.class);
+    }
+
+    private void addImaging(Buffer buffer, String patientId, String category, List<Map<String, Object>> entries) throws IOException {
+        if (entries == null) {
+            return;
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            ObjectNode resource = objectMapper.createObjectNode()
+                    .put("resourceType", "ImagingStudy")
+                    .put("id", patientId + "-" + category + "-" + i)
+                    .put("patientId", patientId)
+                    .put("category", category);
+            for (Map.Entry<String, Object> entry : entries.get(i).entrySet()) {
+                // Metadata only: images embedded as data URIs stay in the patient record
+                if (entry.getValue() instanceof String && ((String) entry.getValue()).startsWith("data:")) {
+                    continue;
+                }
+                resource.set(entry.getKey(), objectMapper.valueToTree(entry.getValue()));
+            }
+            buffer.add(resource);
+        }
+    }
+
+    private ObjectNode resource(String type, Object value) {
+        ObjectNode resource = objectMapper.createObjectNode().put("resourceType", type);
+        resource.setAll((ObjectNode) objectMapper.valueToTree(value));
+        return resource;
+    }
+
+    private Path jobDirectory(String jobId) {
+        return Paths.get(directory, jobId);
+    }
+
+    /**
+     * A shard's lines for one resource type.
+     */
+    private class Buffer {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private long count;
+
+        void add(ObjectNode resource) throws IOException {
+            objectMapper.writeValue(bytes, resource);
+            bytes.write('\n');
+            count++;
+        }
+    }
+
+    /**
+     * The NDJSON file of one resource type, appended to by every shard.
+     */
+    private static class ResourceFile {
+        private final FileChannel channel;
+        private long count;
+
+        ResourceFile(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * Writes a whole buffer as one run of bytes, so lines from different shards never mix.
+         */
+        synchronized void append(Buffer buffer) throws IOException {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.bytes.toByteArray());
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            count += buffer.count;
+        }
+
+        /**
+         * Flushes and closes the file and returns its size.
+         */
+        synchronized long close() throws IOException {
+            if (!channel.isOpen()) {
+                return 0;
+            }
+            long size = channel.size();
+            channel.force(false);
+            channel.close();
+            return size;
+        }
+    }
+}
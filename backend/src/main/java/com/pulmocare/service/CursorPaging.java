@@ -0,0 +1,90 @@
+package com.pulmocare.service;
+
+import com.pulmocare.dto.CursorPage;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Keyset pagination for the list endpoints.
+ *
+ * Pages are in _id order, which is unique and fixed per document, and the cursor is the last
+ * _id of the previous page. Each page is an index range scan from the cursor, so it costs the
+ * same however deep into the collection it is and whatever is inserted meanwhile. The body
+ * stays a plain JSON array; the next page is announced in the X-Next-Cursor and Link headers.
+ */
+@Component
+public class CursorPaging {
+
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    @Value("${api.page.default-size:50}")
+    private int defaultPageSize;
+
+    @Value("${api.page.max-size:200}")
+    private int maxPageSize;
+
+    /**
+     * The page size to use for a request: the default when none was asked for, capped at the
+     * maximum.
+     */
+    public int pageSize(Integer requested) {
+        if (requested == null) {
+            return defaultPageSize;
+        }
+        if (requested < 1) {
+            throw new IllegalArgumentException("limit must be at least 1");
+        }
+        return Math.min(requested, maxPageSize);
+    }
+
+    /**
+     * Restricts a query to the page after the cursor. One extra document is fetched to tell
+     * whether another page follows.
+     */
+    public static Query pageQuery(Query query, String cursor, int pageSize) {
+        if (cursor != null && !cursor.isBlank()) {
+            if (!ObjectId.isValid(cursor)) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            query.addCriteria(Criteria.where("_id").gt(new ObjectId(cursor)));
+        }
+        return query.with(Sort.by(Sort.Direction.ASC, "_id")).limit(pageSize + 1);
+    }
+
+    /**
+     * Turns the results of a {@link #pageQuery} into a page.
+     */
+    public static <T> CursorPage<T> toPage(List<T> results, int pageSize, Function<T, String> idOf) {
+        if (results.size() <= pageSize) {
+            return new CursorPage<>(results, null);
+        }
+        List<T> items = results.subList(0, pageSize);
+        return new CursorPage<>(items, idOf.apply(items.get(pageSize - 1)));
+    }
+
+    /**
+     * 200 with the page's items as the body, reduced to the selected fields if any, and, unless
+     * it is the last page, its cursor in the X-Next-Cursor and Link headers.
+     */
+    public static <T> ResponseEntity<Object> respond(CursorPage<T> page, Set<String> fields, Class<T> type) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        if (page.getNextCursor() != null) {
+            String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                    .replaceQueryParam("cursor", page.getNextCursor())
+                    .toUriString();
+            response.header(NEXT_CURSOR_HEADER, page.getNextCursor())
+                    .header("Link", "<" + next + ">; rel=\"next\"");
+        }
+        return response.body(SparseFields.filter(page.getItems(), fields, type));
+    }
+}
@@ -0,0 +1,191 @@
+package com.pulmocare.service;
+
+import com.pulmocare.dto.AppointmentView;
+import com.pulmocare.model.Appointment;
+import com.pulmocare.model.BookingLedger;
+import com.pulmocare.model.Doctor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything the doctor home screen shows, in one call.
+ *
+ * Four lookups run in parallel: the doctor (from the entity cache), the doctor's appointments
+ * from the start of today on (one range scan of doctor_start), the count of appointments with a
+ * report pending (doctor_report_pending), and today's booking ledger. Today's list, the ongoing
+ * appointment, the upcoming ones, the next one up and today's free slots are all derived from
+ * those in memory.
+ */
+@Service
+public class DoctorDashboardService {
+
+    // Same bound as the ongoing lookup, so an appointment that started before midnight still shows
+    private static final Duration MAX_APPOINTMENT_LENGTH = Duration.ofHours(12);
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private EntityCache entityCache;
+
+    @Autowired
+    private AppointmentViewService appointmentViewService;
+
+    @Autowired
+    private BookingLedgerService bookingLedgerService;
+
+    @Autowired
+    private AvailabilityEngine availabilityEngine;
+
+    @Value("${dashboard.threads:8}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private volatile long lastDurationNanos;
+    private volatile long maxDurationNanos;
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newFixedThreadPool(Math.max(1, threads));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The doctor (without password), today's appointments, the ongoing one, the upcoming ones,
+     * the next one up, the number of reports pending and today's free slots still ahead.
+     */
+    public Map<String, Object> getDashboard(String doctorId) {
+        long started = System.nanoTime();
+        try {
+            Map<String, Object> dashboard = build(doctorId);
+            record(System.nanoTime() - started);
+            return dashboard;
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+            throw e;
+        }
+    }
+
+    private Map<String, Object> build(String doctorId) {
+        Instant now = Instant.now();
+        LocalDate today = LocalDate.now();
+        Instant startOfDay = today.atStartOfDay(ZoneId.systemDefault()).toInstant();
+        Instant startOfTomorrow = today.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant();
+        Instant windowStart = startOfDay.isBefore(now.minus(MAX_APPOINTMENT_LENGTH))
+                ? startOfDay : now.minus(MAX_APPOINTMENT_LENGTH);
+
+        CompletableFuture<Doctor> doctorLookup = CompletableFuture.supplyAsync(
+                () -> entityCache.getDoctor(doctorId), executor);
+        CompletableFuture<List<AppointmentView>> appointmentLookup = CompletableFuture.supplyAsync(
+                () -> appointmentViewService.find(Query.query(AppointmentViewService.referencing("doctor", doctorId)
+                                .and("startAt").gte(windowStart))
+                        .with(Sort.by(Sort.Direction.ASC, "startAt"))), executor);
+        CompletableFuture<Long> pendingLookup = CompletableFuture.supplyAsync(
+                () -> mongoTemplate.count(Query.query(AppointmentViewService.referencing("doctor", doctorId)
+                        .and("reportPending").is(true)), Appointment.class), executor);
+        CompletableFuture<Map<LocalDate, BookingLedger>> ledgerLookup = CompletableFuture.supplyAsync(
+                () -> bookingLedgerService.findRange(doctorId, today, today), executor);
+
+        Doctor doctor;
+        List<AppointmentView> appointments;
+        long pendingReports;
+        Map<LocalDate, BookingLedger> ledgers;
+        try {
+            doctor = doctorLookup.join();
+            appointments = appointmentLookup.join();
+            pendingReports = pendingLookup.join();
+            ledgers = ledgerLookup.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+
+        List<AppointmentView> todays = new ArrayList<>();
+        List<AppointmentView> upcoming = new ArrayList<>();
+        AppointmentView ongoing = null;
+        for (AppointmentView appointment : appointments) {
+            Instant startAt = appointment.getStartAt();
+            if (!startAt.isBefore(startOfDay) && startAt.isBefore(startOfTomorrow)) {
+                todays.add(appointment);
+            }
+            // Latest start wins, as in the ongoing endpoint
+            if (startAt.isBefore(now) && appointment.getEndAt() != null && appointment.getEndAt().isAfter(now)) {
+                ongoing = appointment;
+            }
+            if (startAt.isAfter(now) && appointment.isUpcoming()) {
+                upcoming.add(appointment);
+            }
+        }
+
+        int nowMinute = AvailabilityEngine.minuteOfDay(LocalTime.now());
+        List<Map<String, String>> freeSlots = new ArrayList<>();
+        for (Doctor.TimeSlot slot : availabilityEngine.freeSlots(doctor, today, today, ledgers).get(today)) {
+            if (AvailabilityEngine.parseMinute(slot.getStartTime()) >= nowMinute) {
+                freeSlots.add(Map.of("startTime", slot.getStartTime(), "endTime", slot.getEndTime()));
+            }
+        }
+
+        doctor.setPassword(null);
+        Map<String, Object> dashboard = new LinkedHashMap<>();
+        dashboard.put("doctor", doctor);
+        dashboard.put("date", today);
+        dashboard.put("ongoing", ongoing);
+        dashboard.put("nextUp", upcoming.isEmpty() ? null : upcoming.get(0));
+        dashboard.put("today", todays);
+        dashboard.put("upcoming", upcoming);
+        dashboard.put("pendingReports", pendingReports);
+        dashboard.put("freeSlots", freeSlots);
+        return dashboard;
+    }
+
+    private void record(long elapsed) {
+        calls.incrementAndGet();
+        totalNanos.addAndGet(elapsed);
+        lastDurationNanos = elapsed;
+        if (elapsed > maxDurationNanos) {
+            maxDurationNanos = elapsed;
+        }
+    }
+
+    /**
+     * Calls, failures and latency of the dashboard, to compare with the separate endpoints it replaces.
+     */
+    public Map<String, Object> snapshot() {
+        long callCount = calls.get();
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("calls", callCount);
+        snapshot.put("failures", failures.get());
+        snapshot.put("lastDurationMs", lastDurationNanos / 1_000_000.0);
+        snapshot.put("avgDurationMs", callCount > 0 ? totalNanos.get() / callCount / 1_000_000.0 : 0.0);
+        snapshot.put("maxDurationMs", maxDurationNanos / 1_000_000.0);
+        return snapshot;
+    }
+}
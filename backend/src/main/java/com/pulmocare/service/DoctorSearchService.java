@@ -0,0 +1,290 @@
+package com.pulmocare.service;
+
+import com.pulmocare.config.DoctorSearchListener;
+import com.pulmocare.dto.CursorPage;
+import com.pulmocare.model.Doctor;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.TextCriteria;
+import org.springframework.data.mongodb.core.query.TextQuery;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Doctor directory search.
+ *
+ * {@link #search} is full-text over names, location and description, ranked by MongoDB's text
+ * score, for a submitted query. {@link #suggest} is typeahead: every word typed must begin a
+ * word of the doctor's names or location, which the search_prefixes index answers from the
+ * stored prefixes. Matches are scored in the same aggregation before the limit applies, so a
+ * whole-word name match sorting late in the alphabet still comes first.
+ */
+@Service
+public class DoctorSearchService {
+
+    // Text results are paged by offset, since they are ordered by score; deep pages are not useful
+    public static final int MAX_SEARCH_DEPTH = 1000;
+
+    public static final int MAX_SUGGESTIONS = 20;
+
+    // Candidates read for ranking, per suggestion asked for
+    private static final int CANDIDATES_PER_SUGGESTION = 5;
+
+    private static final int BACKFILL_BATCH_SIZE = 500;
+
+    // searchNames of a doctor saved before it existed counts as no names
+    private static final Document NAMES = new Document("$ifNull", List.of("$searchNames", List.of()));
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SparseFields sparseFields;
+
+    private final Timer searchTimer = new Timer();
+    private final Timer suggestTimer = new Timer();
+
+    /**
+     * One page of the doctors matching the words of q, best match first.
+     *
+     * @param cursor offset of the page, as returned with the previous page (null for the first)
+     */
+    public CursorPage<Doctor> search(String q, String cursor, int pageSize, Set<String> fields) {
+        if (q == null || q.isBlank()) {
+            throw new IllegalArgumentException("q is required");
+        }
+        int offset = offsetOf(cursor);
+        if (offset + pageSize > MAX_SEARCH_DEPTH) {
+            throw new IllegalArgumentException("Search results are available up to " + MAX_SEARCH_DEPTH + " doctors deep");
+        }
+        long started = System.nanoTime();
+        try {
+            Query query = TextQuery.queryText(TextCriteria.forDefaultLanguage().matching(q))
+                    .sortByScore()
+                    .with(Sort.by("_id"))
+                    .skip(offset)
+                    .limit(pageSize + 1);
+            if (fields != null) {
+                sparseFields.project(query, fields, Doctor.class);
+            } else {
+                query.fields().exclude("password").exclude("searchPrefixes").exclude("searchNames");
+            }
+            List<Doctor> results = mongoTemplate.find(query, Doctor.class);
+            if (results.size() <= pageSize) {
+                return new CursorPage<>(results, null);
+            }
+            return new CursorPage<>(results.subList(0, pageSize), String.valueOf(offset + pageSize));
+        } finally {
+            searchTimer.record(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Up to limit doctors whose names or location have words beginning with each word of q:
+     * whole-word name matches first, then name prefixes, then location, then by name.
+     */
+    public List<Map<String, Object>> suggest(String q, int limit) {
+        if (limit < 1 || limit > MAX_SUGGESTIONS) {
+            throw new IllegalArgumentException("limit must be between 1 and " + MAX_SUGGESTIONS);
+        }
+        List<String> typed = DoctorSearchListener.words(q);
+        if (typed.isEmpty()) {
+            return new ArrayList<>();
+        }
+        long started = System.nanoTime();
+        try {
+            List<String> prefixes = typed.stream()
+                    .map(word -> word.length() > DoctorSearchListener.MAX_PREFIX_LENGTH
+                            ? word.substring(0, DoctorSearchListener.MAX_PREFIX_LENGTH) : word)
+                    .distinct()
+                    .collect(Collectors.toList());
+            List<Document> pipeline = List.of(
+                    new Document("$match", new Document("searchPrefixes", new Document("$all", prefixes))),
+                    new Document("$addFields", new Document("score", scoreOf(typed))),
+                    new Document("$sort", new Document("score", -1).append("lastName", 1).append("firstName", 1)),
+                    new Document("$limit", limit * CANDIDATES_PER_SUGGESTION),
+                    new Document("$project", new Document("firstName", 1).append("lastName", 1).append("location", 1)));
+
+            List<Suggestion> ranked = new ArrayList<>();
+            for (Document candidate : mongoTemplate.getCollection(mongoTemplate.getCollectionName(Doctor.class))
+                    .aggregate(pipeline)) {
+                Doctor doctor = mongoTemplate.getConverter().read(Doctor.class, candidate);
+                Suggestion suggestion = rank(doctor, typed);
+                if (suggestion != null) {
+                    ranked.add(suggestion);
+                }
+            }
+            ranked.sort(Comparator.comparingInt((Suggestion suggestion) -> -suggestion.score));
+
+            List<Map<String, Object>> suggestions = new ArrayList<>();
+            for (Suggestion suggestion : ranked.subList(0, Math.min(limit, ranked.size()))) {
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("id", suggestion.doctor.getId());
+                entry.put("firstName", suggestion.doctor.getFirstName());
+                entry.put("lastName", suggestion.doctor.getLastName());
+                entry.put("location", suggestion.doctor.getLocation());
+                suggestions.add(entry);
+            }
+            return suggestions;
+        } finally {
+            suggestTimer.record(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * The ranking of {@link #rank} as an aggregation expression over searchNames: per typed word,
+     * 3 for a whole name word, 2 for the start of one, otherwise 1 since the match was on the
+     * location. Long words are only checked against the location in memory afterwards.
+     */
+    private static Document scoreOf(List<String> typed) {
+        List<Object> terms = new ArrayList<>();
+        for (String word : typed) {
+            Document startsName = new Document("$anyElementTrue", List.of(new Document("$map", new Document("input", NAMES)
+                    .append("as", "name")
+                    .append("in", new Document("$eq", List.of(new Document("$indexOfCP", List.of("$$name", word)), 0))))));
+            terms.add(new Document("$cond", List.of(
+                    new Document("$in", List.of(word, NAMES)), 3,
+                    new Document("$cond", List.of(startsName, 2, 1)))));
+        }
+        return new Document("$add", terms);
+    }
+
+    /**
+     * Scores a candidate, or returns null if a typed word longer than the stored prefixes does
+     * not actually begin any of its words.
+     */
+    private static Suggestion rank(Doctor doctor, List<String> typed) {
+        List<String> names = DoctorSearchListener.words(doctor.getFirstName());
+        names.addAll(DoctorSearchListener.words(doctor.getLastName()));
+        List<String> places = DoctorSearchListener.words(doctor.getLocation());
+        int score = 0;
+        for (String word : typed) {
+            if (names.contains(word)) {
+                score += 3;
+            } else if (names.stream().anyMatch(name -> name.startsWith(word))) {
+                score += 2;
+            } else if (places.stream().anyMatch(place -> place.startsWith(word))) {
+                score += 1;
+            } else {
+                return null;
+            }
+        }
+        return new Suggestion(doctor, score);
+    }
+
+    /**
+     * Sets searchPrefixes and searchNames on doctors saved before they existed. Saves keep it current afterwards,
+     * so this only finds work once.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        Thread thread = new Thread(this::backfill, "doctor-search-backfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void backfill() {
+        try {
+            long updated = 0;
+            List<Document> batch;
+            do {
+                Query pending = Query.query(new Criteria().orOperator(
+                                Criteria.where("searchPrefixes").exists(false), Criteria.where("searchNames").exists(false)))
+                        .with(Sort.by("_id"))
+                        .limit(BACKFILL_BATCH_SIZE);
+                pending.fields().include("firstName").include("lastName").include("location");
+                batch = mongoTemplate.find(pending, Document.class, mongoTemplate.getCollectionName(Doctor.class));
+                if (batch.isEmpty()) {
+                    break;
+                }
+                BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Doctor.class);
+                for (Document doctor : batch) {
+                    bulk.updateOne(Query.query(Criteria.where("_id").is(doctor.get("_id"))),
+                            Update.update("searchPrefixes", DoctorSearchListener.prefixesOf(
+                                    doctor.getString("firstName"), doctor.getString("lastName"), doctor.getString("location")))
+                                    .set("searchNames", DoctorSearchListener.namesOf(
+                                            doctor.getString("firstName"), doctor.getString("lastName"))));
+                }
+                bulk.execute();
+                updated += batch.size();
+            } while (batch.size() == BACKFILL_BATCH_SIZE);
+            if (updated > 0) {
+                System.out.println("Set search prefixes and names on " + updated + " doctors");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Could not set search prefixes and names on doctors: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Calls and latency of search and suggest.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("search", searchTimer.snapshot());
+        snapshot.put("suggest", suggestTimer.snapshot());
+        return snapshot;
+    }
+
+    private static int offsetOf(String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return 0;
+        }
+        try {
+            int offset = Integer.parseInt(cursor);
+            if (offset < 0) {
+                throw new NumberFormatException();
+            }
+            return offset;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+    }
+
+    private static class Suggestion {
+        private final Doctor doctor;
+        private final int score;
+
+        Suggestion(Doctor doctor, int score) {
+            this.doctor = doctor;
+            this.score = score;
+        }
+    }
+
+    private static class Timer {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private volatile long lastNanos;
+
+        void record(long elapsed) {
+            calls.incrementAndGet();
+            totalNanos.addAndGet(elapsed);
+            lastNanos = elapsed;
+        }
+
+        Map<String, Object> snapshot() {
+            long callCount = calls.get();
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("calls", callCount);
+            snapshot.put("lastDurationMs", lastNanos / 1_000_000.0);
+            snapshot.put("avgDurationMs", callCount > 0 ? totalNanos.get() / callCount / 1_000_000.0 : 0.0);
+            return snapshot;
+        }
+    }
+}
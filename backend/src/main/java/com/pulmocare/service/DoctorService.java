@@ -1,15 +1,20 @@
 package com.pulmocare.service;
 
+import com.pulmocare.dto.CursorPage;
 import com.pulmocare.model.Doctor;
-import com.pulmocare.model.Appointment;
 import com.pulmocare.repository.DoctorRepository;
-import com.pulmocare.repository.AppointmentRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
 import java.time.LocalDate;
-import java.time.LocalTime;
-import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 @Service
 public class DoctorService {
@@ -18,14 +23,61 @@ public class DoctorService {
     private DoctorRepository doctorRepository;
     
     @Autowired
-    private AppointmentRepository appointmentRepository;
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private AvailabilityEngine availabilityEngine;
+
+    @Autowired
+    private SparseFields sparseFields;
+
+    @Autowired
+    private EntityCache entityCache;
+
+    /**
+     * Doctors saved before Doctor.version existed have no version field, which Spring Data
+     * would take as a new entity and try to insert. Give them version 0 before any request
+     * is served.
+     */
+    @PostConstruct
+    public void initVersions() {
+        try {
+            long updated = mongoTemplate.updateMulti(Query.query(Criteria.where("version").exists(false)),
+                    Update.update("version", 0L), Doctor.class).getModifiedCount();
+            if (updated > 0) {
+                System.out.println("Initialized version on " + updated + " doctors");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Could not initialize doctor versions: " + e.getMessage());
+        }
+    }
 
     // Get a single doctor by ID
+    // Served from the in-process cache; a fresh copy on every call
     public Doctor getDoctorById(String id) {
+        return entityCache.getDoctor(id);
+    }
+
+    // Get a single doctor by ID from the database, never the cache, for a caller that edits and saves it
+    public Doctor getDoctorForUpdate(String id) {
         return doctorRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Doctor not found with id: " + id));
     }
 
+    // Get a single doctor by ID, reading only the given fields (all of them when null)
+    public Doctor getDoctorById(String id, Set<String> fields) {
+        if (fields == null) {
+            return getDoctorById(id);
+        }
+        Query query = Query.query(Criteria.where("id").is(id));
+        sparseFields.project(query, fields, Doctor.class);
+        Doctor doctor = mongoTemplate.findOne(query, Doctor.class);
+        if (doctor == null) {
+            throw new RuntimeException("Doctor not found with id: " + id);
+        }
+        return doctor;
+    }
+
     // Sign in doctor
     public Doctor signIn(String email, String password) {
         Doctor doctor = doctorRepository.findByEmail(email)
@@ -46,9 +98,15 @@ public class DoctorService {
         return doctorRepository.save(doctor);
     }
 
-    // Get all doctors
-    public List<Doctor> getAllDoctors() {
-        return doctorRepository.findAll();
+    // Get one page of doctors, without passwords
+    public CursorPage<Doctor> getDoctorsPage(String cursor, int pageSize, Set<String> fields) {
+        Query query = CursorPaging.pageQuery(new Query(), cursor, pageSize);
+        if (fields != null) {
+            sparseFields.project(query, fields, Doctor.class);
+        } else {
+            query.fields().exclude("password");
+        }
+        return CursorPaging.toPage(mongoTemplate.find(query, Doctor.class), pageSize, Doctor::getId);
     }
 
     // Get total number of doctors
@@ -61,6 +119,14 @@ public class DoctorService {
         Doctor doctor = doctorRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Doctor not found with id: " + id));
 
+        // A caller that read the doctor sends back the version it read; if someone else has saved
+        // the doctor since, its copy is stale and would overwrite their changes. Callers without a
+        // version are not checked. The save itself fails the same way if a write lands in between.
+        if (doctorDetails.getVersion() != null && !doctorDetails.getVersion().equals(doctor.getVersion())) {
+            throw new OptimisticLockingFailureException("Doctor " + id + " was changed by someone else (version "
+                    + doctor.getVersion() + ", not " + doctorDetails.getVersion() + "); reload it and try again");
+        }
+
         doctor.setFirstName(doctorDetails.getFirstName());
         doctor.setLastName(doctorDetails.getLastName());
         doctor.setGender(doctorDetails.getGender());
@@ -86,7 +152,11 @@ public class DoctorService {
         
         // Note: We don't update password or email here as those should be separate operations
 
-        return doctorRepository.save(doctor);
+        try {
+            return doctorRepository.save(doctor);
+        } finally {
+            entityCache.evictDoctor(id);
+        }
     }
     
     /**
@@ -100,48 +170,11 @@ public class DoctorService {
      */
     public boolean isTimeSlotAvailable(String doctorId, LocalDate date, String startTime, String endTime) {
         Doctor doctor = getDoctorById(doctorId);
-        
-        // Check if the date is in the unavailable dates list
-        if (doctor.getUnavailableDates() != null && 
-            doctor.getUnavailableDates().contains(date.toString())) {
+        int startMinute = AvailabilityEngine.parseMinute(startTime);
+        int endMinute = AvailabilityEngine.parseMinute(endTime);
+        if (startMinute < 0 || endMinute <= startMinute) {
             return false;
         }
-        
-        // Get the day of the week (lowercase)
-        String dayOfWeek = date.getDayOfWeek().toString().toLowerCase().substring(0, 3);
-        
-        // Check if the doctor works on this day
-        if (!doctor.getAvailableDays().contains(dayOfWeek)) {
-            return false;
-        }
-        
-        // Get the available time slots for this day
-        List<Doctor.TimeSlot> availableSlots = doctor.getAvailableTimeSlots().get(dayOfWeek);
-        if (availableSlots == null || availableSlots.isEmpty()) {
-            return false;
-        }
-        
-        // Check if the requested time slot is in the doctor's available time slots
-        boolean timeSlotAvailable = false;
-        for (Doctor.TimeSlot slot : availableSlots) {
-            if (slot.getStartTime().equals(startTime) && slot.getEndTime().equals(endTime)) {
-                timeSlotAvailable = true;
-                break;
-            }
-        }
-        if (!timeSlotAvailable) {
-            return false;
-        }
-        
-        // Check if there are any existing appointments at this time
-        LocalTime localStartTime = LocalTime.parse(startTime);
-        List<Appointment> appointments = appointmentRepository.findByDoctorIdAndDate(doctorId, date);
-        for (Appointment appointment : appointments) {
-            if (appointment.getHour().equals(localStartTime)) {
-                return false; // Time slot is already booked
-            }
-        }
-        
-        return true;
+        return availabilityEngine.check(doctor, date, startMinute, endMinute) == AvailabilityEngine.Result.AVAILABLE;
     }
 }
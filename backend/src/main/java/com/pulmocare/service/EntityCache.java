@@ -0,0 +1,204 @@
+package com.pulmocare.service;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.pulmocare.model.Doctor;
+import com.pulmocare.model.Patient;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of the doctors and patients looked up on the booking path.
+ *
+ * Each region is an LRU of raw documents by id. Every lookup returns a fresh object converted
+ * from the cached document, so changing it does not touch the cache. A cached entry may still
+ * be stale, though, so it is for reads only: code that edits an entity and saves it back loads
+ * it from the database (DoctorService.getDoctorForUpdate). Writers evict the entry after saving;
+ * a load that overlapped an eviction is not cached, so a stale read cannot outlive the write.
+ * Writes made on other server instances arrive through the {@link InvalidationBus}; entries
+ * also expire after a TTL, which bounds staleness if the bus is not running.
+ */
+@Service
+public class EntityCache {
+
+    // Patients on the booking path only need to be identified, not their records
+    private static final String[] PATIENT_SUMMARY_EXCLUDED_FIELDS = {"password", "photo", "bloodTests", "xRays", "otherImaging", "report"};
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${cache.doctors.max-entries:1000}")
+    private int maxDoctors;
+
+    @Value("${cache.patients.max-entries:5000}")
+    private int maxPatients;
+
+    @Value("${cache.ttl-ms:30000}")
+    private long ttlMillis;
+
+    private Region<Doctor> doctors;
+    private Region<Patient> patients;
+
+    @PostConstruct
+    public void init() {
+        doctors = new Region<>(Doctor.class, maxDoctors);
+        patients = new Region<>(Patient.class, maxPatients, PATIENT_SUMMARY_EXCLUDED_FIELDS);
+    }
+
+    /**
+     * The doctor with the given id, as stored.
+     */
+    public Doctor getDoctor(String id) {
+        Doctor doctor = doctors.get(id);
+        if (doctor == null) {
+            throw new RuntimeException("Doctor not found with id: " + id);
+        }
+        return doctor;
+    }
+
+    /**
+     * The patient with the given id, without password, photo, imaging, blood tests or report.
+     */
+    public Patient getPatientSummary(String id) {
+        Patient patient = patients.get(id);
+        if (patient == null) {
+            throw new RuntimeException("Patient not found with id: " + id);
+        }
+        return patient;
+    }
+
+    public void evictDoctor(String id) {
+        doctors.evict(id);
+    }
+
+    public void evictPatient(String id) {
+        patients.evict(id);
+    }
+
+    /**
+     * Evicts what another node (or this one) changed, as reported by the change stream.
+     */
+    @EventListener
+    public void onInvalidation(InvalidationBus.Invalidation invalidation) {
+        Region<?> region = mongoTemplate.getCollectionName(Doctor.class).equals(invalidation.getCollection()) ? doctors
+                : mongoTemplate.getCollectionName(Patient.class).equals(invalidation.getCollection()) ? patients
+                : null;
+        if (region == null) {
+            return;
+        }
+        if (invalidation.getId() != null) {
+            region.evict(invalidation.getId());
+        } else {
+            region.evictAll();
+        }
+    }
+
+    /**
+     * Per region: entries, hits, misses, hit ratio, mean load time and evictions.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("doctors", doctors.snapshot());
+        snapshot.put("patients", patients.snapshot());
+        return snapshot;
+    }
+
+    private class Region<T> {
+        private final Class<T> type;
+        private final String[] excludedFields;
+        private final Map<String, CacheEntry> entries;
+
+        // Advanced by every eviction; a load that saw it move does not cache its result
+        private final AtomicLong epoch = new AtomicLong();
+
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong loadNanos = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+
+        Region(Class<T> type, int maxEntries, String... excludedFields) {
+            this.type = type;
+            this.excludedFields = excludedFields;
+            this.entries = Collections.synchronizedMap(new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    return size() > maxEntries;
+                }
+            });
+        }
+
+        T get(String id) {
+            CacheEntry entry = entries.get(id);
+            if (entry != null && System.currentTimeMillis() - entry.loadedAt < ttlMillis) {
+                hits.incrementAndGet();
+                return mongoTemplate.getConverter().read(type, entry.document);
+            }
+
+            misses.incrementAndGet();
+            long epochBefore = epoch.get();
+            long started = System.nanoTime();
+            Document document = mongoTemplate.getCollection(mongoTemplate.getCollectionName(type))
+                    .find(Filters.eq("_id", ObjectId.isValid(id) ? new ObjectId(id) : id))
+                    .projection(excludedFields.length > 0 ? Projections.exclude(excludedFields) : null)
+                    .first();
+            loadNanos.addAndGet(System.nanoTime() - started);
+            if (document == null) {
+                return null;
+            }
+            synchronized (entries) {
+                if (epoch.get() == epochBefore) {
+                    entries.put(id, new CacheEntry(document));
+                }
+            }
+            return mongoTemplate.getConverter().read(type, document);
+        }
+
+        void evict(String id) {
+            synchronized (entries) {
+                epoch.incrementAndGet();
+                entries.remove(id);
+            }
+            evictions.incrementAndGet();
+        }
+
+        void evictAll() {
+            synchronized (entries) {
+                epoch.incrementAndGet();
+                evictions.addAndGet(entries.size());
+                entries.clear();
+            }
+        }
+
+        Map<String, Object> snapshot() {
+            long lookups = hits.get() + misses.get();
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("entries", entries.size());
+            snapshot.put("hits", hits.get());
+            snapshot.put("misses", misses.get());
+            snapshot.put("hitRatio", lookups > 0 ? (double) hits.get() / lookups : 0.0);
+            snapshot.put("avgLoadMs", misses.get() > 0 ? loadNanos.get() / misses.get() / 1_000_000.0 : 0.0);
+            snapshot.put("evictions", evictions.get());
+            return snapshot;
+        }
+    }
+
+    private static class CacheEntry {
+        private final Document document;
+        private final long loadedAt = System.currentTimeMillis();
+
+        CacheEntry(Document document) {
+            this.document = document;
+        }
+    }
+}
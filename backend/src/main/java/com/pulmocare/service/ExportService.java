@@ -0,0 +1,182 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.pulmocare.dto.AppointmentView;
+import com.pulmocare.model.Doctor;
+import com.pulmocare.model.Patient;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+
+/**
+ * Exports whole collections as NDJSON, one JSON document per line.
+ *
+ * Documents are read from a Mongo cursor and written to the output stream as they arrive, so
+ * memory stays the same whatever the size of the export. Every export walks the _id index,
+ * which needs no in-memory sort, and the JSON of each document matches the API responses.
+ */
+@Service
+public class ExportService {
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    // Documents per cursor round trip, and appointments per patient/doctor name lookup
+    private static final int BATCH_SIZE = 1000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private AppointmentViewService appointmentViewService;
+
+    /**
+     * Writes the appointments dated from..to (inclusive, either end optional), with the patient
+     * and doctor as id and name.
+     *
+     * @return The number of appointments written
+     */
+    public long exportAppointments(LocalDate from, LocalDate to, OutputStream out) throws IOException {
+        Query query = new Query();
+        Criteria date = dateRange("date", from, to);
+        if (date != null) {
+            query.addCriteria(date);
+        }
+        query.with(Sort.by(Sort.Direction.ASC, "_id"));
+
+        long[] written = {0};
+        try (NdjsonWriter writer = new NdjsonWriter(out, AppointmentView.class)) {
+            appointmentViewService.forEachBatch(query, BATCH_SIZE, batch -> {
+                for (AppointmentView appointment : batch) {
+                    writer.write(appointment);
+                }
+                written[0] += batch.size();
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return written[0];
+    }
+
+    /**
+     * Writes the patients created from..to (inclusive, either end optional), without passwords.
+     *
+     * @return The number of patients written
+     */
+    public long exportPatients(LocalDate from, LocalDate to, OutputStream out) throws IOException {
+        return exportCreatedBetween(Patient.class, from, to, out);
+    }
+
+    /**
+     * Writes the doctors created from..to (inclusive, either end optional), without passwords.
+     *
+     * @return The number of doctors written
+     */
+    public long exportDoctors(LocalDate from, LocalDate to, OutputStream out) throws IOException {
+        return exportCreatedBetween(Doctor.class, from, to, out);
+    }
+
+    /**
+     * Rejects a range that ends before it starts.
+     */
+    public static void checkRange(LocalDate from, LocalDate to) {
+        if (from != null && to != null && to.isBefore(from)) {
+            throw new IllegalArgumentException("to must not be before from");
+        }
+    }
+
+    private long exportCreatedBetween(Class<?> type, LocalDate from, LocalDate to, OutputStream out) throws IOException {
+        // Ids are ObjectIds, which begin with their creation time, so the range is an _id range
+        Query query = new Query();
+        if (from != null || to != null) {
+            Criteria created = Criteria.where("_id");
+            if (from != null) {
+                created.gte(ObjectId.getSmallestWithDate(startOf(from)));
+            }
+            if (to != null) {
+                created.lt(ObjectId.getSmallestWithDate(startOf(to.plusDays(1))));
+            }
+            query.addCriteria(created);
+        }
+        query.with(Sort.by(Sort.Direction.ASC, "_id")).cursorBatchSize(BATCH_SIZE);
+        query.fields().exclude("password");
+
+        long written = 0;
+        try (NdjsonWriter writer = new NdjsonWriter(out, type);
+             CloseableIterator<?> documents = mongoTemplate.stream(query, type)) {
+            while (documents.hasNext()) {
+                writer.write(documents.next());
+                written++;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return written;
+    }
+
+    private static Criteria dateRange(String field, LocalDate from, LocalDate to) {
+        if (from == null && to == null) {
+            return null;
+        }
+        Criteria range = Criteria.where(field);
+        if (from != null) {
+            range.gte(from);
+        }
+        if (to != null) {
+            range.lte(to);
+        }
+        return range;
+    }
+
+    private static Date startOf(LocalDate date) {
+        return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    /**
+     * Writes one JSON document per line through a single buffered generator. Flushing is left to
+     * the generator's buffer rather than done after each document.
+     */
+    private class NdjsonWriter implements AutoCloseable {
+        private final JsonGenerator generator;
+        private final ObjectWriter writer;
+
+        NdjsonWriter(OutputStream out, Class<?> type) throws IOException {
+            this.generator = objectMapper.getFactory().createGenerator(out)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            this.writer = objectMapper.writerFor(type)
+                    .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE)
+                    .withRootValueSeparator("");
+        }
+
+        void write(Object value) {
+            try {
+                writer.writeValue(generator, value);
+                generator.writeRaw('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.pulmocare.service;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the in-memory caches of every server instance in step with writes made by any of them:
+ * the entity cache, the compiled schedules, the lab cohort index and the parsed report LRU.
+ *
+ * Tails a MongoDB change stream on the watched collections and publishes an {@link Invalidation}
+ * application event for each changed document; caches evict on it with an @EventListener. The
+ * stream's resume token is saved per node in change_stream_tokens, so a restarted node replays
+ * what it missed. If the missed changes are no longer in the oplog, the node clears its caches
+ * and starts from now.
+ *
+ * Change streams need a replica set. A single node will do: start mongod with --replSet rs0 and
+ * run rs.initiate() once. Against a standalone server the bus logs that and stays off, and the
+ * caches fall back to their TTL.
+ */
+@Service
+public class InvalidationBus {
+
+    private static final String TOKEN_COLLECTION = "change_stream_tokens";
+
+    // Server error codes: change streams unsupported, resume point gone from the oplog, stream unusable
+    private static final int NOT_A_REPLICA_SET = 40573;
+    private static final int HISTORY_LOST = 286;
+    private static final int FATAL_ERROR = 280;
+
+    private static final long RETRY_MS = 5000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
+    @Value("${invalidation.enabled:true}")
+    private boolean enabled;
+
+    @Value("${invalidation.collections:doctors,patients,appointments,lab_results,parsed_reports}")
+    private List<String> collections;
+
+    @Value("${invalidation.node-id:}")
+    private String nodeId;
+
+    @Value("${invalidation.token-save-interval-ms:1000}")
+    private long tokenSaveIntervalMillis;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private volatile boolean running;
+    private volatile long received;
+    private Thread thread;
+
+    /**
+     * A document of the given collection changed on some node; id is null when the whole
+     * collection may have changed (dropped, renamed, or changes were missed).
+     */
+    public static class Invalidation {
+        private final String collection;
+        private final String id;
+
+        public Invalidation(String collection, String id) {
+            this.collection = collection;
+            this.id = id;
+        }
+
+        public String getCollection() {
+            return collection;
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        if (nodeId == null || nodeId.isBlank()) {
+            nodeId = defaultNodeId();
+        }
+        running = true;
+        thread = new Thread(this::run, "invalidation-bus");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    private void run() {
+        BsonDocument token = loadToken();
+        long savedAt = System.currentTimeMillis();
+        while (running) {
+            List<Bson> pipeline = List.of(
+                    Aggregates.match(Filters.in("ns.coll", collections)),
+                    Aggregates.project(Projections.include("operationType", "ns", "documentKey")));
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = (token != null
+                    ? mongoTemplate.getDb().watch(pipeline).resumeAfter(token)
+                    : mongoTemplate.getDb().watch(pipeline))
+                    .maxAwaitTime(1, TimeUnit.SECONDS)
+                    .cursor()) {
+                System.out.println("Invalidation bus watching " + collections + (token != null ? " from saved position" : ""));
+                while (running) {
+                    ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change != null) {
+                        received++;
+                        publish(change);
+                    }
+                    // Advances on idle batches too, so a quiet node still resumes close to now
+                    BsonDocument latest = cursor.getResumeToken();
+                    if (latest != null) {
+                        token = latest;
+                        if (System.currentTimeMillis() - savedAt >= tokenSaveIntervalMillis) {
+                            saveToken(token);
+                            savedAt = System.currentTimeMillis();
+                        }
+                    }
+                }
+                if (token != null) {
+                    saveToken(token);
+                }
+            } catch (MongoException e) {
+                if (!running) {
+                    return;
+                }
+                if (e.getCode() == NOT_A_REPLICA_SET) {
+                    System.err.println("Invalidation bus off: MongoDB is not a replica set, caches rely on their TTL");
+                    return;
+                }
+                if (e.getCode() == HISTORY_LOST || e.getCode() == FATAL_ERROR) {
+                    System.err.println("Invalidation bus cannot resume (" + e.getMessage() + "), clearing caches");
+                    token = null;
+                    for (String collection : collections) {
+                        eventPublisher.publishEvent(new Invalidation(collection, null));
+                    }
+                    continue;
+                }
+                System.err.println("Invalidation bus interrupted, retrying: " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_MS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void publish(ChangeStreamDocument<Document> change) {
+        String collection = change.getNamespace() != null ? change.getNamespace().getCollectionName() : null;
+        if (collection == null) {
+            return;
+        }
+        BsonDocument key = change.getDocumentKey();
+        String id = key != null && key.containsKey("_id") ? idOf(key.get("_id")) : null;
+        eventPublisher.publishEvent(new Invalidation(collection, id));
+    }
+
+    private static String idOf(BsonValue value) {
+        if (value.isObjectId()) {
+            return value.asObjectId().getValue().toHexString();
+        }
+        return value.isString() ? value.asString().getValue() : value.toString();
+    }
+
+    private BsonDocument loadToken() {
+        try {
+            BsonDocument saved = tokens().find(Filters.eq("_id", nodeId)).first();
+            return saved != null && saved.isDocument("token") ? saved.getDocument("token") : null;
+        } catch (MongoException e) {
+            System.err.println("Could not read change stream position: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void saveToken(BsonDocument token) {
+        try {
+            tokens().withDocumentClass(Document.class).replaceOne(Filters.eq("_id", nodeId),
+                    new Document("_id", nodeId).append("token", token).append("updatedAt", new Date()),
+                    new ReplaceOptions().upsert(true));
+        } catch (MongoException e) {
+            System.err.println("Could not save change stream position: " + e.getMessage());
+        }
+    }
+
+    private MongoCollection<BsonDocument> tokens() {
+        return mongoTemplate.getDb().getCollection(TOKEN_COLLECTION, BsonDocument.class);
+    }
+
+    private String defaultNodeId() {
+        try {
+            return InetAddress.getLocalHost().getHostName() + ":" + serverPort;
+        } catch (UnknownHostException e) {
+            return "localhost:" + serverPort;
+        }
+    }
+}
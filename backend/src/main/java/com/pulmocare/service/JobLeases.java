@@ -0,0 +1,317 @@
+package com.pulmocare.service;
+
+import com.pulmocare.model.JobLease;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coordinates background jobs between server instances through leases in the job_leases collection.
+ *
+ * A lease is held until it expires or is released; its holder renews it while working. Taking over
+ * a lease (free, released or expired) increments its token, and work done under a lease checks the
+ * token with {@link #checkFence} before writing, so a holder that stalled past its expiry stops
+ * instead of racing the new one. Expiry is compared against each node's own clock, so clocks must
+ * agree to well within a TTL.
+ *
+ * On top of that, every node runs for the "leader" lease on a heartbeat; periodic jobs that
+ * should run once per cluster check {@link #leadership()} and skip their run when it is null.
+ */
+@Service
+public class JobLeases {
+
+    public static final String LEADER = "leader";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Value("${jobs.node-id:}")
+    private String nodeId;
+
+    @Value("${jobs.leader.ttl-ms:15000}")
+    private long leaderTtlMillis;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    // Unique per process, so a restarted node never mistakes its predecessor's lease for its own
+    private final String instance = UUID.randomUUID().toString().substring(0, 8);
+
+    private volatile Lease leader;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * A lease held by this node, as of its last acquisition or renewal.
+     */
+    public static class Lease {
+        private final String name;
+        private final long token;
+        private final long deadline; // Local time by which it must be renewed, measured from before the write
+
+        Lease(String name, long token, long deadline) {
+            this.name = name;
+            this.token = token;
+            this.deadline = deadline;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getToken() {
+            return token;
+        }
+
+        public boolean isLive() {
+            return System.currentTimeMillis() < deadline;
+        }
+    }
+
+    /**
+     * Acquires the named lease for ttlMillis, or renews it if this node already holds it.
+     *
+     * @return the lease, or null if another node holds it
+     */
+    public Lease tryAcquire(String name, long ttlMillis) {
+        long started = System.currentTimeMillis();
+        Instant now = Instant.ofEpochMilli(started);
+        Instant expiresAt = now.plusMillis(ttlMillis);
+        Stats counters = statsOf(name);
+
+        JobLease renewed = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(name).and("owner").is(owner())),
+                Update.update("expiresAt", expiresAt),
+                FindAndModifyOptions.options().returnNew(true),
+                JobLease.class);
+        if (renewed != null) {
+            counters.renewals.incrementAndGet();
+            return new Lease(name, renewed.getToken(), started + ttlMillis);
+        }
+
+        JobLease previous;
+        try {
+            // Matches only a free or expired lease; if it is held, the upsert collides on _id
+            previous = mongoTemplate.findAndModify(
+                    Query.query(Criteria.where("_id").is(name).orOperator(
+                            Criteria.where("owner").is(null),
+                            Criteria.where("expiresAt").lt(now))),
+                    new Update()
+                            .set("owner", owner())
+                            .set("acquiredAt", now)
+                            .set("expiresAt", expiresAt)
+                            .unset("releasedAt")
+                            .inc("token", 1),
+                    FindAndModifyOptions.options().upsert(true).returnNew(false),
+                    JobLease.class);
+        } catch (DuplicateKeyException e) {
+            return null;
+        }
+
+        counters.acquisitions.incrementAndGet();
+        if (previous == null) {
+            return new Lease(name, 1, started + ttlMillis);
+        }
+        // How long the job went without a holder: since release, or since the old holder's expiry
+        Instant vacantSince = previous.getOwner() == null ? previous.getReleasedAt() : previous.getExpiresAt();
+        if (vacantSince != null) {
+            long handover = Math.max(0, started - vacantSince.toEpochMilli());
+            counters.handovers.incrementAndGet();
+            counters.handoverMillis.addAndGet(handover);
+            counters.lastHandoverMillis = handover;
+        }
+        System.out.println("Acquired lease " + name + " (token " + (previous.getToken() + 1) + ")"
+                + (previous.getOwner() != null ? " from expired holder " + previous.getOwner() : ""));
+        return new Lease(name, previous.getToken() + 1, started + ttlMillis);
+    }
+
+    /**
+     * Extends a lease this node holds.
+     *
+     * @return the renewed lease, or null if it was lost to another node
+     */
+    public Lease renew(Lease lease, long ttlMillis) {
+        long started = System.currentTimeMillis();
+        Query held = Query.query(Criteria.where("_id").is(lease.name).and("owner").is(owner()).and("token").is(lease.token));
+        if (mongoTemplate.updateFirst(held, Update.update("expiresAt", Instant.ofEpochMilli(started + ttlMillis)),
+                JobLease.class).getMatchedCount() == 0) {
+            statsOf(lease.name).losses.incrementAndGet();
+            return null;
+        }
+        statsOf(lease.name).renewals.incrementAndGet();
+        return new Lease(lease.name, lease.token, started + ttlMillis);
+    }
+
+    /**
+     * Gives a lease up so another node can take it without waiting for it to expire.
+     */
+    public void release(Lease lease) {
+        Query held = Query.query(Criteria.where("_id").is(lease.name).and("owner").is(owner()).and("token").is(lease.token));
+        Instant now = Instant.now();
+        mongoTemplate.updateFirst(held, new Update().unset("owner").set("expiresAt", now).set("releasedAt", now),
+                JobLease.class);
+    }
+
+    /**
+     * Releases a one-off lease (named after a single job) and forgets it, so such leases do not
+     * pile up in job_leases and the counters.
+     */
+    public void discard(Lease lease) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(lease.name).and("owner").is(owner()).and("token").is(lease.token)),
+                JobLease.class);
+        stats.remove(lease.name);
+    }
+
+    /**
+     * Throws unless the lease is still this node's under the same token. Call it right before
+     * writing on the lease's behalf.
+     */
+    public void checkFence(Lease lease) {
+        if (!lease.isLive() || !mongoTemplate.exists(Query.query(Criteria.where("_id").is(lease.name)
+                .and("owner").is(owner()).and("token").is(lease.token)
+                .and("expiresAt").gt(Instant.now())), JobLease.class)) {
+            statsOf(lease.name).losses.incrementAndGet();
+            throw new IllegalStateException("Lease " + lease.name + " (token " + lease.token + ") is no longer held");
+        }
+    }
+
+    /**
+     * True if some node holds the named lease and has not let it expire.
+     */
+    public boolean isHeld(String name) {
+        return mongoTemplate.exists(Query.query(Criteria.where("_id").is(name)
+                .and("owner").ne(null).and("expiresAt").gt(Instant.now())), JobLease.class);
+    }
+
+    /**
+     * The leader lease if this node currently holds it, otherwise null.
+     */
+    public Lease leadership() {
+        Lease current = leader;
+        return current != null && current.isLive() ? current : null;
+    }
+
+    public boolean isLeader() {
+        return leadership() != null;
+    }
+
+    @Scheduled(fixedDelayString = "${jobs.leader.renew-interval-ms:5000}")
+    public void heartbeat() {
+        try {
+            boolean wasLeader = isLeader();
+            leader = tryAcquire(LEADER, leaderTtlMillis);
+            if (wasLeader && leader == null) {
+                System.err.println("Lost leadership to another node");
+            } else if (!wasLeader && leader != null) {
+                System.out.println("Node " + owner() + " is now the job leader");
+            }
+        } catch (RuntimeException e) {
+            // Leadership lapses on its own when the lease deadline passes
+            System.err.println("Could not renew job leadership: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void stepDown() {
+        Lease current = leader;
+        leader = null;
+        if (current != null) {
+            try {
+                release(current);
+            } catch (RuntimeException e) {
+                System.err.println("Could not release job leadership: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * This node's identity and leadership, its counters per lease, and every lease's current holder.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("node", owner());
+        snapshot.put("leader", isLeader());
+
+        Map<String, Object> local = new LinkedHashMap<>();
+        stats.forEach((name, counters) -> local.put(name, counters.snapshot()));
+        snapshot.put("counters", local);
+
+        List<Map<String, Object>> holders = new ArrayList<>();
+        for (JobLease lease : mongoTemplate.findAll(JobLease.class)) {
+            Map<String, Object> holder = new LinkedHashMap<>();
+            holder.put("name", lease.getId());
+            holder.put("owner", lease.getOwner());
+            holder.put("token", lease.getToken());
+            holder.put("acquiredAt", lease.getAcquiredAt());
+            holder.put("expiresAt", lease.getExpiresAt());
+            holder.put("ownedByThisNode", owner().equals(lease.getOwner()));
+            holders.add(holder);
+        }
+        snapshot.put("leases", holders);
+        return snapshot;
+    }
+
+    private Stats statsOf(String name) {
+        return stats.computeIfAbsent(name, key -> new Stats());
+    }
+
+    /**
+     * This node's id: jobs.node-id, or host:port. Unlike lease owners, it stays the same when
+     * the node restarts.
+     */
+    public String getNodeId() {
+        if (nodeId == null || nodeId.isBlank()) {
+            try {
+                nodeId = InetAddress.getLocalHost().getHostName() + ":" + serverPort;
+            } catch (UnknownHostException e) {
+                nodeId = "localhost:" + serverPort;
+            }
+        }
+        return nodeId;
+    }
+
+    private String owner() {
+        return getNodeId() + "#" + instance;
+    }
+
+    private static class Stats {
+        private final AtomicLong acquisitions = new AtomicLong();
+        private final AtomicLong renewals = new AtomicLong();
+        private final AtomicLong losses = new AtomicLong();
+        private final AtomicLong handovers = new AtomicLong();
+        private final AtomicLong handoverMillis = new AtomicLong();
+        private volatile long lastHandoverMillis;
+        private final long since = System.currentTimeMillis();
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("since", new Date(since));
+            snapshot.put("acquisitions", acquisitions.get());
+            snapshot.put("renewals", renewals.get());
+            snapshot.put("losses", losses.get());
+            snapshot.put("handovers", handovers.get());
+            snapshot.put("lastHandoverMs", lastHandoverMillis);
+            snapshot.put("avgHandoverMs", handovers.get() > 0 ? handoverMillis.get() / handovers.get() : 0);
+            return snapshot;
+        }
+    }
+}
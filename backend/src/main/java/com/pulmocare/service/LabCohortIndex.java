@@ -0,0 +1,413 @@
+package com.pulmocare.service;
+
+import com.pulmocare.model.LabResult;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+/**
+ * In-memory columnar copy of the numeric lab results, for cohort questions such as
+ * "which of these patients had EOS_ABS above 300 since January".
+ *
+ * Each analyte is stored as parallel primitive columns (value, patient, time) so a filter is
+ * a tight loop over arrays rather than a walk over documents. Patient IDs are dictionary
+ * encoded to ints. Large columns are scanned in chunks on the common fork-join pool.
+ * The index is loaded from lab_results at startup and updated as reports are ingested, on this
+ * node directly and on the others through the {@link InvalidationBus}.
+ */
+@Service
+public class LabCohortIndex {
+
+    private static final int INITIAL_CAPACITY = 256;
+    // Below this many rows a sequential scan is faster than forking
+    private static final int PARALLEL_SCAN_ROWS = 32_768;
+    private static final int SCAN_CHUNK_ROWS = 8_192;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private LabFlagEngine labFlagEngine;
+
+    private final Map<String, Column> columns = new ConcurrentHashMap<>();
+    private final Map<String, Integer> patientCodes = new HashMap<>();
+    private final List<String> patientIds = new ArrayList<>();
+
+    private volatile boolean loaded;
+
+    /**
+     * Loads every stored result once the application has started.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        long started = System.nanoTime();
+        int rows = 0;
+        try (CloseableIterator<LabResult> results = mongoTemplate.stream(new Query(), LabResult.class)) {
+            while (results.hasNext()) {
+                if (add(results.next())) {
+                    rows++;
+                }
+            }
+            loaded = true;
+            System.out.println("Lab cohort index loaded " + rows + " results for " + columns.size() + " analytes in "
+                    + (System.nanoTime() - started) / 1_000_000 + " ms");
+        } catch (RuntimeException e) {
+            System.err.println("Could not load lab cohort index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Applies a change to lab_results made on this node or another: the changed result is read
+     * back and re-indexed, or dropped if it is gone or no longer numeric. When changes were
+     * missed the whole index is reloaded.
+     */
+    @EventListener
+    public void onInvalidation(InvalidationBus.Invalidation invalidation) {
+        if (!mongoTemplate.getCollectionName(LabResult.class).equals(invalidation.getCollection())) {
+            return;
+        }
+        if (invalidation.getId() == null) {
+            loaded = false;
+            columns.clear();
+            load();
+            return;
+        }
+        LabResult result = mongoTemplate.findById(invalidation.getId(), LabResult.class);
+        if (result == null || !add(result)) {
+            remove(invalidation.getId());
+        }
+    }
+
+    /**
+     * Drops one result, by id.
+     */
+    public void remove(String resultId) {
+        for (Column column : columns.values()) {
+            column.remove(resultId);
+        }
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public void addAll(Collection<LabResult> results) {
+        for (LabResult result : results) {
+            add(result);
+        }
+    }
+
+    /**
+     * Adds or replaces one result. Results without a comparable numeric value are skipped.
+     *
+     * @return true if the result was indexed
+     */
+    public boolean add(LabResult result) {
+        Double value = comparableValue(result);
+        if (value == null || result.getTakenAt() == null || result.getPatientId() == null) {
+            return false;
+        }
+        Column column = columns.computeIfAbsent(result.getAnalyte(), a -> new Column());
+        column.upsert(result.getId(), patientCode(result.getPatientId()), result.getTakenAt().toEpochMilli(), value);
+        return true;
+    }
+
+    /**
+     * Drops every result of a patient, when the patient is deleted.
+     */
+    public void removePatient(String patientId) {
+        Integer code;
+        synchronized (this) {
+            code = patientCodes.get(patientId);
+        }
+        if (code == null) {
+            return;
+        }
+        for (Column column : columns.values()) {
+            column.removePatient(code);
+        }
+    }
+
+    /**
+     * Finds the results of one analyte within the given bounds and summarizes them per patient.
+     *
+     * @param above only values strictly greater than this, may be null
+     * @param below only values strictly less than this, may be null
+     * @param fromMillis earliest result time (inclusive), may be null
+     * @param toMillis latest result time (inclusive), may be null
+     * @param patients restrict to these patient IDs, or null for all patients
+     */
+    public Map<String, Object> query(String analyte, Double above, Double below, Long fromMillis, Long toMillis,
+                                     Set<String> patients) {
+        long started = System.nanoTime();
+        Column column = columns.get(analyte);
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("analyte", analyte);
+        LabFlagEngine.Analyte catalogAnalyte = labFlagEngine.getAnalyte(analyte);
+        response.put("unit", catalogAnalyte != null ? catalogAnalyte.getUnit() : null);
+
+        Scan scan = column == null ? new Scan() : column.scan(
+                above != null ? above : Double.NEGATIVE_INFINITY,
+                below != null ? below : Double.POSITIVE_INFINITY,
+                fromMillis != null ? fromMillis : Long.MIN_VALUE,
+                toMillis != null ? toMillis : Long.MAX_VALUE,
+                patientMask(patients));
+
+        List<Map<String, Object>> matches = new ArrayList<>();
+        double sum = 0;
+        long count = 0;
+        for (Map.Entry<Integer, PatientMatch> entry : scan.byPatient.entrySet()) {
+            PatientMatch match = entry.getValue();
+            sum += match.sum;
+            count += match.count;
+
+            Map<String, Object> patient = new LinkedHashMap<>();
+            patient.put("patientId", patientId(entry.getKey()));
+            patient.put("matches", match.count);
+            patient.put("min", match.min);
+            patient.put("max", match.max);
+            patient.put("latestValue", match.latestValue);
+            patient.put("latestAt", new Date(match.latestTime));
+            matches.add(patient);
+        }
+        matches.sort(Comparator.comparing((Map<String, Object> m) -> (Date) m.get("latestAt")).reversed());
+
+        response.put("matchedResults", count);
+        response.put("matchedPatients", matches.size());
+        response.put("mean", count > 0 ? sum / count : null);
+        response.put("scannedRows", scan.scanned);
+        response.put("indexLoaded", loaded);
+        response.put("queryMs", (System.nanoTime() - started) / 1_000_000.0);
+        response.put("patients", matches);
+        return response;
+    }
+
+    /**
+     * Catalog analytes are only comparable in their canonical unit; results whose unit could
+     * not be converted are left out rather than mixed in with the wrong scale.
+     */
+    private Double comparableValue(LabResult result) {
+        if (result.getAnalyte() == null) {
+            return null;
+        }
+        if (labFlagEngine.getAnalyte(result.getAnalyte()) != null) {
+            return result.getCanonicalValue();
+        }
+        return result.getValue();
+    }
+
+    private synchronized int patientCode(String patientId) {
+        Integer code = patientCodes.get(patientId);
+        if (code == null) {
+            code = patientIds.size();
+            patientIds.add(patientId);
+            patientCodes.put(patientId, code);
+        }
+        return code;
+    }
+
+    private synchronized String patientId(int code) {
+        return patientIds.get(code);
+    }
+
+    /**
+     * Bitmap over patient codes, or null when every patient is included.
+     */
+    private synchronized boolean[] patientMask(Set<String> patients) {
+        if (patients == null) {
+            return null;
+        }
+        boolean[] mask = new boolean[patientIds.size()];
+        for (String patientId : patients) {
+            Integer code = patientCodes.get(patientId);
+            if (code != null) {
+                mask[code] = true;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Parallel value, patient and time columns for one analyte.
+     */
+    private static class Column {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, Integer> rowsById = new HashMap<>();
+        private double[] values = new double[INITIAL_CAPACITY];
+        private int[] patients = new int[INITIAL_CAPACITY];
+        private long[] times = new long[INITIAL_CAPACITY];
+        private String[] ids = new String[INITIAL_CAPACITY];
+        private int size;
+
+        void upsert(String id, int patient, long time, double value) {
+            lock.writeLock().lock();
+            try {
+                Integer row = id != null ? rowsById.get(id) : null;
+                if (row == null) {
+                    if (size == values.length) {
+                        int capacity = size * 2;
+                        values = Arrays.copyOf(values, capacity);
+                        patients = Arrays.copyOf(patients, capacity);
+                        times = Arrays.copyOf(times, capacity);
+                        ids = Arrays.copyOf(ids, capacity);
+                    }
+                    row = size++;
+                    if (id != null) {
+                        rowsById.put(id, row);
+                    }
+                    ids[row] = id;
+                }
+                values[row] = value;
+                patients[row] = patient;
+                times[row] = time;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(String id) {
+            lock.writeLock().lock();
+            try {
+                Integer row = rowsById.get(id);
+                if (row != null) {
+                    removeRow(row);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void removePatient(int patient) {
+            lock.writeLock().lock();
+            try {
+                // Backwards, since each removal moves the last row into the gap
+                for (int row = size - 1; row >= 0; row--) {
+                    if (patients[row] == patient) {
+                        removeRow(row);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void removeRow(int row) {
+            if (ids[row] != null) {
+                rowsById.remove(ids[row]);
+            }
+            int last = --size;
+            if (row != last) {
+                values[row] = values[last];
+                patients[row] = patients[last];
+                times[row] = times[last];
+                ids[row] = ids[last];
+                if (ids[row] != null) {
+                    rowsById.put(ids[row], row);
+                }
+            }
+            ids[last] = null;
+        }
+
+        Scan scan(double above, double below, long from, long to, boolean[] patientMask) {
+            lock.readLock().lock();
+            try {
+                int rows = size;
+                if (rows < PARALLEL_SCAN_ROWS) {
+                    return scanRange(0, rows, above, below, from, to, patientMask);
+                }
+                int chunks = (rows + SCAN_CHUNK_ROWS - 1) / SCAN_CHUNK_ROWS;
+                return IntStream.range(0, chunks).parallel()
+                        .mapToObj(chunk -> scanRange(chunk * SCAN_CHUNK_ROWS, Math.min(rows, (chunk + 1) * SCAN_CHUNK_ROWS),
+                                above, below, from, to, patientMask))
+                        .reduce(new Scan(), Scan::merge);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private Scan scanRange(int start, int end, double above, double below, long from, long to, boolean[] patientMask) {
+            Scan scan = new Scan();
+            scan.scanned = end - start;
+            for (int row = start; row < end; row++) {
+                double value = values[row];
+                long time = times[row];
+                if (value <= above || value >= below || time < from || time > to) {
+                    continue;
+                }
+                int patient = patients[row];
+                if (patientMask != null && (patient >= patientMask.length || !patientMask[patient])) {
+                    continue;
+                }
+                scan.byPatient.computeIfAbsent(patient, p -> new PatientMatch()).add(value, time);
+            }
+            return scan;
+        }
+    }
+
+    /**
+     * Partial result of scanning a range of rows.
+     */
+    private static class Scan {
+        private final Map<Integer, PatientMatch> byPatient = new HashMap<>();
+        private long scanned;
+
+        Scan merge(Scan other) {
+            Scan merged = new Scan();
+            merged.scanned = scanned + other.scanned;
+            merged.byPatient.putAll(byPatient);
+            other.byPatient.forEach((patient, match) -> merged.byPatient.merge(patient, match, PatientMatch::merge));
+            return merged;
+        }
+    }
+
+    private static class PatientMatch {
+        private long count;
+        private double sum;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private long latestTime = Long.MIN_VALUE;
+        private double latestValue;
+
+        void add(double value, long time) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            if (time > latestTime) {
+                latestTime = time;
+                latestValue = value;
+            }
+        }
+
+        PatientMatch merge(PatientMatch other) {
+            PatientMatch merged = new PatientMatch();
+            merged.count = count + other.count;
+            merged.sum = sum + other.sum;
+            merged.min = Math.min(min, other.min);
+            merged.max = Math.max(max, other.max);
+            PatientMatch latest = latestTime >= other.latestTime ? this : other;
+            merged.latestTime = latest.latestTime;
+            merged.latestValue = latest.latestValue;
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rule engine that decides whether a lab result is "Normal" or "Abnormal".
+ *
+ * Tests are resolved to a catalog analyte through an alias trie, reference ranges are
+ * parsed once (catalog ranges at load time, report ranges on first sight) and every
+ * decision carries a human readable reason. The catalog lives in
+ * lab-reference-catalog.json and is versioned so stored flags can be re-evaluated
+ * when the rules change.
+ */
+@Service
+public class LabFlagEngine {
+
+    public static final String NORMAL = "Normal";
+    public static final String ABNORMAL = "Abnormal";
+
+    private static final String CATALOG_RESOURCE = "lab-reference-catalog.json";
+    private static final int MAX_CACHED_RANGES = 4096;
+
+    private static final Pattern NUMBER = Pattern.compile("-?\\d*\\.?\\d+");
+    private static final Pattern BETWEEN = Pattern.compile("(-?\\d*\\.?\\d+)\\s*(?:-|–|to)\\s*(-?\\d*\\.?\\d+)");
+    private static final Pattern UPPER = Pattern.compile("(<=|≤|<|up to|upto|less than)\\s*(\\d*\\.?\\d+)");
+    private static final Pattern LOWER = Pattern.compile("(>=|≥|>|more than|greater than)\\s*(\\d*\\.?\\d+)");
+
+    private static final Set<String> NEGATIVE_TERMS = Set.of("negative", "normal", "clear", "absent", "nil");
+    private static final Set<String> POSITIVE_TERMS = Set.of("positive", "abnormal", "present", "detected");
+    private static final Set<String> TRACE_TERMS = Set.of("trace", "few", "rare");
+    private static final Set<String> TRACE_NORMAL_TERMS = Set.of("trace", "few", "rare", "negative", "normal");
+    private static final Set<String> APPEARANCE_TERMS = Set.of(
+            "yellow", "pale yellow", "amber", "straw", "clear", "cloudy", "turbid", "hazy",
+            "colorless", "dark yellow", "slightly turbid", "transparent");
+
+    // Sentinel for report ranges we could not interpret (ConcurrentHashMap does not accept nulls)
+    // Words that make a name a different test from the analyte it mentions: "Mean Corpuscular
+    // Hemoglobin", "LDL/HDL Ratio", "Vitamin K", "Absolute Neutrophil Count", "Urine Potassium"
+    private static final Set<String> DERIVED_TERMS = Set.of(
+            "ratio", "index", "mean", "corpuscular", "vitamin", "absolute", "distribution", "width",
+            "non", "urine", "urinary", "csf", "fluid", "clearance", "excretion", "antibody", "antibodies");
+
+    private static final Range UNPARSEABLE = new Range(Double.NaN, Double.NaN, false, false, null, null, null);
+
+    private final String catalogVersion;
+    private final AliasTrie aliases = new AliasTrie();
+    private final Map<String, Analyte> analytesByCode = new HashMap<>();
+    private final Map<String, Range> reportRanges = new ConcurrentHashMap<>();
+
+    public LabFlagEngine() {
+        try (InputStream in = new ClassPathResource(CATALOG_RESOURCE).getInputStream()) {
+            JsonNode catalog = new ObjectMapper().readTree(in);
+            this.catalogVersion = catalog.path("version").asText("unversioned");
+            for (JsonNode node : catalog.path("analytes")) {
+                Analyte analyte = Analyte.fromJson(node);
+                analytesByCode.put(analyte.getCode(), analyte);
+                aliases.put(normalizeName(analyte.getName()), analyte);
+                for (JsonNode alias : node.path("aliases")) {
+                    aliases.put(normalizeName(alias.asText()), analyte);
+                }
+            }
+            System.out.println("Loaded lab reference catalog " + catalogVersion + " with "
+                    + analytesByCode.size() + " analytes");
+        } catch (IOException e) {
+            throw new RuntimeException("Could not load lab reference catalog: " + e.getMessage(), e);
+        }
+    }
+
+    public String getCatalogVersion() {
+        return catalogVersion;
+    }
+
+    /**
+     * Resolve a free-form test name (e.g. "Serum Triglycerides", "WBC's") to a catalog analyte.
+     *
+     * @return the analyte, or null if the name does not contain any known alias or names a test
+     *         derived from it ("MCH: Mean Corpuscular Hemoglobin", "Cholesterol/HDL Ratio")
+     */
+    public Analyte resolve(String testName) {
+        if (testName == null || testName.isEmpty()) {
+            return null;
+        }
+        return aliases.match(normalizeName(testName));
+    }
+
+    public Analyte getAnalyte(String code) {
+        return analytesByCode.get(code);
+    }
+
+    /**
+     * Decide whether a single result is normal.
+     *
+     * The range printed on the report takes precedence since it is what the lab used;
+     * the catalog range for the patient's sex and age is the fallback when the report
+     * has none.
+     *
+     * @param sex patient sex as printed on the report ("Male", "F", ...), may be null
+     * @param age patient age in years, may be null
+     */
+    public Decision evaluate(String testName, String resultValue, String unit, String normalRange,
+                             String sex, Integer age) {
+        Analyte analyte = resolve(testName);
+        String analyteCode = analyte != null ? analyte.getCode() : null;
+
+        if (resultValue == null || resultValue.trim().isEmpty()) {
+            return new Decision(NORMAL, "No result value reported", analyteCode);
+        }
+
+        String result = resultValue.trim().toLowerCase(Locale.ROOT);
+        String range = normalRange != null ? normalRange.trim().toLowerCase(Locale.ROOT) : "";
+
+        if (!range.isEmpty()) {
+            Decision qualitative = evaluateQualitative(result, range, analyteCode);
+            if (qualitative != null) {
+                return qualitative;
+            }
+        }
+
+        Double value = parseNumber(result);
+        if (value == null) {
+            return new Decision(NORMAL, "Result '" + resultValue + "' is not numeric", analyteCode);
+        }
+
+        if (!range.isEmpty()) {
+            Range reportRange = parseReportRange(range);
+            if (reportRange != null) {
+                double compared = value;
+                String scaling = "";
+                if (analyte != null && analyte.isAutoScale()) {
+                    compared = autoScale(value, reportRange);
+                    if (compared != value) {
+                        scaling = " (scaled from " + format(value) + ")";
+                    }
+                }
+                return compare(compared, scaling, reportRange, "report range", analyteCode);
+            }
+            if (analyte == null) {
+                return new Decision(ABNORMAL, "Could not interpret reference range '" + normalRange + "'", null);
+            }
+        }
+
+        if (analyte == null) {
+            return new Decision(NORMAL, "No reference range available", null);
+        }
+
+        Range catalogRange = analyte.rangeFor(normalizeSex(sex), age);
+        if (catalogRange == null) {
+            return new Decision(NORMAL, "No catalog range for " + analyte.getName(), analyteCode);
+        }
+
+        Double factor = analyte.conversionFactor(unit);
+        double compared;
+        String scaling = "";
+        if (factor != null) {
+            compared = value * factor;
+            if (factor != 1.0) {
+                scaling = " (converted from " + format(value) + " " + unit + ")";
+            }
+        } else if (analyte.isAutoScale()) {
+            compared = autoScale(value, catalogRange);
+            if (compared != value) {
+                scaling = " (scaled from " + format(value) + ")";
+            }
+        } else {
+            return new Decision(NORMAL, "Unit '" + unit + "' cannot be converted to " + analyte.getUnit(), analyteCode);
+        }
+        return compare(compared, " " + analyte.getUnit() + scaling, catalogRange,
+                "catalog " + catalogVersion + " range", analyteCode);
+    }
+
+    private Decision evaluateQualitative(String result, String range, String analyteCode) {
+        if (NEGATIVE_TERMS.contains(result) && containsAny(range, NEGATIVE_TERMS)) {
+            return new Decision(NORMAL, "Qualitative result '" + result + "' matches expected '" + range + "'", analyteCode);
+        }
+        if (POSITIVE_TERMS.contains(result)) {
+            boolean expected = containsAny(range, POSITIVE_TERMS);
+            return new Decision(expected ? NORMAL : ABNORMAL,
+                    "Qualitative result '" + result + "' " + (expected ? "matches" : "differs from")
+                            + " expected '" + range + "'", analyteCode);
+        }
+        if (TRACE_TERMS.contains(result)) {
+            boolean expected = containsAny(range, TRACE_NORMAL_TERMS);
+            return new Decision(expected ? NORMAL : ABNORMAL,
+                    "Trace result '" + result + "' " + (expected ? "is within" : "is borderline against")
+                            + " expected '" + range + "'", analyteCode);
+        }
+        if (APPEARANCE_TERMS.contains(result)) {
+            // Appearance descriptors are only informative, they never raise a flag on their own
+            return new Decision(NORMAL, "Appearance '" + result + "' is descriptive", analyteCode);
+        }
+        return null;
+    }
+
+    private Decision compare(double value, String valueSuffix, Range range, String source, String analyteCode) {
+        String described = format(value) + valueSuffix;
+        if (range.contains(value)) {
+            return new Decision(NORMAL, described + " is within " + source + " " + range, analyteCode);
+        }
+        String direction = range.isBelow(value) ? "below" : "above";
+        return new Decision(ABNORMAL, described + " is " + direction + " " + source + " " + range, analyteCode);
+    }
+
+    /**
+     * Reports often print counts in cells/uL against a range in thousands or millions
+     * (WBC 7500 vs 4.0-11.0). Scale by 1000 until the value is in the same magnitude.
+     */
+    private double autoScale(double value, Range range) {
+        double upper = Double.isInfinite(range.high) ? range.low : range.high;
+        if (upper <= 0) {
+            return value;
+        }
+        double scaled = value;
+        while (scaled > upper * 100) {
+            scaled /= 1000.0;
+        }
+        return scaled;
+    }
+
+    private Range parseReportRange(String range) {
+        Range cached = reportRanges.get(range);
+        if (cached == null) {
+            Range parsed = Range.parse(range);
+            cached = parsed != null ? parsed : UNPARSEABLE;
+            if (reportRanges.size() < MAX_CACHED_RANGES) {
+                reportRanges.put(range, cached);
+            }
+        }
+        return cached == UNPARSEABLE ? null : cached;
+    }
+
+    static Double parseNumber(String text) {
+        Matcher matcher = NUMBER.matcher(text.replace(",", ""));
+        if (!matcher.find()) {
+            return null;
+        }
+        try {
+            return Double.parseDouble(matcher.group());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse an age as printed on a report ("45", "45 Years", "6 months") into whole years.
+     */
+    public static Integer parseAge(String text) {
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        Double number = parseNumber(text);
+        if (number == null) {
+            return null;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        if (lower.contains("month") || lower.contains("week") || lower.contains("day")) {
+            return 0;
+        }
+        return number.intValue();
+    }
+
+    static String normalizeSex(String sex) {
+        if (sex == null) {
+            return null;
+        }
+        String lower = sex.trim().toLowerCase(Locale.ROOT);
+        if (lower.startsWith("m")) {
+            return "M";
+        }
+        if (lower.startsWith("f") || lower.startsWith("w")) {
+            return "F";
+        }
+        return null;
+    }
+
+    /**
+     * Lowercase, drop apostrophes and collapse any run of non alphanumerics to a single space,
+     * so "WBC's", "wbcs" and "W.B.C.s" resolve the same way.
+     */
+    static String normalizeName(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = Character.toLowerCase(name.charAt(i));
+            if (c == '\'' || c == '’' || c == '.') {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (pendingSpace && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                pendingSpace = false;
+                sb.append(c);
+            } else {
+                pendingSpace = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    static String normalizeUnit(String unit) {
+        if (unit == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(unit.length() + 4);
+        for (int i = 0; i < unit.length(); i++) {
+            char c = Character.toLowerCase(unit.charAt(i));
+            if (Character.isWhitespace(c)) {
+                continue;
+            }
+            switch (c) {
+                case 'µ':
+                case 'μ':
+                    sb.append('u');
+                    break;
+                case '³':
+                    sb.append("^3");
+                    break;
+                case '⁶':
+                    sb.append("^6");
+                    break;
+                case '⁹':
+                    sb.append("^9");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        String normalized = sb.toString();
+        if (normalized.startsWith("x10")) {
+            normalized = normalized.substring(1);
+        }
+        return normalized.replace("10e", "10^")
+                .replace("cumm", "ul")
+                .replace("mm^3", "ul")
+                .replace("mm3", "ul")
+                .replace("mcl", "ul");
+    }
+
+    private static boolean containsAny(String text, Set<String> terms) {
+        for (String term : terms) {
+            if (text.contains(term)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String format(double value) {
+        return BigDecimal.valueOf(value).round(MathContext.DECIMAL32).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Outcome of a flag evaluation together with the reason it was reached.
+     */
+    public static class Decision {
+        private final String flag;
+        private final String reason;
+        private final String analyteCode;
+
+        public Decision(String flag, String reason, String analyteCode) {
+            this.flag = flag;
+            this.reason = reason;
+            this.analyteCode = analyteCode;
+        }
+
+        public String getFlag() {
+            return flag;
+        }
+
+        public boolean isNormal() {
+            return NORMAL.equals(flag);
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public String getAnalyteCode() {
+            return analyteCode;
+        }
+    }
+
+    /**
+     * A catalog test with its canonical unit, unit conversions and reference ranges.
+     */
+    public static class Analyte {
+        private final String code;
+        private final String name;
+        private final String unit;
+        private final boolean autoScale;
+        private final Map<String, Double> conversions;
+        private final List<Range> ranges;
+
+        Analyte(String code, String name, String unit, boolean autoScale,
+                Map<String, Double> conversions, List<Range> ranges) {
+            this.code = code;
+            this.name = name;
+            this.unit = unit;
+            this.autoScale = autoScale;
+            this.conversions = conversions;
+            this.ranges = ranges;
+        }
+
+        static Analyte fromJson(JsonNode node) {
+            Map<String, Double> conversions = new HashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.path("conversions").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> entry = fields.next();
+                conversions.put(normalizeUnit(entry.getKey()), entry.getValue().asDouble());
+            }
+            List<Range> ranges = new ArrayList<>();
+            for (JsonNode range : node.path("ranges")) {
+                ranges.add(Range.fromJson(range));
+            }
+            return new Analyte(node.path("code").asText(), node.path("name").asText(),
+                    node.path("unit").asText(), node.path("autoScale").asBoolean(false),
+                    Collections.unmodifiableMap(conversions), Collections.unmodifiableList(ranges));
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUnit() {
+            return unit;
+        }
+
+        public boolean isAutoScale() {
+            return autoScale;
+        }
+
+        /**
+         * Factor that converts a value in the given unit to the canonical unit,
+         * or null if the unit is unknown. A missing unit is taken as canonical.
+         */
+        public Double conversionFactor(String fromUnit) {
+            String normalized = normalizeUnit(fromUnit);
+            if (normalized.isEmpty() || normalized.equals(normalizeUnit(unit))) {
+                return 1.0;
+            }
+            return conversions.get(normalized);
+        }
+
+        /**
+         * First catalog range matching the patient; ranges are ordered most specific first.
+         */
+        Range rangeFor(String sex, Integer age) {
+            for (Range range : ranges) {
+                if (range.appliesTo(sex, age)) {
+                    return range;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A reference interval. Bounds are inclusive for "min-max" ranges and strict for
+     * "< max" / "> min" ranges, matching how labs print them.
+     */
+    static class Range {
+        final double low;
+        final double high;
+        final boolean lowInclusive;
+        final boolean highInclusive;
+        final String sex;
+        final Integer minAge;
+        final Integer maxAge;
+
+        Range(double low, double high, boolean lowInclusive, boolean highInclusive,
+              String sex, Integer minAge, Integer maxAge) {
+            this.low = low;
+            this.high = high;
+            this.lowInclusive = lowInclusive;
+            this.highInclusive = highInclusive;
+            this.sex = sex;
+            this.minAge = minAge;
+            this.maxAge = maxAge;
+        }
+
+        static Range fromJson(JsonNode node) {
+            String sex = node.hasNonNull("sex") ? node.get("sex").asText() : null;
+            Integer minAge = node.hasNonNull("minAge") ? node.get("minAge").asInt() : null;
+            Integer maxAge = node.hasNonNull("maxAge") ? node.get("maxAge").asInt() : null;
+            if (node.has("below")) {
+                return new Range(Double.NEGATIVE_INFINITY, node.get("below").asDouble(), false, false, sex, minAge, maxAge);
+            }
+            if (node.has("above")) {
+                return new Range(node.get("above").asDouble(), Double.POSITIVE_INFINITY, false, false, sex, minAge, maxAge);
+            }
+            return new Range(node.path("low").asDouble(Double.NEGATIVE_INFINITY),
+                    node.path("high").asDouble(Double.POSITIVE_INFINITY), true, true, sex, minAge, maxAge);
+        }
+
+        static Range parse(String text) {
+            String cleaned = text.replace(",", "");
+            Matcher matcher = BETWEEN.matcher(cleaned);
+            if (matcher.find()) {
+                double[] bounds = {Double.parseDouble(matcher.group(1)), Double.parseDouble(matcher.group(2))};
+                Arrays.sort(bounds);
+                return new Range(bounds[0], bounds[1], true, true, null, null, null);
+            }
+            matcher = UPPER.matcher(cleaned);
+            if (matcher.find()) {
+                String operator = matcher.group(1);
+                boolean inclusive = !operator.equals("<") && !operator.equals("less than");
+                return new Range(Double.NEGATIVE_INFINITY, Double.parseDouble(matcher.group(2)),
+                        false, inclusive, null, null, null);
+            }
+            matcher = LOWER.matcher(cleaned);
+            if (matcher.find()) {
+                boolean inclusive = matcher.group(1).equals(">=") || matcher.group(1).equals("≥");
+                return new Range(Double.parseDouble(matcher.group(2)), Double.POSITIVE_INFINITY,
+                        inclusive, false, null, null, null);
+            }
+            return null;
+        }
+
+        boolean appliesTo(String patientSex, Integer age) {
+            if (sex != null && !sex.equals(patientSex)) {
+                return false;
+            }
+            if (minAge != null && (age == null || age < minAge)) {
+                return false;
+            }
+            return maxAge == null || (age != null && age < maxAge);
+        }
+
+        boolean isBelow(double value) {
+            return lowInclusive ? value < low : value <= low;
+        }
+
+        boolean isAbove(double value) {
+            return highInclusive ? value > high : value >= high;
+        }
+
+        boolean contains(double value) {
+            return !isBelow(value) && !isAbove(value);
+        }
+
+        @Override
+        public String toString() {
+            if (Double.isInfinite(low)) {
+                return (highInclusive ? "<= " : "< ") + format(high);
+            }
+            if (Double.isInfinite(high)) {
+                return (lowInclusive ? ">= " : "> ") + format(low);
+            }
+            return format(low) + "-" + format(high);
+        }
+    }
+
+    /**
+     * Character trie over normalized aliases. Matching walks the trie from every word
+     * boundary of the test name and keeps the longest alias that ends on a word boundary,
+     * so "HDL Cholesterol" resolves to HDL rather than total cholesterol. A name with a
+     * derived-test word outside that alias resolves to nothing, since its range is not the
+     * analyte's.
+     */
+    static class AliasTrie {
+        private final Node root = new Node();
+
+        private static class Node {
+            private final Map<Character, Node> children = new HashMap<>(4);
+            private Analyte analyte;
+        }
+
+        void put(String alias, Analyte analyte) {
+            if (alias.isEmpty()) {
+                return;
+            }
+            Node node = root;
+            for (int i = 0; i < alias.length(); i++) {
+                node = node.children.computeIfAbsent(alias.charAt(i), c -> new Node());
+            }
+            node.analyte = analyte;
+        }
+
+        Analyte match(String name) {
+            Analyte best = null;
+            int bestStart = 0;
+            int bestEnd = 0;
+            int length = name.length();
+            for (int start = 0; start < length; start++) {
+                if (start > 0 && name.charAt(start - 1) != ' ') {
+                    continue;
+                }
+                Node node = root;
+                for (int i = start; i < length; i++) {
+                    node = node.children.get(name.charAt(i));
+                    if (node == null) {
+                        break;
+                    }
+                    int end = i + 1;
+                    if (node.analyte != null && (end == length || name.charAt(end) == ' ')
+                            && end - start > bestEnd - bestStart) {
+                        best = node.analyte;
+                        bestStart = start;
+                        bestEnd = end;
+                    }
+                }
+            }
+            if (best != null && (hasDerivedTerm(name, 0, bestStart) || hasDerivedTerm(name, bestEnd, length))) {
+                return null;
+            }
+            return best;
+        }
+
+        private static boolean hasDerivedTerm(String name, int from, int to) {
+            int wordStart = from;
+            for (int i = from; i <= to; i++) {
+                if (i == to || name.charAt(i) == ' ') {
+                    if (i > wordStart && DERIVED_TERMS.contains(name.substring(wordStart, i))) {
+                        return true;
+                    }
+                    wordStart = i + 1;
+                }
+            }
+            return false;
+        }
+    }
+}
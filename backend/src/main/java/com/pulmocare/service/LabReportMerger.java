@@ -0,0 +1,70 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.stereotype.Service;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Combines the partial reports parsed from separate page groups of one PDF into a single
+ * {"metadata", "tests"} document.
+ *
+ * Metadata fields take the first non-empty value in page order, since the patient header is
+ * usually repeated on every page. Tests are concatenated in page order, dropping repeats of the
+ * same test with the same result, which appear when a table continues across a group boundary
+ * or a summary page restates earlier results.
+ */
+@Service
+public class LabReportMerger {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    public ObjectNode merge(List<? extends JsonNode> parts) {
+        ObjectNode metadata = objectMapper.createObjectNode();
+        ArrayNode tests = objectMapper.createArrayNode();
+        Set<String> seen = new HashSet<>();
+
+        for (JsonNode part : parts) {
+            Iterator<Map.Entry<String, JsonNode>> fields = part.path("metadata").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                if (isEmpty(metadata.get(field.getKey())) && !isEmpty(field.getValue())) {
+                    metadata.set(field.getKey(), field.getValue());
+                }
+            }
+
+            for (JsonNode test : part.path("tests")) {
+                if (test.isObject() && seen.add(identity(test))) {
+                    tests.add(test);
+                }
+            }
+        }
+
+        ObjectNode report = objectMapper.createObjectNode();
+        report.set("metadata", metadata);
+        report.set("tests", tests);
+        return report;
+    }
+
+    private static String identity(JsonNode test) {
+        return normalize(test.get("test_name")) + "|" + normalize(test.get("result_value")) + "|" + normalize(test.get("unit"));
+    }
+
+    private static String normalize(JsonNode node) {
+        if (isEmpty(node)) {
+            return "";
+        }
+        return node.asText().trim().toLowerCase().replaceAll("\\s+", " ");
+    }
+
+    private static boolean isEmpty(JsonNode node) {
+        return node == null || node.isNull() || node.asText().trim().isEmpty();
+    }
+}
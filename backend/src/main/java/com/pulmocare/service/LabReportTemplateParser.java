@@ -0,0 +1,224 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Deterministic parser for lab reports whose text layer follows a known table layout.
+ *
+ * A template is recognized by its column header line ("Test  Result  Unit  Reference Range"
+ * and similar); following lines that match the template's row pattern, with a unit made of
+ * known lab units, become tests. The table ends after a run of lines that are not rows, so page
+ * footers and signatures below it are not read as tests; a repeated header on the next page
+ * starts it again. The output has the same {"metadata", "tests"} shape the Gemini prompt asks for,
+ * so callers cannot tell which tier produced it.
+ */
+@Service
+public class LabReportTemplateParser {
+
+    // Fewer rows than this is more likely a false header match than a lab table
+    private static final int MIN_ROWS = 3;
+    // Consecutive non-row lines that end a table; section subheadings inside one are single lines
+    private static final int MAX_GAP_LINES = 3;
+
+    // Parts of a lab unit once split on "/" and stripped of leading counts ("24hr", "1.73m2")
+    private static final Set<String> UNIT_PARTS = Set.of(
+            "%", "g", "mg", "ug", "µg", "μg", "mcg", "ng", "pg", "kg",
+            "mol", "mmol", "umol", "µmol", "μmol", "nmol", "pmol", "meq", "mosm",
+            "l", "dl", "ml", "ul", "µl", "μl", "fl", "cumm", "mm3", "m2",
+            "iu", "miu", "uiu", "µiu", "μiu", "u", "mu", "ku",
+            "uu", "µu", "μu", "cells", "copies", "lakh", "lakhs", "million", "mill", "thou", "hpf", "lpf",
+            "mm", "mmhg", "hr", "h", "min", "sec", "s", "ratio", "index");
+    private static final Pattern UNIT_POWER = Pattern.compile("(?:x\\s*)?10\\s*(?:\\^|\\*|e)\\s*\\d+");
+
+    private static final String NAME = "([A-Za-z][A-Za-z0-9 ()/%,.'+\\-]*?)";
+    private static final String VALUE = "([<>]?\\s?-?\\d[\\d,]*(?:\\.\\d+)?)(?:\\s+[HLhl*]{1,2})?";
+    private static final String UNIT = "(\\S*[A-Za-z%/µμ]\\S*)";
+    private static final String RANGE = "((?:[<>≤≥]=?\\s*)?-?\\d[\\d,]*(?:\\.\\d+)?(?:\\s*(?:-|–|to)\\s*-?\\d[\\d,]*(?:\\.\\d+)?)?)";
+    // Without a unit column a bare number is too easily a time or a count, so the range must be one
+    private static final String BOUNDED_RANGE = "((?:[<>≤≥]=?\\s*)-?\\d[\\d,]*(?:\\.\\d+)?|-?\\d[\\d,]*(?:\\.\\d+)?\\s*(?:-|–|to)\\s*-?\\d[\\d,]*(?:\\.\\d+)?)";
+    private static final String QUALITATIVE_TERM = "(negative|positive|nil|trace|absent|present|not detected|detected|non[- ]reactive|reactive)";
+
+    private static final Pattern QUALITATIVE_ROW = Pattern.compile(
+            "^" + NAME + "\\s+" + QUALITATIVE_TERM + "\\s+" + QUALITATIVE_TERM + "\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern UNITLESS_ROW = Pattern.compile("^" + NAME + "\\s+" + VALUE + "\\s+" + BOUNDED_RANGE + "\\s*$");
+
+    private static final List<Template> TEMPLATES = List.of(
+            // Test | Result | Unit | Reference Range
+            new Template("value-unit-range",
+                    Pattern.compile("^\\s*(test(\\s*name)?|investigation|parameter|analyte)s?\\s+(result|value|observed value)s?\\s+units?\\s+(reference|normal|biological ref)",
+                            Pattern.CASE_INSENSITIVE),
+                    Pattern.compile("^" + NAME + "\\s+" + VALUE + "\\s+" + UNIT + "\\s+" + RANGE + "\\s*$"),
+                    3, 4),
+            // Test | Result | Reference Range | Unit
+            new Template("value-range-unit",
+                    Pattern.compile("^\\s*(test(\\s*name)?|investigation|parameter|analyte)s?\\s+(result|value|observed value)s?\\s+(reference|normal|biological ref)[a-z .]*\\s+units?\\s*$",
+                            Pattern.CASE_INSENSITIVE),
+                    Pattern.compile("^" + NAME + "\\s+" + VALUE + "\\s+" + RANGE + "\\s+" + UNIT + "\\s*$"),
+                    4, 3)
+    );
+
+    private static final Pattern PATIENT_NAME = Pattern.compile(
+            "(?:patient\\s*name|name)\\s*[:\\-]\\s*(?:mrs\\.?|mr\\.?|ms\\.?|miss)?\\s*([A-Za-z][A-Za-z .']*?)(?=\\s{2,}|\\s+(?:age|sex|gender)\\b|$)",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+    private static final Pattern AGE = Pattern.compile(
+            "\\bage(?:\\s*/\\s*(?:sex|gender))?\\s*[:\\-]\\s*(\\d{1,3})", Pattern.CASE_INSENSITIVE);
+    private static final Pattern GENDER = Pattern.compile(
+            "(?:\\b(?:sex|gender)\\s*[:\\-]\\s*|\\bage\\s*/\\s*(?:sex|gender)\\s*[:\\-]\\s*\\d{1,3}\\s*(?:y(?:ears?|rs?)?)?\\s*/\\s*)(male|female|m|f)\\b",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern DATE = Pattern.compile(
+            "(?:collected(?:\\s*on)?|collection\\s*date|report(?:ed)?(?:\\s*on|\\s*date)?|date)\\s*[:\\-]\\s*"
+                    + "(\\d{1,4}[./-]\\d{1,2}[./-]\\d{1,4}|\\d{1,2}[ -][A-Za-z]{3,9}[ -]\\d{4}|[A-Za-z]{3,9}\\s+\\d{1,2},?\\s+\\d{4})",
+            Pattern.CASE_INSENSITIVE);
+    private static final Pattern PHYSICIAN = Pattern.compile(
+            "(?:referred\\s*by|ref\\.?\\s*by|physician|ref\\.?\\s*doctor|consultant)\\s*[:\\-]\\s*((?:dr\\.?\\s*)?[A-Za-z][A-Za-z .']*?)(?=\\s{2,}|$)",
+            Pattern.CASE_INSENSITIVE | Pattern.MULTILINE);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Parse the text layer of a report.
+     *
+     * @return the report as {"metadata", "tests"}, or null if no template recognized the layout
+     */
+    public ObjectNode parse(String text) {
+        String[] lines = text.split("\\r?\\n");
+        for (Template template : TEMPLATES) {
+            ArrayNode tests = parseRows(lines, template);
+            if (tests != null && tests.size() >= MIN_ROWS) {
+                System.out.println("Lab report matched template '" + template.name + "' with " + tests.size() + " tests");
+                ObjectNode report = objectMapper.createObjectNode();
+                report.set("metadata", parseMetadata(text));
+                report.set("tests", tests);
+                return report;
+            }
+        }
+        return null;
+    }
+
+    private ArrayNode parseRows(String[] lines, Template template) {
+        ArrayNode tests = null;
+        boolean inTable = false;
+        int gap = 0;
+        for (String rawLine : lines) {
+            String line = rawLine.trim();
+            if (template.header.matcher(line).find()) {
+                if (tests == null) {
+                    tests = objectMapper.createArrayNode();
+                }
+                inTable = true;
+                gap = 0;
+                continue;
+            }
+            if (!inTable || line.isEmpty()) {
+                continue;
+            }
+
+            ObjectNode test = parseRow(line, template);
+            if (test != null) {
+                tests.add(test);
+                gap = 0;
+            } else if (++gap >= MAX_GAP_LINES) {
+                inTable = false;
+            }
+        }
+        return tests;
+    }
+
+    private ObjectNode parseRow(String line, Template template) {
+        Matcher row = template.row.matcher(line);
+        if (row.matches() && isLabUnit(row.group(template.unitGroup))) {
+            return test(row.group(1), row.group(2), row.group(template.unitGroup), row.group(template.rangeGroup));
+        }
+        Matcher unitless = UNITLESS_ROW.matcher(line);
+        if (unitless.matches()) {
+            return test(unitless.group(1), unitless.group(2), null, unitless.group(3));
+        }
+        Matcher qualitative = QUALITATIVE_ROW.matcher(line);
+        if (qualitative.matches()) {
+            // Same convention as the Gemini prompt: the qualitative result stays in the test name
+            return test(qualitative.group(1).trim() + ": " + capitalize(qualitative.group(2)),
+                    null, null, capitalize(qualitative.group(3)));
+        }
+        return null;
+    }
+
+    /**
+     * Whether the unit column holds a lab unit ("g/dL", "x10^3/µL", "mL/min/1.73m2") rather than a
+     * word that happens to sit between two numbers, as in "Page 1 of 3" or "Printed on 12 Mar 2024".
+     */
+    static boolean isLabUnit(String unit) {
+        String normalized = UNIT_POWER.matcher(unit.toLowerCase(Locale.ROOT)).replaceAll("");
+        for (String part : normalized.split("/", -1)) {
+            String stripped = part.replaceFirst("^[\\d.]+", "");
+            if (!stripped.isEmpty() && !UNIT_PARTS.contains(stripped)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ObjectNode test(String name, String value, String unit, String range) {
+        ObjectNode test = objectMapper.createObjectNode();
+        test.put("test_name", name.trim());
+        if (value != null) {
+            test.put("result_value", value.replace(" ", ""));
+        } else {
+            test.putNull("result_value");
+        }
+        test.put("unit", unit);
+        test.put("normal_range", range != null ? range.replaceAll("\\s+", "") : null);
+        return test;
+    }
+
+    private ObjectNode parseMetadata(String text) {
+        ObjectNode metadata = objectMapper.createObjectNode();
+        metadata.put("patient_name", firstGroup(PATIENT_NAME, text));
+        metadata.put("age", firstGroup(AGE, text));
+        metadata.put("gender", normalizeGender(firstGroup(GENDER, text)));
+        metadata.put("date", firstGroup(DATE, text));
+        metadata.put("physician", firstGroup(PHYSICIAN, text));
+        return metadata;
+    }
+
+    private static String firstGroup(Pattern pattern, String text) {
+        Matcher matcher = pattern.matcher(text);
+        return matcher.find() ? matcher.group(1).trim() : null;
+    }
+
+    private static String normalizeGender(String gender) {
+        if (gender == null) {
+            return null;
+        }
+        return gender.toLowerCase().startsWith("f") ? "Female" : "Male";
+    }
+
+    private static String capitalize(String term) {
+        String lower = term.toLowerCase();
+        return Character.toUpperCase(lower.charAt(0)) + lower.substring(1);
+    }
+
+    private static class Template {
+        private final String name;
+        private final Pattern header;
+        private final Pattern row;
+        private final int unitGroup;
+        private final int rangeGroup;
+
+        Template(String name, Pattern header, Pattern row, int unitGroup, int rangeGroup) {
+            this.name = name;
+            this.header = header;
+            this.row = row;
+            this.unitGroup = unitGroup;
+            this.rangeGroup = rangeGroup;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.pulmocare.model.Appointment;
+import com.pulmocare.model.LabResult;
+import com.pulmocare.model.Patient;
+import com.pulmocare.repository.LabResultRepository;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stores parsed lab reports as one document per analyte value and answers per-patient trend
+ * queries from the lab_results indexes.
+ */
+@Service
+public class LabResultService {
+
+    // Report dates as labs print them; tried in order
+    private static final List<DateTimeFormatter> REPORT_DATE_FORMATS = List.of(
+            DateTimeFormatter.ISO_LOCAL_DATE,
+            DateTimeFormatter.ofPattern("d/M/uuuu"),
+            DateTimeFormatter.ofPattern("d-M-uuuu"),
+            DateTimeFormatter.ofPattern("d.M.uuuu"),
+            DateTimeFormatter.ofPattern("uuuu/M/d"),
+            caseInsensitive("d-MMM-uuuu"),
+            caseInsensitive("d MMM uuuu"),
+            caseInsensitive("d MMMM uuuu"),
+            caseInsensitive("MMM d, uuuu"),
+            caseInsensitive("MMMM d, uuuu"),
+            caseInsensitive("MMM d uuuu"),
+            caseInsensitive("MMMM d uuuu"));
+
+    @Autowired
+    private LabResultRepository labResultRepository;
+
+    @Autowired
+    private LabFlagEngine labFlagEngine;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private LabCohortIndex labCohortIndex;
+
+    /**
+     * Stores every test of a parsed {"metadata", "tests"} report for a patient in one bulk write.
+     * Results are upserted on a key derived from the patient, the report (its PDF, or its parsed
+     * content when there is no PDF), the row's position in it, the test and its unit, so ingesting
+     * the same report twice does not duplicate it while separate reports never overwrite each other.
+     *
+     * @param sourceHash SHA-256 of the PDF the report was parsed from, may be null
+     * @return number of results written
+     */
+    public int ingestReport(String patientId, JsonNode report, String sourceHash) {
+        String reportKey = sourceHash != null
+                ? "source:" + sourceHash
+                : "content:" + ParsedReportCache.sha256(report.toString());
+        Instant takenAt = parseReportDate(textOrNull(report.path("metadata").get("date")));
+        if (takenAt == null) {
+            // Undated reports are filed under the day the PDF was first uploaded, so that
+            // uploading it again on another day replaces the same results
+            takenAt = sourceHash != null ? firstFiledAt(patientId, sourceHash) : null;
+            if (takenAt == null) {
+                takenAt = LocalDate.now(ZoneOffset.UTC).atStartOfDay(ZoneOffset.UTC).toInstant();
+            }
+        }
+
+        List<LabResult> results = new ArrayList<>();
+        int row = 0;
+        for (JsonNode test : report.path("tests")) {
+            LabResult result = toLabResult(patientId, takenAt, reportKey, row++, test);
+            if (result != null) {
+                result.setSourceHash(sourceHash);
+                results.add(result);
+            }
+        }
+        if (results.isEmpty()) {
+            return 0;
+        }
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, LabResult.class);
+        for (LabResult result : results) {
+            bulk.replaceOne(Query.query(Criteria.where("_id").is(result.getId())), result,
+                    FindAndReplaceOptions.options().upsert());
+        }
+        bulk.execute();
+        labCohortIndex.addAll(results);
+        return results.size();
+    }
+
+    private Instant firstFiledAt(String patientId, String sourceHash) {
+        Query query = Query.query(Criteria.where("patientId").is(patientId).and("sourceHash").is(sourceHash));
+        query.fields().include("takenAt");
+        LabResult filed = mongoTemplate.findOne(query, LabResult.class);
+        return filed != null ? filed.getTakenAt() : null;
+    }
+
+    /**
+     * Deletes every lab result of a patient, from the collection and the cohort index.
+     *
+     * @return number of results deleted
+     */
+    public long deleteForPatient(String patientId) {
+        long deleted = labResultRepository.deleteByPatientId(patientId);
+        labCohortIndex.removePatient(patientId);
+        return deleted;
+    }
+
+    /**
+     * One analyte for a patient between two instants, oldest first.
+     *
+     * @param analyte a catalog code ("HGB") or any test name that resolves to one ("Hemoglobin")
+     */
+    public List<LabResult> getTrend(String patientId, String analyte, Instant from, Instant to) {
+        return labResultRepository.findTrend(patientId, analyteKey(analyte),
+                from != null ? from : Instant.EPOCH,
+                to != null ? to : Instant.now());
+    }
+
+    /**
+     * Cohort query over a doctor's patients: everyone the doctor has an appointment with,
+     * optionally narrowed to patients with a chronic condition containing the given text.
+     * Answered from the in-memory cohort index.
+     *
+     * @see LabCohortIndex#query
+     */
+    public Map<String, Object> queryCohort(String doctorId, String condition, String analyte, Double above, Double below,
+                                           Instant from, Instant to) {
+        Set<String> patientIds = new HashSet<>();
+        String conditionLower = condition != null && !condition.isBlank() ? condition.trim().toLowerCase(Locale.ROOT) : null;
+
+        // Only the patient references of the doctor's appointments, read from the doctor_start index
+        List<Object> patientRefs = new ArrayList<>();
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(Appointment.class))
+                .distinct("patient.$id", Query.query(AppointmentViewService.referencing("doctor", doctorId)).getQueryObject(), Object.class)
+                .into(patientRefs);
+        patientRefs.remove(null);
+
+        if (conditionLower == null) {
+            for (Object ref : patientRefs) {
+                patientIds.add(String.valueOf(ref));
+            }
+        } else if (!patientRefs.isEmpty()) {
+            for (Document patient : mongoTemplate.getCollection(mongoTemplate.getCollectionName(Patient.class))
+                    .find(Filters.in("_id", patientRefs))
+                    .projection(Projections.include("chronicConditions"))) {
+                if (hasCondition(patient.getList("chronicConditions", String.class), conditionLower)) {
+                    patientIds.add(String.valueOf(patient.get("_id")));
+                }
+            }
+        }
+
+        Map<String, Object> response = labCohortIndex.query(analyteKey(analyte), above, below,
+                from != null ? from.toEpochMilli() : null,
+                to != null ? to.toEpochMilli() : null,
+                patientIds);
+        response.put("cohortSize", patientIds.size());
+        return response;
+    }
+
+    private static boolean hasCondition(List<String> chronicConditions, String conditionLower) {
+        if (chronicConditions == null) {
+            return false;
+        }
+        for (String chronic : chronicConditions) {
+            if (chronic != null && chronic.toLowerCase(Locale.ROOT).contains(conditionLower)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The key results are stored under: the catalog code when the name resolves, otherwise the
+     * normalized name so that unknown tests still group consistently.
+     */
+    String analyteKey(String testName) {
+        if (labFlagEngine.getAnalyte(testName.toUpperCase(Locale.ROOT)) != null) {
+            return testName.toUpperCase(Locale.ROOT);
+        }
+        LabFlagEngine.Analyte analyte = labFlagEngine.resolve(testName);
+        return analyte != null ? analyte.getCode() : LabFlagEngine.normalizeName(testName);
+    }
+
+    /**
+     * @param reportKey identifies the report among the patient's: its PDF, or its parsed content
+     * @param row position of the test in the report, since a multi-day report can repeat a test
+     */
+    private LabResult toLabResult(String patientId, Instant takenAt, String reportKey, int row, JsonNode test) {
+        String testName = textOrNull(test.get("test_name"));
+        if (testName == null || testName.isBlank()) {
+            return null;
+        }
+
+        LabResult result = new LabResult();
+        result.setPatientId(patientId);
+        result.setTakenAt(takenAt);
+        result.setTestName(testName);
+        result.setAnalyte(analyteKey(testName));
+        result.setUnit(textOrNull(test.get("unit")));
+        result.setNormalRange(textOrNull(test.get("normal_range")));
+        result.setFlag(textOrNull(test.get("flag")));
+
+        String resultValue = textOrNull(test.get("result_value"));
+        Double value = resultValue != null ? LabFlagEngine.parseNumber(resultValue) : null;
+        result.setValue(value);
+
+        LabFlagEngine.Analyte analyte = labFlagEngine.getAnalyte(result.getAnalyte());
+        if (value != null && analyte != null) {
+            Double factor = analyte.conversionFactor(result.getUnit());
+            if (factor != null) {
+                result.setCanonicalValue(value * factor);
+                result.setCanonicalUnit(analyte.getUnit());
+            }
+        }
+
+        result.setId(ParsedReportCache.sha256(patientId + "|" + reportKey + "|" + row + "|" + result.getAnalyte()
+                + "|" + testName + "|" + result.getUnit()));
+        return result;
+    }
+
+    static Instant parseReportDate(String text) {
+        if (text == null || text.isBlank()) {
+            return null;
+        }
+        String trimmed = text.trim();
+        for (DateTimeFormatter format : REPORT_DATE_FORMATS) {
+            try {
+                return LocalDate.parse(trimmed, format).atStartOfDay(ZoneOffset.UTC).toInstant();
+            } catch (DateTimeParseException e) {
+                // Try the next format
+            }
+        }
+        return null;
+    }
+
+    private static DateTimeFormatter caseInsensitive(String pattern) {
+        return new DateTimeFormatterBuilder().parseCaseInsensitive().appendPattern(pattern).toFormatter(Locale.ENGLISH);
+    }
+
+    private static String textOrNull(JsonNode node) {
+        return node == null || node.isNull() ? null : node.asText();
+    }
+}
@@ -0,0 +1,240 @@
+package com.pulmocare.service;
+
+import com.pulmocare.util.ScanPreprocessingUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.tesseract.TessBaseAPI;
+import org.bytedeco.tesseract.global.tesseract;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Local OCR for scanned lab reports that have no text layer.
+ *
+ * Pages are rendered at 300 DPI, deskewed and binarized with OpenCV, then read with Tesseract.
+ * Rendering and recognition are spread over a small fixed pool; each worker opens its own copy
+ * of the document and its own Tesseract instance, since neither is safe to share across threads.
+ * Disabled by default because it needs tessdata on the host.
+ */
+@Service
+public class OcrService {
+
+    private static final float RENDER_DPI = 300f;
+
+    @Value("${parser.ocr.enabled:false}")
+    private boolean enabled;
+
+    @Value("${parser.ocr.tessdata-path:}")
+    private String tessdataPath;
+
+    @Value("${parser.ocr.language:eng}")
+    private String language;
+
+    @Value("${parser.ocr.min-confidence:75}")
+    private int minConfidence;
+
+    private final ExecutorService executor;
+    private final int workers;
+
+    public OcrService(@Value("${parser.ocr.threads:0}") int threads) {
+        this.workers = threads > 0 ? threads : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        this.executor = Executors.newFixedThreadPool(workers);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * OCRs every page of the PDF. The stream is copied to a temp file so that the workers can
+     * each load the document independently.
+     */
+    public Result recognize(InputStream pdf) throws IOException, InterruptedException {
+        Path tempFile = Files.createTempFile("ocr-", ".pdf");
+        try {
+            Files.copy(pdf, tempFile, StandardCopyOption.REPLACE_EXISTING);
+
+            int pageCount;
+            try (PDDocument document = PDDocument.load(tempFile.toFile())) {
+                pageCount = document.getNumberOfPages();
+            }
+            if (pageCount == 0) {
+                return new Result(Collections.emptyList(), 0);
+            }
+
+            int workerCount = Math.min(workers, pageCount);
+            List<Future<List<PageText>>> futures = new ArrayList<>(workerCount);
+            for (int worker = 0; worker < workerCount; worker++) {
+                int first = worker;
+                futures.add(executor.submit(() -> recognizePages(tempFile, first, workerCount)));
+            }
+
+            String[] pages = new String[pageCount];
+            int[] confidences = new int[pageCount];
+            int[] words = new int[pageCount];
+            for (Future<List<PageText>> future : futures) {
+                for (PageText page : get(future)) {
+                    pages[page.index] = page.text;
+                    confidences[page.index] = page.confidence;
+                    words[page.index] = page.words;
+                }
+            }
+
+            return new Result(Arrays.asList(pages), documentConfidence(confidences, words));
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Mean of the page confidences weighted by the words read on each page. Tesseract reports 0
+     * for a page without words, so blank pages and separator sheets are left out rather than
+     * sinking the whole scan; a document without any words has confidence 0.
+     */
+    static int documentConfidence(int[] confidences, int[] words) {
+        long weighted = 0;
+        long total = 0;
+        for (int page = 0; page < confidences.length; page++) {
+            if (words[page] > 0) {
+                weighted += (long) Math.max(0, confidences[page]) * words[page];
+                total += words[page];
+            }
+        }
+        return total > 0 ? (int) Math.round((double) weighted / total) : 0;
+    }
+
+    /**
+     * Whether OCR output is good enough to use without asking Gemini to look at the scan.
+     */
+    public boolean isConfident(Result result) {
+        return result.getConfidence() >= minConfidence;
+    }
+
+    /**
+     * Renders and reads every page index congruent to first modulo stride.
+     */
+    private List<PageText> recognizePages(Path pdf, int first, int stride) throws IOException {
+        List<PageText> results = new ArrayList<>();
+        TessBaseAPI api = new TessBaseAPI();
+        try (PDDocument document = PDDocument.load(pdf.toFile())) {
+            String dataPath = tessdataPath == null || tessdataPath.isEmpty() ? null : tessdataPath;
+            if (api.Init(dataPath, language) != 0) {
+                throw new IOException("Could not initialize Tesseract with language '" + language + "'");
+            }
+            api.SetPageSegMode(tesseract.PSM_SINGLE_BLOCK);
+            // Keeps table columns apart so the template parser can still split rows
+            api.SetVariable("preserve_interword_spaces", "1");
+
+            PDFRenderer renderer = new PDFRenderer(document);
+            for (int page = first; page < document.getNumberOfPages(); page += stride) {
+                BufferedImage image = renderer.renderImageWithDPI(page, RENDER_DPI, ImageType.GRAY);
+                Mat prepared = ScanPreprocessingUtils.deskewAndBinarize(image);
+                BytePointer text = null;
+                try {
+                    api.SetImage(prepared.data(), prepared.cols(), prepared.rows(), 1, (int) prepared.step());
+                    text = api.GetUTF8Text();
+                    String pageText = text != null ? text.getString() : "";
+                    results.add(new PageText(page, pageText, api.MeanTextConf(), countWords(pageText)));
+                } finally {
+                    if (text != null) {
+                        text.deallocate();
+                    }
+                    prepared.release();
+                }
+            }
+        } finally {
+            api.End();
+            api.close();
+        }
+        return results;
+    }
+
+    private static int countWords(String text) {
+        int words = 0;
+        boolean inWord = false;
+        for (int i = 0; i < text.length(); i++) {
+            boolean letterOrDigit = Character.isLetterOrDigit(text.charAt(i));
+            if (letterOrDigit && !inWord) {
+                words++;
+            }
+            inWord = letterOrDigit;
+        }
+        return words;
+    }
+
+    private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("OCR failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class PageText {
+        private final int index;
+        private final String text;
+        private final int confidence;
+        private final int words;
+
+        PageText(int index, String text, int confidence, int words) {
+            this.index = index;
+            this.text = text;
+            this.confidence = confidence;
+            this.words = words;
+        }
+    }
+
+    /**
+     * Recognized text per page and Tesseract's confidence (0-100) for the document, weighted by
+     * the words on each page.
+     */
+    public static class Result {
+        private final List<String> pages;
+        private final int confidence;
+
+        public Result(List<String> pages, int confidence) {
+            this.pages = Collections.unmodifiableList(pages);
+            this.confidence = confidence;
+        }
+
+        public List<String> getPages() {
+            return pages;
+        }
+
+        public int getConfidence() {
+            return confidence;
+        }
+
+        public String getText() {
+            return String.join("\n", pages);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.pulmocare.service;
+
+import com.pulmocare.model.ParsedReport;
+import com.pulmocare.repository.ParsedReportRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-level cache of parsed lab reports keyed by the SHA-256 of the PDF bytes plus a version
+ * key for the prompt and flagging rules, so retried and repeated uploads return immediately.
+ *
+ * Lookups go to an in-memory LRU first and then to the parsed_reports collection. A change of
+ * version key makes every older entry unreachable; {@link #invalidateStale(String)} also removes
+ * them from MongoDB. Entries removed from the collection on any node leave every node's LRU
+ * through the {@link InvalidationBus}.
+ */
+@Service
+public class ParsedReportCache {
+
+    @Autowired
+    private ParsedReportRepository parsedReportRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final Map<String, String> memory;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong storeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ParsedReportCache(@Value("${parser.cache.max-entries:256}") int maxEntries) {
+        this.memory = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Hex SHA-256 of a stream, read in chunks so the PDF is never copied into a second buffer.
+     */
+    public static String sha256(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String sha256(String text) {
+        return toHex(newDigest().digest(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the cached result, or null on a miss
+     */
+    public String get(String contentHash, String versionKey) {
+        String key = key(contentHash, versionKey);
+        String result = memory.get(key);
+        if (result != null) {
+            memoryHits.incrementAndGet();
+            return result;
+        }
+
+        try {
+            ParsedReport stored = parsedReportRepository.findById(key).orElse(null);
+            if (stored != null) {
+                storeHits.incrementAndGet();
+                memory.put(key, stored.getResult());
+                return stored.getResult();
+            }
+        } catch (RuntimeException e) {
+            // A cache that cannot be read is a miss, not a failed upload
+            System.err.println("Could not read parsed report cache: " + e.getMessage());
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String contentHash, String versionKey, String tier, String result) {
+        memory.put(key(contentHash, versionKey), result);
+        try {
+            parsedReportRepository.save(new ParsedReport(contentHash, versionKey, tier, result));
+        } catch (RuntimeException e) {
+            System.err.println("Could not store parsed report in cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forget every cached parse of one PDF, e.g. after a bad parse was reported.
+     *
+     * @return number of entries removed from MongoDB
+     */
+    public long invalidate(String contentHash) {
+        String prefix = contentHash + ":";
+        synchronized (memory) {
+            memory.keySet().removeIf(key -> key.startsWith(prefix));
+        }
+        long removed = parsedReportRepository.deleteByContentHash(contentHash);
+        invalidations.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * Remove entries produced by any other prompt or flagging version than the given one.
+     *
+     * @return number of entries removed from MongoDB
+     */
+    public long invalidateStale(String currentVersionKey) {
+        String suffix = ":" + currentVersionKey;
+        synchronized (memory) {
+            memory.keySet().removeIf(key -> !key.endsWith(suffix));
+        }
+        long removed = parsedReportRepository.deleteByVersionKeyNot(currentVersionKey);
+        invalidations.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * Drop the whole cache.
+     *
+     * @return number of entries removed from MongoDB
+     */
+    public long invalidateAll() {
+        memory.clear();
+        long removed = parsedReportRepository.count();
+        parsedReportRepository.deleteAll();
+        invalidations.addAndGet(removed);
+        return removed;
+    }
+
+    /**
+     * Drops from memory what was removed or replaced in parsed_reports, on this node or another.
+     */
+    @EventListener
+    public void onInvalidation(InvalidationBus.Invalidation invalidation) {
+        if (!mongoTemplate.getCollectionName(ParsedReport.class).equals(invalidation.getCollection())) {
+            return;
+        }
+        if (invalidation.getId() != null) {
+            memory.remove(invalidation.getId());
+        } else {
+            memory.clear();
+        }
+    }
+
+    public Map<String, Object> snapshot() {
+        long hits = memoryHits.get() + storeHits.get();
+        long lookups = hits + misses.get();
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("memoryEntries", memory.size());
+        snapshot.put("memoryHits", memoryHits.get());
+        snapshot.put("storeHits", storeHits.get());
+        snapshot.put("misses", misses.get());
+        snapshot.put("hitRatio", lookups > 0 ? (double) hits / lookups : 0.0);
+        snapshot.put("invalidated", invalidations.get());
+        return snapshot;
+    }
+
+    private static String key(String contentHash, String versionKey) {
+        return contentHash + ":" + versionKey;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,61 @@
+package com.pulmocare.service;
+
+import org.springframework.stereotype.Service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process counters for the report parser: how many reports each tier handled
+ * and how long they took.
+ */
+@Service
+public class ParserMetrics {
+
+    private final Map<String, AtomicLong> counts = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> totalNanos = new ConcurrentHashMap<>();
+
+    /**
+     * Record one report handled by the given tier.
+     *
+     * @param startedNanos value of System.nanoTime() when handling started
+     */
+    public void record(String tier, long startedNanos) {
+        long elapsed = System.nanoTime() - startedNanos;
+        counts.computeIfAbsent(tier, t -> new AtomicLong()).incrementAndGet();
+        totalNanos.computeIfAbsent(tier, t -> new AtomicLong()).addAndGet(elapsed);
+    }
+
+    public long getCount(String tier) {
+        AtomicLong count = counts.get(tier);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * Per tier: count, share of all reports and mean latency in milliseconds.
+     */
+    public Map<String, Object> snapshot() {
+        long total = 0;
+        for (AtomicLong count : counts.values()) {
+            total += count.get();
+        }
+
+        Map<String, Object> tiers = new LinkedHashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : counts.entrySet()) {
+            long count = entry.getValue().get();
+            long nanos = totalNanos.getOrDefault(entry.getKey(), new AtomicLong()).get();
+            Map<String, Object> tier = new LinkedHashMap<>();
+            tier.put("count", count);
+            tier.put("fraction", total > 0 ? (double) count / total : 0.0);
+            tier.put("avgLatencyMs", count > 0 ? nanos / count / 1_000_000.0 : 0.0);
+            tiers.put(entry.getKey(), tier);
+        }
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("totalReports", total);
+        snapshot.put("tiers", tiers);
+        return snapshot;
+    }
+}
@@ -1,600 +1,557 @@
 package com.pulmocare.service;
 
+import com.pulmocare.util.Base64EncodingInputStream;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 @Service
 public class ParserService {    
+    private static final Pattern CODE_FENCE = Pattern.compile("```(?:json)?\\s*(.+?)\\s*```", Pattern.DOTALL);
+
+    // Tiers a report can be handled by, cheapest first
+    public static final String TIER_CACHE = "cache";
+    public static final String TIER_TEMPLATE = "template";
+    public static final String TIER_TEXT_LLM = "text-llm";
+    public static final String TIER_OCR_TEMPLATE = "ocr-template";
+    public static final String TIER_OCR_TEXT_LLM = "ocr-text-llm";
+    public static final String TIER_PDF_LLM = "pdf-llm";
+
+    // Bump when the local parsers change in a way that should invalidate cached results
+    private static final int PARSER_REVISION = 1;
+
+    // Stands in for the base64 PDF while the request envelope is serialized
+    private static final String PDF_DATA_PLACEHOLDER = "__PDF_BASE64__";
+
+    private static final String REPORT_PROMPT = "Here is a medical test PDF report (could be blood test, urinalysis, or other lab test). Please parse it and return the following:\n\n"
+            + "A valid JSON with:\n"
+            + "- \"metadata\": includes:\n"
+            + "  - patient_name\n"
+            + "  - age\n"
+            + "  - gender\n"
+            + "  - date\n"
+            + "  - physician\n"
+            + "- \"tests\": a list of tests, each with:\n"
+            + "  - test_name (the name of the test)\n"
+            + "  - result_value (just the numeric value if available, or null if it's qualitative like 'Negative')\n"
+            + "  - unit (the unit of measurement, or null if not applicable)\n"
+            + "  - normal_range (format as 'min-max' e.g. '0.6-1.2', or null if not available)\n"
+            + "\nFor non-numeric results like 'Negative', 'Positive', 'Clear', etc., set result_value to null and keep the qualitative result in the test_name.\n"
+            + "If a value is not available, use null instead of empty string.\n";
+
     @Value("${gemini.api.key}")
     private String apiKey;
+
+    // Reports longer than this are sent to Gemini in page groups instead of one prompt
+    @Value("${parser.split.min-pages:6}")
+    private int splitMinPages;
+
+    @Value("${parser.split.pages-per-group:4}")
+    private int pagesPerGroup;
+
+    @Value("${parser.split.threads:4}")
+    private int splitThreads;
+
+    @Autowired
+    private LabFlagEngine labFlagEngine;
+
+    @Autowired
+    private PdfTextExtractor pdfTextExtractor;
+
+    @Autowired
+    private LabReportTemplateParser labReportTemplateParser;
+
+    @Autowired
+    private OcrService ocrService;
+
+    @Autowired
+    private ParserMetrics parserMetrics;
+
+    @Autowired
+    private ParsedReportCache parsedReportCache;
+
+    @Autowired
+    private LabReportMerger labReportMerger;
+
+    @Autowired
+    private LabResultService labResultService;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    private String cacheVersionKey;
+
+    // Bounded so that one large bundle cannot open an unlimited number of Gemini requests
+    private ExecutorService pageGroupExecutor;
+
+    @PostConstruct
+    public void init() {
+        pageGroupExecutor = Executors.newFixedThreadPool(Math.max(1, splitThreads));
+
+        cacheVersionKey = ParsedReportCache.sha256(PARSER_REVISION + "|" + labFlagEngine.getCatalogVersion() + "|" + REPORT_PROMPT)
+                .substring(0, 16);
+        try {
+            long removed = parsedReportCache.invalidateStale(cacheVersionKey);
+            if (removed > 0) {
+                System.out.println("Removed " + removed + " cached reports parsed with an older prompt or catalog");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Could not clean up parsed report cache: " + e.getMessage());
+        }
+    }
     
+    @PreDestroy
+    public void shutdown() {
+        pageGroupExecutor.shutdownNow();
+    }
+
     private String getEndpoint() {
         return "https://generativelanguage.googleapis.com/v1beta/models/gemini-1.5-flash:generateContent?key=" + apiKey;
     }
-    
+
+    /**
+     * Parses a lab report PDF, using the cheapest tier that can handle it:
+     * a PDF that was parsed before is answered from the cache, a recognized template in the
+     * text layer is parsed locally, any other text layer is sent to Gemini as plain text. Scans
+     * without a text layer go through local OCR when it is enabled, and are only sent whole
+     * when OCR is off, fails or is not confident enough. Long reports are sent to Gemini in
+     * page groups that are parsed concurrently and merged.
+     */
     public String callGeminiWithPdf(MultipartFile file) throws IOException, InterruptedException {
-        String base64Pdf = Base64.getEncoder().encodeToString(file.getBytes());        
-        String prompt = "Here is a medical test PDF report (could be blood test, urinalysis, or other lab test). Please parse it and return the following:\n\n"
-                + "A valid JSON with:\n"
-                + "- \"metadata\": includes:\n"
-                + "  - patient_name\n"
-                + "  - age\n"
-                + "  - gender\n"
-                + "  - date\n"
-                + "  - physician\n"
-                + "- \"tests\": a list of tests, each with:\n"
-                + "  - test_name (the name of the test)\n"
-                + "  - result_value (just the numeric value if available, or null if it's qualitative like 'Negative')\n"
-                + "  - unit (the unit of measurement, or null if not applicable)\n"
-                + "  - normal_range (format as 'min-max' e.g. '0.6-1.2', or null if not available)\n"
-                + "\nFor non-numeric results like 'Negative', 'Positive', 'Clear', etc., set result_value to null and keep the qualitative result in the test_name.\n"
-                + "If a value is not available, use null instead of empty string.\n";
-                String bodyJson = "{\n"
-                + "  \"contents\": [\n"
-                + "    {\n"
-                + "      \"parts\": [\n"
-                + "        {\n"
-                + "          \"text\": \"" + prompt.replace("\"", "\\\"").replace("\n", "\\n") + "\"\n"
-                + "        },\n"
-                + "        {\n"
-                + "          \"inlineData\": {\n"
-                + "            \"mimeType\": \"application/pdf\",\n"
-                + "            \"data\": \"" + base64Pdf + "\"\n"
-                + "          }\n"
-                + "        }\n"
-                + "      ]\n"
-                + "    }\n"
-                + "  ],\n"
-                + "  \"generationConfig\": {\n"
-                + "    \"temperature\": 0.1,\n"
-                + "    \"topK\": 32,\n"
-                + "    \"topP\": 0.95,\n"
-                + "    \"maxOutputTokens\": 2048\n"
-                + "  }\n"
-                + "}";          HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(getEndpoint()))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
-                .build();
+        return callGeminiWithPdf(file, null);
+    }
 
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-          // Check if response is successful (2xx status code)
-        if (response.statusCode() >= 200 && response.statusCode() < 300) {
-            return addAbnormalFlags(response.body());
-        } else {
-            throw new IOException("API request failed with status code: " + response.statusCode() + 
-                                 " and response: " + response.body());
+    /**
+     * Parses a lab report PDF and, when a patient is given, also stores its results in the
+     * patient's lab history.
+     */
+    public String callGeminiWithPdf(MultipartFile file, String patientId) throws IOException, InterruptedException {
+        long started = System.nanoTime();
+
+        String contentHash = null;
+        String result = null;
+        try (InputStream in = file.getInputStream()) {
+            contentHash = ParsedReportCache.sha256(in);
+            result = parsedReportCache.get(contentHash, cacheVersionKey);
+            if (result != null) {
+                parserMetrics.record(TIER_CACHE, started);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not hash uploaded PDF, skipping cache: " + e.getMessage());
+        }
+        if (result == null) {
+            result = parse(file, contentHash, started);
+        }
+
+        if (patientId != null) {
+            ObjectNode report = extractReport(result);
+            if (report != null) {
+                int stored = labResultService.ingestReport(patientId, report, contentHash);
+                System.out.println("Stored " + stored + " lab results for patient " + patientId);
+            }
         }
+        return result;
     }
-      /**
-     * Post-processes the response from Gemini to add abnormal flags based on result values and normal ranges.
-     * This method adds a "flag" field to each test indicating whether the result is "Normal" or "Abnormal".
-     */    private String addAbnormalFlags(String responseBody) {
+
+    private String parse(MultipartFile file, String contentHash, long started) throws IOException, InterruptedException {
+        PdfTextExtractor.Extraction extraction = null;
         try {
-            // Find the tests array in the JSON
-            int testsStartIndex = responseBody.indexOf("\"tests\":");
-            if (testsStartIndex == -1) {
-                // If tests array not found, return the original response
-                System.out.println("No tests array found in the response, returning original");
-                return responseBody;
-            }
-            
-            // Process each test to add the flag
-            StringBuilder processedJson = new StringBuilder(responseBody);
-            int currentIndex = testsStartIndex;
-            int testsArrayOpenBracket = processedJson.indexOf("[", currentIndex);
-            int testsArrayCloseBracket = findMatchingCloseBracket(processedJson.toString(), testsArrayOpenBracket);
-            
-            if (testsArrayOpenBracket == -1 || testsArrayCloseBracket == -1) {
-                System.out.println("Could not find the bounds of the tests array, returning original");
-                return responseBody;
+            extraction = pdfTextExtractor.extract(file.getInputStream());
+        } catch (IOException e) {
+            // PDFBox could not read it; Gemini may still cope with the raw file
+            System.err.println("Could not extract PDF text layer: " + e.getMessage());
+        }
+
+        if (extraction != null && extraction.hasTextLayer()) {
+            String text = extraction.getText();
+            ObjectNode report = labReportTemplateParser.parse(text);
+            if (report != null) {
+                return complete(TIER_TEMPLATE, addAbnormalFlags(objectMapper.writeValueAsString(report)), contentHash, started);
             }
-            
-            // Process until end of tests array
-            while (currentIndex < testsArrayCloseBracket) {
-                int testStartIndex = processedJson.indexOf("{", currentIndex);
-                if (testStartIndex == -1 || testStartIndex >= testsArrayCloseBracket) {
-                    break; // No more tests or reached the end of the array
-                }
-                
-                int testEndIndex = findMatchingCloseBracket(processedJson.toString(), testStartIndex);
-                if (testEndIndex == -1 || testEndIndex > testsArrayCloseBracket) {
-                    // Invalid JSON structure, move to next open brace
-                    currentIndex = testStartIndex + 1;
-                    continue;
-                }
-                
-                // Extract the test object as a string
-                String testObject = processedJson.substring(testStartIndex, testEndIndex + 1);
-                
-                // Extract test_name, result_value, unit, and normal_range
-                String testName = extractField(testObject, "test_name");
-                String resultValue = extractField(testObject, "result_value");
-                String unit = extractField(testObject, "unit");
-                String normalRange = extractField(testObject, "normal_range");
-                
-                // Skip adding a flag if test name is empty
-                if (testName.isEmpty()) {
-                    System.out.println("Warning: Empty test name found, skipping flag addition");
-                    currentIndex = testEndIndex + 1;
-                    continue;
-                }
-                
-                // Determine if the result is normal or abnormal
-                boolean isNormal = isResultNormal(testName, resultValue, unit, normalRange);
-                String flag = isNormal ? "Normal" : "Abnormal";
-                
-                System.out.println("Test '" + testName + "' with result '" + resultValue + 
-                                  "' " + unit + " (range: " + normalRange + ") is " + flag);
-                
-                // Check if the test object already has a flag field
-                if (testObject.contains("\"flag\":")) {
-                    System.out.println("Test already has a flag field, skipping");
-                    currentIndex = testEndIndex + 1;
-                    continue;
-                }
-                
-                // Add the flag field to the test object
-                String flaggedTest = testObject.substring(0, testObject.length() - 1) + 
-                                     (testObject.charAt(testObject.length() - 2) == ',' ? " " : ", ") +
-                                     "\"flag\": \"" + flag + "\"}";
-                
-                // Replace the original test object with the flagged one
-                processedJson.replace(testStartIndex, testEndIndex + 1, flaggedTest);
-                
-                // Adjust currentIndex and testsArrayCloseBracket to account for the change in length
-                int lengthDiff = flaggedTest.length() - testObject.length();
-                testsArrayCloseBracket += lengthDiff;
-                currentIndex = testStartIndex + flaggedTest.length();
+            return complete(TIER_TEXT_LLM, parseTextPages(extraction.getPages()), contentHash, started);
+        }
+
+        if (ocrService.isEnabled()) {
+            String result = parseWithOcr(file, contentHash, started);
+            if (result != null) {
+                return result;
             }
-            
-            return processedJson.toString();
-        } catch (Exception e) {
-            // If any error occurs during processing, return the original response
-            System.err.println("Error adding abnormal flags: " + e.getMessage());
-            e.printStackTrace();
-            return responseBody;
         }
+
+        if (extraction != null && extraction.getPageCount() >= splitMinPages) {
+            return complete(TIER_PDF_LLM, parsePdfPageGroups(file, extraction.getPageCount()), contentHash, started);
+        }
+        String result = addAbnormalFlags(sendToGemini(pdfBody(file::getInputStream, file.getSize())));
+        return complete(TIER_PDF_LLM, result, contentHash, started);
     }
-    
+
     /**
-     * Helper method to find the matching closing bracket (} or ]) for an opening bracket ({ or [).
-     * Returns the index of the matching closing bracket, or -1 if not found.
+     * Sends report text to Gemini, in concurrent page groups when the report is long.
      */
-    private int findMatchingCloseBracket(String json, int openBracketIndex) {
-        if (openBracketIndex < 0 || openBracketIndex >= json.length()) {
-            return -1;
+    private String parseTextPages(List<String> pages) throws IOException, InterruptedException {
+        if (pages.size() < splitMinPages) {
+            return addAbnormalFlags(callGeminiWithText(String.join("\n", pages)));
         }
-        
-        char openBracket = json.charAt(openBracketIndex);
-        char closeBracket;
-        if (openBracket == '{') {
-            closeBracket = '}';
-        } else if (openBracket == '[') {
-            closeBracket = ']';
-        } else {
-            return -1; // Not an opening bracket
+
+        List<Callable<String>> groups = new ArrayList<>();
+        for (int first = 0; first < pages.size(); first += pagesPerGroup) {
+            String text = String.join("\n", pages.subList(first, Math.min(first + pagesPerGroup, pages.size())));
+            groups.add(() -> callGeminiWithText(text));
         }
-        
-        int nestLevel = 1;
-        for (int i = openBracketIndex + 1; i < json.length(); i++) {
-            char c = json.charAt(i);
-            
-            // Skip string literals
-            if (c == '"') {
-                i++;
-                while (i < json.length()) {
-                    if (json.charAt(i) == '\\') {
-                        i++; // Skip escape character and the next character
-                    } else if (json.charAt(i) == '"') {
-                        break;
-                    }
-                    i++;
-                }
-                if (i >= json.length()) {
-                    return -1; // Unclosed string literal
-                }
-                continue;
+        return parseGroups(groups);
+    }
+
+    /**
+     * Splits a long scanned PDF into page groups with PDFBox and sends each group to Gemini.
+     * The upload is copied to a temp file once; each group is cut from it inside its own task,
+     * so only the groups in flight exist at a time, and on disk rather than on the heap.
+     */
+    private String parsePdfPageGroups(MultipartFile file, int pageCount) throws IOException, InterruptedException {
+        Path source = Files.createTempFile("lab-report-", ".pdf");
+        try {
+            try (InputStream in = file.getInputStream()) {
+                Files.copy(in, source, StandardCopyOption.REPLACE_EXISTING);
             }
-            
-            if (c == openBracket) {
-                nestLevel++;
-            } else if (c == closeBracket) {
-                nestLevel--;
-                if (nestLevel == 0) {
-                    return i; // Found matching close bracket
-                }
+            List<Callable<String>> groups = new ArrayList<>();
+            for (int first = 1; first <= pageCount; first += pagesPerGroup) {
+                int groupFirst = first;
+                int groupLast = Math.min(first + pagesPerGroup - 1, pageCount);
+                groups.add(() -> sendPageGroup(source, groupFirst, groupLast));
             }
+            return parseGroups(groups);
+        } finally {
+            Files.deleteIfExists(source);
         }
-        
-        return -1; // No matching close bracket found
     }
-      /**
-     * Extracts a field value from a JSON object string.
-     * Handles various value types (string, number, null)
-     */    private String extractField(String jsonObject, String fieldName) {
-        int fieldIndex = jsonObject.indexOf("\"" + fieldName + "\":");
-        if (fieldIndex == -1) {
-            System.out.println("Field '" + fieldName + "' not found in JSON object");
-            return "";
-        }
-        
-        // Find the start of the value after the field name and colon
-        int valueStartPos = fieldIndex + fieldName.length() + 2;
-        while (valueStartPos < jsonObject.length() && Character.isWhitespace(jsonObject.charAt(valueStartPos))) {
-            valueStartPos++;
+
+    private String sendPageGroup(Path source, int first, int last) throws IOException, InterruptedException {
+        Path group = Files.createTempFile("lab-report-pages-", ".pdf");
+        try {
+            pdfTextExtractor.extractPages(source.toFile(), first, last, group.toFile());
+            return sendToGemini(pdfBody(() -> Files.newInputStream(group), Files.size(group)));
+        } finally {
+            Files.deleteIfExists(group);
         }
-        
-        // Check for null value
-        if (valueStartPos + 3 <= jsonObject.length() && 
-            jsonObject.substring(valueStartPos, valueStartPos + 4).equals("null")) {
-            System.out.println("Found null value for field: " + fieldName);
-            return "";  // Return empty string for null values
+    }
+
+    /**
+     * Runs one Gemini call per page group on the bounded pool, merges the partial reports in
+     * page order and flags the merged report once.
+     */
+    private String parseGroups(List<Callable<String>> groups) throws IOException, InterruptedException {
+        System.out.println("Parsing report in " + groups.size() + " page groups of up to " + pagesPerGroup + " pages");
+        List<Future<String>> futures = new ArrayList<>(groups.size());
+        for (Callable<String> group : groups) {
+            futures.add(pageGroupExecutor.submit(group));
         }
-        
-        // Check if it's a string (starts with quote)
-        if (jsonObject.charAt(valueStartPos) == '"') {
-            int valueStartIndex = valueStartPos;
-            // Find the end quote, handling escaped quotes
-            int valueEndIndex = valueStartIndex + 1;
-            boolean escaped = false;
-            
-            while (valueEndIndex < jsonObject.length()) {
-                char c = jsonObject.charAt(valueEndIndex);
-                if (c == '\\') {
-                    escaped = !escaped;
-                } else if (c == '"' && !escaped) {
-                    break;
-                } else {
-                    escaped = false;
+
+        List<ObjectNode> parts = new ArrayList<>(futures.size());
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                ObjectNode part = extractReport(futures.get(i).get());
+                if (part == null) {
+                    // Usually a truncated response; a partial merge would silently drop tests
+                    throw new IOException("Could not read the parsed report for page group " + (i + 1));
                 }
-                valueEndIndex++;
+                parts.add(part);
             }
-            
-            if (valueEndIndex == jsonObject.length()) {
-                System.out.println("Warning: Unclosed string for field: " + fieldName);
-                return "";
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+        } finally {
+            for (Future<String> future : futures) {
+                future.cancel(true);
             }
-            
-            String value = jsonObject.substring(valueStartIndex + 1, valueEndIndex);
-            System.out.println("Extracted string value for field '" + fieldName + "': " + value);
-            return value;
         }
-        
-        // If not a string, it's likely a number or boolean - find the next comma or closing brace
-        int valueEndPos = jsonObject.indexOf(",", valueStartPos);
-        if (valueEndPos == -1) {
-            // If no comma found, look for the closing brace
-            valueEndPos = jsonObject.indexOf("}", valueStartPos);
-            if (valueEndPos == -1) {
-                System.out.println("Warning: Could not find end of value for field: " + fieldName);
-                return "";
+
+        ObjectNode merged = labReportMerger.merge(parts);
+        flagReport(merged);
+        return objectMapper.writeValueAsString(merged);
+    }
+
+    /**
+     * Builds the request that sends the whole PDF inline. The JSON envelope is rendered once
+     * around a placeholder, and the PDF is base64-encoded from the upload stream while the
+     * request is being sent. Only a small buffer is held on the heap, not the file, its
+     * encoding and a body string.
+     */
+    HttpRequest.BodyPublisher pdfBody(PdfSource pdf, long size) throws IOException {
+        ObjectNode body = objectMapper.createObjectNode();
+        ArrayNode parts = body.putArray("contents").addObject().putArray("parts");
+        parts.addObject().put("text", REPORT_PROMPT);
+        parts.addObject().putObject("inlineData")
+                .put("mimeType", "application/pdf")
+                .put("data", PDF_DATA_PLACEHOLDER);
+        body.set("generationConfig", generationConfig());
+
+        String envelope = objectMapper.writeValueAsString(body);
+        int split = envelope.indexOf(PDF_DATA_PLACEHOLDER);
+        byte[] head = envelope.substring(0, split).getBytes(StandardCharsets.UTF_8);
+        byte[] tail = envelope.substring(split + PDF_DATA_PLACEHOLDER.length()).getBytes(StandardCharsets.UTF_8);
+        long length = head.length + Base64EncodingInputStream.encodedLength(size) + tail.length;
+
+        // The supplier is called again if the client has to resend the body
+        HttpRequest.BodyPublisher stream = HttpRequest.BodyPublishers.ofInputStream(() -> {
+            try {
+                return new SequenceInputStream(Collections.enumeration(List.of(
+                        new ByteArrayInputStream(head),
+                        new Base64EncodingInputStream(pdf.open()),
+                        new ByteArrayInputStream(tail))));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return HttpRequest.BodyPublishers.fromPublisher(stream, length);
+    }
+
+    /**
+     * Records which tier handled the report and remembers the result for repeat uploads. A
+     * result with no readable report (truncated, blocked or malformed output) is not remembered,
+     * so a retry of the same PDF parses it again. Failed calls throw before they get here.
+     */
+    private String complete(String tier, String result, String contentHash, long started) {
+        if (contentHash != null) {
+            if (extractReport(result) != null) {
+                parsedReportCache.put(contentHash, cacheVersionKey, tier, result);
+            } else {
+                System.err.println("Not caching unreadable " + tier + " result for " + contentHash);
             }
         }
-        
-        // Extract and trim the value
-        String value = jsonObject.substring(valueStartPos, valueEndPos).trim();
-        System.out.println("Extracted non-string value for field '" + fieldName + "': " + value);
-        return value;
+        parserMetrics.record(tier, started);
+        return result;
     }
-      /**
-     * Determines if a test result is within the normal range.
-     * Handles special case for Triglycerides and other tests.
-     */    private boolean isResultNormal(String testName, String resultValue, String unit, String normalRange) {
+
+    /**
+     * OCRs a scanned report and parses the recognized text like a text layer.
+     *
+     * @return the flagged report, or null if the scan should be sent to Gemini as a PDF instead
+     */
+    private String parseWithOcr(MultipartFile file, String contentHash, long started) throws IOException, InterruptedException {
+        OcrService.Result ocr;
         try {
-            // Log the test information for debugging
-            System.out.println("Checking test: " + testName + ", value: " + resultValue + 
-                              ", unit: " + unit + ", range: " + normalRange);
-            
-            // If the result value is empty or null, we can't determine abnormality
-            if (resultValue == null || resultValue.isEmpty()) {
-                System.out.println("Result value is null or empty for test: " + testName + ", assuming Normal");
-                return true;
-            }
-            
-            // If the normal range is empty or null, we can't determine abnormality
-            if (normalRange == null || normalRange.isEmpty()) {
-                System.out.println("Normal range is null or empty for test: " + testName + ", assuming Normal");
-                return true;
-            }
-            
-            // Check for qualitative values (e.g., "Negative", "Positive", "Clear")
-            if (resultValue.equalsIgnoreCase("negative") || 
-                resultValue.equalsIgnoreCase("normal") ||
-                resultValue.equalsIgnoreCase("clear") ||
-                resultValue.equalsIgnoreCase("absent") ||
-                resultValue.equalsIgnoreCase("nil")) {
-                
-                // For these values, check if they match the expected normal values
-                if (normalRange.toLowerCase().contains("negative") ||
-                    normalRange.toLowerCase().contains("normal") ||
-                    normalRange.toLowerCase().contains("clear") ||
-                    normalRange.toLowerCase().contains("absent") ||
-                    normalRange.toLowerCase().contains("nil")) {
-                    System.out.println("Qualitative result '" + resultValue + "' is Normal");
-                    return true;
-                }
-            }
-            
-            if (resultValue.equalsIgnoreCase("positive") || 
-                resultValue.equalsIgnoreCase("abnormal") ||
-                resultValue.equalsIgnoreCase("present") ||
-                resultValue.equalsIgnoreCase("detected")) {
-                
-                // For these abnormal values, they're normal only if the expected range includes them
-                if (normalRange.toLowerCase().contains("positive") ||
-                    normalRange.toLowerCase().contains("abnormal") ||
-                    normalRange.toLowerCase().contains("present") ||
-                    normalRange.toLowerCase().contains("detected")) {
-                    System.out.println("Qualitative result '" + resultValue + "' matches expected normal range");
-                    return true;
-                } else {
-                    System.out.println("Qualitative result '" + resultValue + "' is Abnormal");
-                    return false;
-                }
+            ocr = ocrService.recognize(file.getInputStream());
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Local OCR failed, falling back to Gemini: " + e.getMessage());
+            return null;
+        }
+
+        if (!ocrService.isConfident(ocr)) {
+            System.out.println("OCR confidence " + ocr.getConfidence() + " too low, sending the scan to Gemini");
+            return null;
+        }
+
+        String text = ocr.getText();
+        ObjectNode report = labReportTemplateParser.parse(text);
+        if (report != null) {
+            return complete(TIER_OCR_TEMPLATE, addAbnormalFlags(objectMapper.writeValueAsString(report)), contentHash, started);
+        }
+        return complete(TIER_OCR_TEXT_LLM, parseTextPages(ocr.getPages()), contentHash, started);
+    }
+
+    /**
+     * Sends only the extracted report text to Gemini, which is far smaller than the base64 PDF.
+     *
+     * @return the raw Gemini response, not yet flagged
+     */
+    private String callGeminiWithText(String reportText) throws IOException, InterruptedException {
+        ObjectNode body = objectMapper.createObjectNode();
+        body.putArray("contents").addObject().putArray("parts").addObject()
+                .put("text", REPORT_PROMPT + "\nThe report text was extracted from the PDF and follows:\n\n" + reportText);
+        body.set("generationConfig", generationConfig());
+        return sendToGemini(HttpRequest.BodyPublishers.ofString(objectMapper.writeValueAsString(body)));
+    }
+
+    private ObjectNode generationConfig() {
+        ObjectNode config = objectMapper.createObjectNode();
+        config.put("temperature", 0.1);
+        config.put("topK", 32);
+        config.put("topP", 0.95);
+        config.put("maxOutputTokens", 2048);
+        return config;
+    }
+
+    private String sendToGemini(HttpRequest.BodyPublisher body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(getEndpoint()))
+                .header("Content-Type", "application/json")
+                .POST(body)
+                .build();
+
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+          // Check if response is successful (2xx status code)
+        if (response.statusCode() >= 200 && response.statusCode() < 300) {
+            return response.body();
+        } else {
+            throw new IOException("API request failed with status code: " + response.statusCode() + 
+                                 " and response: " + response.body());
+        }
+    }
+
+    public Map<String, Object> getTierStats() {
+        Map<String, Object> stats = parserMetrics.snapshot();
+        stats.put("cache", parsedReportCache.snapshot());
+        return stats;
+    }
+
+    /**
+     * Forgets cached parses: of one PDF when a content hash is given, otherwise all of them.
+     */
+    public long invalidateCache(String contentHash) {
+        return contentHash != null ? parsedReportCache.invalidate(contentHash) : parsedReportCache.invalidateAll();
+    }
+
+    /**
+     * Re-runs flagging over reports that were parsed earlier, e.g. after the reference
+     * catalog changed. Accepts a single report or a JSON array of reports, either as the
+     * bare {"metadata", "tests"} document or wrapped in the raw Gemini response.
+     */
+    public String reflagReports(String reportsJson) throws IOException {
+        JsonNode root = objectMapper.readTree(reportsJson);
+        if (root.isArray()) {
+            ArrayNode flagged = objectMapper.createArrayNode();
+            for (JsonNode report : root) {
+                flagged.add(objectMapper.readTree(addAbnormalFlags(objectMapper.writeValueAsString(report))));
             }
-            
-            // Check for trace values which are often considered borderline normal
-            if (resultValue.equalsIgnoreCase("trace") || 
-                resultValue.equalsIgnoreCase("few") || 
-                resultValue.equalsIgnoreCase("rare")) {
-                
-                if (normalRange.toLowerCase().contains("trace") ||
-                    normalRange.toLowerCase().contains("few") ||
-                    normalRange.toLowerCase().contains("rare") ||
-                    normalRange.toLowerCase().contains("negative") ||
-                    normalRange.toLowerCase().contains("normal")) {
-                    System.out.println("Trace/few/rare result '" + resultValue + "' is within normal range");
-                    return true;
-                } else {
-                    System.out.println("Trace/few/rare result '" + resultValue + "' is considered borderline abnormal");
-                    return false;
-                }
+            return objectMapper.writeValueAsString(flagged);
+        }
+        return addAbnormalFlags(reportsJson);
+    }
+
+    /**
+     * Post-processes the response from Gemini to add abnormal flags based on result values and normal ranges.
+     * This method adds a "flag" field to each test indicating whether the result is "Normal" or "Abnormal",
+     * and a "flag_reason" field explaining the decision.
+     */
+    private String addAbnormalFlags(String responseBody) {
+        try {
+            JsonNode root = objectMapper.readTree(responseBody);
+            if (root.has("tests")) {
+                flagReport((ObjectNode) root);
+                return objectMapper.writeValueAsString(root);
             }
-            
-            // Check for color/appearance descriptors
-            if (isAppearanceOrColorDescriptor(resultValue)) {
-                if (normalRange.toLowerCase().contains(resultValue.toLowerCase()) ||
-                    (resultValue.equalsIgnoreCase("yellow") && normalRange.toLowerCase().contains("pale yellow")) ||
-                    (resultValue.equalsIgnoreCase("straw") && normalRange.toLowerCase().contains("pale yellow"))) {
-                    System.out.println("Appearance/color '" + resultValue + "' is within normal range");
-                    return true;
-                } else {
-                    // For appearance/color, return true if we can't determine
-                    System.out.println("Appearance/color '" + resultValue + "' not found in normal range, assuming Normal");
-                    return true;
+
+            // Gemini wraps the report as text in candidates[0].content.parts[0]
+            JsonNode part = root.path("candidates").path(0).path("content").path("parts").path(0);
+            if (part.has("text")) {
+                JsonNode report = objectMapper.readTree(stripCodeFence(part.get("text").asText()));
+                if (report.has("tests")) {
+                    flagReport((ObjectNode) report);
+                    ((ObjectNode) part).put("text", objectMapper.writeValueAsString(report));
+                    return objectMapper.writeValueAsString(root);
                 }
             }
-            
-            // Try to parse as numeric value if not qualitative
-            String cleanResult = resultValue.replaceAll("[^0-9.-]", "");
-            if (cleanResult.isEmpty()) {
-                System.out.println("Warning: Empty result value after cleanup for test: " + testName + ", assuming Normal");
-                return true;
-            }
-            
-            // Try to parse the result as a double, return true (normal) if it fails
-            double result;
-            try {
-                result = Double.parseDouble(cleanResult);
-            } catch (NumberFormatException e) {
-                System.out.println("Warning: Could not parse result value as number for test: " + testName + ", assuming Normal");
-                return true;
+
+            System.out.println("No tests array found in the response, returning original");
+            return responseBody;
+        } catch (Exception e) {
+            // If any error occurs during processing, return the original response
+            System.err.println("Error adding abnormal flags: " + e.getMessage());
+            e.printStackTrace();
+            return responseBody;
+        }
+    }
+
+    /**
+     * Reads the {"metadata", "tests"} report out of a parser result or raw Gemini response.
+     *
+     * @return the report, or null if the response holds no readable report
+     */
+    public ObjectNode extractReport(String responseBody) {
+        try {
+            JsonNode root = objectMapper.readTree(responseBody);
+            if (root.has("tests")) {
+                return (ObjectNode) root;
             }
-            
-            // Handle specific test types
-            if (testName.equalsIgnoreCase("Triglycerides") || testName.contains("Triglyceride") || testName.contains("TG")) {
-                System.out.println("Processing Triglycerides test");
-                // Most labs use 35-135 mg/dL or 0.4-1.5 mmol/L as reference range for Triglycerides
-                if (unit.contains("mg") || unit.contains("mg%") || unit.contains("mg/dl")) {
-                    // Handle mg/dL units
-                    if (normalRange.contains("-")) {
-                        String[] parts = normalRange.split("-");
-                        double min = Double.parseDouble(parts[0].replaceAll("[^0-9.]", ""));
-                        double max = Double.parseDouble(parts[1].replaceAll("[^0-9.]", ""));
-                        return result >= min && result <= max;
-                    } else if (normalRange.contains("<")) {
-                        double max = Double.parseDouble(normalRange.replaceAll("[^0-9.]", ""));
-                        return result < max;
-                    }
-                }
-            } 
-            // Continue with rest of the method for WBC, RBC, etc.
-            else if (testName.equalsIgnoreCase("WBC's") || testName.contains("WBC") || testName.contains("White Blood Cell")) {
-                // Existing WBC handling code...
-                System.out.println("Processing WBC test");
-                // Check if units are in /cumm, and range is in thousands
-                double valueInThousands = result;
-                
-                // If result has 3 or more digits, convert to thousands
-                if (result >= 1000) {
-                    valueInThousands = result / 1000.0;
-                    System.out.println("WBC test: Converting large value " + result + " to " + valueInThousands + " thousand");
-                }
-                
-                System.out.println("WBC value in thousands: " + valueInThousands);
-                
-                if (normalRange.contains("-")) {
-                    String[] parts = normalRange.split("-");
-                    double min = Double.parseDouble(parts[0].replaceAll("[^0-9.]", ""));
-                    double max = Double.parseDouble(parts[1].replaceAll("[^0-9.]", ""));
-                    boolean isNormal = valueInThousands >= min && valueInThousands <= max;
-                    System.out.println("WBC test result is " + (isNormal ? "Normal" : "Abnormal") +
-                                    " (value: " + valueInThousands + " thousand, range: " + min + "-" + max + ")");
-                    return isNormal;
+            JsonNode part = root.path("candidates").path(0).path("content").path("parts").path(0);
+            if (part.has("text")) {
+                JsonNode report = objectMapper.readTree(stripCodeFence(part.get("text").asText()));
+                if (report.has("tests")) {
+                    return (ObjectNode) report;
                 }
             }
-            // Rest of the existing method remains the same...
-            else if (testName.equalsIgnoreCase("RBC's") || testName.contains("RBC") || testName.contains("Red Blood Cell")) {
-                System.out.println("Processing RBC test");
-                // Handle RBC values regardless of units
-                double valueInMillions = result;
-                
-                // If result has 6 or more digits, convert to millions
-                if (result >= 1000000) {
-                    valueInMillions = result / 1000000.0;
-                    System.out.println("RBC test: Converting large value " + result + " to " + valueInMillions + " million");
-                }
-                // If result is moderate (thousands range) and normal range is in millions (typically 4-6)
-                else if (result >= 1000 && normalRange.contains("-")) {
-                    String[] parts = normalRange.split("-");
-                    if (parts.length == 2) {
-                        try {
-                            double minRange = Double.parseDouble(parts[0].replaceAll("[^0-9.]", ""));
-                            double maxRange = Double.parseDouble(parts[1].replaceAll("[^0-9.]", ""));
-                            // If normal range is in single digits (4-6 million), but result is in thousands
-                            if (maxRange < 10 && result >= 1000) {
-                                valueInMillions = result / 1000000.0;
-                                System.out.println("RBC test: Converting thousand value " + result + " to " + valueInMillions + " million based on range");
-                            }
-                        } catch (Exception e) {
-                            System.out.println("Could not parse RBC range for unit conversion: " + e.getMessage());
-                        }
-                    }
-                }
-                
-                System.out.println("RBC value in millions: " + valueInMillions);
-                
-                if (normalRange.contains("-")) {
-                    String[] parts = normalRange.split("-");
-                    double min = Double.parseDouble(parts[0].replaceAll("[^0-9.]", ""));
-                    double max = Double.parseDouble(parts[1].replaceAll("[^0-9.]", ""));
-                    boolean isNormal = valueInMillions >= min && valueInMillions <= max;
-                    System.out.println("RBC test result is " + (isNormal ? "Normal" : "Abnormal") +
-                                    " (value: " + valueInMillions + " million, range: " + min + "-" + max + ")");
-                    return isNormal;
-                }
-            } else if (testName.equalsIgnoreCase("Total Cholesterol") || testName.contains("Cholesterol")) {
-                System.out.println("Processing Cholesterol test");
-                // Typical range: < 200 mg/dL is desirable
-                if (unit.contains("mg") || unit.contains("mg%") || unit.contains("mg/dl")) {
-                    if (normalRange.contains("<")) {
-                        double max = Double.parseDouble(normalRange.replaceAll("[^0-9.]", ""));
-                        return result < max;
-                    } else if (normalRange.contains("-")) {
-                        String[] parts = normalRange.split("-");
-                        double min = Double.parseDouble(parts[0].replaceAll("[^0-9.]", ""));
-                        double max = Double.parseDouble(parts[1].replaceAll("[^0-9.]", ""));
-                        return result >= min && result <= max;
-                    }
-                    // If no specific range format is found but we know it's cholesterol
-                    // Use standard ranges: < 200 mg/dL is normal
-                    return result < 200;
-                }
-            } else if (testName.contains("Glucose")) {
-                System.out.println("Processing Glucose test");
-                // Typical fasting reference range: 70-99 mg/dL
-                if (unit.contains("mg") || unit.contains("mg%") || unit.contains("mg/dl")) {
-                    if (normalRange.contains("-")) {
-                        String[] parts = normalRange.split("-");
-                        double min = Double.parseDouble(parts[0].replaceAll("[^0-9.]", ""));
-                        double max = Double.parseDouble(parts[1].replaceAll("[^0-9.]", ""));
-                        return result >= min && result <= max;
-                    }
-                }
+        } catch (Exception e) {
+            System.err.println("Could not read report from Gemini response: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Flags every test of a parsed report in place using the patient's sex and age from the metadata.
+     */
+    private void flagReport(ObjectNode report) {
+        JsonNode metadata = report.path("metadata");
+        String sex = textOrNull(metadata.get("gender"));
+        Integer age = LabFlagEngine.parseAge(textOrNull(metadata.get("age")));
+
+        for (JsonNode test : report.path("tests")) {
+            if (!test.isObject()) {
+                continue;
             }
-              
-            // Handle different range formats for other tests
-            if (normalRange.contains("-")) {
-                // Range in format "min-max"
-                String[] rangeParts = normalRange.split("-");
-                if (rangeParts.length != 2) {
-                    System.out.println("Warning: Unexpected range format for test: " + testName + ", range: " + normalRange);
-                    return false;
-                }
-                
-                // Clean up range values
-                String cleanMinRange = rangeParts[0].replaceAll("[^0-9.-]", "");
-                String cleanMaxRange = rangeParts[1].replaceAll("[^0-9.-]", "");
-                
-                if (cleanMinRange.isEmpty() || cleanMaxRange.isEmpty()) {
-                    System.out.println("Warning: Empty range values for test: " + testName + ", range: " + normalRange);
-                    return false;
-                }
-                  
-                double minRange = Double.parseDouble(cleanMinRange);
-                double maxRange = Double.parseDouble(cleanMaxRange);
-                
-                // Check if result is within range (inclusive)
-                boolean isNormal = result >= minRange && result <= maxRange;
-                System.out.println("Test: " + testName + ", result: " + result + 
-                                  ", range: " + minRange + "-" + maxRange + 
-                                  ", normal: " + isNormal);
-                return isNormal;            
-            } else if (normalRange.contains("<")) {
-                // Range in format "< max"
-                String cleanMaxRange = normalRange.replaceAll("[^0-9.-]", "");
-                if (cleanMaxRange.isEmpty()) {
-                    System.out.println("Warning: Empty max range value for test: " + testName + ", range: " + normalRange);
-                    return false;
-                }
-                
-                double maxRange = Double.parseDouble(cleanMaxRange);
-                boolean isNormal = result < maxRange;
-                System.out.println("Test: " + testName + ", result: " + result + 
-                                  ", max range: " + maxRange + 
-                                  ", normal: " + isNormal);
-                return isNormal;
-            } else if (normalRange.contains(">")) {
-                // Range in format "> min"
-                String cleanMinRange = normalRange.replaceAll("[^0-9.-]", "");
-                if (cleanMinRange.isEmpty()) {
-                    System.out.println("Warning: Empty min range value for test: " + testName + ", range: " + normalRange);
-                    return false;
-                }
-                
-                double minRange = Double.parseDouble(cleanMinRange);
-                boolean isNormal = result > minRange;
-                System.out.println("Test: " + testName + ", result: " + result + 
-                                  ", min range: " + minRange + 
-                                  ", normal: " + isNormal);
-                return isNormal;
+            String testName = textOrNull(test.get("test_name"));
+            if (testName == null || testName.isEmpty()) {
+                System.out.println("Warning: Empty test name found, skipping flag addition");
+                continue;
             }
-            
-            // If range format is not recognized, default to abnormal
-            System.out.println("Warning: Unrecognized range format for test: " + testName + ", range: " + normalRange);
-            return false;        
-        } catch (NumberFormatException | NullPointerException e) {
-            // If there's any error in parsing, default to abnormal
-            System.err.println("Error parsing test values for test '" + testName + "': " + e.getMessage());
-            System.err.println("Problematic values - result: '" + resultValue + "', unit: '" + unit + "', range: '" + normalRange + "'");
-            return false;
-        } catch (Exception e) {
-            System.err.println("Unexpected error processing test '" + testName + "': " + e.getMessage());
-            System.err.println("Problematic values - result: '" + resultValue + "', unit: '" + unit + "', range: '" + normalRange + "'");
-            e.printStackTrace();
-            return false;
+
+            String resultValue = textOrNull(test.get("result_value"));
+            String unit = textOrNull(test.get("unit"));
+            String normalRange = textOrNull(test.get("normal_range"));
+
+            LabFlagEngine.Decision decision = labFlagEngine.evaluate(testName, resultValue, unit, normalRange, sex, age);
+            ((ObjectNode) test).put("flag", decision.getFlag());
+            ((ObjectNode) test).put("flag_reason", decision.getReason());
+
+            System.out.println("Test '" + testName + "' is " + decision.getFlag() + ": " + decision.getReason());
         }
+        report.put("reference_catalog_version", labFlagEngine.getCatalogVersion());
     }
-    
+
+    private String stripCodeFence(String text) {
+        Matcher matcher = CODE_FENCE.matcher(text);
+        return matcher.find() ? matcher.group(1) : text.trim();
+    }
+
+    private static String textOrNull(JsonNode node) {
+        return node == null || node.isNull() ? null : node.asText();
+    }
+
     /**
-     * Helper method to check if a value is an appearance or color descriptor
-     * commonly used in urinalysis reports
+     * Opens the PDF bytes to send; called again whenever the request body is resent.
      */
-    private boolean isAppearanceOrColorDescriptor(String value) {
-        String lowerValue = value.toLowerCase();
-        return lowerValue.equals("yellow") || 
-               lowerValue.equals("pale yellow") || 
-               lowerValue.equals("amber") ||
-               lowerValue.equals("straw") ||
-               lowerValue.equals("clear") ||
-               lowerValue.equals("cloudy") ||
-               lowerValue.equals("turbid") ||
-               lowerValue.equals("hazy") ||
-               lowerValue.equals("colorless") ||
-               lowerValue.equals("dark yellow") ||
-               lowerValue.equals("slightly turbid") ||
-               lowerValue.equals("transparent");
+    interface PdfSource {
+        InputStream open() throws IOException;
     }
 }
@@ -1,18 +1,38 @@
 package com.pulmocare.service;
 
+import com.pulmocare.dto.CursorPage;
 import com.pulmocare.model.Patient;
 import com.pulmocare.repository.PatientRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
+import java.util.Set;
+
 
 @Service
 public class PatientService {
 
+    // Large fields left out of patient lists unless the full view is asked for
+    private static final String[] LIST_EXCLUDED_FIELDS = {"photo", "bloodTests", "xRays", "otherImaging", "report"};
+
     @Autowired
     private PatientRepository patientRepository;
 
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private SparseFields sparseFields;
+
+    @Autowired
+    private EntityCache entityCache;
+
+    @Autowired
+    private LabResultService labResultService;
+
     /**
      * Create a new patient
      * 
@@ -40,7 +60,10 @@ public class PatientService {
                 .orElseThrow(() -> new RuntimeException("Patient not found"));
                 
         // Update patient information
-        patient.setPhoto(patientDetails.getPhoto());
+        // Fields left out of list responses are kept when absent, so a list item can be edited and sent back
+        if (patientDetails.getPhoto() != null) {
+            patient.setPhoto(patientDetails.getPhoto());
+        }
         patient.setInsuranceProvider(patientDetails.getInsuranceProvider());
         patient.setFirstName(patientDetails.getFirstName());
         patient.setLastName(patientDetails.getLastName());
@@ -57,12 +80,20 @@ public class PatientService {
         
         // Update medical history
         patient.setSymptomsAssessment(patientDetails.getSymptomsAssessment());
-        patient.setReport(patientDetails.getReport());
+        if (patientDetails.getReport() != null) {
+            patient.setReport(patientDetails.getReport());
+        }
         
         // Update medical tests
-        patient.setBloodTests(patientDetails.getBloodTests());
-        patient.setxRays(patientDetails.getxRays());
-        patient.setOtherImaging(patientDetails.getOtherImaging());
+        if (patientDetails.getBloodTests() != null) {
+            patient.setBloodTests(patientDetails.getBloodTests());
+        }
+        if (patientDetails.getxRays() != null) {
+            patient.setxRays(patientDetails.getxRays());
+        }
+        if (patientDetails.getOtherImaging() != null) {
+            patient.setOtherImaging(patientDetails.getOtherImaging());
+        }
         
         // Update vaccinations and vitals
         patient.setVaccinationHistory(patientDetails.getVaccinationHistory());
@@ -73,7 +104,11 @@ public class PatientService {
         patient.setChronicConditions(patientDetails.getChronicConditions());
         patient.setSurgeriesHistory(patientDetails.getSurgeriesHistory());
         
-        return patientRepository.save(patient);
+        try {
+            return patientRepository.save(patient);
+        } finally {
+            entityCache.evictPatient(id);
+        }
     }
 
     /**
@@ -87,6 +122,26 @@ public class PatientService {
                 .orElseThrow(() -> new RuntimeException("Patient not found"));
     }
 
+    /**
+     * Get a patient by ID, reading only the given fields
+     * 
+     * @param id The ID of the patient to get
+     * @param fields The fields to read, or null for all of them
+     * @return The patient
+     */
+    public Patient getPatient(String id, Set<String> fields) {
+        if (fields == null) {
+            return getPatient(id);
+        }
+        Query query = Query.query(Criteria.where("id").is(id));
+        sparseFields.project(query, fields, Patient.class);
+        Patient patient = mongoTemplate.findOne(query, Patient.class);
+        if (patient == null) {
+            throw new RuntimeException("Patient not found");
+        }
+        return patient;
+    }
+
     /**
      * Get a patient by email
      * 
@@ -107,15 +162,30 @@ public class PatientService {
         Patient patient = patientRepository.findById(id)
                 .orElseThrow(() -> new RuntimeException("Patient not found"));
         patientRepository.delete(patient);
+        entityCache.evictPatient(id);
+        labResultService.deleteForPatient(id);
     }
 
     /**
-     * Get all patients
+     * Get one page of patients, without passwords
      * 
-     * @return A list of all patients
+     * @param cursor The cursor from the previous page, or null for the first page
+     * @param pageSize The number of patients per page
+     * @param full Whether to include photos, imaging, blood tests and reports
+     * @param fields The fields to read, or null for the list view chosen by full
+     * @return The page of patients
      */
-    public List<Patient> getAllPatients() {
-        return patientRepository.findAll();
+    public CursorPage<Patient> getPatientsPage(String cursor, int pageSize, boolean full, Set<String> fields) {
+        Query query = CursorPaging.pageQuery(new Query(), cursor, pageSize);
+        if (fields != null) {
+            sparseFields.project(query, fields, Patient.class);
+            return CursorPaging.toPage(mongoTemplate.find(query, Patient.class), pageSize, Patient::getId);
+        }
+        query.fields().exclude("password");
+        if (!full) {
+            query.fields().exclude(LIST_EXCLUDED_FIELDS);
+        }
+        return CursorPaging.toPage(mongoTemplate.find(query, Patient.class), pageSize, Patient::getId);
     }
 
     /**
@@ -0,0 +1,111 @@
+package com.pulmocare.service;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.Splitter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Pulls the embedded text layer out of a PDF with PDFBox.
+ *
+ * Text is stripped page by page with position sorting enabled, so each table row of a
+ * lab report comes out as one line with its columns in reading order. Documents are buffered in
+ * temp files rather than on the heap, so memory use does not grow with the size of the PDF.
+ */
+@Service
+public class PdfTextExtractor {
+
+    // A page with fewer visible characters than this is treated as a scanned image
+    private static final int MIN_CHARS_PER_TEXT_PAGE = 40;
+    // Share of pages that must carry text before we trust the text layer
+    private static final double MIN_TEXT_PAGE_RATIO = 0.8;
+
+    public Extraction extract(InputStream pdf) throws IOException {
+        try (PDDocument document = PDDocument.load(pdf, MemoryUsageSetting.setupTempFileOnly())) {
+            PDFTextStripper stripper = new PDFTextStripper();
+            stripper.setSortByPosition(true);
+
+            int pageCount = document.getNumberOfPages();
+            List<String> pages = new ArrayList<>(pageCount);
+            int textPages = 0;
+            for (int page = 1; page <= pageCount; page++) {
+                stripper.setStartPage(page);
+                stripper.setEndPage(page);
+                String text = stripper.getText(document);
+                pages.add(text);
+                if (countVisibleChars(text) >= MIN_CHARS_PER_TEXT_PAGE) {
+                    textPages++;
+                }
+            }
+            return new Extraction(pages, textPages);
+        }
+    }
+
+    /**
+     * Writes pages first to last (1-based, inclusive) of a PDF file to a new PDF file.
+     */
+    public void extractPages(File source, int first, int last, File target) throws IOException {
+        try (PDDocument document = PDDocument.load(source, MemoryUsageSetting.setupTempFileOnly())) {
+            Splitter splitter = new Splitter();
+            splitter.setMemoryUsageSetting(MemoryUsageSetting.setupTempFileOnly());
+            splitter.setStartPage(first);
+            splitter.setEndPage(last);
+            splitter.setSplitAtPage(last - first + 1);
+            for (PDDocument part : splitter.split(document)) {
+                try (PDDocument pages = part) {
+                    pages.save(target);
+                }
+            }
+        }
+    }
+
+    private static int countVisibleChars(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Per-page text of a PDF and how many of those pages actually carry text.
+     */
+    public static class Extraction {
+        private final List<String> pages;
+        private final int textPageCount;
+
+        public Extraction(List<String> pages, int textPageCount) {
+            this.pages = Collections.unmodifiableList(pages);
+            this.textPageCount = textPageCount;
+        }
+
+        public List<String> getPages() {
+            return pages;
+        }
+
+        public int getPageCount() {
+            return pages.size();
+        }
+
+        public String getText() {
+            return String.join("\n", pages);
+        }
+
+        /**
+         * True for digitally generated reports; scans have (almost) no text layer.
+         */
+        public boolean hasTextLayer() {
+            return !pages.isEmpty() && textPageCount >= Math.ceil(pages.size() * MIN_TEXT_PAGE_RATIO);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.introspect.BeanPropertyDefinition;
+import com.fasterxml.jackson.databind.ser.PropertyWriter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
+import com.fasterxml.jackson.databind.ser.impl.SimpleFilterProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.query.Field;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.converter.json.MappingJacksonValue;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Sparse fieldsets: ?fields=firstName,lastName,photo on the patient, doctor and appointment GETs.
+ *
+ * The named properties become an inclusion projection on the query, so MongoDB only reads and
+ * sends those fields, and a Jackson filter on the response, so the properties that were not read
+ * are left out rather than written as null or zero. The id is always returned.
+ */
+@Component
+public class SparseFields {
+
+    /** Filter id that JacksonConfig attaches to the selectable types. */
+    public static final String FILTER_ID = "sparseFields";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    // JSON property names of each response type, from the web ObjectMapper's view of it
+    private final Map<Class<?>, Set<String>> propertyNames = new ConcurrentHashMap<>();
+
+    /**
+     * The properties named in a fields parameter, plus the id; null when the parameter is absent,
+     * which means every property.
+     *
+     * @param fields The comma-separated property names
+     * @param type The type the response is made of
+     * @param hidden Properties that the endpoint never returns and so cannot be selected
+     */
+    public Set<String> parse(String fields, Class<?> type, String... hidden) {
+        if (fields == null) {
+            return null;
+        }
+        Set<String> selectable = new LinkedHashSet<>(propertyNames.computeIfAbsent(type, this::introspect));
+        selectable.removeAll(Arrays.asList(hidden));
+
+        Set<String> selected = new LinkedHashSet<>();
+        selected.add("id");
+        for (String name : fields.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (!selectable.contains(name)) {
+                throw new IllegalArgumentException("Unknown field: " + name);
+            }
+            selected.add(name);
+        }
+        return selected;
+    }
+
+    /**
+     * Restricts a query on the given entity to the stored fields behind the selected properties.
+     * Does nothing when every property was asked for.
+     */
+    public void project(Query query, Set<String> fields, Class<?> entityType) {
+        if (fields == null) {
+            return;
+        }
+        MongoPersistentEntity<?> entity = mongoTemplate.getConverter().getMappingContext().getRequiredPersistentEntity(entityType);
+        Field projection = query.fields();
+        for (String name : fields) {
+            // "smoking" and "vaccine" are read from boolean properties stored as isSmoking and isVaccine
+            String property = entity.getPersistentProperty(name) != null ? name : "is" + StringUtils.capitalize(name);
+            if (entity.getPersistentProperty(property) != null) {
+                projection.include(property);
+            }
+        }
+    }
+
+    /**
+     * Wraps a response body (a selectable object or a list of them) so that only the selected
+     * properties of the given type are written. Objects nested in it, such as the patient and
+     * doctor of an appointment, are written in full.
+     */
+    public static Object filter(Object body, Set<String> fields, Class<?> type) {
+        if (fields == null) {
+            return body;
+        }
+        MappingJacksonValue value = new MappingJacksonValue(body);
+        value.setFilters(new SimpleFilterProvider().addFilter(FILTER_ID, new SimpleBeanPropertyFilter() {
+            @Override
+            public void serializeAsField(Object pojo, JsonGenerator jgen, SerializerProvider provider, PropertyWriter writer) throws Exception {
+                if (!type.isInstance(pojo) || fields.contains(writer.getName())) {
+                    writer.serializeAsField(pojo, jgen, provider);
+                } else if (!jgen.canOmitFields()) {
+                    writer.serializeAsOmittedField(pojo, jgen, provider);
+                }
+            }
+        }));
+        return value;
+    }
+
+    private Set<String> introspect(Class<?> type) {
+        return objectMapper.getSerializationConfig()
+                .introspect(objectMapper.constructType(type))
+                .findProperties().stream()
+                .filter(BeanPropertyDefinition::couldSerialize)
+                .map(BeanPropertyDefinition::getName)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+}
@@ -0,0 +1,532 @@
+package com.pulmocare.service;
+
+import com.mongodb.DBRef;
+import com.mongodb.bulk.BulkWriteError;
+import com.pulmocare.model.Appointment;
+import com.pulmocare.model.Doctor;
+import com.pulmocare.model.UtilizationRollup;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maintains the per doctor and day counters in utilization_rollups and answers the admin
+ * analytics from them.
+ *
+ * Appointment writes report what the appointment counted for before and after the change, and
+ * the difference is added to the day's counters with $inc. A failed counter write is only logged;
+ * the reconcile job recounts recent days from the appointments every night, which also brings
+ * in changes to the doctors' templates. Cancellations cannot be recounted, since cancelled
+ * appointments are deleted, so reconciling leaves them as counted.
+ *
+ * Every counter write increments the day's revision. A reconcile notes the revisions before it
+ * counts and only replaces a day whose revision has not moved since, so an $inc that lands while
+ * it counts is not overwritten; such days are counted again. An appointment change whose $inc
+ * is still in flight when the recount reads it can still be counted twice, until the next
+ * reconcile.
+ */
+@Service
+public class UtilizationRollupService {
+
+    public static final int MAX_RANGE_DAYS = 366;
+
+    // Appointments saved without an end time are booked for 30 minutes
+    private static final long DEFAULT_MINUTES = 30;
+
+    private static final int BATCH_SIZE = 1000;
+
+    // Counting passes per reconcile; days changed during the last are left as they were counted
+    private static final int MAX_PASSES = 3;
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private AvailabilityEngine availabilityEngine;
+
+    @Autowired
+    private JobLeases jobLeases;
+
+    @Value("${analytics.reconcile.days-back:7}")
+    private int reconcileDaysBack;
+
+    @Value("${analytics.reconcile.days-ahead:28}")
+    private int reconcileDaysAhead;
+
+    /**
+     * What one appointment adds to its doctor's counters for its date.
+     */
+    public static class Contribution {
+        private final String doctorId;
+        private final LocalDate date;
+        private final long minutes;
+        private final boolean upcoming;
+        private final boolean noShow;
+
+        private Contribution(String doctorId, LocalDate date, long minutes, boolean upcoming, boolean noShow) {
+            this.doctorId = doctorId;
+            this.date = date;
+            this.minutes = minutes;
+            this.upcoming = upcoming;
+            this.noShow = noShow;
+        }
+
+        /**
+         * The appointment as it is now, or null if it has no doctor or date and counts nowhere.
+         */
+        public static Contribution of(Appointment appointment) {
+            if (appointment == null || appointment.getDoctor() == null || appointment.getDoctor().getId() == null
+                    || appointment.getDate() == null) {
+                return null;
+            }
+            return new Contribution(appointment.getDoctor().getId(), appointment.getDate(),
+                    minutesBetween(appointment.getStartAt(), appointment.getEndAt()),
+                    appointment.isUpcoming(), appointment.isNoShow());
+        }
+
+        /**
+         * The same for a raw appointment document, whose doctor is still a reference.
+         */
+        static Contribution of(Document appointment) {
+            if (!(appointment.get("doctor") instanceof DBRef) || !(appointment.get("date") instanceof Date)) {
+                return null;
+            }
+            Date startAt = appointment.getDate("startAt");
+            Date endAt = appointment.getDate("endAt");
+            return new Contribution(String.valueOf(((DBRef) appointment.get("doctor")).getId()),
+                    toLocalDate(appointment.getDate("date")),
+                    minutesBetween(startAt != null ? startAt.toInstant() : null, endAt != null ? endAt.toInstant() : null),
+                    Boolean.TRUE.equals(appointment.getBoolean("upcoming")),
+                    Boolean.TRUE.equals(appointment.getBoolean("noShow")));
+        }
+
+        Contribution asPast() {
+            return new Contribution(doctorId, date, minutes, false, noShow);
+        }
+
+        String bucket() {
+            return UtilizationRollup.idOf(doctorId, date);
+        }
+
+        boolean isCompleted() {
+            return !upcoming && !noShow;
+        }
+    }
+
+    /**
+     * Records a booking, move or state change: takes away what the appointment counted for
+     * before (null for a new booking) and adds what it counts for now.
+     */
+    public void record(Contribution before, Contribution after) {
+        Map<String, Delta> deltas = new HashMap<>();
+        add(deltas, before, -1);
+        add(deltas, after, 1);
+        write(deltas, "appointment change");
+    }
+
+    /**
+     * Records the deletion of an appointment, as a cancellation if it had not happened yet.
+     */
+    public void recordCancellation(Contribution before) {
+        Map<String, Delta> deltas = new HashMap<>();
+        add(deltas, before, -1);
+        if (before != null && before.upcoming) {
+            deltas.get(before.bucket()).cancelled++;
+        }
+        write(deltas, "cancellation");
+    }
+
+    /**
+     * Records the sweep of upcoming appointments (raw documents) to past.
+     */
+    public void recordCompletions(List<Document> appointments) {
+        Map<String, Delta> deltas = new HashMap<>();
+        for (Document appointment : appointments) {
+            Contribution before = Contribution.of(appointment);
+            if (before != null) {
+                add(deltas, before, -1);
+                add(deltas, before.asPast(), 1);
+            }
+        }
+        write(deltas, "completions");
+    }
+
+    private static void add(Map<String, Delta> deltas, Contribution contribution, int sign) {
+        if (contribution == null) {
+            return;
+        }
+        Delta delta = deltas.computeIfAbsent(contribution.bucket(), id -> new Delta(contribution.doctorId, contribution.date));
+        delta.booked += sign;
+        delta.bookedMinutes += sign * contribution.minutes;
+        delta.completed += contribution.isCompleted() ? sign : 0;
+        delta.noShows += contribution.noShow ? sign : 0;
+    }
+
+    /**
+     * Adds the deltas to their days in one bulk write, creating days not seen yet.
+     */
+    private void write(Map<String, Delta> deltas, String what) {
+        deltas.values().removeIf(Delta::isZero);
+        if (deltas.isEmpty()) {
+            return;
+        }
+        try {
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UtilizationRollup.class);
+            for (Map.Entry<String, Delta> entry : deltas.entrySet()) {
+                Delta delta = entry.getValue();
+                bulk.upsert(Query.query(Criteria.where("_id").is(entry.getKey())), new Update()
+                        .setOnInsert("doctorId", delta.doctorId)
+                        .setOnInsert("date", delta.date)
+                        .setOnInsert("week", weekOf(delta.date))
+                        .inc("booked", delta.booked)
+                        .inc("bookedMinutes", delta.bookedMinutes)
+                        .inc("completed", delta.completed)
+                        .inc("noShows", delta.noShows)
+                        .inc("cancelled", delta.cancelled)
+                        .inc("revision", 1));
+            }
+            bulk.execute();
+        } catch (RuntimeException e) {
+            System.err.println("Could not update utilization rollups for " + what + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Recent days recounted every night by the job leader: reconcileDaysBack days back, so
+     * missed or failed counter writes are corrected, and reconcileDaysAhead days ahead, so that
+     * offered time follows template changes.
+     */
+    @Scheduled(cron = "${analytics.reconcile.cron:0 30 2 * * *}")
+    public void scheduledReconcile() {
+        if (!jobLeases.isLeader()) {
+            return;
+        }
+        LocalDate today = LocalDate.now();
+        try {
+            reconcile(today.minusDays(reconcileDaysBack), today.plusDays(reconcileDaysAhead));
+        } catch (RuntimeException e) {
+            System.err.println("Utilization rollup reconcile failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Recounts every doctor's days in [from, to] from the appointments and the doctors' current
+     * templates, replacing all counters except cancellations. Days whose counters change while
+     * they are being recounted are recounted again.
+     *
+     * @return number of days written
+     */
+    public int reconcile(LocalDate from, LocalDate to) {
+        checkRange(from, to);
+        long started = System.nanoTime();
+        Instant stamp = Instant.now();
+        int written = 0;
+        Set<String> pending = null; // Every day on the first pass
+        for (int pass = 0; pass < MAX_PASSES && (pending == null || !pending.isEmpty()); pass++) {
+            Map<String, Delta> days = new HashMap<>();
+            Map<String, Long> revisions = new HashMap<>();
+
+            // Revisions first: any counter write after this moves them
+            Query rollups = Query.query(Criteria.where("date").gte(from).lte(to));
+            rollups.fields().include("doctorId").include("date").include("revision");
+            try (CloseableIterator<UtilizationRollup> existing = mongoTemplate.stream(rollups, UtilizationRollup.class)) {
+                while (existing.hasNext()) {
+                    UtilizationRollup rollup = existing.next();
+                    if (pending == null || pending.contains(rollup.getId())) {
+                        revisions.put(rollup.getId(), rollup.getRevision());
+                        // Zero unless counted below: the day no longer has appointments or offered time
+                        days.put(rollup.getId(), new Delta(rollup.getDoctorId(), rollup.getDate()));
+                    }
+                }
+            }
+
+            Query appointments = Query.query(Criteria.where("date").gte(from).lte(to));
+            appointments.fields().include("doctor").include("date").include("startAt").include("endAt")
+                    .include("upcoming").include("noShow");
+            try (CloseableIterator<Document> documents = mongoTemplate.stream(appointments, Document.class,
+                    mongoTemplate.getCollectionName(Appointment.class))) {
+                while (documents.hasNext()) {
+                    Contribution contribution = Contribution.of(documents.next());
+                    if (contribution != null && (pending == null || pending.contains(contribution.bucket()))) {
+                        add(days, contribution, 1);
+                    }
+                }
+            }
+
+            Query schedules = new Query();
+            schedules.fields().include("availableDays").include("availableTimeSlots").include("unavailableDates").include("version");
+            try (CloseableIterator<Doctor> doctors = mongoTemplate.stream(schedules, Doctor.class)) {
+                while (doctors.hasNext()) {
+                    Doctor doctor = doctors.next();
+                    for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+                        String bucket = UtilizationRollup.idOf(doctor.getId(), date);
+                        int offered = availabilityEngine.offeredMinutes(doctor, date);
+                        if (offered > 0 && (pending == null || pending.contains(bucket))) {
+                            LocalDate day = date;
+                            days.computeIfAbsent(bucket, id -> new Delta(doctor.getId(), day)).offeredMinutes = offered;
+                        }
+                    }
+                }
+            }
+
+            Set<String> changed = writeRecount(days, revisions, stamp);
+            written += days.size() - changed.size();
+            pending = changed;
+        }
+
+        System.out.println("Reconciled " + written + " utilization rollup days from " + from + " to " + to
+                + " in " + Duration.ofNanos(System.nanoTime() - started).toMillis() + " ms"
+                + (pending.isEmpty() ? "" : ", " + pending.size() + " kept as counted after changing during every pass"));
+        return written;
+    }
+
+    /**
+     * Replaces the counters of each day whose revision is still the one read before counting,
+     * creating days that did not exist then.
+     *
+     * @return ids of the days left alone because a counter write got there first
+     */
+    private Set<String> writeRecount(Map<String, Delta> days, Map<String, Long> revisions, Instant stamp) {
+        Set<String> changed = new HashSet<>();
+        List<Map.Entry<String, Delta>> entries = new ArrayList<>(days.entrySet());
+        for (int i = 0; i < entries.size(); i += BATCH_SIZE) {
+            List<Map.Entry<String, Delta>> batch = entries.subList(i, Math.min(i + BATCH_SIZE, entries.size()));
+            BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, UtilizationRollup.class);
+            for (Map.Entry<String, Delta> entry : batch) {
+                Delta day = entry.getValue();
+                long revision = revisions.getOrDefault(entry.getKey(), 0L);
+                // Days without a revision yet (new, or counted before revisions) have none stored
+                Criteria unchanged = revision == 0
+                        ? Criteria.where("revision").in(0L, null)
+                        : Criteria.where("revision").is(revision);
+                // When the day moved on, the upsert cannot match and fails on its _id instead
+                bulk.upsert(Query.query(Criteria.where("_id").is(entry.getKey()).andOperator(unchanged)), new Update()
+                        .set("doctorId", day.doctorId)
+                        .set("date", day.date)
+                        .set("week", weekOf(day.date))
+                        .set("booked", day.booked)
+                        .set("bookedMinutes", day.bookedMinutes)
+                        .set("offeredMinutes", day.offeredMinutes)
+                        .set("completed", day.completed)
+                        .set("noShows", day.noShows)
+                        .set("reconciledAt", stamp)
+                        .inc("revision", 1));
+            }
+            try {
+                bulk.execute();
+            } catch (BulkOperationException e) {
+                for (BulkWriteError error : e.getErrors()) {
+                    if (error.getCode() != DUPLICATE_KEY) {
+                        throw e;
+                    }
+                    changed.add(batch.get(error.getIndex()).getKey());
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Booked against offered time per doctor and day or week in [from, to], with completions,
+     * no-shows and cancellations. Reads only the rollups.
+     *
+     * @param doctorId one doctor, or null for all
+     * @param weekly   whether to sum days into weeks (Monday to Sunday)
+     */
+    public List<Map<String, Object>> getUtilization(LocalDate from, LocalDate to, String doctorId, boolean weekly) {
+        checkRange(from, to);
+        Criteria criteria = Criteria.where("date").gte(from).lte(to);
+        if (doctorId != null) {
+            criteria.and("doctorId").is(doctorId);
+        }
+        Query query = Query.query(criteria).with(Sort.by("doctorId", "date"));
+
+        Map<String, Totals> periods = new LinkedHashMap<>();
+        for (UtilizationRollup day : mongoTemplate.find(query, UtilizationRollup.class)) {
+            LocalDate period = weekly ? weekOf(day.getDate()) : day.getDate();
+            periods.computeIfAbsent(day.getDoctorId() + "|" + period, key -> new Totals(day.getDoctorId(), period)).add(day);
+        }
+        Map<String, String> names = doctorNames(periods.values());
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Totals totals : periods.values()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("doctorId", totals.doctorId);
+            row.put("doctorName", names.get(totals.doctorId));
+            row.put(weekly ? "week" : "date", totals.period);
+            row.putAll(totals.toMap());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Completions, no-shows and cancellations across all doctors per week in [from, to].
+     */
+    public List<Map<String, Object>> getNoShowTrend(LocalDate from, LocalDate to) {
+        checkRange(from, to);
+        Query query = Query.query(Criteria.where("date").gte(from).lte(to)).with(Sort.by("date"));
+        query.fields().include("date").include("completed").include("noShows").include("cancelled")
+                .include("booked").include("bookedMinutes").include("offeredMinutes");
+
+        Map<LocalDate, Totals> weeks = new LinkedHashMap<>();
+        for (UtilizationRollup day : mongoTemplate.find(query, UtilizationRollup.class)) {
+            weeks.computeIfAbsent(weekOf(day.getDate()), week -> new Totals(null, week)).add(day);
+        }
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Totals totals : weeks.values()) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("week", totals.period);
+            row.put("completed", totals.completed);
+            row.put("noShows", totals.noShows);
+            row.put("cancelled", totals.cancelled);
+            row.put("noShowRate", totals.noShowRate());
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private Map<String, String> doctorNames(Iterable<Totals> periods) {
+        List<String> ids = new ArrayList<>();
+        for (Totals totals : periods) {
+            if (!ids.contains(totals.doctorId)) {
+                ids.add(totals.doctorId);
+            }
+        }
+        Map<String, String> names = new HashMap<>();
+        if (ids.isEmpty()) {
+            return names;
+        }
+        Query query = Query.query(Criteria.where("_id").in(ids));
+        query.fields().include("firstName").include("lastName");
+        for (Doctor doctor : mongoTemplate.find(query, Doctor.class)) {
+            names.put(doctor.getId(), doctor.getFirstName() + " " + doctor.getLastName());
+        }
+        return names;
+    }
+
+    public static void checkRange(LocalDate from, LocalDate to) {
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("from and to are required");
+        }
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("to must not be before from");
+        }
+        if (ChronoUnit.DAYS.between(from, to) >= MAX_RANGE_DAYS) {
+            throw new IllegalArgumentException("Range can span at most " + MAX_RANGE_DAYS + " days");
+        }
+    }
+
+    static LocalDate weekOf(LocalDate date) {
+        return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+    }
+
+    private static long minutesBetween(Instant startAt, Instant endAt) {
+        if (startAt == null || endAt == null || !endAt.isAfter(startAt)) {
+            return DEFAULT_MINUTES;
+        }
+        return Duration.between(startAt, endAt).toMinutes();
+    }
+
+    // LocalDate is stored as a date in the server's zone
+    private static LocalDate toLocalDate(Date value) {
+        return value.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+    }
+
+    /**
+     * Counter changes for one day; in a reconcile, the day's recounted totals.
+     */
+    private static class Delta {
+        private final String doctorId;
+        private final LocalDate date;
+        private long booked;
+        private long bookedMinutes;
+        private long offeredMinutes;
+        private long completed;
+        private long noShows;
+        private long cancelled;
+
+        Delta(String doctorId, LocalDate date) {
+            this.doctorId = doctorId;
+            this.date = date;
+        }
+
+        boolean isZero() {
+            return booked == 0 && bookedMinutes == 0 && completed == 0 && noShows == 0 && cancelled == 0;
+        }
+    }
+
+    /**
+     * Sums of the days in one reporting period.
+     */
+    private static class Totals {
+        private final String doctorId;
+        private final LocalDate period;
+        private long booked;
+        private long bookedMinutes;
+        private long offeredMinutes;
+        private long completed;
+        private long noShows;
+        private long cancelled;
+
+        Totals(String doctorId, LocalDate period) {
+            this.doctorId = doctorId;
+            this.period = period;
+        }
+
+        void add(UtilizationRollup day) {
+            booked += day.getBooked();
+            bookedMinutes += day.getBookedMinutes();
+            offeredMinutes += day.getOfferedMinutes();
+            completed += day.getCompleted();
+            noShows += day.getNoShows();
+            cancelled += day.getCancelled();
+        }
+
+        Double noShowRate() {
+            return completed + noShows > 0 ? (double) noShows / (completed + noShows) : null;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("booked", booked);
+            map.put("bookedMinutes", bookedMinutes);
+            map.put("offeredMinutes", offeredMinutes);
+            map.put("utilization", offeredMinutes > 0 ? (double) bookedMinutes / offeredMinutes : null);
+            map.put("completed", completed);
+            map.put("noShows", noShows);
+            map.put("cancelled", cancelled);
+            map.put("noShowRate", noShowRate());
+            return map;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.pulmocare.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Reads another stream and yields its base64 encoding, one small chunk at a time.
+ * The JDK only offers the encoding side as an OutputStream wrapper, which would need a
+ * pipe and a second thread to feed an HTTP body publisher.
+ */
+public class Base64EncodingInputStream extends InputStream {
+
+    // Multiple of 3 so that only the final chunk needs padding
+    private static final int CHUNK_SIZE = 3 * 2048;
+
+    private final InputStream source;
+    private final byte[] raw = new byte[CHUNK_SIZE];
+    private byte[] encoded = new byte[0];
+    private int position;
+    private boolean finished;
+
+    public Base64EncodingInputStream(InputStream source) {
+        this.source = source;
+    }
+
+    /**
+     * Length of the base64 encoding of the given number of bytes, padding included.
+     */
+    public static long encodedLength(long rawLength) {
+        return 4 * ((rawLength + 2) / 3);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return encoded[position++];
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(length, encoded.length - position);
+        System.arraycopy(encoded, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Encodes the next chunk once the current one is used up.
+     *
+     * @return false at the end of the source
+     */
+    private boolean fill() throws IOException {
+        if (position < encoded.length) {
+            return true;
+        }
+        if (finished) {
+            return false;
+        }
+
+        // Fill the whole chunk; a short read in the middle would put padding mid-stream
+        int filled = 0;
+        while (filled < CHUNK_SIZE) {
+            int read = source.read(raw, filled, CHUNK_SIZE - filled);
+            if (read == -1) {
+                finished = true;
+                break;
+            }
+            filled += read;
+        }
+        if (filled == 0) {
+            return false;
+        }
+
+        encoded = filled == CHUNK_SIZE
+                ? Base64.getEncoder().encode(raw)
+                : Base64.getEncoder().encode(Arrays.copyOf(raw, filled));
+        position = 0;
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+package com.pulmocare.util;
+
+import org.bytedeco.opencv.global.opencv_core;
+import org.bytedeco.opencv.global.opencv_imgproc;
+import org.bytedeco.opencv.opencv_core.Mat;
+import org.bytedeco.opencv.opencv_core.Point2f;
+import org.bytedeco.opencv.opencv_core.RotatedRect;
+import org.bytedeco.opencv.opencv_core.Scalar;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+public class ScanPreprocessingUtils {
+
+    // Larger angles are more likely a landscape page or a bad estimate than a skewed scan
+    private static final double MAX_DESKEW_ANGLE = 15.0;
+    private static final double MIN_DESKEW_ANGLE = 0.1;
+
+    /**
+     * Turn a rendered scan page into a straightened black-on-white image ready for OCR.
+     * The caller owns the returned Mat and must release it.
+     *
+     * @param page a TYPE_BYTE_GRAY image, as rendered by PDFBox with ImageType.GRAY
+     */
+    public static Mat deskewAndBinarize(BufferedImage page) {
+        if (page.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+            throw new IllegalArgumentException("Expected a grayscale page image");
+        }
+
+        int width = page.getWidth();
+        int height = page.getHeight();
+        byte[] pixels = ((DataBufferByte) page.getRaster().getDataBuffer()).getData();
+        Mat gray = new Mat(height, width, opencv_core.CV_8UC1);
+        gray.data().put(pixels);
+
+        // Scanner speckle would otherwise widen the ink box used for deskewing and be read as text
+        Mat denoised = new Mat();
+        opencv_imgproc.medianBlur(gray, denoised, 3);
+        gray.release();
+        gray = denoised;
+
+        Mat deskewed = deskew(gray);
+
+        // Otsu picks the threshold per page, which copes with uneven scanner exposure
+        Mat binary = new Mat();
+        opencv_imgproc.threshold(deskewed, binary, 0, 255, opencv_imgproc.THRESH_BINARY | opencv_imgproc.THRESH_OTSU);
+
+        if (deskewed != gray) {
+            deskewed.release();
+        }
+        gray.release();
+        return binary;
+    }
+
+    /**
+     * Estimate the skew from the minimum-area rectangle around all ink pixels and rotate it away.
+     * Returns the input itself when no correction is needed.
+     */
+    private static Mat deskew(Mat gray) {
+        Mat ink = new Mat();
+        Mat points = new Mat();
+        try {
+            opencv_imgproc.threshold(gray, ink, 0, 255, opencv_imgproc.THRESH_BINARY_INV | opencv_imgproc.THRESH_OTSU);
+            opencv_core.findNonZero(ink, points);
+            if (points.rows() == 0) {
+                return gray;
+            }
+
+            RotatedRect box = opencv_imgproc.minAreaRect(points);
+            double angle = box.angle();
+            // minAreaRect reports angles in [0, 90); fold to the nearest horizontal
+            if (angle > 45) {
+                angle -= 90;
+            }
+            if (Math.abs(angle) < MIN_DESKEW_ANGLE || Math.abs(angle) > MAX_DESKEW_ANGLE) {
+                return gray;
+            }
+
+            Point2f center = new Point2f(gray.cols() / 2.0f, gray.rows() / 2.0f);
+            Mat rotation = opencv_imgproc.getRotationMatrix2D(center, angle, 1.0);
+            Mat rotated = new Mat();
+            opencv_imgproc.warpAffine(gray, rotated, rotation, gray.size(),
+                    opencv_imgproc.INTER_CUBIC, opencv_core.BORDER_REPLICATE, new Scalar());
+            rotation.release();
+            return rotated;
+        } finally {
+            ink.release();
+            points.release();
+        }
+    }
+}
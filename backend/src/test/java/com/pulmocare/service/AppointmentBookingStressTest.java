@@ -0,0 +1,217 @@
+package com.pulmocare.service;
+
+import com.pulmocare.model.Appointment;
+import com.pulmocare.model.BookingLedger;
+import com.pulmocare.model.Doctor;
+import com.pulmocare.model.Patient;
+import com.pulmocare.model.UtilizationRollup;
+import com.pulmocare.repository.DoctorRepository;
+import com.pulmocare.repository.PatientRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Fires many simultaneous bookings at a few slots of one doctor and checks that each slot has
+ * exactly one winner, and that concurrent doctor updates from the same read have exactly one.
+ *
+ * Needs a MongoDB to write to: set PULMOCARE_TEST_MONGODB_URI (and optionally
+ * PULMOCARE_TEST_MONGODB_DATABASE, default pulmocare_test). Skipped otherwise, so it never runs
+ * against the database in application.properties.
+ */
+@SpringBootTest(properties = {
+        "spring.data.mongodb.uri=${PULMOCARE_TEST_MONGODB_URI}",
+        "spring.data.mongodb.database=${PULMOCARE_TEST_MONGODB_DATABASE:pulmocare_test}"
+})
+@EnabledIfEnvironmentVariable(named = "PULMOCARE_TEST_MONGODB_URI", matches = ".+")
+class AppointmentBookingStressTest {
+
+    private static final String[] SLOT_STARTS = {"09:00", "09:30", "10:00", "10:30"};
+    private static final int BOOKINGS = 2000;
+    private static final int THREADS = 64;
+
+    @Autowired
+    private AppointmentService appointmentService;
+
+    @Autowired
+    private DoctorService doctorService;
+
+    @Autowired
+    private DoctorRepository doctorRepository;
+
+    @Autowired
+    private PatientRepository patientRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private Doctor doctor;
+    private Patient patient;
+    private LocalDate date;
+
+    @BeforeEach
+    void setUp() {
+        List<String> days = List.of("mon", "tue", "wed", "thu", "fri", "sat", "sun");
+        Map<String, List<Doctor.TimeSlot>> slots = new HashMap<>();
+        for (String day : days) {
+            List<Doctor.TimeSlot> daySlots = new ArrayList<>();
+            for (String start : SLOT_STARTS) {
+                LocalTime startTime = LocalTime.parse(start);
+                daySlots.add(new Doctor.TimeSlot(start, startTime.plusMinutes(30).toString()));
+            }
+            slots.put(day, daySlots);
+        }
+
+        doctor = new Doctor();
+        doctor.setFirstName("Stress");
+        doctor.setLastName("Test");
+        doctor.setEmail("stress-test-doctor-" + System.nanoTime() + "@example.com");
+        doctor.setAvailableDays(new ArrayList<>(days));
+        doctor.setAvailableTimeSlots(slots);
+        doctor.setUnavailableDates(new ArrayList<>());
+        doctor = doctorRepository.save(doctor);
+
+        patient = new Patient();
+        patient.setFirstName("Stress");
+        patient.setLastName("Test");
+        patient.setEmail("stress-test-patient-" + System.nanoTime() + "@example.com");
+        patient = patientRepository.save(patient);
+
+        date = LocalDate.now().plusDays(7);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mongoTemplate.remove(Query.query(AppointmentViewService.referencing("doctor", doctor.getId())), Appointment.class);
+        mongoTemplate.remove(Query.query(Criteria.where("doctorId").is(doctor.getId())), BookingLedger.class);
+        mongoTemplate.remove(Query.query(Criteria.where("doctorId").is(doctor.getId())), UtilizationRollup.class);
+        doctorRepository.deleteById(doctor.getId());
+        patientRepository.deleteById(patient.getId());
+    }
+
+    @Test
+    void concurrentBookingsHaveOneWinnerPerSlot() throws Exception {
+        Map<String, AtomicInteger> winners = new ConcurrentHashMap<>();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Throwable> unexpected = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int i = 0; i < BOOKINGS; i++) {
+            String slot = SLOT_STARTS[i % SLOT_STARTS.length];
+            futures.add(executor.submit(() -> {
+                start.await();
+                try {
+                    appointmentService.createAppointment(booking(slot));
+                    winners.computeIfAbsent(slot, s -> new AtomicInteger()).incrementAndGet();
+                } catch (RuntimeException e) {
+                    if (e.getMessage() != null && e.getMessage().contains("already has an appointment")) {
+                        rejected.incrementAndGet();
+                    } else {
+                        synchronized (unexpected) {
+                            unexpected.add(e);
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long started = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        double seconds = (System.nanoTime() - started) / 1e9;
+        executor.shutdown();
+
+        System.out.printf("%d bookings on %d slots with %d threads in %.2fs (%.0f bookings/s), %d rejected%n",
+                BOOKINGS, SLOT_STARTS.length, THREADS, seconds, BOOKINGS / seconds, rejected.get());
+
+        assertTrue(unexpected.isEmpty(), "Unexpected failures: " + unexpected);
+        for (String slot : SLOT_STARTS) {
+            assertEquals(1, winners.getOrDefault(slot, new AtomicInteger()).get(), "Winners of " + slot);
+        }
+        assertEquals(BOOKINGS - SLOT_STARTS.length, rejected.get());
+        assertEquals(SLOT_STARTS.length, mongoTemplate.count(
+                Query.query(AppointmentViewService.referencing("doctor", doctor.getId())), Appointment.class));
+    }
+
+    @Test
+    void concurrentUpdatesFromTheSameReadHaveOneWinner() throws Exception {
+        Doctor read = doctorService.getDoctorForUpdate(doctor.getId());
+        AtomicInteger saved = new AtomicInteger();
+        AtomicInteger conflicts = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int i = 0; i < THREADS; i++) {
+            String description = "Update " + i;
+            futures.add(executor.submit(() -> {
+                start.await();
+                Doctor details = doctorService.getDoctorForUpdate(doctor.getId());
+                details.setVersion(read.getVersion());
+                details.setDescription(description);
+                try {
+                    doctorService.updateDoctor(doctor.getId(), details);
+                    saved.incrementAndGet();
+                } catch (OptimisticLockingFailureException e) {
+                    conflicts.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(1, saved.get());
+        assertEquals(THREADS - 1, conflicts.get());
+        assertEquals(read.getVersion() + 1, doctorRepository.findById(doctor.getId()).get().getVersion());
+    }
+
+    private Appointment booking(String slot) {
+        Doctor doctorRef = new Doctor();
+        doctorRef.setId(doctor.getId());
+        Patient patientRef = new Patient();
+        patientRef.setId(patient.getId());
+
+        LocalTime startTime = LocalTime.parse(slot);
+        Appointment appointment = new Appointment();
+        appointment.setDoctor(doctorRef);
+        appointment.setPatient(patientRef);
+        appointment.setDate(date);
+        appointment.setHour(startTime);
+        appointment.setEndTimeStr(startTime.plusMinutes(30).toString());
+        appointment.setReason("Stress test");
+        return appointment;
+    }
+}
@@ -0,0 +1,288 @@
+package com.pulmocare.service;
+
+import com.pulmocare.model.BookingLedger;
+import com.pulmocare.model.Doctor;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.pulmocare.service.AvailabilityEngine.Result.AVAILABLE;
+import static com.pulmocare.service.AvailabilityEngine.Result.BOOKED;
+import static com.pulmocare.service.AvailabilityEngine.Result.DATE_UNAVAILABLE;
+import static com.pulmocare.service.AvailabilityEngine.Result.DAY_OFF;
+import static com.pulmocare.service.AvailabilityEngine.Result.OUTSIDE_SLOTS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AvailabilityEngineTest {
+
+    private static final LocalDate MONDAY = LocalDate.of(2025, 3, 3);
+
+    private final AvailabilityEngine engine = new AvailabilityEngine();
+    private final Map<LocalDate, BookingLedger> ledgers = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(engine, "bookingLedgerService", new BookingLedgerService() {
+            @Override
+            public BookingLedger find(String doctorId, LocalDate date) {
+                return ledgers.get(date);
+            }
+        });
+    }
+
+    @Test
+    void bitRangesMatchABooleanReference() {
+        Random random = new Random(11);
+        for (int round = 0; round < 2000; round++) {
+            long[] mask = new long[(AvailabilityEngine.MINUTES_PER_DAY + 63) / 64];
+            boolean[] reference = new boolean[AvailabilityEngine.MINUTES_PER_DAY];
+            for (int i = 0; i < 4; i++) {
+                int from = edgeOrRandom(random);
+                int to = Math.max(from, edgeOrRandom(random));
+                AvailabilityEngine.setRange(mask, from, to);
+                for (int minute = from; minute < to; minute++) {
+                    reference[minute] = true;
+                }
+            }
+            for (int i = 0; i < 20; i++) {
+                int from = edgeOrRandom(random);
+                int to = Math.max(from, edgeOrRandom(random));
+                boolean clear = true;
+                for (int minute = from; minute < to; minute++) {
+                    clear &= !reference[minute];
+                }
+                assertEquals(clear, AvailabilityEngine.isClear(mask, from, to), "[" + from + ", " + to + ")");
+            }
+        }
+    }
+
+    @Test
+    void slotEdgesAreInclusiveOfTheSlotOnly() {
+        Doctor doctor = doctor(slot("09:00", "09:30"));
+
+        assertEquals(AVAILABLE, check(doctor, "09:00", "09:30"));
+        assertEquals(AVAILABLE, check(doctor, "09:00", "09:15"));
+        assertEquals(AVAILABLE, check(doctor, "09:15", "09:30"));
+        assertEquals(OUTSIDE_SLOTS, check(doctor, "08:59", "09:29"));
+        assertEquals(OUTSIDE_SLOTS, check(doctor, "09:01", "09:31"));
+        assertEquals(DAY_OFF, engine.check(doctor, MONDAY.plusDays(1), 540, 570));
+    }
+
+    @Test
+    void slotsAtTheEndOfTheDayAndAcrossWordBoundaries() {
+        // 00:50-01:20 spans minute 64, where the first word of the mask ends
+        Doctor doctor = doctor(slot("00:50", "01:20"), slot("23:29", "23:59"));
+        ledgers.put(MONDAY, ledger(new BookingLedger.Booking("a1", 64, 65)));
+
+        assertEquals(AVAILABLE, check(doctor, "23:29", "23:59"));
+        assertEquals(AVAILABLE, check(doctor, "00:50", "01:04"));
+        assertEquals(AVAILABLE, check(doctor, "01:05", "01:20"));
+        assertEquals(BOOKED, check(doctor, "01:03", "01:05"));
+        assertEquals(List.of("23:29"), startsOf(engine.freeSlots(doctor, MONDAY)));
+    }
+
+    @Test
+    void overlappingTemplateSlotsAreEachBookableButNotTogether() {
+        Doctor doctor = doctor(slot("09:00", "09:30"), slot("09:00", "09:40"), slot("09:00", "10:00"), slot("09:15", "09:45"));
+
+        assertEquals(AVAILABLE, check(doctor, "09:15", "09:45"));
+        assertEquals(AVAILABLE, check(doctor, "09:20", "09:40"));
+        // Only the hour-long slot covers it, whichever of the 09:00 slots the lookup lands on
+        assertEquals(AVAILABLE, check(doctor, "09:00", "10:00"));
+        assertEquals(AVAILABLE, check(doctor, "09:30", "09:50"));
+        assertEquals(OUTSIDE_SLOTS, check(doctor, "09:50", "10:10"));
+        // Offered minutes count the overlap once
+        assertEquals(60, engine.offeredMinutes(doctor, MONDAY));
+    }
+
+    @Test
+    void bookingsThatOnlyTouchDoNotOverlap() {
+        Doctor doctor = doctor(slot("09:00", "09:30"), slot("09:30", "10:00"), slot("10:00", "10:30"));
+        ledgers.put(MONDAY, ledger(new BookingLedger.Booking("a1", 570, 600)));
+
+        assertEquals(AVAILABLE, check(doctor, "09:00", "09:30"));
+        assertEquals(AVAILABLE, check(doctor, "10:00", "10:30"));
+        assertEquals(BOOKED, check(doctor, "09:30", "10:00"));
+        assertEquals(AVAILABLE, check(doctor, "09:29", "09:30"));
+        assertEquals(BOOKED, check(doctor, "09:30", "09:31"));
+        assertEquals(BOOKED, check(doctor, "09:59", "10:00"));
+        assertEquals(List.of("09:00", "10:00"), startsOf(engine.freeSlots(doctor, MONDAY)));
+    }
+
+    @Test
+    void excludedAppointmentDoesNotBlockItsOwnTime() {
+        Doctor doctor = doctor(slot("09:00", "10:00"));
+        ledgers.put(MONDAY, ledger(new BookingLedger.Booking("a1", 540, 570)));
+
+        assertEquals(BOOKED, engine.check(doctor, MONDAY, 555, 585));
+        assertEquals(AVAILABLE, engine.check(doctor, MONDAY, 555, 585, "a1"));
+        assertEquals(BOOKED, engine.check(doctor, MONDAY, 555, 585, "a2"));
+    }
+
+    @Test
+    void unavailableDatesWinOverTheTemplate() {
+        Doctor doctor = doctor(slot("09:00", "09:30"));
+        doctor.setUnavailableDates(new ArrayList<>(List.of(MONDAY.toString())));
+
+        assertEquals(DATE_UNAVAILABLE, check(doctor, "09:00", "09:30"));
+        assertEquals(AVAILABLE, engine.check(doctor, MONDAY.plusWeeks(1), 540, 570));
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "PULMOCARE_SLOW_TESTS", matches = "true")
+    void benchmarkAgainstStringParsing() {
+        // A full weekday of half-hour slots, half of them booked
+        List<Doctor.TimeSlot> daySlots = new ArrayList<>();
+        List<BookingLedger.Booking> bookings = new ArrayList<>();
+        List<LocalTime> bookedStarts = new ArrayList<>();
+        for (int minute = 9 * 60; minute < 17 * 60; minute += 30) {
+            daySlots.add(new Doctor.TimeSlot(label(minute), label(minute + 30)));
+            if ((minute / 30) % 2 == 0) {
+                bookings.add(new BookingLedger.Booking("a" + minute, minute, minute + 30));
+                bookedStarts.add(LocalTime.of(minute / 60, minute % 60));
+            }
+        }
+        Doctor doctor = doctor(daySlots.toArray(new Doctor.TimeSlot[0]));
+        ledgers.put(MONDAY, ledger(bookings.toArray(new BookingLedger.Booking[0])));
+
+        int checks = 1_000_000;
+        for (int round = 0; round < 2; round++) {
+            int legacyFree = 0;
+            long started = System.nanoTime();
+            for (int i = 0; i < checks; i++) {
+                Doctor.TimeSlot slot = daySlots.get(i % daySlots.size());
+                if (legacyIsAvailable(doctor, MONDAY, LocalTime.parse(slot.getStartTime()), slot.getEndTime(), bookedStarts)) {
+                    legacyFree++;
+                }
+            }
+            double legacySeconds = (System.nanoTime() - started) / 1e9;
+
+            int free = 0;
+            started = System.nanoTime();
+            for (int i = 0; i < checks; i++) {
+                Doctor.TimeSlot slot = daySlots.get(i % daySlots.size());
+                int start = AvailabilityEngine.parseMinute(slot.getStartTime());
+                if (engine.check(doctor, MONDAY, start, start + 30) == AVAILABLE) {
+                    free++;
+                }
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+
+            System.out.printf("%d checks: string parsing %.0f checks/s, bitsets %.0f checks/s (%.1fx)%n",
+                    checks, checks / legacySeconds, checks / seconds, legacySeconds / seconds);
+            assertEquals(legacyFree, free);
+        }
+    }
+
+    /**
+     * The slot and booking checks of AppointmentService.validateAppointmentTime before the
+     * availability engine, without its logging: every "HH:mm" of the day's template parsed on
+     * every call, and a booking found by its start time.
+     */
+    private static boolean legacyIsAvailable(Doctor doctor, LocalDate date, LocalTime startTime, String endTimeStr,
+                                             List<LocalTime> bookedStarts) {
+        String startTimeStr = String.format("%02d:%02d", startTime.getHour(), startTime.getMinute());
+        if (doctor.getUnavailableDates() != null && doctor.getUnavailableDates().contains(date.toString())) {
+            return false;
+        }
+        String dayOfWeek = date.getDayOfWeek().toString().toLowerCase().substring(0, 3);
+        if (!doctor.getAvailableDays().contains(dayOfWeek)) {
+            return false;
+        }
+        List<Doctor.TimeSlot> availableSlots = doctor.getAvailableTimeSlots().get(dayOfWeek);
+        if (availableSlots == null || availableSlots.isEmpty()) {
+            return false;
+        }
+        LocalTime requestedStartTime = LocalTime.parse(startTimeStr, DateTimeFormatter.ofPattern("HH:mm"));
+        LocalTime requestedEndTime = LocalTime.parse(endTimeStr, DateTimeFormatter.ofPattern("HH:mm"));
+        boolean timeSlotAvailable = false;
+        for (Doctor.TimeSlot slot : availableSlots) {
+            LocalTime doctorStartTime = LocalTime.parse(slot.getStartTime(), DateTimeFormatter.ofPattern("HH:mm"));
+            LocalTime doctorEndTime = LocalTime.parse(slot.getEndTime(), DateTimeFormatter.ofPattern("HH:mm"));
+            if (!requestedStartTime.isBefore(doctorStartTime) && !requestedEndTime.isAfter(doctorEndTime)) {
+                timeSlotAvailable = true;
+                break;
+            }
+        }
+        if (!timeSlotAvailable) {
+            return false;
+        }
+        for (LocalTime booked : bookedStarts) {
+            if (booked.equals(startTime)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private AvailabilityEngine.Result check(Doctor doctor, String start, String end) {
+        return engine.check(doctor, MONDAY, AvailabilityEngine.parseMinute(start), AvailabilityEngine.parseMinute(end));
+    }
+
+    /**
+     * A doctor working Mondays only, with the given template.
+     */
+    private static Doctor doctor(Doctor.TimeSlot... slots) {
+        Map<String, List<Doctor.TimeSlot>> template = new HashMap<>();
+        template.put("mon", List.of(slots));
+        Doctor doctor = new Doctor();
+        doctor.setId("doctor-1");
+        doctor.setVersion(1L);
+        doctor.setAvailableDays(new ArrayList<>(List.of("mon")));
+        doctor.setAvailableTimeSlots(template);
+        doctor.setUnavailableDates(new ArrayList<>());
+        return doctor;
+    }
+
+    /**
+     * A template slot of any length; the TimeSlot setters only accept half hours, but stored
+     * doctors are not held to that.
+     */
+    private static Doctor.TimeSlot slot(String start, String end) {
+        Doctor.TimeSlot slot = new Doctor.TimeSlot();
+        ReflectionTestUtils.setField(slot, "startTime", start);
+        ReflectionTestUtils.setField(slot, "endTime", end);
+        return slot;
+    }
+
+    private static BookingLedger ledger(BookingLedger.Booking... bookings) {
+        BookingLedger ledger = new BookingLedger();
+        ledger.setDoctorId("doctor-1");
+        ledger.setDate(MONDAY);
+        ledger.setBookings(new ArrayList<>(List.of(bookings)));
+        return ledger;
+    }
+
+    private static List<String> startsOf(List<Doctor.TimeSlot> slots) {
+        List<String> starts = new ArrayList<>();
+        for (Doctor.TimeSlot slot : slots) {
+            starts.add(slot.getStartTime());
+        }
+        return starts;
+    }
+
+    private static String label(int minute) {
+        return String.format("%02d:%02d", minute / 60, minute % 60);
+    }
+
+    /**
+     * Mostly minutes next to a 64-minute word boundary or the ends of the day.
+     */
+    private static int edgeOrRandom(Random random) {
+        if (random.nextInt(3) == 0) {
+            return random.nextInt(AvailabilityEngine.MINUTES_PER_DAY + 1);
+        }
+        int edge = random.nextInt(AvailabilityEngine.MINUTES_PER_DAY / 64 + 2) * 64;
+        return Math.max(0, Math.min(AvailabilityEngine.MINUTES_PER_DAY, edge + random.nextInt(3) - 1));
+    }
+}
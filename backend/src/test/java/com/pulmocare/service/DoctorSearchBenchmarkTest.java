@@ -0,0 +1,130 @@
+package com.pulmocare.service;
+
+import com.pulmocare.model.Doctor;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Ranking and latency of doctor typeahead over a generated directory.
+ *
+ * Needs a MongoDB to write to: set PULMOCARE_TEST_MONGODB_URI (and optionally
+ * PULMOCARE_TEST_MONGODB_DATABASE, default pulmocare_test). The 100k-doctor run also needs
+ * PULMOCARE_SLOW_TESTS=true.
+ */
+@SpringBootTest(properties = {
+        "spring.data.mongodb.uri=${PULMOCARE_TEST_MONGODB_URI}",
+        "spring.data.mongodb.database=${PULMOCARE_TEST_MONGODB_DATABASE:pulmocare_test}"
+})
+@EnabledIfEnvironmentVariable(named = "PULMOCARE_TEST_MONGODB_URI", matches = ".+")
+class DoctorSearchBenchmarkTest {
+
+    // Marks the generated doctors, so that only they are removed afterwards
+    private static final String MARKER = "search-benchmark";
+    private static final int INSERT_BATCH = 1000;
+    private static final int RUNS_PER_QUERY = 50;
+
+    private static final String[] FIRST_NAMES = {"Anna", "Annabel", "Annette", "Anika", "Bruno", "Carla", "Chloé",
+            "Daniel", "Elias", "Fatima", "Georges", "Hana", "Ibrahim", "Julia", "Karim", "Lina", "Marc", "Nadia",
+            "Omar", "Paul", "Rami", "Sara", "Tarek", "Yara", "Zeina"};
+    private static final String[] LAST_NAMES = {"Abboud", "Annan", "Haddad", "Khoury", "Saad", "Nassar", "Aoun",
+            "Karam", "Farah", "Gemayel", "Hayek", "Issa", "Jaber", "Maalouf", "Rahme", "Salameh", "Tannous", "Zein"};
+    private static final String[] LOCATIONS = {"Beirut", "Byblos", "Annaya", "Tripoli", "Saida", "Zahle", "Jounieh", "Tyre"};
+
+    private static final List<String> QUERIES = Arrays.asList("a", "an", "ann", "anna", "kh", "khoury", "anna ha", "be", "zahle");
+
+    @Autowired
+    private DoctorSearchService doctorSearchService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @AfterEach
+    void tearDown() {
+        mongoTemplate.remove(Query.query(Criteria.where("description").is(MARKER)), Doctor.class);
+    }
+
+    @Test
+    void wholeWordNameMatchesComeFirstHoweverLateTheySort() {
+        // Many prefix matches sorting before the one exact match, more than the candidate window
+        List<Doctor> doctors = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            doctors.add(doctor("Annabel", "Aaron" + (char) ('a' + i % 26) + i, "Beirut", i));
+        }
+        doctors.add(doctor("Ann", "Zouein", "Tyre", 500));
+        mongoTemplate.insert(doctors, Doctor.class);
+
+        List<Map<String, Object>> suggestions = doctorSearchService.suggest("ann", 5);
+
+        assertEquals(5, suggestions.size());
+        assertEquals("Zouein", suggestions.get(0).get("lastName"));
+    }
+
+    @Test
+    void autocompleteLatencyAt10kDoctors() {
+        benchmark(10_000);
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "PULMOCARE_SLOW_TESTS", matches = "true")
+    void autocompleteLatencyAt100kDoctors() {
+        benchmark(100_000);
+    }
+
+    private void benchmark(int count) {
+        Random random = new Random(3);
+        List<Doctor> batch = new ArrayList<>(INSERT_BATCH);
+        for (int i = 0; i < count; i++) {
+            batch.add(doctor(FIRST_NAMES[random.nextInt(FIRST_NAMES.length)],
+                    LAST_NAMES[random.nextInt(LAST_NAMES.length)] + (i % 7 == 0 ? "-" + LAST_NAMES[random.nextInt(LAST_NAMES.length)] : ""),
+                    LOCATIONS[random.nextInt(LOCATIONS.length)], i));
+            if (batch.size() == INSERT_BATCH) {
+                mongoTemplate.insert(batch, Doctor.class);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            mongoTemplate.insert(batch, Doctor.class);
+        }
+
+        for (String q : QUERIES) {
+            // Warm up, then measure
+            doctorSearchService.suggest(q, 10);
+            long[] nanos = new long[RUNS_PER_QUERY];
+            int found = 0;
+            for (int run = 0; run < RUNS_PER_QUERY; run++) {
+                long started = System.nanoTime();
+                found = doctorSearchService.suggest(q, 10).size();
+                nanos[run] = System.nanoTime() - started;
+            }
+            Arrays.sort(nanos);
+            System.out.printf("%d doctors, suggest '%s': p50 %.2fms, p95 %.2fms, %d suggestions%n", count, q,
+                    nanos[RUNS_PER_QUERY / 2] / 1e6, nanos[RUNS_PER_QUERY * 95 / 100] / 1e6, found);
+            assertTrue(found > 0, "No suggestions for " + q);
+        }
+    }
+
+    private static Doctor doctor(String firstName, String lastName, String location, int i) {
+        Doctor doctor = new Doctor();
+        doctor.setFirstName(firstName);
+        doctor.setLastName(lastName);
+        doctor.setLocation(location);
+        doctor.setDescription(MARKER);
+        doctor.setEmail(MARKER + "-" + System.nanoTime() + "-" + i + "@example.com");
+        return doctor;
+    }
+}
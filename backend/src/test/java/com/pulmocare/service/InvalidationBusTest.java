@@ -0,0 +1,170 @@
+package com.pulmocare.service;
+
+import com.pulmocare.model.Doctor;
+import com.pulmocare.repository.DoctorRepository;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Writes a doctor behind the caches' back, as another node would, and checks that the change
+ * stream evicts it from the EntityCache and the AvailabilityEngine; then stops the bus, writes
+ * again, and checks that the restarted bus replays the missed change from its saved position.
+ *
+ * Needs a MongoDB replica set to write to (change streams do not run on a standalone server):
+ * set PULMOCARE_TEST_MONGODB_URI (and optionally PULMOCARE_TEST_MONGODB_DATABASE, default
+ * pulmocare_test). Skipped otherwise.
+ */
+@SpringBootTest(properties = {
+        "spring.data.mongodb.uri=${PULMOCARE_TEST_MONGODB_URI}",
+        "spring.data.mongodb.database=${PULMOCARE_TEST_MONGODB_DATABASE:pulmocare_test}",
+        "invalidation.node-id=" + InvalidationBusTest.NODE_ID,
+        "invalidation.token-save-interval-ms=100",
+        // Long enough that only an eviction can make a cached doctor fresh again
+        "cache.ttl-ms=600000"
+})
+@EnabledIfEnvironmentVariable(named = "PULMOCARE_TEST_MONGODB_URI", matches = ".+")
+class InvalidationBusTest {
+
+    static final String NODE_ID = "invalidation-bus-test";
+    private static final long WAIT_MILLIS = 30_000;
+
+    @Autowired
+    private InvalidationBus invalidationBus;
+
+    @Autowired
+    private EntityCache entityCache;
+
+    @Autowired
+    private AvailabilityEngine availabilityEngine;
+
+    @Autowired
+    private DoctorRepository doctorRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private Doctor doctor;
+
+    @BeforeEach
+    void setUp() {
+        Document hello = mongoTemplate.getDb().runCommand(new Document("isMaster", 1));
+        assumeTrue(hello.containsKey("setName"), "Change streams need a replica set");
+
+        Map<String, List<Doctor.TimeSlot>> slots = new HashMap<>();
+        slots.put("mon", List.of(new Doctor.TimeSlot("09:00", "09:30")));
+        doctor = new Doctor();
+        doctor.setFirstName("Invalidation");
+        doctor.setLastName("Test");
+        doctor.setEmail("invalidation-test-doctor-" + System.nanoTime() + "@example.com");
+        doctor.setDescription("v1");
+        doctor.setAvailableDays(new ArrayList<>(List.of("mon")));
+        doctor.setAvailableTimeSlots(slots);
+        doctor.setUnavailableDates(new ArrayList<>());
+        doctor = doctorRepository.save(doctor);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (doctor != null) {
+            doctorRepository.deleteById(doctor.getId());
+        }
+        mongoTemplate.getCollection("change_stream_tokens").deleteOne(new Document("_id", NODE_ID));
+    }
+
+    @Test
+    void otherNodesWritesEvictAndARestartReplaysMissedOnes() throws Exception {
+        awaitWatching();
+
+        cache();
+        writeDescription("v2");
+        await(() -> !isCompiled() && "v2".equals(entityCache.getDoctor(doctor.getId()).getDescription()),
+                "the change to reach the caches");
+
+        // Let the bus save a position past the write, then stop it
+        Thread.sleep(500);
+        assertNotNull(mongoTemplate.getCollection("change_stream_tokens").find(new Document("_id", NODE_ID)).first(),
+                "Saved change stream position");
+        invalidationBus.stop();
+        Thread thread = (Thread) ReflectionTestUtils.getField(invalidationBus, "thread");
+        thread.join(WAIT_MILLIS);
+        assertFalse(thread.isAlive());
+
+        // Missed while stopped: the caches keep the old doctor
+        cache();
+        writeDescription("v3");
+        Thread.sleep(500);
+        assertEquals("v2", entityCache.getDoctor(doctor.getId()).getDescription());
+        assertTrue(isCompiled());
+
+        long received = invalidationBus.getReceived();
+        invalidationBus.start();
+        await(() -> !isCompiled() && "v3".equals(entityCache.getDoctor(doctor.getId()).getDescription()),
+                "the missed change to be replayed");
+        assertTrue(invalidationBus.getReceived() > received);
+    }
+
+    /**
+     * Loads the doctor into the entity cache and compiles its schedule.
+     */
+    private void cache() {
+        Doctor cached = entityCache.getDoctor(doctor.getId());
+        availabilityEngine.check(cached, LocalDate.now().with(DayOfWeek.MONDAY).plusWeeks(1), 540, 570);
+        assertTrue(isCompiled());
+    }
+
+    private boolean isCompiled() {
+        Map<?, ?> compiled = (Map<?, ?>) ReflectionTestUtils.getField(availabilityEngine, "compiled");
+        return compiled.containsKey(doctor.getId());
+    }
+
+    /**
+     * Changes the doctor straight in the collection, without the local evictions DoctorService
+     * does, so only the change stream can tell the caches.
+     */
+    private void writeDescription(String description) {
+        mongoTemplate.getCollection("doctors").updateOne(new Document("_id", new ObjectId(doctor.getId())),
+                new Document("$set", new Document("description", description)).append("$inc", new Document("version", 1)));
+    }
+
+    /**
+     * The bus starts watching some time after the context is ready; changes made before that
+     * are not seen. Writes until one is received.
+     */
+    private void awaitWatching() throws InterruptedException {
+        long before = invalidationBus.getReceived();
+        await(() -> {
+            writeDescription("v1");
+            return invalidationBus.getReceived() > before;
+        }, "the invalidation bus to start watching");
+    }
+
+    private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for " + what);
+            Thread.sleep(100);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.pulmocare.service;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs JobLeases in separate JVMs against one MongoDB, as separate nodes would: one leader at a
+ * time, a higher token on takeover, and a stalled holder fenced off once its lease is taken.
+ *
+ * Needs a MongoDB to write to: set PULMOCARE_TEST_MONGODB_URI (and optionally
+ * PULMOCARE_TEST_MONGODB_DATABASE, default pulmocare_test). Skipped otherwise.
+ */
+@EnabledIfEnvironmentVariable(named = "PULMOCARE_TEST_MONGODB_URI", matches = ".+")
+class JobLeasesMultiNodeTest {
+
+    private static final long TTL_MILLIS = 1500;
+    private static final long RENEW_MILLIS = 300;
+    // Generous, since every node is a fresh JVM starting up alongside the others
+    private static final long WAIT_MILLIS = 60_000;
+
+    private final String uri = System.getenv("PULMOCARE_TEST_MONGODB_URI");
+    private final String database = System.getenv().getOrDefault("PULMOCARE_TEST_MONGODB_DATABASE", "pulmocare_test");
+    private final List<Node> nodes = new ArrayList<>();
+    private String leaseName;
+
+    @BeforeEach
+    void setUp() {
+        leaseName = "test-" + UUID.randomUUID();
+        removeLeases();
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (Node node : nodes) {
+            node.process.destroyForcibly();
+        }
+        removeLeases();
+    }
+
+    @Test
+    void oneLeaderAtATimeAndTakeoverRaisesTheToken() throws Exception {
+        Node first = start("elect", "node-a");
+        Node second = start("elect", "node-b");
+
+        String firstLeader = awaitAny(line -> line.startsWith("LEADER "), first, second);
+        Node leader = firstLeader.endsWith("node-a") ? first : second;
+        Node follower = leader == first ? second : first;
+        long token = tokenOf(firstLeader);
+
+        // Both keep heartbeating; the follower must not become leader while the leader renews
+        Thread.sleep(3 * TTL_MILLIS);
+        assertFalse(follower.has(line -> line.startsWith("LEADER ")), follower.output());
+        assertTrue(leader.count(line -> line.startsWith("LEADER ")) > 1, leader.output());
+        assertEquals(1, leader.lines().stream().filter(line -> line.startsWith("LEADER ")).map(JobLeasesMultiNodeTest::tokenOf)
+                .distinct().count(), "Renewals keep the token: " + leader.output());
+
+        // A crashed leader releases nothing; the follower takes over once the lease expires
+        long killedAt = System.currentTimeMillis();
+        leader.process.destroyForcibly().waitFor(10, TimeUnit.SECONDS);
+        String takeover = follower.await(line -> line.startsWith("LEADER "));
+        long handover = System.currentTimeMillis() - killedAt;
+
+        assertEquals(token + 1, tokenOf(takeover));
+        assertTrue(handover < TTL_MILLIS + 2 * RENEW_MILLIS + 2000, "Handover took " + handover + "ms");
+        System.out.printf("Leader handover after a crash took %dms (TTL %dms, heartbeat %dms)%n",
+                handover, TTL_MILLIS, RENEW_MILLIS);
+    }
+
+    @Test
+    void stalledHolderIsFencedAfterTakeover() throws Exception {
+        // Takes the lease, then stops renewing for twice its TTL before trying to write
+        Node stalled = start("stall", "node-a");
+        String acquired = stalled.await(line -> line.startsWith("ACQUIRED "));
+
+        Node contender = start("contend", "node-b");
+        String takeover = contender.await(line -> line.startsWith("ACQUIRED "));
+        assertEquals(tokenOf(acquired) + 1, tokenOf(takeover));
+
+        String outcome = stalled.await(line -> line.startsWith("FENCED") || line.startsWith("WROTE"));
+        assertTrue(outcome.startsWith("FENCED"), stalled.output());
+
+        // The new holder's writes still pass the fence
+        assertNotNull(contender.await(line -> line.startsWith("WROTE")));
+    }
+
+    @Test
+    void contendersNeverHoldTheSameLeaseTogether() throws Exception {
+        // A released lease, so the contenders race to update one document rather than to create it
+        try (MongoClient client = MongoClients.create(uri)) {
+            client.getDatabase(database).getCollection("job_leases").insertOne(new Document("_id", leaseName)
+                    .append("owner", null).append("token", 0L).append("expiresAt", new Date()));
+        }
+        for (int i = 0; i < 4; i++) {
+            start("contend", "node-" + i);
+        }
+        // Each holder works, writes and releases. A holder starved past its TTL (likely with four JVMs
+        // starting on a small machine) may lose the lease, but must then be fenced, not overlap
+        List<Long> tokens = new ArrayList<>();
+        for (Node node : nodes) {
+            tokens.add(tokenOf(node.await(line -> line.startsWith("ACQUIRED "))));
+            node.await(line -> line.startsWith("DONE"));
+        }
+        assertEquals(nodes.size(), tokens.stream().distinct().count(), "Tokens: " + tokens);
+        long wrote = 0;
+        for (Node node : nodes) {
+            assertFalse(node.has(line -> line.startsWith("OVERLAP")), node.output());
+            wrote += node.count(line -> line.equals("WROTE"));
+        }
+        assertTrue(wrote > 0, "No node wrote under the lease");
+    }
+
+    private Node start(String mode, String nodeId) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Probe.class.getName(),
+                mode, uri, database, leaseName, nodeId)
+                .redirectErrorStream(true)
+                .start();
+        Node node = new Node(process);
+        nodes.add(node);
+        return node;
+    }
+
+    private static String awaitAny(Predicate<String> predicate, Node... candidates) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            for (Node node : candidates) {
+                for (String line : node.lines()) {
+                    if (predicate.test(line)) {
+                        return line;
+                    }
+                }
+            }
+            Thread.sleep(50);
+        }
+        StringBuilder outputs = new StringBuilder("No node printed the expected line");
+        for (Node node : candidates) {
+            outputs.append("\n--- node output:\n").append(node.output());
+        }
+        throw new AssertionError(outputs.toString());
+    }
+
+    private static long tokenOf(String line) {
+        return Long.parseLong(line.split(" ")[1]);
+    }
+
+    private void removeLeases() {
+        try (MongoClient client = MongoClients.create(uri)) {
+            client.getDatabase(database).getCollection("job_leases").deleteMany(new Document("_id",
+                    new Document("$in", List.of(JobLeases.LEADER, leaseName, leaseName + "-writes"))));
+        }
+    }
+
+    /**
+     * A child JVM and the lines it has printed so far.
+     */
+    private static class Node {
+        private final Process process;
+        private final List<String> lines = new ArrayList<>();
+
+        Node(Process process) {
+            this.process = process;
+            Thread reader = new Thread(() -> {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        synchronized (lines) {
+                            lines.add(line);
+                        }
+                    }
+                } catch (IOException e) {
+                    // The process was killed
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        List<String> lines() {
+            synchronized (lines) {
+                return new ArrayList<>(lines);
+            }
+        }
+
+        boolean has(Predicate<String> predicate) {
+            return lines().stream().anyMatch(predicate);
+        }
+
+        long count(Predicate<String> predicate) {
+            return lines().stream().filter(predicate).count();
+        }
+
+        String await(Predicate<String> predicate) throws InterruptedException {
+            return awaitAny(predicate, this);
+        }
+
+        String output() {
+            return String.join("\n", lines());
+        }
+    }
+
+    /**
+     * Entry point of a node: mode, MongoDB URI, database, lease name and node id.
+     */
+    public static class Probe {
+        public static void main(String[] args) throws Exception {
+            // Only the probe's own lines on stdout
+            ((ch.qos.logback.classic.Logger) org.slf4j.LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME))
+                    .setLevel(ch.qos.logback.classic.Level.WARN);
+            String mode = args[0];
+            String lease = args[3];
+            try (MongoClient client = MongoClients.create(args[1])) {
+                MongoTemplate mongoTemplate = new MongoTemplate(client, args[2]);
+                JobLeases leases = new JobLeases();
+                ReflectionTestUtils.setField(leases, "mongoTemplate", mongoTemplate);
+                ReflectionTestUtils.setField(leases, "nodeId", args[4]);
+                ReflectionTestUtils.setField(leases, "leaderTtlMillis", TTL_MILLIS);
+
+                switch (mode) {
+                    case "elect":
+                        // Heartbeats until killed, reporting leadership and its token
+                        while (true) {
+                            leases.heartbeat();
+                            JobLeases.Lease leadership = leases.leadership();
+                            System.out.println(leadership != null
+                                    ? "LEADER " + leadership.getToken() + " " + args[4]
+                                    : "FOLLOWER " + args[4]);
+                            Thread.sleep(RENEW_MILLIS);
+                        }
+                    case "stall":
+                        JobLeases.Lease held = acquire(leases, lease);
+                        Thread.sleep(2 * TTL_MILLIS);
+                        System.out.println(write(leases, held, mongoTemplate, lease) ? "WROTE" : "FENCED");
+                        break;
+                    case "contend":
+                        contend(leases, mongoTemplate, lease);
+                        System.out.println("DONE");
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown mode " + mode);
+                }
+            }
+            System.out.flush();
+        }
+
+        /**
+         * Works a little under the lease, renewing it, then writes and hands it on.
+         */
+        private static void contend(JobLeases leases, MongoTemplate mongoTemplate, String name) throws InterruptedException {
+            JobLeases.Lease won = acquire(leases, name);
+            for (int i = 0; i < 3; i++) {
+                Thread.sleep(RENEW_MILLIS);
+                won = leases.renew(won, TTL_MILLIS);
+                if (won == null) {
+                    System.out.println("FENCED");
+                    return;
+                }
+            }
+            boolean wrote = write(leases, won, mongoTemplate, name);
+            System.out.println(wrote ? "WROTE" : "FENCED");
+            if (wrote) {
+                leases.release(won);
+            }
+        }
+
+        private static JobLeases.Lease acquire(JobLeases leases, String name) throws InterruptedException {
+            while (true) {
+                JobLeases.Lease lease = leases.tryAcquire(name, TTL_MILLIS);
+                if (lease != null) {
+                    System.out.println("ACQUIRED " + lease.getToken());
+                    return lease;
+                }
+                Thread.sleep(50);
+            }
+        }
+
+        /**
+         * Writes on the lease's behalf after the fence check, as a job would. A holder marker
+         * that another node set in between means two nodes worked under the lease at once.
+         */
+        private static boolean write(JobLeases leases, JobLeases.Lease lease, MongoTemplate mongoTemplate, String name) {
+            try {
+                leases.checkFence(lease);
+            } catch (IllegalStateException e) {
+                return false;
+            }
+            Document marker = new Document("_id", name + "-writes").append("token", lease.getToken());
+            Document previous = mongoTemplate.getCollection("job_leases").findOneAndReplace(
+                    new Document("_id", name + "-writes"), marker,
+                    new com.mongodb.client.model.FindOneAndReplaceOptions().upsert(true));
+            if (previous != null && previous.getLong("token") >= lease.getToken()) {
+                System.out.println("OVERLAP " + previous.getLong("token"));
+            }
+            return true;
+        }
+    }
+}
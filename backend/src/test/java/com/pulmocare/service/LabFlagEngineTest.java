@@ -0,0 +1,140 @@
+package com.pulmocare.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LabFlagEngineTest {
+
+    private final LabFlagEngine engine = new LabFlagEngine();
+
+    @Test
+    void resolvesAliasesInFreeFormNames() {
+        assertEquals("TG", code("Serum Triglycerides"));
+        assertEquals("WBC", code("WBC's"));
+        assertEquals("WBC", code("Total Leukocyte Count (TLC)"));
+        assertEquals("HGB", code("Hemoglobin (Hb)"));
+        assertEquals("HDL", code("HDL Cholesterol"));
+        assertEquals("HBA1C", code("Glycated Hemoglobin"));
+        assertEquals("EOS_ABS", code("Absolute Eosinophil Count"));
+        assertEquals("K", code("K"));
+        assertEquals("GLU", code("Glucose, Fasting"));
+    }
+
+    @Test
+    void derivedTestsDoNotResolveToTheAnalyteTheyMention() {
+        assertNull(engine.resolve("Mean Corpuscular Hemoglobin"));
+        assertNull(engine.resolve("MCHC (Mean Corpuscular Hemoglobin Concentration)"));
+        assertNull(engine.resolve("Cholesterol/HDL Ratio"));
+        assertNull(engine.resolve("LDL/HDL Ratio"));
+        assertNull(engine.resolve("Non-HDL Cholesterol"));
+        assertNull(engine.resolve("Vitamin K"));
+        assertNull(engine.resolve("Absolute Neutrophil Count"));
+        assertNull(engine.resolve("Mean Platelet Volume"));
+        assertNull(engine.resolve("Urine Potassium"));
+        assertNull(engine.resolve("Vitamin D"));
+    }
+
+    @Test
+    void derivedTestWithoutARangeIsNotFlaggedAgainstTheParentRange() {
+        // Against the hemoglobin range, 33 g/dL would be flagged as high
+        LabFlagEngine.Decision decision = engine.evaluate("Mean Corpuscular Hemoglobin Concentration", "33",
+                "g/dL", null, "F", 40);
+
+        assertTrue(decision.isNormal(), decision.getReason());
+        assertNull(decision.getAnalyteCode());
+    }
+
+    @Test
+    void reportRangeTakesPrecedence() {
+        LabFlagEngine.Decision decision = engine.evaluate("Hemoglobin", "11.0", "g/dL", "10.5 - 13.0", "F", 40);
+
+        assertTrue(decision.isNormal(), decision.getReason());
+        assertTrue(decision.getReason().contains("report range"), decision.getReason());
+    }
+
+    @Test
+    void catalogRangeDependsOnSexAndAge() {
+        assertFalse(engine.evaluate("Hemoglobin", "12.5", "g/dL", null, "Male", 40).isNormal());
+        assertTrue(engine.evaluate("Hemoglobin", "12.5", "g/dL", null, "Female", 40).isNormal());
+        assertTrue(engine.evaluate("Hemoglobin", "11.8", "g/dL", null, "Male", 10).isNormal());
+    }
+
+    @Test
+    void convertsUnitsBeforeComparingToTheCatalog() {
+        // 7.0 mmol/L is about 126 mg/dL, above the 70-99 fasting range
+        LabFlagEngine.Decision decision = engine.evaluate("Fasting Blood Sugar", "7.0", "mmol/L", null, null, null);
+
+        assertFalse(decision.isNormal());
+        assertEquals("GLU", decision.getAnalyteCode());
+        assertTrue(decision.getReason().contains("converted from 7 mmol/L"), decision.getReason());
+        assertTrue(decision.getReason().contains("catalog " + engine.getCatalogVersion()), decision.getReason());
+    }
+
+    @Test
+    void scalesCountsPrintedInCellsPerMicrolitre() {
+        assertTrue(engine.evaluate("WBC", "7500", "cells/cumm", "4.0 - 11.0", null, null).isNormal());
+        assertFalse(engine.evaluate("WBC", "12500", "cells/cumm", "4.0 - 11.0", null, null).isNormal());
+    }
+
+    @Test
+    void strictAndInclusiveBounds() {
+        assertFalse(engine.evaluate("Triglycerides", "150", "mg/dL", "< 150", null, null).isNormal());
+        assertTrue(engine.evaluate("Triglycerides", "150", "mg/dL", "<= 150", null, null).isNormal());
+        assertTrue(engine.evaluate("Creatinine", "1.2", "mg/dL", "0.6 - 1.2", null, null).isNormal());
+    }
+
+    @Test
+    void qualitativeResults() {
+        assertTrue(engine.evaluate("Urine Glucose", "Negative", null, "Negative", null, null).isNormal());
+        assertFalse(engine.evaluate("Urine Protein", "Positive", null, "Negative", null, null).isNormal());
+    }
+
+    @Test
+    @EnabledIfEnvironmentVariable(named = "PULMOCARE_SLOW_TESTS", matches = "true")
+    void benchmarkEvaluate() {
+        String[][] samples = {
+                {"Hemoglobin", "g/dL", "12.0 - 15.5"},
+                {"Serum Triglycerides", "mg/dL", "< 150"},
+                {"Total Leukocyte Count", "cells/cumm", "4000 - 11000"},
+                {"Fasting Blood Sugar", "mmol/L", null},
+                {"Serum Creatinine", "mg/dL", "0.6-1.2"},
+                {"Potassium", "mEq/L", "3.5 - 5.1"},
+                {"Cholesterol/HDL Ratio", null, "< 5"},
+                {"Platelet Count", "x10^3/uL", "150 - 410"}};
+        Random random = new Random(7);
+        int results = 200_000;
+        String[] values = new String[results];
+        for (int i = 0; i < results; i++) {
+            values[i] = String.valueOf(Math.round(random.nextDouble() * 300) / 10.0);
+        }
+
+        // Warm up, then measure
+        int abnormal = 0;
+        for (int round = 0; round < 2; round++) {
+            abnormal = 0;
+            long started = System.nanoTime();
+            for (int i = 0; i < results; i++) {
+                String[] sample = samples[i % samples.length];
+                if (!engine.evaluate(sample[0], values[i], sample[1], sample[2], "F", 40).isNormal()) {
+                    abnormal++;
+                }
+            }
+            double seconds = (System.nanoTime() - started) / 1e9;
+            System.out.printf("Evaluated %d results in %.3fs (%.0f results/s), %d abnormal%n",
+                    results, seconds, results / seconds, abnormal);
+        }
+        assertTrue(abnormal > 0);
+    }
+
+    private String code(String testName) {
+        LabFlagEngine.Analyte analyte = engine.resolve(testName);
+        return analyte != null ? analyte.getCode() : null;
+    }
+}
@@ -0,0 +1,129 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LabReportTemplateParserTest {
+
+    private final LabReportTemplateParser parser = new LabReportTemplateParser();
+
+    private static final String HEADER = String.join("\n",
+            "CITY DIAGNOSTICS LABORATORY",
+            "Patient Name : Mrs. Jane Doe        Age/Sex : 54 Y / F",
+            "Referred By : Dr. A. Smith",
+            "Collected On : 12/03/2024");
+
+    @Test
+    void parsesRowsAndMetadataOfAValueUnitRangeTable() {
+        ObjectNode report = parser.parse(String.join("\n",
+                HEADER,
+                "Test Name Result Unit Reference Range",
+                "COMPLETE BLOOD COUNT",
+                "Hemoglobin 10.2 L g/dL 12.0 - 15.5",
+                "Total Leukocyte Count 11.8 x10^3/µL 4.0 - 11.0",
+                "Platelet Count 250 10^3/uL 150 - 410",
+                "eGFR 58 mL/min/1.73m2 >60",
+                "Urine Glucose Negative Negative"));
+
+        assertNotNull(report);
+        assertEquals(List.of("Hemoglobin", "Total Leukocyte Count", "Platelet Count", "eGFR", "Urine Glucose: Negative"),
+                testNames(report));
+        JsonNode hemoglobin = report.get("tests").get(0);
+        assertEquals("10.2", hemoglobin.get("result_value").asText());
+        assertEquals("g/dL", hemoglobin.get("unit").asText());
+        assertEquals("12.0-15.5", hemoglobin.get("normal_range").asText());
+
+        JsonNode metadata = report.get("metadata");
+        assertEquals("Jane Doe", metadata.get("patient_name").asText());
+        assertEquals("54", metadata.get("age").asText());
+        assertEquals("Female", metadata.get("gender").asText());
+        assertEquals("12/03/2024", metadata.get("date").asText());
+    }
+
+    @Test
+    void parsesAValueRangeUnitTable() {
+        ObjectNode report = parser.parse(String.join("\n",
+                "Investigation Observed Value Biological Ref. Interval Unit",
+                "Creatinine 1.4 H 0.6 - 1.2 mg/dL",
+                "Urea 32 15 - 40 mg/dL",
+                "Sodium 138 135 - 145 mmol/L"));
+
+        assertNotNull(report);
+        assertEquals(List.of("Creatinine", "Urea", "Sodium"), testNames(report));
+        assertEquals("mmol/L", report.get("tests").get(2).get("unit").asText());
+    }
+
+    @Test
+    void footersBelowTheTableAreNotTests() {
+        ObjectNode report = parser.parse(String.join("\n",
+                HEADER,
+                "Test Result Unit Reference Range",
+                "Hemoglobin 13.5 g/dL 12.0 - 15.5",
+                "Creatinine 0.9 mg/dL 0.6 - 1.2",
+                "Potassium 4.1 mmol/L 3.5 - 5.1",
+                "",
+                "Page 1 of 3",
+                "Printed on 12 Mar 2024",
+                "Sample received 10 Mar 2024 at 09 30",
+                "Report valid 30 days 1 - 2"));
+
+        assertNotNull(report);
+        assertEquals(List.of("Hemoglobin", "Creatinine", "Potassium"), testNames(report));
+    }
+
+    @Test
+    void tableContinuesAfterARepeatedHeaderOnTheNextPage() {
+        ObjectNode report = parser.parse(String.join("\n",
+                "Test Result Unit Reference Range",
+                "Hemoglobin 13.5 g/dL 12.0 - 15.5",
+                "Hematocrit 41 % 36 - 46",
+                "Page 1 of 2",
+                "CITY DIAGNOSTICS LABORATORY",
+                "Patient Name : Jane Doe",
+                "Lab No 4471 1 - 2",
+                "Test Result Unit Reference Range",
+                "Creatinine 0.9 mg/dL 0.6 - 1.2",
+                "Page 2 of 2"));
+
+        assertNotNull(report);
+        assertEquals(List.of("Hemoglobin", "Hematocrit", "Creatinine"), testNames(report));
+    }
+
+    @Test
+    void textWithoutAKnownHeaderIsNotParsed() {
+        assertNull(parser.parse(String.join("\n",
+                HEADER,
+                "Hemoglobin 13.5 g/dL 12.0 - 15.5",
+                "Creatinine 0.9 mg/dL 0.6 - 1.2",
+                "Potassium 4.1 mmol/L 3.5 - 5.1")));
+    }
+
+    @Test
+    void recognizesLabUnits() {
+        for (String unit : List.of("g/dL", "%", "x10^3/µL", "10^6/uL", "mL/min/1.73m2", "mg/24hr", "µIU/mL",
+                "mEq/L", "U/L", "fL", "pg", "mm/hr", "cells/cumm", "Lakhs/cumm")) {
+            assertTrue(LabReportTemplateParser.isLabUnit(unit), unit);
+        }
+        for (String word : List.of("of", "Mar", "on", "at", "days", "Page")) {
+            assertFalse(LabReportTemplateParser.isLabUnit(word), word);
+        }
+    }
+
+    private static List<String> testNames(ObjectNode report) {
+        List<String> names = new ArrayList<>();
+        for (JsonNode test : report.get("tests")) {
+            names.add(test.get("test_name").asText());
+        }
+        return names;
+    }
+}
@@ -0,0 +1,193 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OcrServiceTest {
+
+    @Test
+    void blankPagesDoNotLowerTheDocumentConfidence() {
+        assertEquals(90, OcrService.documentConfidence(new int[]{90, 0, 90}, new int[]{120, 0, 80}));
+    }
+
+    @Test
+    void pagesWeighByTheirWords() {
+        // A nearly empty page read badly matters less than a full page read well
+        assertEquals(85, OcrService.documentConfidence(new int[]{90, 40}, new int[]{200, 20}));
+    }
+
+    @Test
+    void documentWithoutWordsHasNoConfidence() {
+        assertEquals(0, OcrService.documentConfidence(new int[]{0, 0}, new int[]{0, 0}));
+        assertEquals(0, OcrService.documentConfidence(new int[0], new int[0]));
+    }
+
+    /**
+     * Throughput and row accuracy of OCR plus the template parser on a synthetic corpus of
+     * slightly skewed, noisy scans, some with a blank trailing page. Needs Tesseract data: set
+     * PULMOCARE_TEST_TESSDATA to the directory holding eng.traineddata.
+     */
+    @Test
+    @EnabledIfEnvironmentVariable(named = "PULMOCARE_TEST_TESSDATA", matches = ".+")
+    void syntheticScanCorpus(@TempDir Path dir) throws Exception {
+        OcrService ocr = new OcrService(0);
+        ReflectionTestUtils.setField(ocr, "enabled", true);
+        ReflectionTestUtils.setField(ocr, "tessdataPath", System.getenv("PULMOCARE_TEST_TESSDATA"));
+        ReflectionTestUtils.setField(ocr, "language", "eng");
+        ReflectionTestUtils.setField(ocr, "minConfidence", 75);
+        LabReportTemplateParser parser = new LabReportTemplateParser();
+
+        Random random = new Random(11);
+        int reports = 12;
+        int pages = 0;
+        int expectedRows = 0;
+        int matchedRows = 0;
+        int confident = 0;
+        long nanos = 0;
+        try {
+            for (int r = 0; r < reports; r++) {
+                Map<String, String> expected = new HashMap<>();
+                Path pdf = dir.resolve("scan-" + r + ".pdf");
+                boolean blankPage = r % 3 == 0;
+                writeScan(pdf, randomRows(random, expected), blankPage, random);
+                pages += blankPage ? 2 : 1;
+                expectedRows += expected.size();
+
+                long started = System.nanoTime();
+                OcrService.Result result;
+                try (InputStream in = Files.newInputStream(pdf)) {
+                    result = ocr.recognize(in);
+                }
+                nanos += System.nanoTime() - started;
+                if (ocr.isConfident(result)) {
+                    confident++;
+                }
+
+                ObjectNode report = parser.parse(result.getText());
+                if (report != null) {
+                    for (JsonNode test : report.get("tests")) {
+                        // Analytes resolve case-insensitively, so a misread capital is not a miss
+                        String value = expected.get(test.get("test_name").asText().toLowerCase(Locale.ROOT));
+                        if (value != null && value.equals(test.path("result_value").asText())) {
+                            matchedRows++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            ocr.shutdown();
+        }
+
+        double seconds = nanos / 1e9;
+        double accuracy = (double) matchedRows / expectedRows;
+        System.out.printf(Locale.ROOT, "OCR corpus: %d reports, %d pages in %.1fs (%.2f pages/s), "
+                        + "%d/%d rows exact (%.1f%%), %d/%d reports confident%n",
+                reports, pages, seconds, pages / seconds, matchedRows, expectedRows, accuracy * 100, confident, reports);
+
+        // Misses are mostly "10^3/uL" read as "10%3/uL" and stray punctuation after values
+        assertTrue(accuracy >= 0.7, "Row accuracy " + accuracy);
+        assertEquals(reports, confident, "Blank pages must not send a readable scan to Gemini");
+    }
+
+    private static final String[][] ROWS = {
+            {"Hemoglobin", "g/dL", "12.0 - 15.5"},
+            {"Hematocrit", "%", "36 - 46"},
+            {"Platelet Count", "10^3/uL", "150 - 410"},
+            {"Creatinine", "mg/dL", "0.6 - 1.2"},
+            {"Urea", "mg/dL", "15 - 40"},
+            {"Sodium", "mmol/L", "135 - 145"},
+            {"Potassium", "mmol/L", "3.5 - 5.1"},
+            {"Glucose", "mg/dL", "70 - 99"},
+            {"Triglycerides", "mg/dL", "< 150"},
+            {"Cholesterol", "mg/dL", "< 200"}};
+
+    private static List<String> randomRows(Random random, Map<String, String> expected) {
+        List<String> lines = new ArrayList<>();
+        lines.add("CITY DIAGNOSTICS LABORATORY");
+        lines.add("Patient Name : Jane Doe      Age : 54");
+        lines.add("Collected On : 12/03/2024");
+        lines.add("");
+        lines.add("Test Result Unit Reference Range");
+        for (String[] row : ROWS) {
+            String value = String.format(Locale.ROOT, "%.1f", 1 + random.nextDouble() * 150);
+            expected.put(row[0].toLowerCase(Locale.ROOT), value);
+            lines.add(row[0] + "    " + value + "    " + row[1] + "    " + row[2]);
+        }
+        lines.add("");
+        lines.add("Page 1 of 1");
+        return lines;
+    }
+
+    private static void writeScan(Path pdf, List<String> lines, boolean blankPage, Random random) throws IOException {
+        // A4 at 150 DPI, tilted by up to 1.5 degrees, with scanner noise, stored as JPEG like a scan
+        int width = 1240;
+        int height = 1754;
+        BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = page.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g.rotate(Math.toRadians((random.nextDouble() - 0.5) * 3), width / 2.0, height / 2.0);
+        g.setColor(Color.BLACK);
+        g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 26));
+        int y = 160;
+        for (String line : lines) {
+            g.drawString(line, 120, y);
+            y += 44;
+        }
+        g.dispose();
+        for (int i = 0; i < width * height / 5000; i++) {
+            page.getRaster().setSample(random.nextInt(width), random.nextInt(height), 0, random.nextInt(128));
+        }
+
+        try (PDDocument document = new PDDocument()) {
+            addImagePage(document, JPEGFactory.createFromImage(document, page, 0.8f));
+            if (blankPage) {
+                BufferedImage blank = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+                Graphics2D b = blank.createGraphics();
+                b.setColor(Color.WHITE);
+                b.fillRect(0, 0, width, height);
+                b.dispose();
+                addImagePage(document, JPEGFactory.createFromImage(document, blank, 0.8f));
+            }
+            document.save(pdf.toFile());
+        }
+    }
+
+    private static void addImagePage(PDDocument document, PDImageXObject image) throws IOException {
+        PDPage page = new PDPage(PDRectangle.A4);
+        document.addPage(page);
+        try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+            content.drawImage(image, 0, 0, PDRectangle.A4.getWidth(), PDRectangle.A4.getHeight());
+        }
+    }
+}
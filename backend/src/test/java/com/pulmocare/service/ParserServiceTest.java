@@ -0,0 +1,86 @@
+package com.pulmocare.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ParserServiceTest {
+
+    private final ParserService parserService = new ParserService();
+
+    @Test
+    void pdfBodyStreamsTheEncodedPdfInsideTheRequestJson() throws Exception {
+        for (int size : new int[]{0, 1, 2, 3, 6145, 250_001}) {
+            byte[] pdf = new byte[size];
+            new Random(size).nextBytes(pdf);
+
+            HttpRequest.BodyPublisher body = parserService.pdfBody(() -> new ByteArrayInputStream(pdf), size);
+            byte[] sent = collect(body);
+
+            assertEquals(body.contentLength(), sent.length, "size " + size);
+            JsonNode request = new ObjectMapper().readTree(sent);
+            JsonNode inline = request.at("/contents/0/parts/1/inlineData");
+            assertEquals("application/pdf", inline.get("mimeType").asText());
+            assertArrayEquals(pdf, Base64.getDecoder().decode(inline.get("data").asText()), "size " + size);
+            assertEquals(0.1, request.at("/generationConfig/temperature").asDouble());
+        }
+    }
+
+    @Test
+    void pdfBodyReopensThePdfWhenResent() throws Exception {
+        byte[] pdf = new byte[10_000];
+        new Random(1).nextBytes(pdf);
+        AtomicInteger opened = new AtomicInteger();
+        HttpRequest.BodyPublisher body = parserService.pdfBody(() -> {
+            opened.incrementAndGet();
+            return new ByteArrayInputStream(pdf);
+        }, pdf.length);
+
+        assertArrayEquals(collect(body), collect(body));
+        assertEquals(2, opened.get());
+    }
+
+    private static byte[] collect(HttpRequest.BodyPublisher body) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        body.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                byte[] bytes = new byte[item.remaining()];
+                item.get(bytes);
+                out.write(bytes, 0, bytes.length);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(null);
+            }
+        });
+        done.get(30, TimeUnit.SECONDS);
+        return out.toByteArray();
+    }
+}
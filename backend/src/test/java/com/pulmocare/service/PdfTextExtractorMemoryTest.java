@@ -0,0 +1,163 @@
+package com.pulmocare.service;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Reads a PDF larger than the heap in a JVM started with a small -Xmx, to check that text
+ * extraction and page-group splitting do not hold the file in memory.
+ *
+ * Writes a PDF of about 96 MB first, so it only runs with PULMOCARE_SLOW_TESTS=true.
+ */
+@EnabledIfEnvironmentVariable(named = "PULMOCARE_SLOW_TESTS", matches = "true")
+class PdfTextExtractorMemoryTest {
+
+    private static final String HEAP = "-Xmx64m";
+    private static final int PAGES = 64;
+    private static final int GROUP_PAGES = 8;
+
+    @TempDir
+    static Path dir;
+
+    private static Path pdf;
+
+    @BeforeAll
+    static void writeLargePdf() throws IOException {
+        pdf = dir.resolve("large-report.pdf");
+        Random random = new Random(42);
+        try (PDDocument document = new PDDocument(MemoryUsageSetting.setupTempFileOnly())) {
+            for (int i = 1; i <= PAGES; i++) {
+                PDPage page = new PDPage(PDRectangle.A4);
+                document.addPage(page);
+
+                // Noise does not compress, so every page adds about 1.5 MB to the file
+                BufferedImage noise = new BufferedImage(1024, 512, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < noise.getHeight(); y++) {
+                    for (int x = 0; x < noise.getWidth(); x++) {
+                        noise.setRGB(x, y, random.nextInt());
+                    }
+                }
+                PDImageXObject image = LosslessFactory.createFromImage(document, noise);
+
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.drawImage(image, 50, 300, 500, 250);
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 12);
+                    content.newLineAtOffset(50, 700);
+                    content.showText("Page " + i + " Hemoglobin 13.5 g/dL 12.0 - 16.0 Creatinine 0.9 mg/dL 0.6 - 1.2");
+                    content.endText();
+                }
+            }
+            document.save(pdf.toFile());
+        }
+        assertTrue(Files.size(pdf) > 64L * 1024 * 1024, "Test PDF must be larger than the heap");
+    }
+
+    @Test
+    void extractsTextAndSplitsPagesWithinASmallHeap() throws Exception {
+        Path group = dir.resolve("group.pdf");
+        Result result = runWithSmallHeap("extract", pdf.toString(), group.toString());
+
+        assertEquals(0, result.exitCode, result.output);
+        assertTrue(result.output.contains("pages=" + PAGES + " textPages=" + PAGES), result.output);
+        assertTrue(result.output.contains("groupPages=" + GROUP_PAGES), result.output);
+    }
+
+    @Test
+    void loadingTheWholeFileDoesNotFitTheSameHeap() throws Exception {
+        // Guards the test itself: the heap is small enough to fail the in-memory load
+        Result result = runWithSmallHeap("load-in-memory", pdf.toString());
+
+        assertNotEquals(0, result.exitCode, result.output);
+        assertTrue(result.output.contains("OutOfMemoryError"), result.output);
+    }
+
+    private static Result runWithSmallHeap(String... args) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        String[] command = new String[5 + args.length];
+        command[0] = java;
+        command[1] = HEAP;
+        command[2] = "-cp";
+        command[3] = System.getProperty("java.class.path");
+        command[4] = Probe.class.getName();
+        System.arraycopy(args, 0, command, 5, args.length);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        assertTrue(process.waitFor(5, TimeUnit.MINUTES), "Probe did not finish");
+        return new Result(process.exitValue(), output);
+    }
+
+    private static class Result {
+        private final int exitCode;
+        private final String output;
+
+        Result(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Entry point of the small-heap JVM.
+     */
+    public static class Probe {
+        public static void main(String[] args) throws IOException {
+            File source = new File(args[1]);
+            if ("load-in-memory".equals(args[0])) {
+                try (PDDocument document = PDDocument.load(new FileInputStream(source))) {
+                    System.out.println("pages=" + document.getNumberOfPages());
+                }
+                return;
+            }
+
+            PdfTextExtractor extractor = new PdfTextExtractor();
+            PdfTextExtractor.Extraction extraction;
+            try (InputStream in = new FileInputStream(source)) {
+                extraction = extractor.extract(in);
+            }
+            int textPages = 0;
+            for (String page : extraction.getPages()) {
+                if (page.contains("Hemoglobin")) {
+                    textPages++;
+                }
+            }
+            System.out.println("pages=" + extraction.getPageCount() + " textPages=" + textPages);
+
+            File group = new File(args[2]);
+            extractor.extractPages(source, 1, GROUP_PAGES, group);
+            try (PDDocument document = PDDocument.load(group, MemoryUsageSetting.setupTempFileOnly())) {
+                System.out.println("groupPages=" + document.getNumberOfPages());
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.pulmocare.service;
+
+import com.mongodb.DBRef;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.pulmocare.model.Appointment;
+import com.pulmocare.model.UtilizationRollup;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Books appointments while a reconcile is recounting their day, and checks that the booking's
+ * counter write is not overwritten by the recount.
+ *
+ * Needs a MongoDB to write to: set PULMOCARE_TEST_MONGODB_URI (and optionally
+ * PULMOCARE_TEST_MONGODB_DATABASE, default pulmocare_test). Skipped otherwise.
+ */
+@EnabledIfEnvironmentVariable(named = "PULMOCARE_TEST_MONGODB_URI", matches = ".+")
+class UtilizationRollupReconcileTest {
+
+    private static final LocalDate DATE = LocalDate.of(2025, 3, 3);
+
+    private MongoClient client;
+    private RacingTemplate mongoTemplate;
+    private UtilizationRollupService service;
+    private String doctorId;
+
+    @BeforeEach
+    void setUp() {
+        client = MongoClients.create(System.getenv("PULMOCARE_TEST_MONGODB_URI"));
+        mongoTemplate = new RacingTemplate(client,
+                System.getenv().getOrDefault("PULMOCARE_TEST_MONGODB_DATABASE", "pulmocare_test"));
+        service = new UtilizationRollupService();
+        ReflectionTestUtils.setField(service, "mongoTemplate", mongoTemplate);
+        ReflectionTestUtils.setField(service, "availabilityEngine", new AvailabilityEngine());
+        doctorId = "reconcile-test-" + UUID.randomUUID();
+    }
+
+    @AfterEach
+    void tearDown() {
+        mongoTemplate.remove(Query.query(Criteria.where("doctor.$id").is(doctorId)), Appointment.class);
+        mongoTemplate.remove(Query.query(Criteria.where("doctorId").is(doctorId)), UtilizationRollup.class);
+        client.close();
+    }
+
+    @Test
+    void bookingDuringTheRecountIsNotOverwritten() {
+        book();
+        // Booked after the recount has read the day's appointments, before it writes the day
+        mongoTemplate.race = this::book;
+
+        service.reconcile(DATE, DATE);
+
+        UtilizationRollup day = rollup();
+        assertEquals(2, day.getBooked());
+        assertEquals(60, day.getBookedMinutes());
+    }
+
+    @Test
+    void recountReplacesDriftedCounters() {
+        book();
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(UtilizationRollup.idOf(doctorId, DATE))),
+                new Update().set("booked", 5).set("noShows", 2), UtilizationRollup.class);
+        // A day that no longer has any appointment
+        service.record(null, UtilizationRollupService.Contribution.of(appointment(DATE.plusDays(1))));
+        mongoTemplate.remove(Query.query(Criteria.where("doctor.$id").is(doctorId).and("date").is(DATE.plusDays(1))),
+                Appointment.class);
+
+        assertEquals(2, service.reconcile(DATE, DATE.plusDays(1)));
+
+        assertEquals(1, rollup().getBooked());
+        assertEquals(0, rollup().getNoShows());
+        assertEquals(0, mongoTemplate.findById(UtilizationRollup.idOf(doctorId, DATE.plusDays(1)), UtilizationRollup.class)
+                .getBooked());
+    }
+
+    /**
+     * Saves a 30 minute appointment on DATE and records it, as AppointmentService does.
+     */
+    private void book() {
+        service.record(null, UtilizationRollupService.Contribution.of(appointment(DATE)));
+    }
+
+    private Document appointment(LocalDate date) {
+        Date startAt = Date.from(date.atTime(9, 0).atZone(ZoneId.systemDefault()).toInstant());
+        Document appointment = new Document("doctor", new DBRef("doctors", doctorId))
+                .append("date", Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant()))
+                .append("startAt", startAt)
+                .append("endAt", new Date(startAt.getTime() + 30 * 60_000))
+                .append("upcoming", true)
+                .append("noShow", false);
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(Appointment.class)).insertOne(appointment);
+        return appointment;
+    }
+
+    private UtilizationRollup rollup() {
+        return mongoTemplate.findById(UtilizationRollup.idOf(doctorId, DATE), UtilizationRollup.class);
+    }
+
+    /**
+     * Runs the race once, when the first stream over the appointments is closed.
+     */
+    private static class RacingTemplate extends MongoTemplate {
+        private Runnable race;
+
+        RacingTemplate(MongoClient client, String database) {
+            super(client, database);
+        }
+
+        @Override
+        public <T> CloseableIterator<T> stream(Query query, Class<T> entityType, String collectionName) {
+            CloseableIterator<T> stream = super.stream(query, entityType, collectionName);
+            if (race == null || !getCollectionName(Appointment.class).equals(collectionName)) {
+                return stream;
+            }
+            Runnable pending = race;
+            race = null;
+            return new CloseableIterator<T>() {
+                @Override
+                public boolean hasNext() {
+                    return stream.hasNext();
+                }
+
+                @Override
+                public T next() {
+                    return stream.next();
+                }
+
+                @Override
+                public void close() {
+                    stream.close();
+                    pending.run();
+                }
+            };
+        }
+    }
+}
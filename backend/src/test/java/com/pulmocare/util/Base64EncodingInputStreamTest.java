@@ -0,0 +1,93 @@
+package com.pulmocare.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class Base64EncodingInputStreamTest {
+
+    // One byte short of, exactly at and past the 6144-byte chunk, plus multi-chunk sizes
+    private static final int[] LENGTHS = {0, 1, 2, 3, 4, 5, 6143, 6144, 6145, 6146, 12288, 100_000, 100_001, 100_002};
+
+    @Test
+    void matchesTheJdkEncoderForEveryRemainder() throws IOException {
+        for (int length : LENGTHS) {
+            byte[] raw = randomBytes(length);
+            byte[] encoded = readAll(new Base64EncodingInputStream(new ByteArrayInputStream(raw)), 8192);
+
+            assertArrayEquals(Base64.getEncoder().encode(raw), encoded, "length " + length);
+            assertEquals(Base64EncodingInputStream.encodedLength(length), encoded.length, "length " + length);
+        }
+    }
+
+    @Test
+    void shortReadsFromTheSourceDoNotPadMidStream() throws IOException {
+        for (int length : LENGTHS) {
+            byte[] raw = randomBytes(length);
+            // The source hands out at most 7 bytes per read, never a multiple of 3 in a row
+            InputStream trickle = new FilterInputStream(new ByteArrayInputStream(raw)) {
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    return super.read(buffer, offset, Math.min(count, 7));
+                }
+            };
+            byte[] encoded = readAll(new Base64EncodingInputStream(trickle), 8192);
+
+            assertArrayEquals(Base64.getEncoder().encode(raw), encoded, "length " + length);
+        }
+    }
+
+    @Test
+    void smallAndSingleByteReadsOfTheEncoding() throws IOException {
+        byte[] raw = randomBytes(20_000);
+        byte[] expected = Base64.getEncoder().encode(raw);
+
+        assertArrayEquals(expected, readAll(new Base64EncodingInputStream(new ByteArrayInputStream(raw)), 5));
+
+        ByteArrayOutputStream single = new ByteArrayOutputStream();
+        try (InputStream in = new Base64EncodingInputStream(new ByteArrayInputStream(raw))) {
+            int b;
+            while ((b = in.read()) != -1) {
+                single.write(b);
+            }
+        }
+        assertArrayEquals(expected, single.toByteArray());
+    }
+
+    @Test
+    void encodedLength() {
+        assertEquals(0, Base64EncodingInputStream.encodedLength(0));
+        assertEquals(4, Base64EncodingInputStream.encodedLength(1));
+        assertEquals(4, Base64EncodingInputStream.encodedLength(2));
+        assertEquals(4, Base64EncodingInputStream.encodedLength(3));
+        assertEquals(8, Base64EncodingInputStream.encodedLength(4));
+        assertEquals(4L * 1_000_000_000, Base64EncodingInputStream.encodedLength(3L * 1_000_000_000));
+    }
+
+    private static byte[] readAll(InputStream in, int bufferSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[bufferSize];
+        try (in) {
+            int read;
+            while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -102,4 +102,14 @@ interface AppointmentApiService {
         @Path("doctorId") doctorId: String,
         @Query("date") date: String
     ): Response<Map<String, Any>>
+
+    /**
+     * Get available time slots for a doctor on every date from [from] to [to] in one call
+     */
+    @GET("api/doctors/{doctorId}/availability/range")
+    suspend fun getAvailableTimeSlotsInRange(
+        @Path("doctorId") doctorId: String,
+        @Query("from") from: String,
+        @Query("to") to: String
+    ): Response<Map<String, Any>>
 }
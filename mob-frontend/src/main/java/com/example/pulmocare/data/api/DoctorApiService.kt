@@ -9,10 +9,25 @@ import retrofit2.http.*
  */
 interface DoctorApiService {
     /**
-     * Get all doctors
+     * Get a page of doctors; the cursor of the next page is in the X-Next-Cursor header.
+     * fields, e.g. "firstName,lastName", limits the doctors to those fields (all when null)
      */
     @GET("api/doctors")
-    suspend fun getAllDoctors(): Response<List<Doctor>>
+    suspend fun getAllDoctors(
+        @Query("cursor") cursor: String? = null,
+        @Query("fields") fields: String? = null
+    ): Response<List<Doctor>>
+    
+    /**
+     * Search doctors by name, location or description, best match first;
+     * the cursor of the next page is in the X-Next-Cursor header
+     */
+    @GET("api/doctors/search")
+    suspend fun searchDoctors(
+        @Query("q") q: String,
+        @Query("cursor") cursor: String? = null,
+        @Query("fields") fields: String? = null
+    ): Response<List<Doctor>>
     
     /**
      * Get doctor by ID
@@ -8,7 +8,7 @@ import retrofit2.http.*
 
 interface PatientApiService {
     @GET("api/patient")
-    suspend fun getAllPatients(): Response<List<Patient>>
+    suspend fun getAllPatients(@Query("cursor") cursor: String? = null): Response<List<Patient>>
     
     @GET("api/patient/{id}")
     suspend fun getPatientById(@Path("id") id: String): Response<Patient>
@@ -8,6 +8,7 @@ import com.example.pulmocare.data.api.NetworkModule
 import com.example.pulmocare.data.model.Doctor as ModelDoctor
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
+import retrofit2.Response
 import java.io.IOException
 import java.time.LocalDate
 
@@ -28,6 +29,7 @@ data class Doctor(
 
 class DoctorRepository(private val context: Context? = null) {
     private val TAG = "DoctorRepository"
+    private val DOCTOR_LIST_FIELDS = "firstName,lastName,location,phone,email,description,availableDays,availableTimeSlots"
     private val doctorApiService = NetworkModule.doctorApiService()
     
     // State to hold doctors fetched from backend
@@ -41,6 +43,22 @@ class DoctorRepository(private val context: Context? = null) {
     private val _error = mutableStateOf<String?>(null)
     val error = _error
     
+    // Follows the X-Next-Cursor header through every page of doctors,
+    // reading only the fields the doctor list shows
+    private suspend fun fetchAllDoctorPages(): Response<List<ModelDoctor>> {
+        val allDoctors = mutableListOf<ModelDoctor>()
+        var cursor: String? = null
+        do {
+            val response = doctorApiService.getAllDoctors(cursor, DOCTOR_LIST_FIELDS)
+            if (!response.isSuccessful) {
+                return response
+            }
+            allDoctors.addAll(response.body().orEmpty())
+            cursor = response.headers()["X-Next-Cursor"]
+        } while (cursor != null)
+        return Response.success(allDoctors)
+    }
+    
     // Function to fetch doctors from backend
     suspend fun fetchDoctors() {
         _isLoading.value = true
@@ -48,31 +66,11 @@ class DoctorRepository(private val context: Context? = null) {
         
         try {
             withContext(Dispatchers.IO) {
-                val response = doctorApiService.getAllDoctors()
+                val response = fetchAllDoctorPages()
                 if (response.isSuccessful) {
-                    response.body()?.let { backendDoctors ->                        // Convert backend doctor model to UI doctor model
-                        val uiDoctors = backendDoctors.map { backendDoctor ->
-                            // Convert the backend doctor to our UI model
-                            Doctor(
-                                id = backendDoctor.id ?: "",
-                                name = "Dr. ${backendDoctor.firstName.orEmpty().trim()} ${backendDoctor.lastName.orEmpty().trim()}",
-                                specialty = backendDoctor.specialization.orEmpty().ifEmpty { "General Physician" },
-                                rating = 4.8, // Default value or could be fetched from backend
-                                reviews = 100, // Default value or could be fetched from backend
-                                availability = backendDoctor.availableDays.map { day ->
-                                    // Capitalize first letter and show first 3 letters
-                                    day.replaceFirstChar { it.uppercase() }.take(3)
-                                },
-                                location = backendDoctor.location.orEmpty().ifEmpty { "Not specified" },
-                                phone = backendDoctor.phone.orEmpty().ifEmpty { "Not available" },
-                                email = backendDoctor.email.orEmpty().ifEmpty { "Not available" },
-                                image = backendDoctor.photo ?: "https://via.placeholder.com/100",
-                                bio = backendDoctor.description.orEmpty().ifEmpty { "No description available" },
-                                availableTimes = backendDoctor.availableTimeSlots.mapValues { (_, timeSlots) ->
-                                    timeSlots.map { slot -> "${slot.startTime} - ${slot.endTime}" }
-                                }
-                            )
-                        }
+                    response.body()?.let { backendDoctors ->
+                        // Convert backend doctor model to UI doctor model
+                        val uiDoctors = backendDoctors.map { it.toUiDoctor() }
                         
                         // Update the doctors list
                         _doctors.clear()
@@ -95,6 +93,59 @@ class DoctorRepository(private val context: Context? = null) {
         }
     }
     
+    // Function to search doctors on the backend; a blank query lists them all again
+    suspend fun searchDoctors(query: String) {
+        if (query.isBlank()) {
+            fetchDoctors()
+            return
+        }
+        _isLoading.value = true
+        _error.value = null
+        
+        try {
+            withContext(Dispatchers.IO) {
+                val response = doctorApiService.searchDoctors(query.trim(), null, DOCTOR_LIST_FIELDS)
+                if (response.isSuccessful) {
+                    val uiDoctors = response.body().orEmpty().map { it.toUiDoctor() }
+                    _doctors.clear()
+                    _doctors.addAll(uiDoctors)
+                } else {
+                    Log.e(TAG, "Error searching doctors: ${response.errorBody()?.string()}")
+                    _error.value = "Failed to search doctors: ${response.code()}"
+                }
+            }
+        } catch (e: IOException) {
+            Log.e(TAG, "Network error searching doctors", e)
+            _error.value = "Network error: ${e.message}"
+        } catch (e: Exception) {
+            Log.e(TAG, "Error searching doctors", e)
+            _error.value = "Error: ${e.message}"
+        } finally {
+            _isLoading.value = false
+        }
+    }
+    
+    // Convert the backend doctor to our UI model
+    private fun ModelDoctor.toUiDoctor() = Doctor(
+        id = id ?: "",
+        name = "Dr. ${firstName.orEmpty().trim()} ${lastName.orEmpty().trim()}",
+        specialty = specialization.orEmpty().ifEmpty { "General Physician" },
+        rating = 4.8, // Default value or could be fetched from backend
+        reviews = 100, // Default value or could be fetched from backend
+        availability = availableDays.map { day ->
+            // Capitalize first letter and show first 3 letters
+            day.replaceFirstChar { it.uppercase() }.take(3)
+        },
+        location = location.orEmpty().ifEmpty { "Not specified" },
+        phone = phone.orEmpty().ifEmpty { "Not available" },
+        email = email.orEmpty().ifEmpty { "Not available" },
+        image = photo ?: "https://via.placeholder.com/100",
+        bio = description.orEmpty().ifEmpty { "No description available" },
+        availableTimes = availableTimeSlots.mapValues { (_, timeSlots) ->
+            timeSlots.map { slot -> "${slot.startTime} - ${slot.endTime}" }
+        }
+    )
+    
     // Function to get a doctor by ID
     suspend fun fetchDoctorById(id: String): Doctor? {
         _isLoading.value = true
@@ -102,14 +102,19 @@ class PatientRepository {
      */
     fun getAllPatients(): Flow<Result<List<Patient>>> = flow {
         try {
-            val response = patientApiService.getAllPatients()
-            if (response.isSuccessful) {
-                response.body()?.let {
-                    emit(Result.success(it))
-                } ?: emit(Result.failure(Exception("Empty response body")))
-            } else {
-                emit(Result.failure(Exception("Failed to get patients: ${response.errorBody()?.string()}")))
-            }
+            // Follow the X-Next-Cursor header through every page
+            val patients = mutableListOf<Patient>()
+            var cursor: String? = null
+            do {
+                val response = patientApiService.getAllPatients(cursor)
+                if (!response.isSuccessful) {
+                    emit(Result.failure(Exception("Failed to get patients: ${response.errorBody()?.string()}")))
+                    return@flow
+                }
+                patients.addAll(response.body().orEmpty())
+                cursor = response.headers()["X-Next-Cursor"]
+            } while (cursor != null)
+            emit(Result.success(patients))
         } catch (e: Exception) {
             Log.e(TAG, "Error getting all patients", e)
             emit(Result.failure(e))
@@ -418,7 +418,7 @@ export default function AdminAppointmentsPage() {
   const fetchAllAppointments = async () => {
     try {
       // Get all doctors first
-      const allDoctors = await doctorApi.getAllDoctors();
+      const allDoctors = await doctorApi.getAllDoctors('id');
       
       // Create arrays to store appointments
       let upcoming: Appointment[] = [];
@@ -481,7 +481,7 @@ export default function AdminAppointmentsPage() {
   useEffect(() => {
     const fetchPatients = async () => {
       try {
-        const patientsData = await adminApi.getAllPatients();
+        const patientsData = await adminApi.getAllPatients('firstName,lastName');
         // Make sure each patient has a name property
         const patientsWithNames = patientsData.map((patient: any) => ({
           ...patient,
@@ -542,7 +542,7 @@ const handleDeleteAppointment = async (id: string) => {
     const fetchPatients = async () => {
       try {
         // Use doctorApi to fetch all patients
-        const response = await doctorApi.getAllPatients();
+        const response = await doctorApi.getAllPatients('firstName,lastName');
         
         // Make sure each patient has a name property for display in dropdown
         const patientsWithNames = response.map((patient: Patient) => ({
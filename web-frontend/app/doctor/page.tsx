@@ -5,7 +5,7 @@ import { Button } from "@/components/ui/button"
 import { useState, useEffect } from "react"
 import Link from "next/link"
 import { appointmentsApi } from "@/lib/api"
-import { scheduleApi } from "@/lib/api"
+import { doctorApi } from "@/lib/api"
 import { Skeleton } from "@/components/ui/skeleton"
 import { Calendar } from "@/components/ui/calendar"
 
@@ -80,14 +80,12 @@ export default function DoctorDashboard() {
         // Fetch doctor's availability 
       const fetchDoctorData = async () => {
         try {
-          // Fetch all data in parallel
-          const [ongoingAppointmentData, todaysAppointmentsData, upcomingAppointmentsData, availabilityData] = 
-            await Promise.all([
-              appointmentsApi.getOngoingAppointment(doctorId),
-              appointmentsApi.getTodaysAppointments(doctorId),
-              appointmentsApi.getUpcomingAppointmentsByDoctor(doctorId),
-              scheduleApi.getDoctorAvailability(doctorId)
-            ]);
+          // One request for everything the dashboard shows
+          const dashboard = await doctorApi.getDashboard(doctorId);
+          const ongoingAppointmentData = dashboard.ongoing;
+          const todaysAppointmentsData = dashboard.today;
+          const upcomingAppointmentsData = dashboard.upcoming;
+          const availabilityData = dashboard.doctor;
           
           // Set the state with fetched data
           setOngoingAppointment(ongoingAppointmentData);
@@ -8,6 +8,18 @@ const api = axios.create({
   },
 });
 
+// List endpoints return one page at a time and announce the next one in the X-Next-Cursor header
+const getAllPages = async (url: string, params: Record<string, any> = {}) => {
+  const items: any[] = [];
+  let cursor: string | undefined;
+  do {
+    const response = await api.get(url, { params: { ...params, cursor } });
+    items.push(...response.data);
+    cursor = response.headers['x-next-cursor'];
+  } while (cursor);
+  return items;
+};
+
 export const adminApi = {
   signup: async (adminData: any) => {
     const response = await api.post('/admin/signup', adminData);
@@ -29,9 +41,9 @@ export const adminApi = {
     const response = await api.get('/patient/count');
     return response.data;
   },
-  getAllPatients: async () => {
-    const response = await api.get('/patient');
-    return response.data;
+  // fields, e.g. 'firstName,lastName', limits the patients to those fields
+  getAllPatients: async (fields?: string) => {
+    return getAllPages('/patient', { fields });
   },
   updatePatient: async (id: string, patientDetails: Patient) => {
     const response = await api.put(`/patient/${id}`, patientDetails);
@@ -68,17 +80,22 @@ export const doctorApi = {
     const response = await api.put(`/doctors/${id}`, profileData);
     return response.data;
   },
-  getAllDoctors: async () => {
-    const response = await api.get('/doctors');
+  // fields, e.g. 'firstName,lastName', limits the doctors to those fields
+  getAllDoctors: async (fields?: string) => {
+    return getAllPages('/doctors', { fields });
+  },
+  // Home screen data in one call: doctor, ongoing, nextUp, today, upcoming, pendingReports, freeSlots
+  getDashboard: async (id: string) => {
+    const response = await api.get(`/doctors/${id}/dashboard`);
     return response.data;
   },
   getDoctorCount: async () => {
     const response = await api.get('/doctors/count');
     return response.data;
   },
-  getAllPatients: async () => {
-    const response = await api.get('/patient');
-    return response.data;
+  // fields, e.g. 'firstName,lastName', limits the patients to those fields
+  getAllPatients: async (fields?: string) => {
+    return getAllPages('/patient', { fields });
   },
   getAppointmentsByDoctorId: async (doctorId: string) => {
     const response = await api.get(`/appointments/doctor/${doctorId}`);
@@ -112,6 +129,12 @@ export const scheduleApi = {
     const response = await api.get(`/doctors/${doctorId}/availability`);
     return response.data;
   },
+  getAvailableSlotsInRange: async (doctorId: string, from: string, to: string) => {
+    const response = await api.get(`/doctors/${doctorId}/availability/range`, {
+      params: { from, to },
+    });
+    return response.data;
+  },
   appendAvailability: async (doctorId: string, newAvailability: any) => {
     const response = await api.post(`/doctors/${doctorId}/availability/append`, newAvailability);
     return response.data;
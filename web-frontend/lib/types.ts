@@ -71,6 +71,7 @@ export interface Appointment {
   plan?: string; // Treatment plan
   confidentialNotes?: string; // Doctor's personal/confidential notes
   reportPending?: boolean; // Whether a report is pending for this appointment
+  noShow?: boolean; // Whether the patient did not come
   location?: string; // Appointment location
 }
 